@@ -0,0 +1,95 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.tuubes.core.engine.{AttributeKey, AttributeLayout, AttributeStorage, SimpleValueListener}
+
+/**
+ * Measures the accesses to an [[AttributeStorage]] and the end of a modification cycle, which
+ * notifies the listeners of the modified attributes.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class AttributeStorageBench {
+  private val attributeCount = 16
+  private val keys = Array.tabulate(attributeCount)(new AttributeKey[java.lang.Integer](_))
+  private val storage = new AttributeStorage
+  private val intKeys = Array.fill(attributeCount)(AttributeKey.createInt())
+  private val intStorage = new AttributeStorage(AttributeLayout.of(intKeys: _*))
+  private var notifications = 0L
+  private var value = 0
+
+  @Setup
+  def setup(): Unit = {
+    for (key <- keys) {
+      storage.put(key, Integer.valueOf(0))
+      storage.listen(key, new SimpleValueListener[java.lang.Integer] {
+        override def onChange(newValue: java.lang.Integer): Unit = notifications += 1
+      })
+    }
+    for (key <- intKeys) {
+      intStorage.putInt(key, 0)
+    }
+  }
+
+  @Benchmark
+  def get(): java.lang.Integer = {
+    storage.getOrNull(keys(value & 15))
+  }
+
+  @Benchmark
+  def put(): Unit = {
+    value += 1
+    storage.put(keys(value & 15), Integer.valueOf(value))
+  }
+
+  @Benchmark
+  def putAllAndEndCycle(): Long = {
+    value += 1
+    val v = Integer.valueOf(value)
+    var i = 0
+    while (i < attributeCount) {
+      storage.put(keys(i), v)
+      i += 1
+    }
+    storage.endCycle()
+    notifications
+  }
+
+  @Benchmark
+  def getInt(): Int = {
+    intStorage.getInt(intKeys(value & 15))
+  }
+
+  @Benchmark
+  def putInt(): Unit = {
+    value += 1
+    intStorage.putInt(intKeys(value & 15), value)
+  }
+
+  @Benchmark
+  def putAllIntAndEndCycle(): Unit = {
+    value += 1
+    var i = 0
+    while (i < attributeCount) {
+      intStorage.putInt(intKeys(i), value)
+      i += 1
+    }
+    intStorage.endCycle()
+  }
+
+  @Benchmark
+  def putOneAndEndCycle(): Long = {
+    value += 1
+    storage.put(keys(value & 15), Integer.valueOf(value))
+    storage.endCycle() // only visits the changed attribute
+    notifications
+  }
+}
@@ -0,0 +1,29 @@
+package org.tuubes.bench
+
+import org.tuubes.core.blocks.{BlockState, BlockType}
+
+/**
+ * Block types registered for the benchmarks. The game-independent core doesn't define any block
+ * type, so the benchmarks register their own.
+ *
+ * @author TheElectronWill
+ */
+object BenchBlocks {
+  /** The types used by [[org.tuubes.core.worlds.BasicHeightmapChunkGenerator]] */
+  val Stone: BlockType[_] = new BenchBlockType("stone")
+  val Grass: BlockType[_] = new BenchBlockType("grass")
+  val Sand: BlockType[_] = new BenchBlockType("sand")
+  val Water: BlockType[_] = new BenchBlockType("water")
+
+  /** Many types, to fill the palettes */
+  val Types: Array[BlockType[_]] = Array.tabulate(512)(i => new BenchBlockType(s"bench_$i"))
+
+  /** Registers the block types, if they haven't been registered yet */
+  def init(): Unit = ()
+
+  private final class BenchBlockType(name: String) extends BlockType[BenchBlockState](name) {
+    override def newState(): BenchBlockState = new BenchBlockState(this)
+  }
+
+  private final class BenchBlockState(val typ: BlockType[_]) extends BlockState
+}
@@ -0,0 +1,85 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.electronwill.niol.io.ChannelOutput
+import com.electronwill.util.ByteArrayChannel
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import org.tuubes.core.worlds.ChunkBlocks
+
+/**
+ * Measures the reads, writes and serialization of [[ChunkBlocks]], for several numbers of
+ * different block types in the chunk.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ChunkBlocksBench {
+  @Param(Array("2", "16", "300"))
+  var typeCount: Int = _
+
+  private var blocks: ChunkBlocks = _
+  private var positions: Array[Int] = _
+
+  @Setup
+  def setup(): Unit = {
+    val random = new java.util.Random(typeCount)
+    positions = Array.fill(4096)(random.nextInt(4096))
+    blocks = ChunkBlocks.empty
+    fill(blocks)
+  }
+
+  private def fill(b: ChunkBlocks): Unit = {
+    var i = 0
+    while (i < 4096) {
+      val pos = positions(i)
+      b(pos >> 8, (pos >> 4) & 15, pos & 15) = BenchBlocks.Types(i % typeCount)
+      i += 1
+    }
+  }
+
+  @Benchmark
+  def update(): ChunkBlocks = {
+    fill(blocks)
+    blocks
+  }
+
+  @Benchmark
+  def updateNewChunk(): ChunkBlocks = {
+    val b = ChunkBlocks.empty
+    fill(b)
+    b
+  }
+
+  @Benchmark
+  def read(bh: Blackhole): Unit = {
+    var y = 0
+    while (y < 16) {
+      var x = 0
+      while (x < 16) {
+        var z = 0
+        while (z < 16) {
+          bh.consume(blocks(x, y, z))
+          z += 1
+        }
+        x += 1
+      }
+      y += 1
+    }
+  }
+
+  @Benchmark
+  def write(): Int = {
+    val channel = new ByteArrayChannel()
+    val out = new ChannelOutput(channel)
+    blocks.write(out)
+    out.close()
+    channel.size
+  }
+}
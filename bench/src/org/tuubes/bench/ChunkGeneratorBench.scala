@@ -0,0 +1,34 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.tuubes.core.worlds.{BasicHeightmapChunkGenerator, ChunkColumn}
+
+/**
+ * Measures the generation of a chunk column by [[BasicHeightmapChunkGenerator]].
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ChunkGeneratorBench {
+  private var generator: BasicHeightmapChunkGenerator = _
+  private var cx = 0
+
+  @Setup
+  def setup(): Unit = {
+    BenchBlocks.init() // registers the block types used by the generator
+    generator = new BasicHeightmapChunkGenerator
+  }
+
+  @Benchmark
+  def generate(): ChunkColumn = {
+    cx += 1 // a different column each time
+    generator.generate(cx, cx >> 4)
+  }
+}
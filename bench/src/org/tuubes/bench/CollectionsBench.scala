@@ -0,0 +1,58 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.electronwill.collection.{ConcurrentBag, ConcurrentRecyclingIndex, SimpleBag}
+import org.openjdk.jmh.annotations._
+
+/**
+ * Measures the addition and removal of elements in the collections used by the engine. The
+ * concurrent collections are used by several threads at the same time.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class CollectionsBench {
+  private val concurrentBag = new ConcurrentBag[AnyRef](256)
+  private val concurrentIndex = new ConcurrentRecyclingIndex[AnyRef](256)
+
+  @Benchmark
+  @Threads(4)
+  def concurrentBagAddRemove(element: CollectionsBench.Element): ConcurrentBag[AnyRef] = {
+    concurrentBag += element
+    concurrentBag -= element
+  }
+
+  @Benchmark
+  @Threads(4)
+  def concurrentIndexAddRemove(element: CollectionsBench.Element): Unit = {
+    val id = concurrentIndex += element
+    concurrentIndex.remove(id)
+  }
+
+  @Benchmark
+  def simpleBagAddRemove(bag: CollectionsBench.LocalBag): SimpleBag[AnyRef] = {
+    bag.bag += bag
+    bag.bag -= bag
+  }
+}
+
+object CollectionsBench {
+  /** An element owned by one thread */
+  @State(Scope.Thread)
+  class Element
+
+  /** A non thread-safe bag owned by one thread, that already contains some elements */
+  @State(Scope.Thread)
+  class LocalBag {
+    val bag = new SimpleBag[AnyRef](256)
+    for (_ <- 0 until 128) {
+      bag += new Object
+    }
+  }
+}
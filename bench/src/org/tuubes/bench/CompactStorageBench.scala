@@ -0,0 +1,76 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import com.electronwill.util.CompactStorage
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+/**
+ * Measures the accesses to a [[CompactStorage]] of 4096 values, for several numbers of bits per
+ * value.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class CompactStorageBench {
+  @Param(Array("4", "5", "8", "13", "16"))
+  var bitsPerValue: Int = _
+
+  private val size = 4096
+  private var storage: CompactStorage = _
+  private var values: Array[Int] = _
+
+  @Setup
+  def setup(): Unit = {
+    storage = CompactStorage(bitsPerValue, size)
+    val random = new java.util.Random(bitsPerValue)
+    values = Array.fill(size)(random.nextInt(1 << bitsPerValue))
+    storage.setAll(values)
+  }
+
+  @Benchmark
+  def get(bh: Blackhole): Unit = {
+    var i = 0
+    while (i < size) {
+      bh.consume(storage(i))
+      i += 1
+    }
+  }
+
+  @Benchmark
+  def set(): Unit = {
+    var i = 0
+    while (i < size) {
+      storage(i) = values(i)
+      i += 1
+    }
+  }
+
+  @Benchmark
+  def getAll(): Array[Int] = {
+    storage.getAll(values)
+    values
+  }
+
+  @Benchmark
+  def setAll(): CompactStorage = {
+    storage.setAll(values)
+    storage
+  }
+
+  @Benchmark
+  def expand(): CompactStorage = {
+    storage.expand(1)
+  }
+
+  @Benchmark
+  def toBytes(): Array[Byte] = {
+    storage.toBytes
+  }
+}
@@ -0,0 +1,47 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.tuubes.core.engine.{ExecutionGroup, GroupedActor}
+
+/**
+ * Measures one execution of an [[ExecutionGroup]] that contains N actors.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ExecutionGroupBench {
+  @Param(Array("100", "1000", "10000"))
+  var actorCount: Int = _
+
+  private var group: ExecutionGroup = _
+
+  @Setup
+  def setup(): Unit = {
+    group = new ExecutionGroup(0)
+    for (_ <- 0 until actorCount) {
+      group.add(new CountingActor)
+    }
+    group.run() // accepts the new actors
+  }
+
+  @Benchmark
+  def run(): Unit = {
+    group.run()
+  }
+}
+
+/** An actor that only counts its updates */
+final class CountingActor extends GroupedActor {
+  var updates = 0L
+
+  override def update(dt: Double): Unit = {
+    updates += 1
+  }
+}
@@ -0,0 +1,64 @@
+package org.tuubes.bench
+
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.openjdk.jmh.annotations._
+import org.tuubes.core.tasks.{IOPriority, IOScheduler}
+
+/**
+ * Measures the time to complete N blocking loads that are submitted at the same time to an
+ * [[IOScheduler]], in the platform mode (8 threads) and in the virtual mode (at most 4096
+ * concurrent tasks). Each load blocks for 1 ms, like a chunk read from the disk. If the JVM doesn't
+ * support the virtual threads, the virtual mode falls back to the platform mode, with a warning.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class IOSchedulerBench {
+  @Param(Array("platform", "virtual"))
+  var mode: String = _
+
+  @Param(Array("100", "1000", "10000"))
+  var loads: Int = _
+
+  private var scheduler: IOScheduler = _
+
+  @Setup
+  def setup(): Unit = {
+    scheduler = mode match {
+      case "platform" => new IOScheduler("bench-io-", 8)
+      case "virtual" =>
+        val s = IOScheduler.virtual("bench-io-virtual-", 4096)
+        if (s eq null) {
+          System.err.println("Virtual threads aren't supported, using the platform mode")
+          new IOScheduler("bench-io-", 8)
+        } else {
+          s
+        }
+    }
+  }
+
+  @TearDown
+  def tearDown(): Unit = {
+    scheduler.shutdown()
+  }
+
+  @Benchmark
+  def concurrentLoads(): Unit = {
+    val latch = new CountDownLatch(loads)
+    val load: Runnable = () => {
+      LockSupport.parkNanos(1000000) // blocks like a read
+      latch.countDown()
+    }
+    for (i <- 0 until loads) {
+      scheduler.submit(Integer.valueOf(i), IOPriority.INTERACTIVE, load, null)
+    }
+    latch.await()
+  }
+}
@@ -0,0 +1,61 @@
+package org.tuubes.bench
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+import org.tuubes.core.engine.{ActorMessage, ExecutionGroup, GroupedActor}
+
+/**
+ * Measures the throughput of a [[org.tuubes.core.engine.LocalActor]] mailbox, with several
+ * threads sending messages to an actor that processes them.
+ *
+ * @author TheElectronWill
+ */
+@State(Scope.Group)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class MailboxBench {
+  private var actor: ReceivingActor = _
+
+  @Setup
+  def setup(): Unit = {
+    val group = new ExecutionGroup(0)
+    actor = new ReceivingActor
+    group.add(actor)
+    group.run() // the actor is now running
+  }
+
+  @Benchmark
+  @Group("mailbox")
+  @GroupThreads(3)
+  def send(): Unit = {
+    actor.!(Ping)(null) // not sent from an ExecutionGroup => goes through the mailbox
+  }
+
+  @Benchmark
+  @Group("mailbox")
+  @GroupThreads(1)
+  def process(): Long = {
+    actor.processMessages()
+    actor.received
+  }
+}
+
+case object Ping extends ActorMessage
+
+/** An actor that counts the messages it receives */
+final class ReceivingActor extends GroupedActor {
+  var received = 0L
+
+  override protected def onMessage(msg: ActorMessage): Unit = {
+    msg match {
+      case Ping => received += 1
+      case _ => super.onMessage(msg)
+    }
+  }
+
+  override def update(dt: Double): Unit = {}
+}
@@ -1,6 +1,8 @@
 import mill._, scalalib._
 import coursier.maven.MavenRepository
 import $ivy.`ch.epfl.scala::mill-bloop:1.2.5`
+import $ivy.`com.lihaoyi::mill-contrib-jmh:$MILL_VERSION`
+import contrib.jmh.JmhModule
 
 trait TuubesModule extends ScalaModule {
   def scalaVersion = "2.12.8"
@@ -36,3 +38,9 @@ object core extends TuubesModule {
 object coreExamples extends TuubesModule {
   def moduleDeps = Seq(core)
 }
+
+// JMH benchmarks, run with bench.runJmh
+object bench extends TuubesModule with JmhModule {
+  def jmhCoreVersion = "1.21"
+  def moduleDeps = Seq(core)
+}
@@ -1,9 +1,20 @@
 package org.tuubes.core
 
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
 import TuubesServer._
+import org.tuubes.core.engine.{EngineTelemetry, TickRuntime}
 import org.tuubes.core.network.NetworkSystem
+import org.tuubes.core.tasks.IOSystem
+import org.tuubes.core.worlds.LocalWorld
 
 object ShutdownHandler extends Runnable {
+  /** The maximum time to wait for the worlds to be saved, in seconds */
+  private final val SaveTimeout = 30
+
+  /** The maximum time to wait for the pending IO tasks, in seconds */
+  private final val IOTimeout = 10
+
   override def run(): Unit = {
     logger.info("Time to sleep!")
     logger.info("Unloading the plugins...")
@@ -11,7 +22,31 @@ object ShutdownHandler extends Runnable {
 
     logger.info("Stopping the server...")
     NetworkSystem.stop()
+    saveWorlds() // while the ticks run, because the chunk services are actors
+    EngineTelemetry.stop()
+    TickRuntime.stop()
+    LocalWorld.loaded.foreach(_.unload())
+    IOSystem.shutdown()
+    if (!IOSystem.awaitTermination(IOTimeout, TimeUnit.SECONDS)) {
+      logger.warn(s"Some IO tasks are still running after $IOTimeout seconds, they're abandoned")
+    }
 
     logger.info(s"Tuubes $Version shuts down.")
   }
+
+  /** Saves the modified columns of the loaded worlds, and waits for the writes to complete */
+  private def saveWorlds(): Unit = {
+    val worlds = LocalWorld.loaded
+    logger.info(s"Saving ${worlds.length} worlds...")
+    val remaining = new CountDownLatch(worlds.length)
+    for (world <- worlds) {
+      world.chunkProvider.saveAll().onComplete(result => {
+        result.failed.foreach(e => logger.error(s"Unable to save the world ${world.name}", e))
+        remaining.countDown()
+      }).start()
+    }
+    if (!remaining.await(SaveTimeout, TimeUnit.SECONDS)) {
+      logger.warn(s"The worlds aren't saved after $SaveTimeout seconds, some changes may be lost")
+    }
+  }
 }
@@ -3,8 +3,10 @@ package org.tuubes.core
 import better.files.File
 import org.apache.logging.log4j.LogManager
 import org.fusesource.jansi.AnsiConsole
+import org.tuubes.core.engine.{EngineTelemetry, TickRuntime}
 import org.tuubes.core.network.NetworkSystem
 import org.tuubes.core.plugins.ScalaPluginLoader
+import org.tuubes.core.tasks.IOSystem
 
 /**
  * @author TheElectronWill
@@ -33,7 +35,13 @@ object TuubesServer {
     logger.info("Let's load the plugins!")
     PluginLoader.load(DirPlugins.list)
 
+    val io = IOSystem.scheduler
+    val ioMode = if (io.isVirtual) "virtual threads" else "threads"
+    logger.info(s"IOSystem: up to ${io.concurrencyLimit} tasks at once, in $ioMode")
+
     // TODO load the world(s)
+    TickRuntime.start()
+    EngineTelemetry.start()
     logger.info("Connecting to the world...")
     NetworkSystem.start()
 
@@ -5,18 +5,27 @@ import com.electronwill.collection.RecyclingIndex
 /**
  * A [[GameObject]] attribute. It contains data shared with all the object's behaviors.
  *
+ * The attributes of the keys created by [[AttributeKey.createInt]], [[AttributeKey.createLong]],
+ * [[AttributeKey.createDouble]] and [[AttributeKey.createBoolean]] store their value without
+ * boxing, see [[IntAttribute]], [[LongAttribute]], [[DoubleAttribute]] and [[BooleanAttribute]].
+ *
  * @author TheElectronWill
  */
 sealed abstract class Attribute[A](private[engine] val typ: AttributeKey[A],
-                                   protected[this] var value: A,
                                    newlyAdded: Boolean,
                                    private[tuubes] val listeners: RecyclingIndex[ValueListener[A]]) {
   protected[this] var changed = newlyAdded
 
+  /** The storage that contains this attribute, notified of the first change of each cycle */
+  private[engine] var storage: AttributeStorage = _
+
+  /** True if this attribute is in the list of changed attributes of its storage */
+  private[engine] var dirty = false
+
   /**
 	 * @return the current value
 	 */
-  final def get: A = value
+  def get: A
 
   /**
 	 * Updates the attribute.
@@ -42,23 +51,75 @@ sealed abstract class Attribute[A](private[engine] val typ: AttributeKey[A],
   def removeListener(key: ListenKey[Attribute[A]]): Unit = {
     listeners.remove(key.id)
   }
+
+  /** Marks the attribute as changed, and registers it in its storage's list of changes */
+  protected[this] final def markChanged(): Unit = {
+    changed = true
+    if (!dirty && (storage ne null)) {
+      storage.markDirty(this)
+    }
+  }
+
+  /** Notifies the listeners of a change, without allocating */
+  protected[this] final def notifyListeners(oldValue: A, newValue: A): Unit = {
+    if (listeners.size > 0) {
+      val limit = listeners.idLimit
+      var i = 0
+      while (i < limit) {
+        val listener = listeners.getOrNull(i)
+        if (listener ne null) {
+          listener.onChange(oldValue, newValue)
+        }
+        i += 1
+      }
+    }
+  }
+}
+
+object Attribute {
+  /**
+   * Creates an attribute that can store the values of a key, according to the key's kind.
+   *
+   * @param key   the key
+   * @param value the initial value
+   * @tparam A the value's type
+   * @return a new attribute
+   */
+  private[engine] def create[A](key: AttributeKey[A], value: A): Attribute[A] = {
+    val attribute = AttributeKey.kindOf(key) match {
+      case AttributeKey.IntKind =>
+        new IntAttribute(key.asInstanceOf[AttributeKey[Int]], value.asInstanceOf[Int])
+      case AttributeKey.LongKind =>
+        new LongAttribute(key.asInstanceOf[AttributeKey[Long]], value.asInstanceOf[Long])
+      case AttributeKey.DoubleKind =>
+        new DoubleAttribute(key.asInstanceOf[AttributeKey[Double]], value.asInstanceOf[Double])
+      case AttributeKey.BooleanKind =>
+        new BooleanAttribute(key.asInstanceOf[AttributeKey[Boolean]], value.asInstanceOf[Boolean])
+      case _ =>
+        new SimpleAttribute[A](key, value)
+    }
+    attribute.asInstanceOf[Attribute[A]]
+  }
 }
+
 final class SimpleAttribute[A](t: AttributeKey[A],
                                v: A,
                                newlyAdded: Boolean = true,
                                listeners: RecyclingIndex[ValueListener[A]] =
                                 new RecyclingIndex[ValueListener[A]])
-  extends Attribute[A](t, v, newlyAdded, listeners) {
+  extends Attribute[A](t, newlyAdded, listeners) {
+  private[this] var value: A = v
+
+  override def get: A = value
+
   override def set(newValue: A): Unit = {
     value = newValue
-    changed = true
+    markChanged()
   }
   override def endCycle(): Unit = {
     if (changed) {
       val newValue = value
-      for (listener <- listeners.valuesIterator) {
-        listener.onChange(newValue, newValue)
-      }
+      notifyListeners(newValue, newValue)
       changed = false
     }
   }
@@ -76,25 +137,30 @@ final class MemorizedAttribute[A](t: AttributeKey[A],
                                   newlyAdded: Boolean = true,
                                   listeners: RecyclingIndex[ValueListener[A]] =
                                    new RecyclingIndex[ValueListener[A]])
-  extends Attribute[A](t, v, newlyAdded, listeners) {
+  extends Attribute[A](t, newlyAdded, listeners) {
 
-  private[this] var old: A = value
+  private[this] var value: A = v
+  private[this] var old: A = v
 
   def this(sp: SimpleAttribute[A]) = {
-    this(sp.typ, sp.get, false, sp.listeners)
+    this(sp.typ, sp.get, sp.hasChanged, sp.listeners)
   }
 
+  override def get: A = value
+
   override def set(newValue: A): Unit = {
     value = newValue
-    changed = (newValue != old)
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
   }
   override def endCycle(): Unit = {
     if (changed) {
       val oldValue = old
       val newValue = value
-      for (listener <- listeners.valuesIterator) {
-        listener.onChange(oldValue, newValue)
-      }
+      notifyListeners(oldValue, newValue)
       changed = false
       old = newValue
     }
@@ -105,3 +171,203 @@ final class MemorizedAttribute[A](t: AttributeKey[A],
 	 */
   def getOld: A = old
 }
+
+/**
+ * An Int attribute. Its value isn't boxed, unless it's accessed through the generic methods.
+ * It remembers its previous value, like a [[MemorizedAttribute]].
+ *
+ * @param t the type
+ * @param v the initial value
+ */
+final class IntAttribute(t: AttributeKey[Int], v: Int, newlyAdded: Boolean = true)
+  extends Attribute[Int](t, newlyAdded, new RecyclingIndex[ValueListener[Int]]) {
+  private[this] var value = v
+  private[this] var old = v
+
+  def getInt: Int = value
+
+  def setInt(newValue: Int): Unit = {
+    value = newValue
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
+  }
+
+  override def get: Int = value
+  override def set(newValue: Int): Unit = setInt(newValue)
+
+  override def endCycle(): Unit = {
+    if (changed) {
+      notifyListeners(old, value)
+      changed = false
+      old = value
+    }
+  }
+
+  /** @return the old value */
+  def getOld: Int = old
+}
+
+/**
+ * A Long attribute. Its value isn't boxed, unless it's accessed through the generic methods.
+ * It remembers its previous value, like a [[MemorizedAttribute]].
+ *
+ * @param t the type
+ * @param v the initial value
+ */
+final class LongAttribute(t: AttributeKey[Long], v: Long, newlyAdded: Boolean = true)
+  extends Attribute[Long](t, newlyAdded, new RecyclingIndex[ValueListener[Long]]) {
+  private[this] var value = v
+  private[this] var old = v
+
+  def getLong: Long = value
+
+  def setLong(newValue: Long): Unit = {
+    value = newValue
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
+  }
+
+  override def get: Long = value
+  override def set(newValue: Long): Unit = setLong(newValue)
+
+  override def endCycle(): Unit = {
+    if (changed) {
+      notifyListeners(old, value)
+      changed = false
+      old = value
+    }
+  }
+
+  /** @return the old value */
+  def getOld: Long = old
+}
+
+/**
+ * A Double attribute. Its value isn't boxed, unless it's accessed through the generic methods.
+ * It remembers its previous value, like a [[MemorizedAttribute]].
+ *
+ * @param t the type
+ * @param v the initial value
+ */
+final class DoubleAttribute(t: AttributeKey[Double], v: Double, newlyAdded: Boolean = true)
+  extends Attribute[Double](t, newlyAdded, new RecyclingIndex[ValueListener[Double]]) {
+  private[this] var value = v
+  private[this] var old = v
+
+  def getDouble: Double = value
+
+  def setDouble(newValue: Double): Unit = {
+    value = newValue
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
+  }
+
+  override def get: Double = value
+  override def set(newValue: Double): Unit = setDouble(newValue)
+
+  override def endCycle(): Unit = {
+    if (changed) {
+      notifyListeners(old, value)
+      changed = false
+      old = value
+    }
+  }
+
+  /** @return the old value */
+  def getOld: Double = old
+}
+
+/**
+ * A Boolean attribute. Its value isn't boxed, unless it's accessed through the generic methods.
+ * It remembers its previous value, like a [[MemorizedAttribute]].
+ *
+ * @param t the type
+ * @param v the initial value
+ */
+final class BooleanAttribute(t: AttributeKey[Boolean], v: Boolean, newlyAdded: Boolean = true)
+  extends Attribute[Boolean](t, newlyAdded, new RecyclingIndex[ValueListener[Boolean]]) {
+  private[this] var value = v
+  private[this] var old = v
+
+  def getBoolean: Boolean = value
+
+  def setBoolean(newValue: Boolean): Unit = {
+    value = newValue
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
+  }
+
+  override def get: Boolean = value
+  override def set(newValue: Boolean): Unit = setBoolean(newValue)
+
+  override def endCycle(): Unit = {
+    if (changed) {
+      notifyListeners(old, value)
+      changed = false
+      old = value
+    }
+  }
+
+  /** @return the old value */
+  def getOld: Boolean = old
+}
+
+/**
+ * An attribute whose value is stored in a [[ComponentStore]]: the behaviors see the values
+ * computed by the [[ComponentSystem]]s, and the systems see the values set by the behaviors.
+ * It remembers its previous value, like a [[MemorizedAttribute]].
+ *
+ * @param t        the type
+ * @param binding  the conversion between the attribute's value and the component
+ * @param store    the store that contains the component
+ * @param objectId the id of the object in the store
+ * @tparam A the value's type
+ */
+final class ComponentAttribute[A](t: AttributeKey[A],
+                                  private[engine] val binding: ComponentBinding[A],
+                                  store: ComponentStore,
+                                  objectId: Int,
+                                  listeners: RecyclingIndex[ValueListener[A]] =
+                                   new RecyclingIndex[ValueListener[A]])
+  extends Attribute[A](t, true, listeners) {
+  private[this] var old: A = binding.read(store, objectId)
+
+  override def get: A = binding.read(store, objectId)
+
+  override def set(newValue: A): Unit = {
+    binding.write(store, objectId, newValue)
+    if (newValue != old) {
+      markChanged()
+    } else {
+      changed = false
+    }
+  }
+
+  /** Called when a system has modified the component */
+  private[engine] def componentChanged(): Unit = markChanged()
+
+  override def endCycle(): Unit = {
+    if (changed) {
+      val oldValue = old
+      val newValue = get
+      notifyListeners(oldValue, newValue)
+      changed = false
+      old = newValue
+    }
+  }
+
+  /** @return the old value */
+  def getOld: A = old
+}
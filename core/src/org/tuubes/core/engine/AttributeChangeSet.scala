@@ -0,0 +1,94 @@
+package org.tuubes.core.engine
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+import com.electronwill.collection.ChunkedMpscQueue
+
+/**
+ * Collects the [[GameObject]]s whose attributes have changed during a tick, for instance to
+ * synchronize them with the game clients. At the end of each tick, the consumers are called
+ * once per changed object, and can read its changes with [[GameObject.foreachChangedAttribute]].
+ *
+ * The objects are only collected when there is at least one consumer. The groups add the objects
+ * concurrently, and the consumers are called by the [[TickRuntime]] between two ticks, when no
+ * object is being updated.
+ *
+ * @author TheElectronWill
+ */
+final class AttributeChangeSet extends TickListener {
+  private[this] val objects = new ChunkedMpscQueue[GameObject](chunkSize = 256)
+  private[this] val consumers = new CopyOnWriteArrayList[AttributeChangeConsumer]
+  @volatile private[this] var enabled = false
+
+  /**
+   * Registers a consumer of the changes. The first consumer starts the collection.
+   *
+   * @param consumer the consumer to call at the end of each tick
+   */
+  def addConsumer(consumer: AttributeChangeConsumer): Unit = {
+    this.synchronized {
+      consumers.add(consumer)
+      if (!enabled) {
+        enabled = true
+        TickRuntime.addTickListener(this)
+      }
+    }
+  }
+
+  /**
+   * Unregisters a consumer of the changes. The collection stops when there is no more consumer.
+   *
+   * @param consumer the consumer to remove
+   */
+  def removeConsumer(consumer: AttributeChangeConsumer): Unit = {
+    this.synchronized {
+      consumers.remove(consumer)
+      if (enabled && consumers.isEmpty) {
+        enabled = false
+        TickRuntime.removeTickListener(this)
+      }
+    }
+  }
+
+  /** Adds an object that has changed during the current tick. */
+  private[engine] def add(obj: GameObject): Unit = {
+    if (enabled) {
+      objects.offer(obj)
+    }
+  }
+
+  override def onTickEnd(tick: Long): Unit = {
+    val array = consumers.toArray(new Array[AttributeChangeConsumer](0))
+    objects.drain(obj => {
+      var i = 0
+      while (i < array.length) {
+        array(i).onChanged(obj, tick)
+        i += 1
+      }
+    })
+    var i = 0
+    while (i < array.length) {
+      array(i).onChangesEnd(tick)
+      i += 1
+    }
+  }
+}
+
+/** Consumes the changes collected by an [[AttributeChangeSet]]. */
+trait AttributeChangeConsumer {
+  /**
+   * Called at the end of a tick, for each object whose attributes have changed during the tick.
+   *
+   * @param obj  the object, see [[GameObject.foreachChangedAttribute]]
+   * @param tick the tick number
+   */
+  def onChanged(obj: GameObject, tick: Long): Unit
+
+  /**
+   * Called at the end of each tick, after the last call to [[onChanged]] of the tick. It's
+   * called even if no object has changed.
+   *
+   * @param tick the tick number
+   */
+  def onChangesEnd(tick: Long): Unit = ()
+}
@@ -4,3 +4,64 @@ package org.tuubes.core.engine
  * A key that identifies an [[Attribute]].
  */
 final class AttributeKey[A](private[tuubes] val id: Int) extends AnyVal {}
+
+object AttributeKey {
+  /** The kind of the keys whose values are stored as objects */
+  final val GenericKind: Byte = 0
+  /** The kind of the keys whose values are stored in an [[IntAttribute]] */
+  final val IntKind: Byte = 1
+  /** The kind of the keys whose values are stored in a [[LongAttribute]] */
+  final val LongKind: Byte = 2
+  /** The kind of the keys whose values are stored in a [[DoubleAttribute]] */
+  final val DoubleKind: Byte = 3
+  /** The kind of the keys whose values are stored in a [[BooleanAttribute]] */
+  final val BooleanKind: Byte = 4
+
+  private[this] var lastId = 0
+
+  /** The kind of each key, by id */
+  @volatile private[this] var kinds = new Array[Byte](64)
+
+  /**
+   * Creates a new key, with an id that isn't used by any other key created by this object.
+   *
+   * @tparam A the attribute's type
+   * @return a new unique key
+   */
+  def create[A](): AttributeKey[A] = register(GenericKind)
+
+  /** @return a new unique key for an Int attribute, stored without boxing */
+  def createInt(): AttributeKey[Int] = register(IntKind)
+
+  /** @return a new unique key for a Long attribute, stored without boxing */
+  def createLong(): AttributeKey[Long] = register(LongKind)
+
+  /** @return a new unique key for a Double attribute, stored without boxing */
+  def createDouble(): AttributeKey[Double] = register(DoubleKind)
+
+  /** @return a new unique key for a Boolean attribute, stored without boxing */
+  def createBoolean(): AttributeKey[Boolean] = register(BooleanKind)
+
+  /**
+   * Gets the kind of a key. The keys that haven't been created by this object are generic.
+   *
+   * @param key the key
+   * @return the key's kind
+   */
+  def kindOf(key: AttributeKey[_]): Byte = {
+    val k = kinds
+    if (key.id < k.length) k(key.id) else GenericKind
+  }
+
+  private def register[A](kind: Byte): AttributeKey[A] = {
+    this.synchronized {
+      val id = lastId
+      lastId += 1
+      if (id >= kinds.length) {
+        kinds = java.util.Arrays.copyOf(kinds, kinds.length * 2)
+      }
+      kinds(id) = kind
+      new AttributeKey[A](id)
+    }
+  }
+}
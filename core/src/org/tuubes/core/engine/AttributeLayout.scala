@@ -0,0 +1,79 @@
+package org.tuubes.core.engine
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Maps the [[AttributeKey]]s to dense slot indices, so that an [[AttributeStorage]] can find its
+ * attributes in an array instead of a hash map.
+ *
+ * The layouts are immutable and shared: all the objects of the same type should use the same
+ * layout, which declares their attributes. When an attribute that isn't in the layout is added
+ * to a storage, the storage switches to a layout that has one more key. These transitions are
+ * cached, therefore objects that get the same attributes in the same order end up sharing the
+ * same layouts.
+ *
+ * @author TheElectronWill
+ */
+final class AttributeLayout private (private[this] val keyIds: Array[Int]) {
+  /** The slot of each key, by key id, -1 if the key isn't in this layout */
+  private[this] val slots: Array[Int] = {
+    val maxId = if (keyIds.isEmpty) -1 else keyIds.max
+    val array = Array.fill(maxId + 1)(-1)
+    var slot = 0
+    while (slot < keyIds.length) {
+      array(keyIds(slot)) = slot
+      slot += 1
+    }
+    array
+  }
+
+  /** The layouts that have one more key than this one */
+  private[this] val transitions = new ConcurrentHashMap[Integer, AttributeLayout]
+
+  /** @return the number of slots */
+  def size: Int = keyIds.length
+
+  /**
+   * Gets the slot of a key.
+   *
+   * @param key the key
+   * @return the slot index, or -1 if the key isn't in this layout
+   */
+  def slotOf(key: AttributeKey[_]): Int = {
+    val id = key.id
+    if (id < slots.length) slots(id) else -1
+  }
+
+  /**
+   * Returns a layout that contains the keys of this layout, plus the given one.
+   *
+   * @param key the key to add
+   * @return a layout with the key, which is this layout if it already contains the key
+   */
+  def withKey(key: AttributeKey[_]): AttributeLayout = {
+    if (slotOf(key) >= 0) {
+      this
+    } else {
+      transitions.computeIfAbsent(key.id, id => {
+        val newIds = java.util.Arrays.copyOf(keyIds, keyIds.length + 1)
+        newIds(keyIds.length) = id
+        new AttributeLayout(newIds)
+      })
+    }
+  }
+}
+
+object AttributeLayout {
+  /** The layout without any key */
+  val Empty = new AttributeLayout(Array.emptyIntArray)
+
+  /**
+   * Gets the layout that contains the given keys, in that order.
+   *
+   * @param keys the keys
+   * @return the shared layout that contains the keys
+   */
+  def of(keys: AttributeKey[_]*): AttributeLayout = {
+    keys.foldLeft(Empty)(_.withKey(_))
+  }
+}
@@ -1,18 +1,189 @@
 package org.tuubes.core.engine
 
-import scala.collection.mutable
+import java.util.Arrays
 
 /**
  * Stores all the "properties" of a [[GameObject]].
  *
+ * The properties are stored in an array, at the slots given by an [[AttributeLayout]]. The
+ * primitive properties can be accessed without boxing with the specialized methods, like
+ * [[getInt]] and [[putInt]].
+ *
+ * The properties register themselves in a list of changes when they're modified, so that
+ * [[endCycle]] only touches the properties that have changed, instead of all of them.
+ *
+ * @param initialLayout the layout that declares the slots of the expected properties
  * @author TheElectronWill
  */
-final class AttributeStorage extends Iterable[Attribute[_]] {
+final class AttributeStorage(initialLayout: AttributeLayout = AttributeLayout.Empty)
+    extends Iterable[Attribute[_]] {
+
+  /** Gives the slot of each property */
+  private[this] var layout = initialLayout
+
+  /** The properties, by slot. A null element means that the property doesn't exist. */
+  private[this] var slots = new Array[Attribute[_]](layout.size)
+
+  /** The properties that have been modified during the current cycle */
+  private[this] var dirtyList = new Array[Attribute[_]](4)
+  private[this] var dirtyCount = 0
+
+  /** The properties that have changed during the last cycle, see [[foreachChange]] */
+  private[this] var changeList = new Array[Attribute[_]](4)
+  private[this] var changeCount = 0
+
+  /** Gets a property, or null. */
+  private def attribute[A](prop: AttributeKey[A]): Attribute[A] = {
+    val slot = layout.slotOf(prop)
+    if (slot < 0) null else slots(slot).asInstanceOf[Attribute[A]]
+  }
+
+  /** Stores a new property, switching to a bigger layout if needed. */
+  private def store(prop: AttributeKey[_], p: Attribute[_]): Unit = {
+    var slot = layout.slotOf(prop)
+    if (slot < 0) {
+      layout = layout.withKey(prop)
+      slot = layout.slotOf(prop)
+      if (slot >= slots.length) {
+        val newSlots = new Array[Attribute[_]](layout.size)
+        System.arraycopy(slots, 0, newSlots, 0, slots.length)
+        slots = newSlots
+      }
+    }
+    val previous = slots(slot)
+    if ((previous ne null) && previous.dirty) {
+      removeDirty(previous)
+    }
+    slots(slot) = p
+    p.storage = this
+    if (p.hasChanged) {
+      markDirty(p)
+    }
+  }
 
   /**
-	 * Map ID => Property
-	 */
-  private[this] val idMap = new mutable.LongMap[Attribute[_]]
+   * Stores a property in a [[ComponentStore]], through a [[ComponentAttribute]]. If the property
+   * already exists, its value is written to the store and its listeners are kept.
+   *
+   * @param prop       the PropertyType
+   * @param binding    the conversion between the value and the component
+   * @param components the store, that already contains the component of the object
+   * @param objectId   the object's id
+   * @return the new property
+   */
+  private[engine] def bind[A](prop: AttributeKey[A],
+                              binding: ComponentBinding[A],
+                              components: ComponentStore,
+                              objectId: Int): ComponentAttribute[A] = {
+    val previous = attribute(prop)
+    val p =
+      if (previous eq null) {
+        new ComponentAttribute(prop, binding, components, objectId)
+      } else {
+        binding.write(components, objectId, previous.get)
+        new ComponentAttribute(prop, binding, components, objectId, previous.listeners)
+      }
+    store(prop, p)
+    p
+  }
+
+  /** Adds a property to the list of changes. Called by the property on its first change. */
+  private[engine] def markDirty(p: Attribute[_]): Unit = {
+    if (dirtyCount == dirtyList.length) {
+      val newList = new Array[Attribute[_]](dirtyCount * 2)
+      System.arraycopy(dirtyList, 0, newList, 0, dirtyCount)
+      dirtyList = newList
+    }
+    dirtyList(dirtyCount) = p
+    dirtyCount += 1
+    p.dirty = true
+  }
+
+  /** Removes a property from the list of changes, leaving a hole that endCycle skips. */
+  private def removeDirty(p: Attribute[_]): Unit = {
+    var i = 0
+    while (i < dirtyCount) {
+      if (dirtyList(i) eq p) {
+        dirtyList(i) = null
+      }
+      i += 1
+    }
+    p.dirty = false
+  }
+
+  /**
+   * Ends the modification cycle of the properties that have changed: notifies their listeners
+   * and resets their "hasChanged" state. Only the modified properties are visited.
+   * <p>
+   * The properties modified by the listeners are part of the next cycle.
+   *
+   * @return the number of properties that have changed during the cycle
+   */
+  def endCycle(): Int = {
+    Arrays.fill(changeList.asInstanceOf[Array[AnyRef]], 0, changeCount, null)
+    changeCount = 0
+    val n = dirtyCount
+    if (n == 0) {
+      return 0
+    }
+    if (changeList.length < n) {
+      changeList = new Array[Attribute[_]](dirtyList.length)
+    }
+    var i = 0
+    while (i < n) {
+      val p = dirtyList(i)
+      if (p ne null) { // null if the property has been removed
+        p.dirty = false
+        if (p.hasChanged) { // a MemorizedAttribute may have been set back to its old value
+          changeList(changeCount) = p
+          changeCount += 1
+          p.endCycle()
+        }
+      }
+      i += 1
+    }
+    // Keeps the properties modified by the listeners for the next cycle
+    val remaining = dirtyCount - n
+    System.arraycopy(dirtyList, n, dirtyList, 0, remaining)
+    Arrays.fill(dirtyList.asInstanceOf[Array[AnyRef]], remaining, dirtyCount, null)
+    dirtyCount = remaining
+    changeCount
+  }
+
+  /**
+   * Checks if a property has changed during the current cycle.
+   *
+   * @param prop the PropertyType
+   * @return true if the property exists and has changed
+   */
+  def hasChanged(prop: AttributeKey[_]): Boolean = {
+    val p = attribute(prop)
+    (p ne null) && p.hasChanged
+  }
+
+  /**
+   * Calls a function on each property that has changed during the last cycle, ended by
+   * [[endCycle]]. The function sees the current values of the properties.
+   *
+   * @param f the function to call
+   */
+  def foreachChange[U](f: Attribute[_] => U): Unit = {
+    val array = changeList
+    var i = 0
+    while (i < changeCount) {
+      f(array(i))
+      i += 1
+    }
+  }
+
+  /** Gets an existing property, or throws an exception. */
+  private def existing[A](prop: AttributeKey[A]): Attribute[A] = {
+    val p = attribute(prop)
+    if (p eq null) {
+      throw new NoSuchElementException(s"No property with id ${prop.id}")
+    }
+    p
+  }
 
   /**
    * Gets the value of a property, or null.
@@ -22,8 +193,8 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
    * @return The value if this storage contains the property, null otherwise
    */
   def getOrNull[A](prop: AttributeKey[A]): A = {
-    val p = idMap.getOrNull(prop.id)
-    if (p == null) null.asInstanceOf[A] else p.get.asInstanceOf[A]
+    val p = attribute(prop)
+    if (p eq null) null.asInstanceOf[A] else p.get
   }
 
   /**
@@ -34,7 +205,7 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return Some(value) if this storage contains the property, None otherwise
 	 */
   def apply[A](prop: AttributeKey[A]): Option[A] = {
-    idMap.get(prop.id).map(_.get.asInstanceOf[A])
+    Option(attribute(prop)).map(_.get)
   }
 
   /**
@@ -46,9 +217,11 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return true if it has been updated, false if this storage doesn't contain the property
 	 */
   def update[A](prop: AttributeKey[A], newValue: A): Boolean = {
-    val p = idMap.get(prop.id)
-    p.foreach(_.asInstanceOf[Attribute[A]].set(newValue))
-    p.isDefined
+    val p = attribute(prop)
+    if (p ne null) {
+      p.set(newValue)
+    }
+    p ne null
   }
 
   /**
@@ -60,8 +233,8 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return true if it has been added, false if this storage already contains the property
 	 */
   def +=[A](prop: AttributeKey[A], initialValue: A): Boolean = {
-    if (!idMap.contains(prop.id)) {
-      idMap(prop.id) = new SimpleAttribute[A](prop, initialValue)
+    if (attribute(prop) eq null) {
+      store(prop, Attribute.create(prop, initialValue))
       true
     } else {
       false
@@ -75,7 +248,18 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return true if it has been removed, false if this storage doesn't contain the property
 	 */
   def -=(prop: AttributeKey[_]): Boolean = {
-    idMap.remove(prop.id).isDefined
+    val slot = layout.slotOf(prop)
+    if (slot >= 0 && (slots(slot) ne null)) {
+      val p = slots(slot)
+      if (p.dirty) {
+        removeDirty(p)
+      }
+      p.storage = null
+      slots(slot) = null // keeps the layout, the property will probably come back
+      true
+    } else {
+      false
+    }
   }
 
   /**
@@ -86,11 +270,127 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @tparam A the value's type
 	 */
   def put[A](prop: AttributeKey[A], value: A): Unit = {
-    val p = idMap.getOrNull(prop.id)
+    val p = attribute(prop)
     if (p eq null) {
-      idMap(prop.id) = new SimpleAttribute[A](prop, value)
+      store(prop, Attribute.create(prop, value))
     } else {
-      p.asInstanceOf[Attribute[A]].set(value)
+      p.set(value)
+    }
+  }
+
+  /**
+	 * Gets the value of an Int property, without boxing.
+	 *
+	 * @param prop the PropertyType
+	 * @return the value
+	 * @throws NoSuchElementException if this storage doesn't contain the property
+	 */
+  def getInt(prop: AttributeKey[Int]): Int = {
+    existing(prop) match {
+      case p: IntAttribute => p.getInt
+      case p => p.get
+    }
+  }
+
+  /**
+	 * Gets the value of a Long property, without boxing.
+	 *
+	 * @param prop the PropertyType
+	 * @return the value
+	 * @throws NoSuchElementException if this storage doesn't contain the property
+	 */
+  def getLong(prop: AttributeKey[Long]): Long = {
+    existing(prop) match {
+      case p: LongAttribute => p.getLong
+      case p => p.get
+    }
+  }
+
+  /**
+	 * Gets the value of a Double property, without boxing.
+	 *
+	 * @param prop the PropertyType
+	 * @return the value
+	 * @throws NoSuchElementException if this storage doesn't contain the property
+	 */
+  def getDouble(prop: AttributeKey[Double]): Double = {
+    existing(prop) match {
+      case p: DoubleAttribute => p.getDouble
+      case p => p.get
+    }
+  }
+
+  /**
+	 * Gets the value of a Boolean property, without boxing.
+	 *
+	 * @param prop the PropertyType
+	 * @return the value
+	 * @throws NoSuchElementException if this storage doesn't contain the property
+	 */
+  def getBoolean(prop: AttributeKey[Boolean]): Boolean = {
+    existing(prop) match {
+      case p: BooleanAttribute => p.getBoolean
+      case p => p.get
+    }
+  }
+
+  /**
+	 * If the Int property exists, updates its value, else adds it to the storage. The value isn't
+	 * boxed if the property has been created by [[AttributeKey.createInt]].
+	 *
+	 * @param prop  the PropertyType
+	 * @param value the value to set
+	 */
+  def putInt(prop: AttributeKey[Int], value: Int): Unit = {
+    attribute(prop) match {
+      case p: IntAttribute => p.setInt(value)
+      case null => store(prop, Attribute.create(prop, value))
+      case p => p.set(value)
+    }
+  }
+
+  /**
+	 * If the Long property exists, updates its value, else adds it to the storage. The value
+	 * isn't boxed if the property has been created by [[AttributeKey.createLong]].
+	 *
+	 * @param prop  the PropertyType
+	 * @param value the value to set
+	 */
+  def putLong(prop: AttributeKey[Long], value: Long): Unit = {
+    attribute(prop) match {
+      case p: LongAttribute => p.setLong(value)
+      case null => store(prop, Attribute.create(prop, value))
+      case p => p.set(value)
+    }
+  }
+
+  /**
+	 * If the Double property exists, updates its value, else adds it to the storage. The value
+	 * isn't boxed if the property has been created by [[AttributeKey.createDouble]].
+	 *
+	 * @param prop  the PropertyType
+	 * @param value the value to set
+	 */
+  def putDouble(prop: AttributeKey[Double], value: Double): Unit = {
+    attribute(prop) match {
+      case p: DoubleAttribute => p.setDouble(value)
+      case null => store(prop, Attribute.create(prop, value))
+      case p => p.set(value)
+    }
+  }
+
+  /**
+	 * If the Boolean property exists, updates its value, else adds it to the storage. The value
+	 * isn't boxed if the property has been created by [[AttributeKey.createBoolean]].
+	 *
+	 * @param prop  the PropertyType
+	 * @param value the value to set
+	 */
+  def putBoolean(prop: AttributeKey[Boolean], value: Boolean): Unit = {
+    attribute(prop) match {
+      case p: BooleanAttribute => p.setBoolean(value)
+      case null => store(prop, Attribute.create(prop, value))
+      case p => p.set(value)
     }
   }
 
@@ -104,8 +404,7 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 */
   def listen[A](prop: AttributeKey[A],
                 l: SimpleValueListener[A]): Option[ListenKey[Attribute[A]]] = {
-    val p = idMap.get(prop.id)
-    p.map(_.asInstanceOf[Attribute[A]].addListener((oldV, newV) => l.onChange(newV)))
+    Option(attribute(prop)).map(_.addListener((oldV, newV) => l.onChange(newV)))
   }
 
   /**
@@ -120,18 +419,18 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return Some(listenKey) if the property exists, else None
 	 */
   def listen[A](prop: AttributeKey[A], l: ValueListener[A]): Option[ListenKey[Attribute[A]]] = {
-    val p = idMap.get(prop.id)
-    p match {
-      case Some(sp: SimpleAttribute[A]) =>
+    attribute(prop) match {
+      case sp: SimpleAttribute[A] =>
         // We need a MemorizedProperty but have a SimpleProperty: let's change
         val mp = new MemorizedAttribute[A](sp)
+        store(prop, mp)
         Some(mp.addListener(l))
-      case Some(mp: MemorizedAttribute[A]) =>
-        // We have the MemorizedProperty
-        Some(mp.addListener(l))
-      case _ =>
+      case null =>
         // The property doesn't exist
         None
+      case p =>
+        // We have a property that memorizes its old value
+        Some(p.addListener(l))
     }
   }
 
@@ -175,8 +474,10 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @param key  the listener's key
 	 */
   def unlisten[A](prop: AttributeKey[A], key: ListenKey[Attribute[A]]): Unit = {
-    val p = idMap.get(prop.id)
-    p.foreach(_.asInstanceOf[Attribute[A]].removeListener(key))
+    val p = attribute(prop)
+    if (p ne null) {
+      p.removeListener(key)
+    }
   }
 
   /**
@@ -185,10 +486,18 @@ final class AttributeStorage extends Iterable[Attribute[_]] {
 	 * @return a new iterator that iterates over all the properties of this storage
 	 */
   override def iterator: Iterator[Attribute[_]] = {
-    idMap.valuesIterator
+    slots.iterator.filter(_ ne null)
   }
 
   override def foreach[U](f: Attribute[_] => U): Unit = {
-    idMap.foreachValue(f) // Efficient LongMap.foreachValue
+    val array = slots
+    var i = 0
+    while (i < array.length) {
+      val p = array(i)
+      if (p ne null) {
+        f(p)
+      }
+      i += 1
+    }
   }
 }
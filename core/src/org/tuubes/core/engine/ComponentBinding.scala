@@ -0,0 +1,74 @@
+package org.tuubes.core.engine
+
+import com.electronwill.util.Vec3d
+
+/**
+ * Converts the fields of a component to an attribute value, and vice versa. It allows the
+ * behaviors to use the components of a [[GameObject]] like normal attributes, see
+ * [[GameObject.bindComponent]].
+ *
+ * @tparam A the attribute value's type
+ * @author TheElectronWill
+ */
+trait ComponentBinding[A] {
+  /** @return the component that stores the values */
+  def component: ComponentType
+
+  /**
+   * Reads the value of an object.
+   *
+   * @param store the store that contains the component
+   * @param id    the object's id
+   * @return the value
+   */
+  def read(store: ComponentStore, id: Int): A
+
+  /**
+   * Writes the value of an object.
+   *
+   * @param store the store that contains the component
+   * @param id    the object's id
+   * @param value the value to write
+   */
+  def write(store: ComponentStore, id: Int, value: A): Unit
+}
+
+object ComponentBinding {
+  /** @return a binding between a component of 3 doubles and a Vec3d */
+  def vec3d(c: DoubleComponent): ComponentBinding[Vec3d] = {
+    require(c.fields == 3, "the component must have 3 fields")
+    new ComponentBinding[Vec3d] {
+      override def component: ComponentType = c
+      override def read(store: ComponentStore, id: Int): Vec3d = {
+        Vec3d(store.getDouble(id, c, 0), store.getDouble(id, c, 1), store.getDouble(id, c, 2))
+      }
+      override def write(store: ComponentStore, id: Int, value: Vec3d): Unit = {
+        store.setDouble(id, c, 0, value.x)
+        store.setDouble(id, c, 1, value.y)
+        store.setDouble(id, c, 2, value.z)
+      }
+    }
+  }
+
+  /** @return a binding between a field of a double component and a Double */
+  def double(c: DoubleComponent, field: Int): ComponentBinding[Double] = {
+    new ComponentBinding[Double] {
+      override def component: ComponentType = c
+      override def read(store: ComponentStore, id: Int): Double = store.getDouble(id, c, field)
+      override def write(store: ComponentStore, id: Int, value: Double): Unit = {
+        store.setDouble(id, c, field, value)
+      }
+    }
+  }
+
+  /** @return a binding between a field of an int component and an Int */
+  def int(c: IntComponent, field: Int): ComponentBinding[Int] = {
+    new ComponentBinding[Int] {
+      override def component: ComponentType = c
+      override def read(store: ComponentStore, id: Int): Int = store.getInt(id, c, field)
+      override def write(store: ComponentStore, id: Int, value: Int): Unit = {
+        store.setInt(id, c, field, value)
+      }
+    }
+  }
+}
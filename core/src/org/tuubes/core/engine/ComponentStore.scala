@@ -0,0 +1,328 @@
+package org.tuubes.core.engine
+
+import java.util.Arrays
+import java.util.concurrent.{CopyOnWriteArrayList, ForkJoinTask, RecursiveAction}
+
+import org.tuubes.core.TuubesServer.logger
+
+import scala.util.control.NonFatal
+
+/**
+ * Stores the components of the objects of a world in primitive arrays, indexed by the object
+ * ids, and runs the [[ComponentSystem]]s that process them in bulk. This avoids following a
+ * pointer per object when updating many objects of the same kind.
+ *
+ * ==Pages==
+ * The ids are divided in pages of [[ComponentStore.PageSize]] ids. Each field of a component
+ * is stored in one array per page, allocated when an object of the page gets the component.
+ * The pages never move, so that adding objects doesn't invalidate the arrays in use.
+ *
+ * ==Systems==
+ * Once the store has a system, the [[TickRuntime]] runs its systems at each tick, after the
+ * groups. The systems are executed one after another, and each system processes the pages in
+ * parallel. The GameObjects see the changes made by the systems at their next update, through
+ * their [[ComponentAttribute]]s.
+ *
+ * ==Thread-safety==
+ * Attaching and detaching the components is thread-safe. The fields of an object should only
+ * be accessed by the object itself, during the groups' execution, or by the systems.
+ *
+ * @author TheElectronWill
+ */
+final class ComponentStore {
+  import ComponentStore._
+
+  /** The components of each object: one mask per id, one array per page */
+  @volatile private[this] var masks = new Array[Array[Long]](4)
+
+  /** The components modified by the systems since the last update of each object */
+  @volatile private[this] var changes = new Array[Array[Long]](4)
+
+  /** The union of the masks of each page, never cleared, used to skip the pages */
+  @volatile private[this] var pageMasks = new Array[Long](4)
+
+  /** The fields, by component id, then by (page * fields + field) */
+  private[this] val doubles = new Array[Array[Array[Double]]](ComponentType.MaxTypes)
+  private[this] val ints = new Array[Array[Array[Int]]](ComponentType.MaxTypes)
+
+  /** The number of allocated pages */
+  @volatile private[this] var pageCount = 0
+
+  private[this] val systems = new CopyOnWriteArrayList[ComponentSystem]
+  private[this] var lastTime: Double = Double.NaN
+
+  /**
+   * Adds a system, executed at each tick. The first system registers the store in the
+   * [[TickRuntime]].
+   *
+   * @param system the system to add
+   */
+  def addSystem(system: ComponentSystem): Unit = {
+    this.synchronized {
+      systems.add(system)
+      if (systems.size == 1) {
+        TickRuntime.register(this)
+      }
+    }
+  }
+
+  /**
+   * Removes a system.
+   *
+   * @param system the system to remove
+   */
+  def removeSystem(system: ComponentSystem): Unit = {
+    this.synchronized {
+      if (systems.remove(system) && systems.isEmpty) {
+        TickRuntime.unregister(this)
+      }
+    }
+  }
+
+  /**
+   * Gives a component to an object. The fields of the component are set to zero.
+   *
+   * @param id        the object's id
+   * @param component the component to add
+   */
+  def attach(id: Int, component: ComponentType): Unit = {
+    this.synchronized {
+      val page = id >> PageShift
+      val offset = id & PageMask
+      ensurePages(page + 1)
+      var f = 0
+      while (f < component.fields) {
+        component match {
+          case _: DoubleComponent => doublePage(component, page, f)(offset) = 0.0
+          case _: IntComponent => intPage(component, page, f)(offset) = 0
+        }
+        f += 1
+      }
+      masks(page)(offset) |= component.mask
+      pageMasks(page) |= component.mask
+    }
+  }
+
+  /**
+   * Removes a component from an object.
+   *
+   * @param id        the object's id
+   * @param component the component to remove
+   */
+  def detach(id: Int, component: ComponentType): Unit = {
+    this.synchronized {
+      val page = id >> PageShift
+      if (page < pageCount) {
+        masks(page)(id & PageMask) &= ~component.mask
+      }
+    }
+  }
+
+  /**
+   * Removes all the components of an object.
+   *
+   * @param id the object's id
+   */
+  def detachAll(id: Int): Unit = {
+    this.synchronized {
+      val page = id >> PageShift
+      if (page < pageCount) {
+        masks(page)(id & PageMask) = 0L
+        changes(page)(id & PageMask) = 0L
+      }
+    }
+  }
+
+  /** @return true if the object has the component */
+  def has(id: Int, component: ComponentType): Boolean = {
+    val page = id >> PageShift
+    page < pageCount && (masks(page)(id & PageMask) & component.mask) != 0
+  }
+
+  def getDouble(id: Int, component: DoubleComponent, field: Int): Double = {
+    doubles(component.id)((id >> PageShift) * component.fields + field)(id & PageMask)
+  }
+
+  def setDouble(id: Int, component: DoubleComponent, field: Int, value: Double): Unit = {
+    doubles(component.id)((id >> PageShift) * component.fields + field)(id & PageMask) = value
+  }
+
+  def getInt(id: Int, component: IntComponent, field: Int): Int = {
+    ints(component.id)((id >> PageShift) * component.fields + field)(id & PageMask)
+  }
+
+  def setInt(id: Int, component: IntComponent, field: Int, value: Int): Unit = {
+    ints(component.id)((id >> PageShift) * component.fields + field)(id & PageMask) = value
+  }
+
+  /**
+   * Gets and clears the mask of the components modified by the systems since the last call.
+   * Called by the object, during its update.
+   */
+  private[engine] def takeChanges(id: Int): Long = {
+    val page = id >> PageShift
+    if (page < pageCount) {
+      val pageChanges = changes(page)
+      val mask = pageChanges(id & PageMask)
+      pageChanges(id & PageMask) = 0L
+      mask
+    } else {
+      0L
+    }
+  }
+
+  /** Allocates the masks of the pages [0, n) */
+  private def ensurePages(n: Int): Unit = {
+    if (n > pageCount) {
+      if (n > masks.length) {
+        val capacity = math.max(n, masks.length * 2)
+        masks = Arrays.copyOf(masks, capacity)
+        changes = Arrays.copyOf(changes, capacity)
+        pageMasks = Arrays.copyOf(pageMasks, capacity)
+      }
+      var p = pageCount
+      while (p < n) {
+        masks(p) = new Array[Long](PageSize)
+        changes(p) = new Array[Long](PageSize)
+        p += 1
+      }
+      pageCount = n
+    }
+  }
+
+  /** Gets the array of a field for a page, allocating it if needed */
+  private def doublePage(component: ComponentType, page: Int, field: Int): Array[Double] = {
+    val idx = page * component.fields + field
+    var table = doubles(component.id)
+    if (table eq null) {
+      table = new Array[Array[Double]](masks.length * component.fields)
+    } else if (idx >= table.length) {
+      table = Arrays.copyOf(table, masks.length * component.fields)
+    }
+    doubles(component.id) = table
+    var array = table(idx)
+    if (array eq null) {
+      array = new Array[Double](PageSize)
+      table(idx) = array
+    }
+    array
+  }
+
+  /** Gets the array of a field for a page, allocating it if needed */
+  private def intPage(component: ComponentType, page: Int, field: Int): Array[Int] = {
+    val idx = page * component.fields + field
+    var table = ints(component.id)
+    if (table eq null) {
+      table = new Array[Array[Int]](masks.length * component.fields)
+    } else if (idx >= table.length) {
+      table = Arrays.copyOf(table, masks.length * component.fields)
+    }
+    ints(component.id) = table
+    var array = table(idx)
+    if (array eq null) {
+      array = new Array[Int](PageSize)
+      table(idx) = array
+    }
+    array
+  }
+
+  /**
+   * Runs the systems, one after another. Each system processes the pages in parallel. Must be
+   * called by a worker of the [[TickRuntime]]. The store is locked while the systems run.
+   */
+  private[engine] def runSystems(): Unit = {
+    this.synchronized {
+      val t0 = System.nanoTime()
+      val dt = if (lastTime.isNaN) 0.0 else t0 - lastTime
+      lastTime = t0
+      val n = pageCount
+      systems.forEach(system => {
+        try {
+          new PagesTask(system, 0, n, dt).invoke()
+        } catch {
+          case NonFatal(e) => logger.error(s"Error in the component system $system", e)
+        }
+      })
+    }
+  }
+
+  /** Runs a system on the pages [from, to), in parallel */
+  private final class PagesTask(system: ComponentSystem, from: Int, to: Int, dt: Double)
+      extends RecursiveAction {
+    override def compute(): Unit = {
+      if (to - from == 1) {
+        val required = system.requiredMask
+        if ((pageMasks(from) & required) == required) {
+          system.update(new ComponentBatch(from), dt)
+        }
+      } else if (to > from) {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new PagesTask(system, from, mid, dt),
+                               new PagesTask(system, mid, to, dt))
+      }
+    }
+  }
+
+  /**
+   * A page of objects, given to the systems. The objects are designated by their index in the
+   * page, from 0 to [[size]] (excluded).
+   *
+   * @param page the page number
+   */
+  final class ComponentBatch private[ComponentStore] (page: Int) {
+    private[this] val objectMasks = masks(page)
+    private[this] val objectChanges = changes(page)
+
+    /** @return the id of the first object of the batch */
+    def baseId: Int = page << PageShift
+
+    /** @return the number of objects of the batch */
+    def size: Int = PageSize
+
+    /** @return true if the object at the given index has all the components of the mask */
+    def matches(index: Int, mask: Long): Boolean = (objectMasks(index) & mask) == mask
+
+    /**
+     * Gets the values of a field of a component, indexed like the batch. The array exists if the
+     * component is in the system's [[ComponentSystem.requiredMask]].
+     *
+     * @param component the component
+     * @param field     the field number
+     * @return the array of the field's values, or null if no object of the batch has the component
+     */
+    def doubles(component: DoubleComponent, field: Int): Array[Double] = {
+      val table = ComponentStore.this.doubles(component.id)
+      val idx = page * component.fields + field
+      if ((table eq null) || idx >= table.length) null else table(idx)
+    }
+
+    /**
+     * Gets the values of a field of a component, indexed like the batch. The array exists if the
+     * component is in the system's [[ComponentSystem.requiredMask]].
+     *
+     * @param component the component
+     * @param field     the field number
+     * @return the array of the field's values, or null if no object of the batch has the component
+     */
+    def ints(component: IntComponent, field: Int): Array[Int] = {
+      val table = ComponentStore.this.ints(component.id)
+      val idx = page * component.fields + field
+      if ((table eq null) || idx >= table.length) null else table(idx)
+    }
+
+    /**
+     * Notifies that a component of an object has been modified, so that the object's
+     * [[ComponentAttribute]] reports the change.
+     */
+    def markChanged(index: Int, component: ComponentType): Unit = {
+      objectChanges(index) |= component.mask
+    }
+  }
+}
+
+object ComponentStore {
+  /** The number of ids in a page, as a power of two */
+  final val PageShift = 10
+  final val PageSize = 1 << PageShift
+  final val PageMask = PageSize - 1
+}
@@ -0,0 +1,56 @@
+package org.tuubes.core.engine
+
+import org.tuubes.core.engine.StandardComponents.{Position, Velocity}
+
+/**
+ * Processes the components of many objects at once, see [[ComponentStore.addSystem]]. The
+ * system is called once per page of objects, possibly by several threads at the same time:
+ * it must only modify the objects of the batch it's given.
+ *
+ * @author TheElectronWill
+ */
+trait ComponentSystem {
+  /**
+   * The components that the objects must have to be processed by this system. The pages
+   * without such objects are skipped. See [[ComponentType.maskOf]].
+   */
+  def requiredMask: Long
+
+  /**
+   * Updates the objects of a batch. The system should check the components of each object with
+   * [[ComponentStore#ComponentBatch.matches]], because the batch also contains the objects that
+   * don't have the required components.
+   *
+   * @param batch the objects to update
+   * @param dt    the time elapsed since the last run of the systems, in nanoseconds
+   */
+  def update(batch: ComponentStore#ComponentBatch, dt: Double): Unit
+}
+
+/**
+ * Moves the objects that have a [[StandardComponents.Position]] and a
+ * [[StandardComponents.Velocity]].
+ */
+final class MovementSystem extends ComponentSystem {
+  override val requiredMask: Long = ComponentType.maskOf(Position, Velocity)
+
+  override def update(batch: ComponentStore#ComponentBatch, dt: Double): Unit = {
+    val seconds = dt * 1e-9
+    val x = batch.doubles(Position, 0)
+    val y = batch.doubles(Position, 1)
+    val z = batch.doubles(Position, 2)
+    val vx = batch.doubles(Velocity, 0)
+    val vy = batch.doubles(Velocity, 1)
+    val vz = batch.doubles(Velocity, 2)
+    var i = 0
+    while (i < batch.size) {
+      if (batch.matches(i, requiredMask) && (vx(i) != 0 || vy(i) != 0 || vz(i) != 0)) {
+        x(i) += vx(i) * seconds
+        y(i) += vy(i) * seconds
+        z(i) += vz(i) * seconds
+        batch.markChanged(i, Position)
+      }
+      i += 1
+    }
+  }
+}
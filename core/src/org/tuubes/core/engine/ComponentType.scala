@@ -0,0 +1,62 @@
+package org.tuubes.core.engine
+
+/**
+ * A type of component, stored in a [[ComponentStore]] as one primitive array per field. For
+ * instance, a position component has 3 double fields: x, y and z.
+ *
+ * There can be at most [[ComponentType.MaxTypes]] component types, because the components of
+ * each object are represented by a bit mask.
+ *
+ * @param name   the component's name, for debugging
+ * @param fields the number of fields
+ * @author TheElectronWill
+ */
+sealed abstract class ComponentType(val name: String, val fields: Int) {
+  require(fields > 0, "a component must have at least one field")
+
+  /** The component's id, in [0, MaxTypes) */
+  val id: Int = ComponentType.register()
+
+  /** The bit of this component in the masks of the [[ComponentStore]] */
+  val mask: Long = 1L << id
+
+  override def toString: String = s"$name#$id"
+}
+
+/** A component made of Double fields */
+final class DoubleComponent(name: String, fields: Int) extends ComponentType(name, fields)
+
+/** A component made of Int fields */
+final class IntComponent(name: String, fields: Int) extends ComponentType(name, fields)
+
+object ComponentType {
+  /** The maximum number of component types: one per bit of a Long */
+  final val MaxTypes = 64
+
+  private[this] var lastId = 0
+
+  private def register(): Int = {
+    this.synchronized {
+      val id = lastId
+      if (id >= MaxTypes) {
+        throw new IllegalStateException(s"Too many component types, the maximum is $MaxTypes")
+      }
+      lastId += 1
+      id
+    }
+  }
+
+  /**
+   * Computes the mask of a set of components.
+   *
+   * @param types the components
+   * @return a mask that has the bit of each component
+   */
+  def maskOf(types: ComponentType*): Long = {
+    var mask = 0L
+    for (t <- types) {
+      mask |= t.mask
+    }
+    mask
+  }
+}
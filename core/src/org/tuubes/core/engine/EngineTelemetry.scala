@@ -0,0 +1,225 @@
+package org.tuubes.core.engine
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
+import javax.management.ObjectName
+
+import com.electronwill.util.LatencyHistogram
+import org.tuubes.core.TuubesServer.logger
+import org.tuubes.core.tasks.{DelayedTask, IOPriority, IOSystem, TaskSystem}
+
+import scala.util.control.NonFatal
+
+/**
+ * Exposes the statistics of the engine through JMX, under the "org.tuubes" domain, and
+ * periodically writes them to the log. This allows to diagnose the lag spikes without attaching
+ * a profiler to the server.
+ *
+ * @author TheElectronWill
+ */
+object EngineTelemetry {
+  /** The time between two dumps of the statistics to the log, in seconds */
+  val DumpPeriod: Long = 60
+
+  private val server = ManagementFactory.getPlatformMBeanServer
+  private val runtimeName = new ObjectName("org.tuubes:type=TickRuntime")
+  private val groups = new ConcurrentHashMap[ExecutionGroup, ObjectName]
+  @volatile private var dumpTask: DelayedTask = _
+
+  /** Registers the MXBeans and starts the periodic dumps */
+  def start(): Unit = {
+    registerBean(TickRuntimeBean, runtimeName)
+    dumpTask =
+      TaskSystem.scheduleAtFixedRate(() => dump(), DumpPeriod, DumpPeriod, TimeUnit.SECONDS)
+  }
+
+  /** Unregisters the MXBeans and stops the periodic dumps */
+  def stop(): Unit = {
+    val task = dumpTask
+    if (task ne null) {
+      task.cancel()
+    }
+    unregisterBean(runtimeName)
+    groups.forEach((_, name) => unregisterBean(name))
+    groups.clear()
+  }
+
+  /** Exposes the statistics of a group */
+  private[engine] def register(group: ExecutionGroup): Unit = {
+    val name = new ObjectName(s"org.tuubes:type=ExecutionGroup,id=${group.id}")
+    if (groups.putIfAbsent(group, name) eq null) {
+      registerBean(group.telemetry, name)
+    }
+  }
+
+  /** Stops exposing the statistics of a group */
+  private[engine] def unregister(group: ExecutionGroup): Unit = {
+    val name = groups.remove(group)
+    if (name ne null) {
+      unregisterBean(name)
+    }
+  }
+
+  /** Writes the current statistics to the log */
+  def dump(): Unit = {
+    val ms = 1e-6
+    val tick = TickRuntimeBean
+    logger.info(f"Ticks: ${tick.getTickCount} done, ${tick.getOverruns} overruns, " +
+                f"p50 ${tick.getTickTimeP50 * ms}%.2fms, p99 ${tick.getTickTimeP99 * ms}%.2fms, " +
+                f"max ${tick.getTickTimeMax * ms}%.2fms. TaskSystem: ${tick.getTaskQueueSize} " +
+                f"queued, IOSystem: ${tick.getIOActiveCount} active, ${tick.getIOQueueSize} " +
+                f"queued, interactive wait p99 ${tick.getIOInteractiveWaitP99 * ms}%.2fms")
+    groups.forEach((group, _) => {
+      val t = group.telemetry
+      logger.info(f"Group ${t.getId}: ${t.getActorCount} actors, " +
+                  f"p50 ${t.getUpdateTimeP50 * ms}%.2fms, p99 ${t.getUpdateTimeP99 * ms}%.2fms, " +
+                  f"max ${t.getUpdateTimeMax * ms}%.2fms, ${t.getSplitCount} splits, " +
+                  f"${t.getMovedActors} moved, ${t.getTerminatedActors} terminated, " +
+                  f"mailboxes: ${t.getMailboxDepth} messages (max ${t.getMaxMailboxDepth})")
+    })
+  }
+
+  private def registerBean(bean: AnyRef, name: ObjectName): Unit = {
+    try {
+      server.registerMBean(bean, name)
+    } catch {
+      case NonFatal(e) => logger.warn(s"Unable to register the MXBean $name", e)
+    }
+  }
+
+  private def unregisterBean(name: ObjectName): Unit = {
+    try {
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name)
+      }
+    } catch {
+      case NonFatal(e) => logger.warn(s"Unable to unregister the MXBean $name", e)
+    }
+  }
+
+  /** Exposes the statistics of the [[TickRuntime]] and of the task executors */
+  private object TickRuntimeBean extends TickRuntimeMXBean {
+    override def getTickCount: Long = TickRuntime.stats.tickCount
+    override def getOverruns: Long = TickRuntime.stats.overruns
+    override def getGroupCount: Int = TickRuntime.stats.groupCount
+    override def getTickTimeMean: Double = TickRuntime.tickTimes.mean
+    override def getTickTimeP50: Long = TickRuntime.tickTimes.percentile(50)
+    override def getTickTimeP99: Long = TickRuntime.tickTimes.percentile(99)
+    override def getTickTimeMax: Long = TickRuntime.tickTimes.max
+    override def getTaskQueueSize: Int = TaskSystem.queueSize()
+    override def getTaskActiveCount: Int = TaskSystem.activeCount()
+    override def getIOActiveCount: Int = IOSystem.activeCount()
+    override def getIOQueueSize: Int = IOSystem.queueSize()
+    override def getIOReplacedCount: Long = IOSystem.scheduler.replacedCount()
+    override def getIOInteractiveWaitP99: Long = {
+      IOSystem.scheduler.waitTimes(IOPriority.INTERACTIVE).percentile(99)
+    }
+    override def getIOBackgroundWaitP99: Long = {
+      IOSystem.scheduler.waitTimes(IOPriority.BACKGROUND).percentile(99)
+    }
+    override def resetHistograms(): Unit = TickRuntime.requestReset()
+  }
+}
+
+/**
+ * The statistics of an [[ExecutionGroup]]. They are written by the group and read by the
+ * telemetry. The times are in nanoseconds.
+ *
+ * @param id the group's id
+ */
+final class GroupTelemetry(private[this] val id: Int) extends ExecutionGroupMXBean {
+  private[engine] val updateTimes = new LatencyHistogram
+  @volatile private[engine] var actorCount = 0
+  @volatile private[engine] var splitCount = 0L
+  @volatile private[engine] var movedActors = 0L
+  @volatile private[engine] var terminatedActors = 0L
+  @volatile private[engine] var mailboxDepth = 0L
+  @volatile private[engine] var maxMailboxDepth = 0
+  @volatile private[engine] var resetRequested = false
+
+  override def getId: Int = id
+  override def getActorCount: Int = actorCount
+  override def getUpdateCount: Long = updateTimes.count
+  override def getUpdateTimeMean: Double = updateTimes.mean
+  override def getUpdateTimeP50: Long = updateTimes.percentile(50)
+  override def getUpdateTimeP99: Long = updateTimes.percentile(99)
+  override def getUpdateTimeMax: Long = updateTimes.max
+  override def getSplitCount: Long = splitCount
+  override def getMovedActors: Long = movedActors
+  override def getTerminatedActors: Long = terminatedActors
+  override def getMailboxDepth: Long = mailboxDepth
+  override def getMaxMailboxDepth: Int = maxMailboxDepth
+  override def resetHistograms(): Unit = resetRequested = true // the group resets it
+}
+
+/** The JMX interface of the statistics of an [[ExecutionGroup]]. The times are in nanoseconds. */
+trait ExecutionGroupMXBean {
+  def getId: Int
+
+  /** @return the number of actors */
+  def getActorCount: Int
+
+  /** @return the number of updates recorded in the histogram */
+  def getUpdateCount: Long
+
+  def getUpdateTimeMean: Double
+  def getUpdateTimeP50: Long
+  def getUpdateTimeP99: Long
+  def getUpdateTimeMax: Long
+
+  /** @return the number of updates that have been split in parallel batches */
+  def getSplitCount: Long
+
+  /** @return the number of actors that have moved to another group */
+  def getMovedActors: Long
+
+  /** @return the number of actors that have been terminated */
+  def getTerminatedActors: Long
+
+  /** @return the total number of messages in the actors' mailboxes, at the last update */
+  def getMailboxDepth: Long
+
+  /** @return the maximum number of messages in the mailbox of one actor, at the last update */
+  def getMaxMailboxDepth: Int
+
+  /** Resets the update time histogram */
+  def resetHistograms(): Unit
+}
+
+/** The JMX interface of the statistics of the [[TickRuntime]]. The times are in nanoseconds. */
+trait TickRuntimeMXBean {
+  def getTickCount: Long
+
+  /** @return the number of ticks that took longer than the tick period */
+  def getOverruns: Long
+
+  def getGroupCount: Int
+  def getTickTimeMean: Double
+  def getTickTimeP50: Long
+  def getTickTimeP99: Long
+  def getTickTimeMax: Long
+
+  /** @return the number of tasks waiting to be executed by the TaskSystem */
+  def getTaskQueueSize: Int
+
+  /** @return the number of TaskSystem threads that are executing a task */
+  def getTaskActiveCount: Int
+
+  /** @return the number of IOSystem threads that are executing a task */
+  def getIOActiveCount: Int
+
+  /** @return the number of tasks waiting to be executed by the IOSystem */
+  def getIOQueueSize: Int
+
+  /** @return the number of IOSystem tasks that have been replaced by a more recent one */
+  def getIOReplacedCount: Long
+
+  /** @return the 99th percentile of the time that the interactive IO tasks wait */
+  def getIOInteractiveWaitP99: Long
+
+  /** @return the 99th percentile of the time that the background IO tasks wait */
+  def getIOBackgroundWaitP99: Long
+
+  /** Resets the tick time histogram */
+  def resetHistograms(): Unit
+}
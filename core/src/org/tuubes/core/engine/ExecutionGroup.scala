@@ -1,175 +1,170 @@
 package org.tuubes.core.engine
 
-import java.lang.invoke.{MethodHandles, MethodType, SwitchPoint}
-import java.util
-import java.util.concurrent.atomic.AtomicReference
-import java.util.concurrent.{ConcurrentLinkedQueue, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.{ConcurrentLinkedQueue, ForkJoinTask, RecursiveAction}
 
 import com.electronwill.collection.{RecyclingIndex, SimpleBag}
 import com.electronwill.util.MovingStats
+import org.tuubes.core.TuubesServer.logger
 import org.tuubes.core.engine.ActorState._
-import org.tuubes.core.tasks.TaskSystem
 
 import scala.util.control.NonFatal
 
 /**
  * Processes a group of [[GroupedActor]]s. Use the [[start()]] method to start an ExecutionGroup.
- * The group will then schedules itself automatically.
+ * The group will then be executed once per tick by the [[TickRuntime]].
+ *
+ * A big group is processed in batches of actors that can be executed in parallel by several
+ * workers, see [[TickRuntime.BatchSize]]. While its batches run, the group is "split" and the
+ * messages between its actors go through the mailboxes, see [[GroupedActor.canProcessNow]].
  *
  * @author TheElectronWill
  */
-final class ExecutionGroup(private val id: Int) extends Runnable {
+final class ExecutionGroup(private[engine] val id: Int) extends Runnable {
   private val toAdd = new ConcurrentLinkedQueue[GroupedActor]
-  private val toMerge = new ConcurrentLinkedQueue[SimpleBag[GroupedActor]]
 
   private val stats = new MovingStats(ExecutionGroup.NbMovingStats)
   private val actors = new SimpleBag[GroupedActor](256) // Bag for O(1) removal
   private var lastTime: Double = Double.NaN
-  private var maxUpdateTime = 0L
-  private var minUpdateTime = 0L
-  private var increaseCount = 0
+  private var started = false
+
+  /** True while the actors are updated in parallel batches */
+  private[this] var split = false
+
+  /** The statistics exposed by the [[EngineTelemetry]] */
+  private[engine] val telemetry = new GroupTelemetry(id)
+
+  /** Sum and maximum of the mailboxes' depths, accumulated by the batches during an update */
+  private[this] val mailboxSum = new AtomicLong
+  private[this] val mailboxMax = new AtomicInteger
 
-  private var continue = false
-  private var forwardDestination: ExecutionGroup = _
-  private val continueSwitch = new SwitchPoint() // SwitchPoint invalidated when the group is deleted
-  private val addHandle = continueSwitch.guardWithTest(ExecutionGroup.normalHandle,
-                                                        ExecutionGroup.forwarderHandle)
+  /** @return true if the actors of this group are currently updated by several workers */
+  def isSplit: Boolean = split
 
-  /** Accepts the actors that are waiting to be added and merged into this group */
+  /** @return the number of actors in this group, without the ones that are waiting to be added */
+  def size: Int = actors.size
+
+  /** @return true if this group has no actor, including the ones that are waiting to be added */
+  def isEmpty: Boolean = actors.size == 0 && toAdd.isEmpty
+
+  /** Accepts the actors that are waiting to be added into this group */
   private def acceptNewActors(): Unit = {
-    // Take the new individual actors
     var actor = toAdd.poll()
     while (actor != null) {
       actor.state = Running
       actors += actor
       actor = toAdd.poll()
     }
-
-    // Merge the pending groups
-    var bag = toMerge.poll()
-    while (bag != null) {
-      bag.foreach(_.state = Running)
-      actors ++= bag // optimized add, see SimpleBag.scala
-      bag = toMerge.poll()
-    }
   }
 
-  /** Updates all the group's actors */
-  private def updateActors(): Unit = {
-    // Run the updates
-    val now = System.nanoTime()
-    val dt = now - lastTime
-    lastTime = now
-    val it = actors.iterator
-    while (it.hasNext) {
-      val actor = it.next()
+  /**
+   * Updates the actors [from, to). The actors aren't removed from the group here, because
+   * several batches can run at the same time: [[removeStoppedActors]] does it afterwards.
+   */
+  private def updateActors(from: Int, to: Int, dt: Double): Unit = {
+    var depthSum = 0L
+    var depthMax = 0
+    var i = from
+    while (i < to) {
+      val actor = actors(i)
+      val depth = actor.mailboxDepth
+      depthSum += depth
+      if (depth > depthMax) depthMax = depth
       try { // Resist to actors' errors
         actor.processMessages()
-        if (actor.state == Terminated) { // Actor terminated because of a message
-          it.remove()
-        } else {
+        if (actor.state != Terminated) {
           actor.update(dt)
-          if (actor.state == Terminated) { // Actor terminated during the update
-            it.remove()
-          } else { // Actor not terminated... but maybe moved?
-            val moveGroup = actor.moveGroup
-            if (moveGroup != null && moveGroup != this) { // Moved to another group
-              actor.state = Moving
-              actor.moveGroup = null
-              it.remove()
-              moveGroup.add(actor)
-            }
-          }
         }
       } catch {
         case NonFatal(e) => {
-          //TODO log
-          it.remove()
+          logger.error(s"Error in actor $actor, it will be terminated", e)
           actor.state = Terminated
         }
       }
+      i += 1
     }
+    // Once per batch, to avoid contention
+    mailboxSum.addAndGet(depthSum)
+    mailboxMax.accumulateAndGet(depthMax, math.max)
   }
 
-  /** Optimizes this group when updateTime > maxUpdateTime */
-  private def optimizeHeavyGroup(): Unit = {
-    // Group too heavy => split it in 2 smaller groups or increase its max and min
-    val created = ExecutionGroup.create()
-    created match {
-      case Some(group) => {
-        // Move half of the actors to this new group
-        // We can use the bag directly because the group hasn't started yet
-        group.actors ++= (actors, actors.size / 2)
-
-        // Start the new group
-        group.start()
-      }
-      case None => {
-        // Too many groups for now => try to increase maxUpdateTime
-        if (increaseCount < ExecutionGroup.MaxIncreaseCount) {
-          maxUpdateTime = (maxUpdateTime * ExecutionGroup.IncreaseFactor).toLong
-          minUpdateTime = (minUpdateTime * ExecutionGroup.IncreaseFactor).toLong
-          increaseCount += 1
-        } // else: increase count too high => nothing can be done
-      }
-    }
-  }
-
-  /** Optimizes this group when updateTime < minUpdateTime */
-  private def optimizeLightGroup(): Unit = {
-    // Group too lightweight => decrease its max and min or merge it with another group
-    if (increaseCount > 0) {
-      maxUpdateTime = (maxUpdateTime / ExecutionGroup.IncreaseFactor).toLong
-      minUpdateTime = (minUpdateTime / ExecutionGroup.IncreaseFactor).toLong
-      increaseCount -= 1
-    } else {
-      // If belowMinGroup is null, set it to this group and return
-      // If belowMinGroup is already set to this group, simply return
-      // If belowMinGroup is an other group, reset the variable to null and merge with the group
-      val otherGroup = ExecutionGroup.belowMinGroup.getAndUpdate(v => if (v == null || v == this) this else null)
-      if (otherGroup != null && otherGroup != this) {
-        // -- Merge with this other group --
-        // 1) Setup the forwarding to avoid losing actor (see issue #45):
-        forwardDestination = otherGroup
-        SwitchPoint.invalidateAll(Array(continueSwitch))
-        // 2) Move all the actors to the other group:
-        otherGroup.merge(actors, toAdd, toMerge)
-        // 3) Stop this group:
-        ExecutionGroup.delete(this)
-        continue = false
+  /** Removes the terminated actors and moves the actors that want to go to another group */
+  private def removeStoppedActors(): Unit = {
+    var terminated = 0
+    var moved = 0
+    var i = 0
+    while (i < actors.size) {
+      val actor = actors(i)
+      if (actor.state == Terminated) {
+        actors.remove(i) // the last actor takes its place, don't increment i
+        terminated += 1
+      } else {
+        val moveGroup = actor.moveGroup
+        if (moveGroup != null && moveGroup != this) { // Moved to another group
+          actor.state = Moving
+          actor.moveGroup = null
+          actors.remove(i)
+          moveGroup.add(actor)
+          moved += 1
+        } else {
+          i += 1
+        }
       }
     }
+    if (terminated > 0) telemetry.terminatedActors += terminated
+    if (moved > 0) telemetry.movedActors += moved
   }
 
-  /** Schedules the next execution of this group, based on `maxUpdateTime` and `updateTime` */
-  private def reschedule(updateTime: Long): Unit = {
-    if (continue) {
-      val nextDelay = maxUpdateTime - updateTime
-      TaskSystem.schedule(this, nextDelay, TimeUnit.NANOSECONDS)
-      // NB: If nextDelay < 0 the ExecutorService uses a delay of 0
-    }
-  }
-
-  /** Executes this group once */
+  /**
+   * Executes this group once. When called from a worker of the [[TickRuntime]], the actors are
+   * updated in parallel batches. Otherwise they're updated sequentially by the current thread.
+   */
   override def run(): Unit = {
     val t0 = System.nanoTime()
 
     acceptNewActors()
-    updateActors()
-
-    val t1 = System.nanoTime()
-    val updateTime = t1 - t0
-    stats.put(updateTime) // Update statistics
+    val dt = if (lastTime.isNaN) 0.0 else t0 - lastTime
+    lastTime = t0
+    val n = actors.size
+    mailboxSum.set(0)
+    mailboxMax.set(0)
+    if (n > TickRuntime.BatchSize && ForkJoinTask.inForkJoinPool()) {
+      // Splits the group so that the idle workers can steal some of its actors
+      telemetry.splitCount += 1
+      split = true
+      try {
+        new ActorBatch(0, n, dt).invoke()
+      } finally {
+        split = false
+      }
+    } else {
+      updateActors(0, n, dt)
+    }
+    removeStoppedActors()
 
-    // Split or merge group based on the statistics, in order to improve the overall performance and actor distribution
-    val avgUpdateTime = stats.mean
-    if (avgUpdateTime > maxUpdateTime) {
-      optimizeHeavyGroup()
-    } else if (avgUpdateTime < minUpdateTime) {
-      optimizeLightGroup()
+    // Update statistics
+    val updateTime = System.nanoTime() - t0
+    stats.put(updateTime)
+    if (telemetry.resetRequested) {
+      telemetry.resetRequested = false
+      telemetry.updateTimes.reset()
     }
+    telemetry.updateTimes.record(updateTime)
+    telemetry.actorCount = actors.size
+    telemetry.mailboxDepth = mailboxSum.get()
+    telemetry.maxMailboxDepth = mailboxMax.get()
+  }
 
-    reschedule(updateTime)
+  /** Updates the actors [from, to), splitting the range in halves until it's small enough */
+  private final class ActorBatch(from: Int, to: Int, dt: Double) extends RecursiveAction {
+    override def compute(): Unit = {
+      if (to - from <= TickRuntime.BatchSize) {
+        updateActors(from, to, dt)
+      } else {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new ActorBatch(from, mid, dt), new ActorBatch(mid, to, dt))
+      }
+    }
   }
 
   /**
@@ -178,62 +173,40 @@ final class ExecutionGroup(private val id: Int) extends Runnable {
    * @param actor the actor to add
    */
   def add(actor: GroupedActor): Unit = {
-    addHandle.invokeExact(actor) // Call normalAdd until the SwitchPoint is invalidated, then call forwardAdd
-  }
-
-  // private[ExecutionGroup] makes the method "public" in the bytecode, allowing the
-  // MethodHandles.Lookup  to find the methods while being executed in the companion object
-  /** Adds an actor to this group */
-  private[ExecutionGroup] def normalAdd(actor: GroupedActor): Unit = {
     assert(actor.state == Created || actor.state == Moving)
     actor.group = this
     toAdd.offer(actor)
   }
 
-  /** Adds an actor to the forwardDestination group, because this group has been merged */
-  private[ExecutionGroup] def forwardAdd(actor: GroupedActor): Unit = {
-    forwardDestination.add(actor)
-  }
-
   /**
-   * Merge a group of actors into this group.
-   *
-   * @param actors     the actors of the group to merge into this group
-   * @param addQueue   the addition queue of the group to merge
-   * @param mergeQueue the merge queue of the group to merge
+   * Registers this ExecutionGroup to the [[TickRuntime]], which will execute it at each tick.
+   * A group must be started at most once. Attempting to start a group more than once will throw
+   * an exception.
    */
-  private def merge(actors: SimpleBag[GroupedActor],
-                    addQueue: util.Queue[GroupedActor],
-                    mergeQueue: util.Queue[SimpleBag[GroupedActor]]): Unit = {
-    actors.foreach(a => {a.group = this; a.state = Moving})
-    toMerge.offer(actors)
-    toMerge.addAll(mergeQueue)
-    toAdd.addAll(addQueue)
+  def start(): Unit = {
+    assert(!started)
+    started = true
+    TickRuntime.register(this)
+    EngineTelemetry.register(this)
   }
 
-  /**
-   * Schedules the first run of this ExecutionGroup. The group will then re-schedule itself
-   * automatically. A group must be started at most once. Attempting to start a group more than
-   * once will throw an exception.
-   */
-  def start(): Unit = {
-    assert(lastTime == Double.NaN)
-    TaskSystem.execute(this)
+  /** Stops the executions of this group and deletes it. Its actors are no longer updated. */
+  def stop(): Unit = {
+    TickRuntime.unregister(this)
+    EngineTelemetry.unregister(this)
+    ExecutionGroup.delete(this)
   }
 }
 
 object ExecutionGroup {
   //--- Global parameters ---
-  val NbMovingStats: Int = ???
-  val MaxUpdateTime0: Long = ???
-  val MinUpdateTime0: Long = ???
-  val IncreaseFactor: Double = ???
-  val MaxIncreaseCount: Int = ???
-  val MaxGroupCount: Int = ???
+  /** The number of update times used to compute the mean update time */
+  val NbMovingStats: Int = 20
+  /** The maximum number of groups */
+  val MaxGroupCount: Int = Runtime.getRuntime.availableProcessors() * 2
 
   //--- Groups management ---
   private final val groups = new RecyclingIndex[ExecutionGroup](MaxGroupCount)
-  private final val belowMinGroup = new AtomicReference[ExecutionGroup]()
   private final val groupOrdering: Ordering[ExecutionGroup] = Ordering.by(_.stats.mean)
 
   /**
@@ -277,26 +250,8 @@ object ExecutionGroup {
    * @return one of the lightest group
    */
   def lightest(): ExecutionGroup = {
-    val mini = belowMinGroup.get()
-    if (mini != null) {
-      mini
-    } else {
-      groups.synchronized {
-        groups.valuesIterator.min(groupOrdering)
-      }
+    groups.synchronized {
+      groups.valuesIterator.min(groupOrdering)
     }
   }
-
-
-  //--- Handles for the SwitchPoint ---
-  private final val (normalHandle, forwarderHandle) = {
-    val lookup = MethodHandles.lookup()
-    val n = lookup.findVirtual(classOf[ExecutionGroup],
-                                "normalAdd",
-                                MethodType.methodType(classOf[Unit], classOf[GroupedActor]))
-    val f = lookup.findVirtual(classOf[ExecutionGroup],
-                                "forwardAdd",
-                                MethodType.methodType(classOf[Unit], classOf[GroupedActor]))
-    (n, f)
-  }
 }
@@ -1,6 +1,8 @@
 package org.tuubes.core.engine
 
-import org.tuubes.core.worlds.LocalWorld
+import com.electronwill.util.{Rotation2, Vec3d}
+import org.tuubes.core.engine.messages.MoveToGroup
+import org.tuubes.core.worlds.{LocalWorld, SpatialIndex}
 
 import scala.collection.mutable.ArrayBuffer
 
@@ -8,21 +10,55 @@ import scala.collection.mutable.ArrayBuffer
  * A GameObject is an actor made of attributes and behaviors.
  * ==Attributes==
  * Attributes are pieces of data accessible by all the behaviors. The attributes' changes
- * are tracked to ease their synchronization with the game clients.
+ * are tracked to ease their synchronization with the game clients: at the end of each update,
+ * only the changed attributes are visited, and the object is added to the world's
+ * [[AttributeChangeSet]].
  * Attributes aren't accessible outside of the GameObject in order to ensure thread-safety.
  *
  * ==Behaviors==
  * Behaviors are pieces of code that make the GameObject react to incoming messages and
  * updates. They aren't accessible outside of the GameObject.
  *
+ * ==Layout==
+ * The attributes are stored in an array. The [[AttributeLayout]] given to the constructor gives
+ * the slot of each attribute: the objects of the same type should share the same layout.
+ *
+ * ==Components==
+ * Some attributes can be stored in the [[ComponentStore]] of the object's world with
+ * [[bindComponent]], to be processed in bulk by [[ComponentSystem]]s. The behaviors still access
+ * them like the other attributes.
+ *
+ * ==Groups==
+ * A GameObject that has a [[StandardAttributes.Position]] is executed by the group of its world
+ * region, see [[org.tuubes.core.worlds.SpatialGroups]]. When it crosses a region border, it
+ * automatically moves to the group of its new region.
+ *
+ * @param layout the layout of the object's attributes
  * @author TheElectronWill
  */
-class GameObject extends GroupedActor {
-  private[this] val attributes = new AttributeStorage()
+class GameObject(layout: AttributeLayout = AttributeLayout.Empty) extends GroupedActor {
+  private[this] val attributes = new AttributeStorage(layout)
   private[this] val behaviors = new ArrayBuffer[Behavior]
+  private[this] val componentAttributes = new ArrayBuffer[ComponentAttribute[_]]
   private[core] var world: LocalWorld = _
   private[core] var id: Int = -1
 
+  /** The key of the world region that contains this object, or NoRegion */
+  private[core] var regionKey: Long = GameObject.NoRegion
+
+  /** The cell of the object in its world's [[SpatialIndex]], and its slot in the cell */
+  private[core] var spatialCell: SpatialIndex.Cell = _
+  private[core] var spatialSlot: Int = -1
+
+  /** True if the object is waiting for its position to be indexed */
+  @volatile private[core] var spatialQueued = false
+
+  /** @return the object's position, or null if it has none */
+  private[core] def position: Vec3d = attributes.getOrNull(StandardAttributes.Position)
+
+  /** @return the object's rotation, or null if it has none */
+  private[core] def rotation: Rotation2 = attributes.getOrNull(StandardAttributes.Rotation)
+
   override protected final def onMessage(msg: ActorMessage): Unit = {
     super.onMessage(msg)
     for (behavior <- behaviors) {
@@ -30,16 +66,90 @@ class GameObject extends GroupedActor {
     }
   }
 
+  /**
+   * Stores an attribute in the [[ComponentStore]] of the object's world, so that it can be
+   * processed by the [[ComponentSystem]]s. If the attribute exists, its value and listeners
+   * are kept. The object must be in a world.
+   *
+   * @param key     the attribute's key
+   * @param binding the conversion between the attribute's value and the component
+   * @tparam A the value's type
+   */
+  def bindComponent[A](key: AttributeKey[A], binding: ComponentBinding[A]): Unit = {
+    require(world ne null, "The object must be in a world")
+    val store = world.components
+    if (!store.has(id, binding.component)) {
+      store.attach(id, binding.component)
+    }
+    val i = componentAttributes.indexWhere(_.typ.id == key.id)
+    if (i >= 0) {
+      componentAttributes.remove(i)
+    }
+    componentAttributes += attributes.bind(key, binding, store, id)
+  }
+
   override private[core] final def update(dt: Double): Unit = {
+    // Takes the changes made by the systems since the last update
+    if (componentAttributes.nonEmpty && (world ne null)) {
+      val changes = world.components.takeChanges(id)
+      if (changes != 0) {
+        var i = 0
+        while (i < componentAttributes.length) {
+          val attribute = componentAttributes(i)
+          if ((changes & attribute.binding.component.mask) != 0) {
+            attribute.componentChanged()
+          }
+          i += 1
+        }
+      }
+    }
     // Updates each behavior
     for (behavior <- behaviors) {
       behavior.update(dt, attributes)
     }
-    // Notifies each property change
-    for (property <- attributes) { // Uses the efficient foreach (see PropertyStorage#foreach)
-      if (property.hasChanged) {
-        property.endCycle()
+    if (attributes.hasChanged(StandardAttributes.Position)) {
+      onMoved(position)
+    }
+    // Notifies the changes, visiting only the changed attributes
+    if (attributes.endCycle() > 0 && (world ne null)) {
+      world.attributeChanges.add(this)
+    }
+  }
+
+  /**
+   * Calls a function on each attribute that has changed during the last update. This must only
+   * be called between two ticks, by an [[AttributeChangeConsumer]].
+   *
+   * @param f the function to call
+   */
+  def foreachChangedAttribute[U](f: Attribute[_] => U): Unit = {
+    attributes.foreachChange(f)
+  }
+
+  /**
+   * Updates the object's position in the world's index, and follows the object's region: moves
+   * to the group of the new region if needed.
+   */
+  private def onMoved(newPosition: Vec3d): Unit = {
+    if ((world ne null) && (newPosition ne null)) {
+      world.spatialIndex.update(this)
+      val spatialGroups = world.spatialGroups
+      val newKey = spatialGroups.regionKey(newPosition)
+      if (newKey != regionKey) {
+        if (regionKey != GameObject.NoRegion) {
+          spatialGroups.leave(regionKey)
+        }
+        regionKey = newKey
+        val newGroup = spatialGroups.enter(newKey)
+        if (newGroup ne group) {
+          this.!(MoveToGroup(newGroup))(group)
+        }
       }
     }
   }
 }
+
+object GameObject {
+  /** The region key of the objects that aren't in a world region */
+  private[core] final val NoRegion = Long.MinValue
+}
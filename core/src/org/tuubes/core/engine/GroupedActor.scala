@@ -6,12 +6,12 @@ import org.tuubes.core.engine.messages.MoveToGroup
  * @author TheElectronWill
  */
 abstract class GroupedActor extends LocalActor {
-  private[engine] var group: ExecutionGroup = _
+  private[tuubes] var group: ExecutionGroup = _
   private[engine] var moveGroup: ExecutionGroup = _
 
   override def !(msg: ActorMessage)(implicit currentGroup: ExecutionGroup): Unit = {
     if (filter(msg)) {
-      if ((currentGroup eq group) && (currentGroup ne null)) {
+      if (canProcessNow(currentGroup)) {
         /* Fast path! Messages coming from the actor's group are processed immediately
 				   without going through the queue. */
         onMessage(msg)
@@ -21,12 +21,38 @@ abstract class GroupedActor extends LocalActor {
     }
   }
 
+  override def trySend(msg: ActorMessage)(implicit currentGroup: ExecutionGroup): Boolean = {
+    if (filter(msg)) {
+      if (canProcessNow(currentGroup)) {
+        onMessage(msg)
+        true
+      } else {
+        mailBox.offer(msg)
+      }
+    } else {
+      false
+    }
+  }
+
   protected override def onMessage(msg: ActorMessage): Unit = {
     super.onMessage(msg)
     msg match {
       case MoveToGroup(newGroup) => moveGroup = newGroup
+      case _ => () // handled by a subclass
     }
   }
 
-  protected def handleLater(msg: ActorMessage): Unit = mailBox.add(msg)
+  protected def handleLater(msg: ActorMessage): Unit = post(msg)
+
+  /**
+   * Checks if a message sent from the given group can be processed immediately, without going
+   * through the mailbox. That's the case when the message comes from the actor's group and this
+   * group isn't split in parallel batches, see [[ExecutionGroup.isSplit]].
+   *
+   * @param currentGroup the group of the sender
+   * @return true if the message can be processed now by the current thread
+   */
+  protected final def canProcessNow(currentGroup: ExecutionGroup): Boolean = {
+    (currentGroup eq group) && (currentGroup ne null) && !currentGroup.isSplit
+  }
 }
@@ -1,23 +1,63 @@
 package org.tuubes.core.engine
 
-import java.util.concurrent.ConcurrentLinkedQueue
-
 import org.tuubes.core.engine.ActorState._
 import org.tuubes.core.engine.messages.Terminate
+import org.tuubes.core.network.PacketBatch
 
 /**
  * @author TheElectronWill
  */
 abstract class LocalActor extends Actor {
-  protected[this] val mailBox = new ConcurrentLinkedQueue[ActorMessage]
+  protected[this] val mailBox: Mailbox = createMailbox()
   private[engine] var state: ActorState = Created
 
+  /** Gives each message to onMessage, as long as the actor is running */
+  private[this] val processor: ActorMessage => Unit = msg => {
+    if (state == Running) {
+      onMessage(msg)
+    }
+  }
+
   override def !(msg: ActorMessage)(implicit currentGroup: ExecutionGroup): Unit = {
     if (filter(msg)) {
-      mailBox.add(msg)
+      post(msg)
+    }
+  }
+
+  /**
+   * Sends a message to this actor, if its mailbox isn't full. Unlike [[!]], this method never
+   * throws a [[MailboxFullException]].
+   *
+   * @param msg          the message to send
+   * @param currentGroup the group of the sender
+   * @return true if the message has been accepted, false if it has been filtered or rejected
+   */
+  def trySend(msg: ActorMessage)(implicit currentGroup: ExecutionGroup): Boolean = {
+    filter(msg) && mailBox.offer(msg)
+  }
+
+  /**
+   * Creates the mailbox of this actor. The default mailbox is unbounded. This method is called
+   * by the constructor of LocalActor: it must not use the fields of the subclasses.
+   *
+   * @return a new mailbox
+   */
+  protected def createMailbox(): Mailbox = Mailbox.unbounded()
+
+  /**
+   * Adds a message to the mailbox, to be processed by [[processMessages]].
+   *
+   * @throws MailboxFullException if the mailbox is full and its policy is [[OverflowPolicy.Signal]]
+   */
+  protected[this] final def post(msg: ActorMessage): Unit = {
+    if (!mailBox.offer(msg) && mailBox.policy == OverflowPolicy.Signal) {
+      throw new MailboxFullException(this, msg)
     }
   }
 
+  /** @return the number of messages that are waiting in the mailbox */
+  def mailboxDepth: Int = mailBox.size
+
   /**
    * Reacts to a received message.
    *
@@ -26,14 +66,15 @@ abstract class LocalActor extends Actor {
   protected def onMessage(msg: ActorMessage): Unit = {
     msg match {
       case Terminate => terminate()
+      case packets: PacketBatch[_] => packets.dispatch() // see PacketInbox
+      case _ => () // handled by a subclass
     }
   }
 
+  /** Processes the messages of the mailbox. The messages left after a termination are dropped. */
   final def processMessages(): Unit = {
-    var msg = mailBox.poll()
-    while (msg != null && state == Running) {
-      onMessage(msg)
-      msg = mailBox.poll()
+    if (state == Running) {
+      mailBox.drain(processor)
     }
   }
 
@@ -0,0 +1,146 @@
+package org.tuubes.core.engine
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import com.electronwill.collection.ChunkedMpscQueue
+
+/**
+ * The mailbox of a [[LocalActor]]. Any thread can add messages to it, but only the thread that
+ * executes the actor takes them, in batches.
+ *
+ * @author TheElectronWill
+ */
+trait Mailbox {
+  /** @return what the mailbox does when it's full */
+  def policy: OverflowPolicy
+
+  /**
+   * Adds a message to the mailbox. Can be called by any thread.
+   *
+   * @param msg the message
+   * @return true if the message has been accepted, false if it has been rejected because the
+   *         mailbox is full
+   */
+  def offer(msg: ActorMessage): Boolean
+
+  /**
+   * Takes all the available messages and gives them to a function. Must be called by the thread
+   * that executes the actor.
+   *
+   * @param f the function to call on each message
+   * @return the number of messages taken
+   */
+  def drain(f: ActorMessage => Unit): Int
+
+  /** @return the number of messages that are waiting in the mailbox */
+  def size: Int
+
+  /** @return the number of messages that have been rejected because the mailbox was full */
+  def rejectedCount: Long
+}
+
+object Mailbox {
+  /** @return a new mailbox without limit */
+  def unbounded(): Mailbox = new QueueMailbox(Int.MaxValue, OverflowPolicy.Drop)
+
+  /**
+   * Creates a mailbox that contains at most `capacity` messages.
+   *
+   * @param capacity the maximum number of messages in the mailbox
+   * @param policy   what to do when the mailbox is full
+   * @return a new mailbox
+   */
+  def bounded(capacity: Int, policy: OverflowPolicy): Mailbox = {
+    if (policy == OverflowPolicy.Coalesce) {
+      new CoalescingMailbox(capacity)
+    } else {
+      new QueueMailbox(capacity, policy)
+    }
+  }
+}
+
+/**
+ * A message that can be replaced by a more recent message that has the same key, for instance
+ * a position update. See [[OverflowPolicy.Coalesce]].
+ */
+trait CoalescableMessage extends ActorMessage {
+  /** @return the key of the message: messages with equal keys can replace each other */
+  def coalesceKey: Any
+}
+
+/** Thrown to the sender of a message when a mailbox with the [[OverflowPolicy.Signal]] is full */
+final class MailboxFullException(val actor: Actor, val msg: ActorMessage)
+    extends RuntimeException(s"The mailbox of $actor is full, $msg has been rejected")
+
+/** A mailbox based on a [[ChunkedMpscQueue]]. */
+private class QueueMailbox(capacity: Int, val policy: OverflowPolicy) extends Mailbox {
+  protected[this] val queue = new ChunkedMpscQueue[ActorMessage](capacity)
+  private[this] val rejected = new AtomicLong
+
+  override def offer(msg: ActorMessage): Boolean = {
+    queue.offer(msg) || onOverflow(msg)
+  }
+
+  /** Called when the queue is full, returns true if the message has been handled anyway */
+  protected def onOverflow(msg: ActorMessage): Boolean = {
+    reject()
+    false
+  }
+
+  protected final def reject(): Unit = rejected.incrementAndGet()
+
+  override def drain(f: ActorMessage => Unit): Int = queue.drain(f)
+  override def size: Int = queue.size
+  override def rejectedCount: Long = rejected.get()
+}
+
+/**
+ * A mailbox that keeps the last overflowed message of each key, see [[OverflowPolicy.Coalesce]].
+ * The overflowed messages are processed after the queued ones.
+ *
+ * While a key has an overflowed message, the new messages of that key replace it instead of
+ * going to the queue, even if the queue isn't full anymore. Otherwise, the capacity that is
+ * freed by [[drain]] would let a new message be processed before the old overflowed one.
+ */
+private final class CoalescingMailbox(capacity: Int)
+    extends QueueMailbox(capacity, OverflowPolicy.Coalesce) {
+  private[this] val overflow = new ConcurrentHashMap[Any, ActorMessage]
+
+  override def offer(msg: ActorMessage): Boolean = {
+    msg match {
+      case c: CoalescableMessage if !overflow.isEmpty && overflow.containsKey(c.coalesceKey) => {
+        // If drain() takes the old message in the meantime, this one is taken at the next drain
+        overflow.put(c.coalesceKey, msg)
+        true
+      }
+      case _ => super.offer(msg)
+    }
+  }
+
+  override protected def onOverflow(msg: ActorMessage): Boolean = {
+    msg match {
+      case c: CoalescableMessage => {
+        overflow.put(c.coalesceKey, msg)
+        true
+      }
+      case _ => super.onOverflow(msg)
+    }
+  }
+
+  override def drain(f: ActorMessage => Unit): Int = {
+    var taken = queue.drain(f)
+    if (!overflow.isEmpty) {
+      overflow.forEach((key, msg) => {
+        // If the message has just been replaced, the new one is taken at the next drain
+        if (overflow.remove(key, msg)) {
+          taken += 1
+          f(msg)
+        }
+      })
+    }
+    taken
+  }
+
+  override def size: Int = queue.size + overflow.size
+}
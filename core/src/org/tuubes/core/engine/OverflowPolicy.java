@@ -0,0 +1,18 @@
+package org.tuubes.core.engine;
+
+/**
+ * What a bounded {@link Mailbox} does with a message when it is full.
+ *
+ * @author TheElectronWill
+ */
+public enum OverflowPolicy {
+	/** The message is discarded */
+	Drop,
+	/**
+	 * A {@link CoalescableMessage} replaces the pending overflowed message that has the same key,
+	 * the other messages are discarded
+	 */
+	Coalesce,
+	/** The message is discarded and the sender is signaled with a {@link MailboxFullException} */
+	Signal
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package org.tuubes.core.engine
+
+import com.electronwill.util.{Rotation2, Vec3d}
+
+/**
+ * The attributes that are understood by the engine itself.
+ *
+ * @author TheElectronWill
+ */
+object StandardAttributes {
+  /**
+   * The position of a [[GameObject]] in its world, in blocks. The objects that have a position
+   * are executed by the group of their world region, see
+   * [[org.tuubes.core.worlds.SpatialGroups]].
+   */
+  val Position: AttributeKey[Vec3d] = AttributeKey.create()
+
+  /** The rotation of a [[GameObject]], in radians. */
+  val Rotation: AttributeKey[Rotation2] = AttributeKey.create()
+}
@@ -0,0 +1,17 @@
+package org.tuubes.core.engine
+
+/**
+ * The components that are understood by the engine itself.
+ *
+ * @author TheElectronWill
+ */
+object StandardComponents {
+  /** The position of an object, in blocks: x, y, z. See [[StandardAttributes.Position]]. */
+  val Position = new DoubleComponent("Position", 3)
+
+  /** The velocity of an object, in blocks per second: x, y, z */
+  val Velocity = new DoubleComponent("Velocity", 3)
+
+  /** The state of the AI of an object, interpreted by the AI systems */
+  val AiState = new IntComponent("AiState", 1)
+}
@@ -0,0 +1,223 @@
+package org.tuubes.core.engine
+
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.{CopyOnWriteArrayList, ForkJoinPool, ForkJoinTask, RecursiveAction}
+
+import com.electronwill.util.{LatencyHistogram, MovingStats}
+import org.tuubes.core.TuubesServer.logger
+
+import scala.util.control.NonFatal
+
+/**
+ * Runs the ticks of the [[ExecutionGroup]]s. At each tick, all the started groups are executed
+ * once, in parallel, by a work-stealing pool that has one worker per core. The big groups are
+ * split in batches of actors, so that a worker that has finished its own groups steals the
+ * batches of the other groups instead of waiting for them.
+ *
+ * After the groups, the [[ComponentSystem]]s of the [[ComponentStore]]s are run by the same
+ * workers.
+ *
+ * @author TheElectronWill
+ */
+object TickRuntime {
+  /** The time between the start of two ticks, in nanoseconds: 20 ticks per second */
+  val TickPeriod: Long = 50000000L
+
+  /** The maximum number of actors in a batch. The bigger groups are split in several batches. */
+  val BatchSize: Int = 128
+
+  /** The number of workers */
+  val Parallelism: Int = Runtime.getRuntime.availableProcessors()
+
+  /** The number of tick times used to compute the mean tick time */
+  val NbTickStats: Int = 100
+
+  private val pool = new ForkJoinPool(Parallelism, pool => {
+    val thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool)
+    thread.setName("TickRuntime-" + thread.getPoolIndex)
+    thread
+  }, (_, e) => logger.error("Uncaught error in the TickRuntime", e), false)
+
+  private val groups = new CopyOnWriteArrayList[ExecutionGroup]
+  private val stores = new CopyOnWriteArrayList[ComponentStore]
+  private val listeners = new CopyOnWriteArrayList[TickListener]
+
+  private val recentTickTimes = new MovingStats(NbTickStats)
+  private[engine] val tickTimes = new LatencyHistogram
+  @volatile private var resetRequested = false
+  @volatile private var tickCount = 0L
+  @volatile private var lastTickTime = 0L
+  @volatile private var maxTickTime = 0L
+  @volatile private var meanTickTime = 0.0
+  @volatile private var overruns = 0L
+
+  @volatile private var ticker: Thread = _
+  @volatile private var running = false
+
+  /** @return the statistics of the ticks */
+  def stats: TickStats = {
+    TickStats(tickCount, lastTickTime, meanTickTime, maxTickTime, overruns, groups.size)
+  }
+
+  /** Adds a group to the groups executed at each tick */
+  private[engine] def register(group: ExecutionGroup): Unit = {
+    groups.add(group)
+  }
+
+  /** Removes a group from the groups executed at each tick */
+  private[engine] def unregister(group: ExecutionGroup): Unit = {
+    groups.remove(group)
+  }
+
+  /** Adds a store whose systems are executed at each tick */
+  private[engine] def register(store: ComponentStore): Unit = {
+    stores.add(store)
+  }
+
+  /** Removes a store whose systems are executed at each tick */
+  private[engine] def unregister(store: ComponentStore): Unit = {
+    stores.remove(store)
+  }
+
+  /**
+   * Adds a listener that is called at the end of each tick, after all the groups have been
+   * executed. The listeners are called by the ticker thread, one after another.
+   *
+   * @param listener the listener to add
+   */
+  def addTickListener(listener: TickListener): Unit = {
+    listeners.add(listener)
+  }
+
+  /** Removes a tick listener */
+  def removeTickListener(listener: TickListener): Unit = {
+    listeners.remove(listener)
+  }
+
+  /** Asks the ticker thread to reset the tick time histogram */
+  private[engine] def requestReset(): Unit = {
+    resetRequested = true
+  }
+
+  /** Starts the ticks */
+  def start(): Unit = {
+    logger.info(s"Starting the TickRuntime with $Parallelism workers...")
+    running = true
+    ticker = new Thread(() => loop(), "TickRuntime-ticker")
+    ticker.start()
+  }
+
+  /** Stops the ticks and waits for the current tick to complete */
+  def stop(): Unit = {
+    logger.info("Stopping the TickRuntime...")
+    running = false
+    val t = ticker
+    if (t ne null) {
+      t.interrupt()
+      t.join()
+    }
+    pool.shutdown()
+  }
+
+  /** Runs the ticks at a fixed rate, until [[stop]] is called */
+  private def loop(): Unit = {
+    var nextTick = System.nanoTime()
+    while (running) {
+      tick()
+      nextTick += TickPeriod
+      val now = System.nanoTime()
+      if (now > nextTick) {
+        // The tick took too long: don't try to catch up, that would only make things worse
+        overruns += 1
+        nextTick = now
+      } else {
+        while (running && System.nanoTime() < nextTick) {
+          LockSupport.parkNanos(nextTick - System.nanoTime())
+        }
+      }
+    }
+  }
+
+  /** Executes all the groups once, then the component systems, then calls the tick listeners */
+  private[tuubes] def tick(): Unit = {
+    val t0 = System.nanoTime()
+    val snapshot = groups.toArray(new Array[ExecutionGroup](0))
+    if (snapshot.length > 0) {
+      pool.invoke(new GroupsTask(snapshot, 0, snapshot.length))
+    }
+    val storesSnapshot = stores.toArray(new Array[ComponentStore](0))
+    if (storesSnapshot.length > 0) {
+      pool.invoke(new StoresTask(storesSnapshot, 0, storesSnapshot.length))
+    }
+    val count = tickCount + 1
+    tickCount = count
+    listeners.forEach(l => {
+      try {
+        l.onTickEnd(count)
+      } catch {
+        case NonFatal(e) => logger.error(s"Error in the tick listener $l", e)
+      }
+    })
+    val tickTime = System.nanoTime() - t0
+    recentTickTimes.put(tickTime)
+    if (resetRequested) {
+      resetRequested = false
+      tickTimes.reset()
+    }
+    tickTimes.record(tickTime)
+    lastTickTime = tickTime
+    meanTickTime = recentTickTimes.mean
+    if (tickTime > maxTickTime) {
+      maxTickTime = tickTime
+    }
+  }
+
+  /** Executes the groups [from, to) of an array, in parallel */
+  private final class GroupsTask(groups: Array[ExecutionGroup], from: Int, to: Int)
+      extends RecursiveAction {
+    override def compute(): Unit = {
+      if (to - from == 1) {
+        groups(from).run()
+      } else {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new GroupsTask(groups, from, mid), new GroupsTask(groups, mid, to))
+      }
+    }
+  }
+
+  /** Runs the systems of the stores [from, to) of an array, in parallel */
+  private final class StoresTask(stores: Array[ComponentStore], from: Int, to: Int)
+      extends RecursiveAction {
+    override def compute(): Unit = {
+      if (to - from == 1) {
+        stores(from).runSystems()
+      } else {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new StoresTask(stores, from, mid), new StoresTask(stores, mid, to))
+      }
+    }
+  }
+}
+
+/**
+ * Statistics of the [[TickRuntime]]. The times are in nanoseconds.
+ *
+ * @param tickCount    the number of ticks since the start
+ * @param lastTickTime the duration of the last tick
+ * @param meanTickTime the mean duration of the last ticks
+ * @param maxTickTime  the maximum duration of a tick
+ * @param overruns     the number of ticks that took longer than the tick period
+ * @param groupCount   the number of groups
+ */
+final case class TickStats(tickCount: Long, lastTickTime: Long, meanTickTime: Double,
+                           maxTickTime: Long, overruns: Long, groupCount: Int)
+
+/** Called at the end of each tick, see [[TickRuntime.addTickListener]]. */
+trait TickListener {
+  /**
+   * Called at the end of a tick, after all the groups have been executed.
+   *
+   * @param tick the number of the tick that has just ended, starting at 1
+   */
+  def onTickEnd(tick: Long): Unit
+}
@@ -1,7 +1,9 @@
 package org.tuubes.core.network
 
-import com.electronwill.niol.network.tcp.ScalableSelector
+import com.electronwill.collection.ChunkedMpscQueue
+import com.electronwill.niol.network.tcp.{ClientAttach, ScalableSelector}
 import org.tuubes.core.TuubesServer.logger
+import org.tuubes.core.engine.{TickListener, TickRuntime}
 
 /** Object for network bases, manages the TCP Selector */
 object NetworkSystem {
@@ -18,15 +20,57 @@ object NetworkSystem {
   /** The server's ScalableSelector that handles the TCP connections on several ports */
   val selector = new ScalableSelector(errorHandler, startHandler, stopHandler)
 
+  /** The send queues that have packets to write */
+  private val flushQueue = new ChunkedMpscQueue[SendQueue](chunkSize = 256)
+
+  /** Writes the queued packets at the end of each tick */
+  private val flusher = new TickListener {
+    override def onTickEnd(tick: Long): Unit = flush()
+  }
+
   /** Starts the network system */
   def start() = {
     logger.info("Starting the network system...")
     selector.start("niol-tcp")
+    TickRuntime.addTickListener(flusher)
   }
 
   /** Stops the network system */
   def stop() = {
     logger.info("Stopping the network system...")
+    TickRuntime.removeTickListener(flusher)
     selector.stop()
   }
+
+  /**
+   * Sends a packet to several clients. The packet is encoded once, and the same buffer is
+   * queued for each client. The packets are written at the end of the tick.
+   *
+   * @param packet     the packet to send
+   * @param protocol   the protocol of the clients
+   * @param recipients the send queues of the clients, which must use the given protocol
+   */
+  def broadcast(packet: Packet, protocol: Protocol[_ <: ClientAttach],
+                recipients: Iterable[SendQueue]): Unit = {
+    val buffer = PacketBuffer.encode(packet, protocol)
+    try {
+      recipients.foreach(_.send(buffer))
+    } finally {
+      buffer.release()
+    }
+  }
+
+  /**
+   * Writes the packets of the send queues. It's called at the end of each tick, and by the
+   * tick listeners that send packets after it. Must be called by the ticker thread.
+   */
+  private[network] def flush(): Unit = {
+    // The queues that can't be fully written are scheduled again, for the next flush
+    flushQueue.drain(_.flush(), flushQueue.size)
+  }
+
+  /** Schedules a queue to be flushed at the end of the tick */
+  private[network] def scheduleFlush(queue: SendQueue): Unit = {
+    flushQueue.offer(queue)
+  }
 }
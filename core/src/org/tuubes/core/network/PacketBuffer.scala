@@ -0,0 +1,207 @@
+package org.tuubes.core.network
+
+import java.nio.ByteBuffer
+import java.nio.channels.{ClosedChannelException, GatheringByteChannel}
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.electronwill.niol.io.ChannelOutput
+import com.electronwill.niol.network.tcp.ClientAttach
+import com.electronwill.util.ByteArrayChannel
+
+/**
+ * An encoded packet, with its header, stored in a pooled direct buffer. The buffer is reference-counted: it's
+ * given back to the pool when the last reference is released. Each recipient reads the data
+ * through its own [[slice]], so one encoded packet can be sent to many clients.
+ *
+ * @author TheElectronWill
+ */
+final class PacketBuffer private (private val data: ByteBuffer, private val sizeClass: Int) {
+  private[this] val references = new AtomicInteger(1)
+
+  /** @return the number of bytes of the encoded packet, header included */
+  def length: Int = data.remaining()
+
+  /** @return a new read-only view of the encoded packet, with its own position */
+  def slice(): ByteBuffer = data.asReadOnlyBuffer()
+
+  /**
+   * Adds a reference to this buffer. Each reference must be released with [[release]].
+   *
+   * @return this buffer
+   */
+  def retain(): PacketBuffer = {
+    var retained = false
+    while (!retained) {
+      val count = references.get()
+      if (count <= 0) { // checked before incrementing, so that a failed retain changes nothing
+        throw new IllegalStateException("The PacketBuffer has already been released")
+      }
+      retained = references.compareAndSet(count, count + 1)
+    }
+    this
+  }
+
+  /** Releases a reference, the last release gives the buffer back to the pool. */
+  def release(): Unit = {
+    val remaining = references.decrementAndGet()
+    if (remaining == 0) {
+      PacketBuffer.recycle(this)
+    } else if (remaining < 0) {
+      throw new IllegalStateException("The PacketBuffer has been released too many times")
+    }
+  }
+
+  private def reset(): Unit = {
+    references.set(1)
+    data.clear()
+  }
+}
+
+object PacketBuffer {
+  /** The capacity of the smallest buffers, the size classes are powers of two from here */
+  private final val MinCapacity = 256
+
+  /** The number of size classes: from 256 bytes to 2 MiB */
+  private final val SizeClasses = 14
+
+  /** The maximum number of free buffers kept by each size class */
+  private final val MaxFreePerClass = 64
+
+  /** The free buffers, by size class */
+  private[this] val pools = Array.fill(SizeClasses) {
+    new ArrayBlockingQueue[PacketBuffer](MaxFreePerClass)
+  }
+
+  /**
+   * Encodes a packet once, so that it can be sent to many clients. The packet's data is
+   * preceded by its header, written by the protocol. The returned buffer has one reference,
+   * which must be released after having given the buffer to the recipients.
+   *
+   * @param packet   the packet to encode
+   * @param protocol the protocol of the recipients, which writes the header
+   * @return a buffer that contains the encoded packet
+   */
+  def encode(packet: Packet, protocol: Protocol[_ <: ClientAttach]): PacketBuffer = {
+    // The header is written in front of the data once its length is known
+    val reserved = protocol.maxHeaderSize
+    val channel = new EncodingChannel(reserved)
+    val out = new ChannelOutput(channel)
+    try {
+      packet.writeTo(out)
+      out.close() // flushes the data to the channel
+      val header = new ByteArrayChannel(reserved)
+      val headerOut = new ChannelOutput(header)
+      protocol.writePacketHeader(packet.id, channel.dataLength, headerOut)
+      headerOut.close()
+      if (header.size > reserved) {
+        throw new IllegalStateException(
+          s"The header of packet ${packet.id} is bigger than the protocol's maxHeaderSize")
+      }
+      channel.result(header.toByteArray)
+    } catch {
+      case e: Throwable =>
+        channel.discard()
+        throw e
+    }
+  }
+
+  /**
+   * Takes a free buffer from the pool, or allocates a new one.
+   *
+   * @param capacity the minimum capacity
+   * @return a buffer with one reference and a capacity >= the given one
+   */
+  private[network] def allocate(capacity: Int): PacketBuffer = {
+    val sizeClass = sizeClassOf(capacity)
+    if (sizeClass >= SizeClasses) {
+      new PacketBuffer(ByteBuffer.allocateDirect(capacity), -1) // too big to be pooled
+    } else {
+      val free = pools(sizeClass).poll()
+      if (free eq null) {
+        new PacketBuffer(ByteBuffer.allocateDirect(MinCapacity << sizeClass), sizeClass)
+      } else {
+        free.reset()
+        free
+      }
+    }
+  }
+
+  private def recycle(buffer: PacketBuffer): Unit = {
+    if (buffer.sizeClass >= 0) {
+      pools(buffer.sizeClass).offer(buffer) // if the pool is full, the buffer is left to the GC
+    }
+  }
+
+  private def sizeClassOf(capacity: Int): Int = {
+    if (capacity <= MinCapacity) {
+      0
+    } else {
+      32 - Integer.numberOfLeadingZeros(capacity - 1) - 8 // log2(MinCapacity) == 8
+    }
+  }
+
+  /**
+   * Receives the encoded bytes, in pooled buffers that grow as needed. The first bytes are
+   * reserved for the header.
+   */
+  private final class EncodingChannel(reserved: Int) extends GatheringByteChannel {
+    private[this] var current = allocate(math.max(MinCapacity, reserved))
+    private[this] var open = true
+    current.data.position(reserved)
+
+    /** @return the number of bytes written after the reserved ones */
+    def dataLength: Int = current.data.position() - reserved
+
+    override def write(src: ByteBuffer): Int = {
+      if (!open) throw new ClosedChannelException
+      val n = src.remaining()
+      if (n > current.data.remaining()) {
+        val bigger = allocate(current.data.position() + n)
+        current.data.flip()
+        bigger.data.put(current.data)
+        current.release()
+        current = bigger
+      }
+      current.data.put(src)
+      n
+    }
+
+    override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+      var total = 0L
+      var i = offset
+      while (i < offset + length) {
+        total += write(srcs(i))
+        i += 1
+      }
+      total
+    }
+
+    override def write(srcs: Array[ByteBuffer]): Long = write(srcs, 0, srcs.length)
+
+    override def isOpen: Boolean = open
+
+    override def close(): Unit = {
+      open = false
+    }
+
+    /**
+     * Puts the header just before the data, in the reserved bytes.
+     *
+     * @return the buffer that contains the header and the data, ready to be read
+     */
+    def result(header: Array[Byte]): PacketBuffer = {
+      val data = current.data
+      val end = data.position()
+      val start = reserved - header.length
+      data.position(start)
+      data.put(header)
+      data.limit(end)
+      data.position(start)
+      current
+    }
+
+    /** Gives the buffer back to the pool, after an error */
+    def discard(): Unit = current.release()
+  }
+}
@@ -0,0 +1,101 @@
+package org.tuubes.core.network
+
+import java.util.Arrays
+
+import com.electronwill.niol.NiolInput
+import com.electronwill.niol.network.tcp.ClientAttach
+import org.tuubes.core.TuubesServer.logger
+import org.tuubes.core.engine.{ActorMessage, ExecutionGroup, LocalActor}
+
+import scala.util.control.NonFatal
+
+/**
+ * Routes the packets of one client to the client's actor. The network thread gives each
+ * received packet to [[receive]], and calls [[flush]] at the end of each selector wake-up: the
+ * actor gets one [[PacketBatch]] message per wake-up instead of one message per packet, and the
+ * observers of the packets are called by the actor's thread.
+ *
+ * The packets that nobody observes are dropped without being decoded. The other packets are
+ * decoded by the network thread, because the selector reuses its read buffer as soon as
+ * [[receive]] returns. The packets that aren't observed anymore when the actor processes the
+ * batch are skipped.
+ *
+ * @param client   the client
+ * @param protocol the client's protocol
+ * @param actor    the actor that handles the client's packets, for instance the player
+ * @author TheElectronWill
+ */
+final class PacketInbox[C <: ClientAttach](client: C, protocol: Protocol[C], actor: LocalActor) {
+  private[this] var batch = new PacketBatch[C](client)
+
+  /**
+   * Receives a packet. Must be called by the network thread of the client.
+   *
+   * @param in an input that contains exactly one packet, header included
+   */
+  def receive(in: NiolInput): Unit = {
+    val packetObj = protocol.detectPacket[Packet](in)
+    if (packetObj eq null) {
+      if (logger.isDebugEnabled) {
+        logger.debug(s"Ignored unknown packet from $client")
+      }
+    } else if (packetObj.isObserved) {
+      try {
+        batch.add(packetObj, packetObj.read(in)) // decoded now, the input is reused afterwards
+      } catch {
+        case NonFatal(e) => logger.error(s"Unable to decode a packet from $client", e)
+      }
+    }
+  }
+
+  /**
+   * Sends the packets received since the last flush to the actor, in one message. Must be
+   * called by the network thread of the client.
+   */
+  def flush(): Unit = {
+    if (batch.size > 0) {
+      val noGroup: ExecutionGroup = null // the network thread isn't in an ExecutionGroup
+      if (!actor.trySend(batch)(noGroup)) {
+        logger.warn(s"Dropped ${batch.size} packets from $client: the actor is full or stopped")
+      }
+      batch = new PacketBatch[C](client)
+    }
+  }
+}
+
+/**
+ * The packets received from a client during one selector wake-up. It's handled by the
+ * [[LocalActor]] of the client, which calls [[dispatch]].
+ *
+ * @author TheElectronWill
+ */
+final class PacketBatch[C <: ClientAttach] private[network] (client: C) extends ActorMessage {
+  private[this] var packetObjs = new Array[PacketObj[C, Packet]](8)
+  private[this] var packets = new Array[Packet](8)
+  private[this] var count = 0
+
+  /** @return the number of packets */
+  def size: Int = count
+
+  private[network] def add(packetObj: PacketObj[C, Packet], packet: Packet): Unit = {
+    if (count == packets.length) {
+      packetObjs = Arrays.copyOf(packetObjs, count * 2)
+      packets = Arrays.copyOf(packets, count * 2)
+    }
+    packetObjs(count) = packetObj
+    packets(count) = packet
+    count += 1
+  }
+
+  /** Handles the packets, in the order of their reception. */
+  def dispatch(): Unit = {
+    var i = 0
+    while (i < count) {
+      val packetObj = packetObjs(i)
+      if (packetObj.isObserved) { // skips the packets that aren't observed anymore
+        packetObj.handle(packets(i), client)
+      }
+      i += 1
+    }
+  }
+}
@@ -11,11 +11,22 @@ abstract class PacketObj[C <: ClientAttach, P <: Packet] extends BiObservable[C,
   /** The packet's id */
   val id: Int
 
+  /** @return true if at least one observer handles this packet */
+  def isObserved: Boolean = observers.size > 0
+
   /** Handles the packet */
   def handle(packet: P, client: C): Unit = {
-    TuubesServer.logger.debug(s"Received packet ${packet.getClass}")
-    for (observer <- observers.valuesIterator) {
-      observer.onEvent(packet, client)
+    if (TuubesServer.logger.isDebugEnabled) {
+      TuubesServer.logger.debug(s"Received packet ${packet.getClass}")
+    }
+    val limit = observers.idLimit
+    var i = 0
+    while (i < limit) {
+      val observer = observers.getOrNull(i)
+      if (observer ne null) {
+        observer.onEvent(packet, client)
+      }
+      i += 1
     }
   }
 
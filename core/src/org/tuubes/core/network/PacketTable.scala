@@ -0,0 +1,47 @@
+package org.tuubes.core.network
+
+import com.electronwill.niol.network.tcp.ClientAttach
+
+/**
+ * The packets of a [[Protocol]], in a flat array indexed by packet id. The packets are
+ * registered at startup, and looked up by the network threads for each received packet.
+ *
+ * @author TheElectronWill
+ */
+final class PacketTable[C <: ClientAttach] {
+  @volatile private[this] var packets = new Array[PacketObj[C, _ <: Packet]](64)
+
+  /**
+   * Registers a packet.
+   *
+   * @param packet the packet's companion object
+   * @throws IllegalArgumentException if the id is negative or already registered
+   */
+  def register(packet: PacketObj[C, _ <: Packet]): Unit = {
+    this.synchronized {
+      val id = packet.id
+      require(id >= 0, s"invalid packet id: $id")
+      var array = packets
+      if (id >= array.length) {
+        val bigger = new Array[PacketObj[C, _ <: Packet]](math.max(id + 1, array.length * 2))
+        System.arraycopy(array, 0, bigger, 0, array.length)
+        array = bigger
+      } else if (array(id) ne null) {
+        throw new IllegalArgumentException(s"packet id $id is already registered")
+      }
+      array(id) = packet
+      packets = array // volatile write, publishes the packet
+    }
+  }
+
+  /**
+   * Gets a packet by its id.
+   *
+   * @param id the packet's id
+   * @return the packet's companion object, or null if there is no such packet
+   */
+  def apply(id: Int): PacketObj[C, _ <: Packet] = {
+    val array = packets // volatile read
+    if (id >= 0 && id < array.length) array(id) else null
+  }
+}
@@ -1,6 +1,6 @@
 package org.tuubes.core.network
 
-import com.electronwill.niol.NiolInput
+import com.electronwill.niol.{NiolInput, NiolOutput}
 import com.electronwill.niol.network.tcp.ClientAttach
 import org.tuubes.core.blocks.BlockType
 import org.tuubes.core.engine.GameObject
@@ -17,16 +17,55 @@ trait Protocol[C <: ClientAttach] {
   def despawn(obj: GameObject): Unit
   //TODO more methods
 
+  /**
+   * Gets the queue of the packets sent to a client. It allows to encode a packet once and to
+   * send it to many clients, with [[NetworkSystem.broadcast]].
+   *
+   * @param client the client
+   * @return the client's send queue
+   */
+  def sendQueue(client: C): SendQueue
+
+  /** The packets of this protocol, by id */
+  protected[this] val packets = new PacketTable[C]
+
   /**
 	 * Registers a packet to this protocol
 	 */
-  def registerPacket[A <: Packet](packet: PacketObj[C, A]): Unit
+  def registerPacket[A <: Packet](packet: PacketObj[C, A]): Unit = {
+    packets.register(packet)
+  }
 
   /**
 	 * Reads the packet type from the given NiolInput.
    * To read the packet's data that follows the header, use [[PacketObj.read(in)]]
+   *
+   * @return the packet's companion object, or null if the id isn't registered
 	 */
-  def detectPacket[A <: Packet](in: NiolInput): PacketObj[C, A]
+  def detectPacket[A <: Packet](in: NiolInput): PacketObj[C, A] = {
+    packets(readPacketId(in)).asInstanceOf[PacketObj[C, A]]
+  }
+
+  /**
+   * Reads the header of a packet.
+   *
+   * @param in the input that contains the packet
+   * @return the packet's id
+   */
+  protected def readPacketId(in: NiolInput): Int
+
+  /** The maximum number of bytes written by [[writePacketHeader]] */
+  def maxHeaderSize: Int
+
+  /**
+   * Writes the header of a packet, which precedes the packet's data. It's the counterpart of
+   * [[readPacketId]]: it writes the id, and the length prefix if the protocol frames its packets.
+   *
+   * @param id         the packet's id
+   * @param dataLength the number of bytes of the packet's data, without the header
+   * @param out        the output to write to
+   */
+  def writePacketHeader(id: Int, dataLength: Int, out: NiolOutput): Unit
 
   /**
    *
@@ -0,0 +1,152 @@
+package org.tuubes.core.network
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicBoolean
+
+import com.electronwill.collection.ChunkedMpscQueue
+import com.electronwill.niol.network.tcp.ClientAttach
+import org.tuubes.core.TuubesServer.logger
+
+/**
+ * The outgoing packets of one client. The packets are queued by any thread, and written to the
+ * client's channel at the end of the tick by [[NetworkSystem]], with one gathering write for
+ * all the packets of the tick instead of one write per packet.
+ *
+ * The queue must be the only writer of the channel, otherwise the packets would be mixed.
+ *
+ * @param channel  the client's channel, in non-blocking mode
+ * @param protocol the client's protocol, which writes the packet headers
+ * @author TheElectronWill
+ */
+final class SendQueue(channel: GatheringByteChannel, val protocol: Protocol[_ <: ClientAttach]) {
+  /** The buffers sent since the last flush */
+  private[this] val pending = new ChunkedMpscQueue[PacketBuffer](chunkSize = 64)
+
+  /** True if the queue is waiting to be flushed by the NetworkSystem */
+  private[this] val scheduled = new AtomicBoolean
+  @volatile private[this] var closed = false
+
+  // The buffers that are being written, used by the flushing thread only
+  private[this] var buffers = new Array[PacketBuffer](16)
+  private[this] var slices = new Array[ByteBuffer](16)
+  private[this] var head = 0
+  private[this] var count = 0
+
+  /**
+   * Sends a packet to this client. It's encoded immediately and written at the end of the tick.
+   * To send the same packet to several clients, use [[NetworkSystem.broadcast]].
+   *
+   * @param packet the packet to send
+   */
+  def send(packet: Packet): Unit = {
+    val buffer = PacketBuffer.encode(packet, protocol)
+    try {
+      send(buffer)
+    } finally {
+      buffer.release()
+    }
+  }
+
+  /**
+   * Sends an encoded packet to this client. The queue adds a reference to the buffer, and
+   * releases it once the packet has been written.
+   *
+   * @param buffer the encoded packet
+   */
+  def send(buffer: PacketBuffer): Unit = {
+    if (!closed) {
+      buffer.retain()
+      if (pending.offer(buffer)) {
+        schedule()
+      } else {
+        buffer.release()
+      }
+    }
+  }
+
+  /**
+   * Closes this queue: the packets that haven't been written are discarded. The channel isn't
+   * closed.
+   */
+  def close(): Unit = {
+    closed = true
+    schedule() // the buffers are released by the flushing thread
+  }
+
+  /** @return true if the queue has been closed */
+  def isClosed: Boolean = closed
+
+  private def schedule(): Unit = {
+    if (scheduled.compareAndSet(false, true)) {
+      NetworkSystem.scheduleFlush(this)
+    }
+  }
+
+  /**
+   * Writes as many queued packets as possible to the channel. If the channel can't take them
+   * all, the queue is flushed again at the next tick. Called by the NetworkSystem only.
+   */
+  private[network] def flush(): Unit = {
+    scheduled.set(false) // the packets sent from now will schedule a new flush
+    pending.drain(add)
+    if (closed) {
+      releaseAll()
+    } else if (head < count) {
+      try {
+        channel.write(slices, head, count - head)
+        while (head < count && !slices(head).hasRemaining) {
+          buffers(head).release()
+          buffers(head) = null
+          slices(head) = null
+          head += 1
+        }
+        if (head == count) {
+          head = 0
+          count = 0
+        } else {
+          schedule() // the channel is full, tries again at the next tick
+        }
+      } catch {
+        case e: IOException =>
+          logger.error("Unable to write the packets to the client's channel", e)
+          closed = true
+          releaseAll()
+      }
+    }
+  }
+
+  private def add(buffer: PacketBuffer): Unit = {
+    if (count == buffers.length) {
+      if (head > 0) {
+        // Moves the remaining buffers to the beginning of the arrays
+        System.arraycopy(buffers, head, buffers, 0, count - head)
+        System.arraycopy(slices, head, slices, 0, count - head)
+        Arrays.fill(buffers.asInstanceOf[Array[AnyRef]], count - head, count, null)
+        Arrays.fill(slices.asInstanceOf[Array[AnyRef]], count - head, count, null)
+        count -= head
+        head = 0
+      } else {
+        buffers = Arrays.copyOf(buffers, count * 2)
+        slices = Arrays.copyOf(slices, count * 2)
+      }
+    }
+    buffers(count) = buffer
+    slices(count) = buffer.slice()
+    count += 1
+  }
+
+  private def releaseAll(): Unit = {
+    pending.drain(_.release())
+    while (head < count) {
+      buffers(head).release()
+      buffers(head) = null
+      slices(head) = null
+      head += 1
+    }
+    head = 0
+    count = 0
+  }
+}
@@ -0,0 +1,417 @@
+package org.tuubes.core.network
+
+import java.util.{Arrays, BitSet}
+import java.util.concurrent.CopyOnWriteArrayList
+
+import com.electronwill.niol.NiolOutput
+import com.electronwill.util.{Rotation2, Vec3d}
+import org.tuubes.core.engine.{AttributeChangeConsumer, GameObject}
+import org.tuubes.core.worlds.{LocalWorld, SpatialVisitor}
+
+/**
+ * Synchronizes the positions and rotations of the objects of a world with the clients. At the
+ * end of each tick, each viewer receives at most one [[ObjectUpdatesPacket]] that contains the
+ * objects it can see and whose state has changed during the tick.
+ *
+ * ==Coalescing==
+ * The changes come from the world's [[org.tuubes.core.engine.AttributeChangeSet]]: an attribute
+ * that is modified several times during a tick is sent once, with its last value. The changes
+ * that are too small to be visible after the quantization aren't sent.
+ *
+ * ==Encoding==
+ * The positions are quantized to 1/32 block, and the rotations to 1/256 turn. A moving object
+ * is sent as a delta from its previous position, encoded once per tick and copied in the packet
+ * of each viewer. An object that enters the view of a viewer is sent with its absolute state,
+ * and an object that leaves the view is sent as removed.
+ *
+ * ==Reused ids==
+ * The id of a removed object can be given to a new object. Each id has a generation, which
+ * changes when the id is used by another object: a viewer that knows an id with an older
+ * generation receives a removal followed by the absolute state of the new object.
+ *
+ * @param world    the world that contains the objects
+ * @param packetId the id of the [[ObjectUpdatesPacket]]s in the clients' protocol
+ * @param visible  visits the objects around a position, up to a distance
+ * @author TheElectronWill
+ */
+final class StateSync private[network] (world: LocalWorld, packetId: Int,
+                                        visible: (Vec3d, Double, SpatialVisitor) => Unit)
+    extends AttributeChangeConsumer {
+  import StateSync._
+
+  /**
+   * Creates a StateSync that finds the objects with the world's
+   * [[org.tuubes.core.worlds.SpatialIndex]].
+   *
+   * @param world    the world that contains the objects
+   * @param packetId the id of the [[ObjectUpdatesPacket]]s in the clients' protocol
+   */
+  def this(world: LocalWorld, packetId: Int) = {
+    this(world, packetId, (p, distance, visitor) => {
+      world.spatialIndex.forEachInRadius(p.x, p.y, p.z, distance, visitor)
+    })
+  }
+
+  private[this] val viewers = new CopyOnWriteArrayList[ViewerState]
+
+  // The last synchronized state of each object, by object id
+  private[this] var objects = new Array[GameObject](64)
+  private[this] var generations = new Array[Int](64)
+  private[this] var xs = new Array[Int](64)
+  private[this] var ys = new Array[Int](64)
+  private[this] var zs = new Array[Int](64)
+  private[this] var rotations = new Array[Int](64)
+
+  // The delta entries of the current tick, by object id
+  private[this] var changeTicks = Array.fill(64)(-1L)
+  private[this] var entryOffsets = new Array[Int](64)
+  private[this] var entryLengths = new Array[Int](64)
+  private[this] val deltas = new EntryBuffer(4096)
+  private[this] var currentTick = -1L
+
+  /** The packet being built, reused for each viewer */
+  private[this] val packet = new EntryBuffer(1024)
+
+  /**
+   * Adds a viewer. It will receive the objects around it at the end of the next tick.
+   *
+   * @param viewer the viewer to add
+   */
+  def addViewer(viewer: SyncViewer): Unit = {
+    this.synchronized {
+      viewers.add(new ViewerState(viewer))
+      if (viewers.size == 1) {
+        world.attributeChanges.addConsumer(this)
+      }
+    }
+  }
+
+  /**
+   * Removes a viewer.
+   *
+   * @param viewer the viewer to remove
+   */
+  def removeViewer(viewer: SyncViewer): Unit = {
+    this.synchronized {
+      viewers.removeIf(_.viewer eq viewer)
+      if (viewers.isEmpty) {
+        world.attributeChanges.removeConsumer(this)
+      }
+    }
+  }
+
+  /** Encodes the changes of an object, once for all the viewers */
+  override def onChanged(obj: GameObject, tick: Long): Unit = {
+    if (tick != currentTick) {
+      currentTick = tick
+      deltas.clear()
+    }
+    val id = obj.id
+    if (id >= 0) {
+      ensureCapacity(id)
+      val fresh = objects(id) ne obj
+      if (fresh) {
+        track(obj, id)
+        rotations(id) = NoRotation // the absolute entry contains the rotation
+      }
+      var flags = 0
+      var dx, dy, dz = 0
+      val position = obj.position
+      if (position ne null) {
+        val x = quantize(position.x)
+        val y = quantize(position.y)
+        val z = quantize(position.z)
+        dx = x - xs(id)
+        dy = y - ys(id)
+        dz = z - zs(id)
+        if (fresh || !fitsShort(dx) || !fitsShort(dy) || !fitsShort(dz)) {
+          flags |= AbsolutePosition
+        } else if (dx != 0 || dy != 0 || dz != 0) {
+          flags |= DeltaPosition
+        }
+        xs(id) = x
+        ys(id) = y
+        zs(id) = z
+      }
+      val rotation = obj.rotation
+      if (rotation ne null) {
+        val r = quantize(rotation)
+        if (r != rotations(id)) {
+          flags |= Rotation
+          rotations(id) = r
+        }
+      }
+      changeTicks(id) = tick
+      entryOffsets(id) = deltas.size
+      if (flags != 0) {
+        writeEntry(deltas, id, flags, xs(id), ys(id), zs(id), rotations(id), dx, dy, dz)
+      }
+      entryLengths(id) = deltas.size - entryOffsets(id)
+    }
+  }
+
+  /** Builds and sends the packet of each viewer */
+  override def onChangesEnd(tick: Long): Unit = {
+    val it = viewers.iterator()
+    while (it.hasNext) {
+      it.next().sync(tick)
+    }
+    NetworkSystem.flush() // sends the packets of this tick now instead of at the next tick
+    forgetRemovedObjects()
+  }
+
+  /**
+   * Starts to track the object that uses an id: begins a new generation, with the object's
+   * current state as the last synchronized state.
+   */
+  private def track(obj: GameObject, id: Int): Unit = {
+    objects(id) = obj
+    generations(id) += 1
+    val position = obj.position
+    if (position ne null) {
+      xs(id) = quantize(position.x)
+      ys(id) = quantize(position.y)
+      zs(id) = quantize(position.z)
+    }
+    val rotation = obj.rotation
+    rotations(id) = if (rotation eq null) NoRotation else quantize(rotation)
+  }
+
+  /** Releases the objects that have been removed from the world, which have lost their id */
+  private def forgetRemovedObjects(): Unit = {
+    var id = 0
+    while (id < objects.length) {
+      val obj = objects(id)
+      if ((obj ne null) && obj.id != id) {
+        objects(id) = null
+      }
+      id += 1
+    }
+  }
+
+  /** Writes an entry: the absolute position or the delta, depending on the flags */
+  private def writeEntry(out: EntryBuffer, id: Int, flags: Int, x: Int, y: Int, z: Int,
+                         rotation: Int, dx: Int, dy: Int, dz: Int): Unit = {
+    out.putVarint(id)
+    out.putByte(flags)
+    if ((flags & AbsolutePosition) != 0) {
+      out.putInt(x)
+      out.putInt(y)
+      out.putInt(z)
+    } else if ((flags & DeltaPosition) != 0) {
+      out.putShort(dx)
+      out.putShort(dy)
+      out.putShort(dz)
+    }
+    if ((flags & Rotation) != 0) {
+      out.putShort(rotation)
+    }
+  }
+
+  private def ensureCapacity(id: Int): Unit = {
+    if (id >= objects.length) {
+      val capacity = math.max(id + 1, objects.length * 2)
+      objects = Arrays.copyOf(objects, capacity)
+      generations = Arrays.copyOf(generations, capacity)
+      xs = Arrays.copyOf(xs, capacity)
+      ys = Arrays.copyOf(ys, capacity)
+      zs = Arrays.copyOf(zs, capacity)
+      rotations = Arrays.copyOf(rotations, capacity)
+      val oldLength = changeTicks.length
+      changeTicks = Arrays.copyOf(changeTicks, capacity)
+      Arrays.fill(changeTicks, oldLength, capacity, -1L)
+      entryOffsets = Arrays.copyOf(entryOffsets, capacity)
+      entryLengths = Arrays.copyOf(entryLengths, capacity)
+    }
+  }
+
+  /** The state of a viewer: the objects it knows */
+  private final class ViewerState(val viewer: SyncViewer) extends SpatialVisitor {
+    /** The objects that the viewer has received and can still see */
+    private[this] var known = new BitSet
+    /** The generation of each known id, see [[StateSync.track]] */
+    private[this] var knownGenerations = new Array[Int](64)
+    /** The objects seen during the current sync */
+    private[this] var seen = new BitSet
+    private[this] var tick = -1L
+    private[this] var entryCount = 0
+
+    def sync(tick: Long): Unit = {
+      val position = viewer.viewPosition
+      this.tick = tick
+      entryCount = 0
+      packet.clear()
+      if (position ne null) {
+        visible(position, viewer.viewDistance, this)
+      }
+      // The objects that are known but haven't been seen have left the view. Without position,
+      // the viewer sees nothing: all its objects are removed, and sent again with their
+      // absolute state once it has a position.
+      known.andNot(seen)
+      var id = known.nextSetBit(0)
+      while (id >= 0) {
+        packet.putVarint(id)
+        packet.putByte(Removed)
+        entryCount += 1
+        id = known.nextSetBit(id + 1)
+      }
+      val newKnown = seen
+      seen = known
+      seen.clear()
+      known = newKnown
+      if (entryCount > 0) {
+        viewer.sendQueue.send(new ObjectUpdatesPacket(packetId, entryCount, packet))
+      }
+    }
+
+    override def visit(obj: GameObject, x: Double, y: Double, z: Double): Unit = {
+      val id = obj.id
+      if (id < 0) {
+        return // removed from the world during the tick
+      }
+      ensureCapacity(id)
+      if (objects(id) ne obj) {
+        track(obj, id) // not changed since it got its id
+      }
+      seen.set(id)
+      val generation = generations(id)
+      if (known.get(id) && knownGenerations(id) != generation) {
+        // The id has been reused: the viewer's object is removed, and the new one is sent
+        packet.putVarint(id)
+        packet.putByte(Removed)
+        entryCount += 1
+        known.clear(id)
+      }
+      if (!known.get(id)) {
+        // New in the view: sends the absolute state
+        if (id >= knownGenerations.length) {
+          knownGenerations = Arrays.copyOf(knownGenerations, math.max(id + 1, id * 2))
+        }
+        knownGenerations(id) = generation
+        val rotation = obj.rotation
+        val r = if (rotation eq null) NoRotation else quantize(rotation)
+        val flags = if (r == NoRotation) AbsolutePosition else AbsolutePosition | Rotation
+        writeEntry(packet, id, flags, quantize(x), quantize(y), quantize(z), r, 0, 0, 0)
+        entryCount += 1
+      } else if (id < changeTicks.length && changeTicks(id) == tick && entryLengths(id) > 0) {
+        // Known and changed: copies the delta entry
+        packet.putBytes(deltas, entryOffsets(id), entryLengths(id))
+        entryCount += 1
+      }
+    }
+  }
+}
+
+object StateSync {
+  // The flags of an entry
+  private final val AbsolutePosition = 1
+  private final val DeltaPosition = 2
+  private final val Rotation = 4
+  private final val Removed = 8
+
+  private final val NoRotation = -1
+
+  /** Converts a coordinate to a fixed-point value, in 1/32 block */
+  private def quantize(v: Double): Int = math.round(v * 32).toInt
+
+  /** Converts a rotation to 2 bytes: the yaw and the pitch, in 1/256 turn */
+  private def quantize(r: Rotation2): Int = {
+    val radiansToBytes = 256 / (2 * math.Pi)
+    val yaw = math.round(r.yaw * radiansToBytes).toInt & 0xFF
+    val pitch = math.round(r.pitch * radiansToBytes).toInt & 0xFF
+    yaw << 8 | pitch
+  }
+
+  private def fitsShort(v: Int): Boolean = v >= Short.MinValue && v <= Short.MaxValue
+
+  /** A growable array of bytes, to build the entries */
+  private[network] final class EntryBuffer(initialCapacity: Int) {
+    private[network] var array = new Array[Byte](initialCapacity)
+    private[network] var size = 0
+
+    def clear(): Unit = size = 0
+
+    private def ensureRemaining(n: Int): Unit = {
+      if (size + n > array.length) {
+        array = Arrays.copyOf(array, math.max(size + n, array.length * 2))
+      }
+    }
+
+    def putByte(b: Int): Unit = {
+      ensureRemaining(1)
+      array(size) = b.toByte
+      size += 1
+    }
+
+    def putShort(s: Int): Unit = {
+      ensureRemaining(2)
+      array(size) = (s >> 8).toByte
+      array(size + 1) = s.toByte
+      size += 2
+    }
+
+    def putInt(i: Int): Unit = {
+      putShort(i >> 16)
+      putShort(i)
+    }
+
+    def putVarint(v: Int): Unit = {
+      var value = v
+      while ((value & ~0x7F) != 0) {
+        putByte((value & 0x7F) | 0x80)
+        value >>>= 7
+      }
+      putByte(value)
+    }
+
+    def putBytes(src: EntryBuffer, offset: Int, length: Int): Unit = {
+      ensureRemaining(length)
+      System.arraycopy(src.array, offset, array, size, length)
+      size += length
+    }
+  }
+}
+
+/**
+ * A client that receives the state of the objects around it, see [[StateSync.addViewer]]. The
+ * methods are called by the [[org.tuubes.core.engine.TickRuntime]] between two ticks.
+ */
+trait SyncViewer {
+  /** @return the queue of the packets sent to the client */
+  def sendQueue: SendQueue
+
+  /**
+   * @return the position around which the objects are visible, or null to see nothing: the
+   *         objects that the client knows are then removed
+   */
+  def viewPosition: Vec3d
+
+  /** @return the maximum distance of the visible objects, in blocks */
+  def viewDistance: Double
+}
+
+/**
+ * The changes of the objects seen by a client during one tick. It contains the number of
+ * entries, followed by the entries. Each entry is made of:
+ *  - the object's id, as a varint
+ *  - a byte of flags: 1 for an absolute position, 2 for a delta position, 4 for a rotation,
+ *    8 for a removed object
+ *  - the absolute position, as 3 ints in 1/32 block, or the delta, as 3 shorts in 1/32 block
+ *  - the rotation, as 2 bytes in 1/256 turn: the yaw and the pitch
+ *
+ * The packet is encoded immediately by [[SendQueue.send]], the entries aren't copied. Its id is
+ * written in the header, by [[Protocol.writePacketHeader]].
+ *
+ * @param id      the packet's id
+ * @param count   the number of entries
+ * @param entries the entries
+ * @author TheElectronWill
+ */
+final class ObjectUpdatesPacket private[network] (val id: Int, count: Int,
+                                                  entries: StateSync.EntryBuffer)
+    extends Packet {
+  override def writeTo(out: NiolOutput): Unit = {
+    out.putVarint(count)
+    out.putBytes(entries.array, 0, entries.size)
+  }
+}
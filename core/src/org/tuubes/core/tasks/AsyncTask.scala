@@ -5,12 +5,14 @@ import java.net.{HttpURLConnection, URL, URLConnection}
 import java.nio.channels.FileChannel
 import java.nio.file.OpenOption
 import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicReference}
-import java.util.concurrent.{ConcurrentLinkedQueue, Executor, TimeUnit}
+import java.util.concurrent.{Executor, TimeUnit}
 
+import org.tuubes.core.tasks.AsyncTask._
 import org.tuubes.core.tasks.TaskStatus._
 import org.tuubes.core.tasks.{VolatileArray => VArr}
 
 import scala.annotation.{tailrec, varargs}
+import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 import scala.util.control.NonFatal
 import scala.util.{Failure, Success, Try}
@@ -18,14 +20,26 @@ import scala.util.{Failure, Success, Try}
 /**
  * An asynchronous task that can be chained with other tasks.
  *
+ * ==Stage fusion==
+ * When a task completes, its first successor that uses the same executor is run immediately in
+ * the same thread, instead of being submitted to the executor. A chain of stages on the same
+ * executor is therefore executed in one run, without hand-off. The other successors are
+ * submitted to their executors.
+ *
+ * ==Listeners==
+ * The successors, the failure handlers and the completion functions of a task are kept in one
+ * stack, linked by compare-and-set. They are called in the order they have been added. A
+ * successor that is added after the completion of the task is submitted immediately.
+ *
  * @author TheElectronWill
  */
 abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
-                               private[this] val executor: Executor) {
+                               private val executor: Executor) {
   @volatile private[this] var _result: Try[B] = _
   private[this] val _status = new AtomicReference(CREATED)
-  private[this] val nextTasks = new ConcurrentLinkedQueue[AsyncTask[B, _]]
-  private[this] val failureHandlers = new ConcurrentLinkedQueue[(A, Failure[B]) => Try[B]]
+
+  /** The listeners, most recent first, or [[AsyncTask.Closed]] once the task has ended */
+  private[this] val listeners = new AtomicReference[Listener]
 
   /** @return the current status of the task */
   def status: TaskStatus = _status.get
@@ -361,7 +375,7 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 	 * @return this task
 	 */
   def executeOnFailure(f: (A, Throwable) => Unit): this.type = {
-    failureHandlers.add((a, fail) => {
+    addHandler((a, fail) => {
       f(a, fail.exception)
       fail
     })
@@ -375,7 +389,7 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 	 * @return this task
 	 */
   def executeOnFailure(task: AsyncTask[(A, Throwable), _]): this.type = {
-    failureHandlers.add((a, fail) => {
+    addHandler((a, fail) => {
       task.submit(a, fail.exception)
       fail
     })
@@ -389,7 +403,7 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 	 * @return this task
 	 */
   def recoverOnFailure(f: ThrowableFunction1[(A, Throwable), B]): this.type = {
-    failureHandlers.add((a, fail) => Try(f(a, fail.exception)))
+    addHandler((a, fail) => Try(f(a, fail.exception)))
     this
   }
 
@@ -400,7 +414,7 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 	 * @return this task
 	 */
   def recoverOnFailure(f: (A, Throwable) => Try[B]): this.type = {
-    failureHandlers.add((a, fail) => Try(f(a, fail.exception)).flatten)
+    addHandler((a, fail) => Try(f(a, fail.exception)).flatten)
     this
   }
 
@@ -412,17 +426,74 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 	 */
   @varargs
   def startOnFailure(tasks: AsyncTask[_, _]*): this.type = {
-    failureHandlers.add((_, fail) => { tasks.foreach(_.start()); fail })
+    addHandler((_, fail) => { tasks.foreach(_.start()); fail })
+    this
+  }
+
+  /**
+   * Calls a function when this task ends, with the task's result: a `Success` if the task has
+   * completed, or has been recovered by a failure handler, a `Failure` otherwise. If the task has
+   * already ended, the function is called immediately.
+   *
+   * @param f the function to call
+   * @return this task
+   */
+  def onComplete(f: Try[B] => Unit): this.type = {
+    addCompletion(new CompletionFunction(f.asInstanceOf[Try[Any] => Unit]))
     this
   }
 
   protected final def addNext[C](f: B => Try[C], executor: Executor): AsyncTask[B, C] = {
     val next = new ChildTask[B, C](root, f, executor)
     next.casStatus(CREATED, ROOT_SUBMITTED)
-    nextTasks.add(next)
+    if (!push(new Successor(next)) && _status.get == COMPLETED) {
+      next.submit(_result.get) // this task has already completed
+    }
     next
   }
 
+  /** Adds a failure handler. The handlers added after the end of the task are never called. */
+  private def addHandler(f: (A, Failure[B]) => Try[B]): Unit = {
+    push(new FailureHandler(f.asInstanceOf[(Any, Failure[Any]) => Try[Any]]))
+  }
+
+  /** Adds a completion listener, which is called immediately if the task has already ended */
+  private[tasks] final def addCompletion(completion: Completion): Unit = {
+    if (!push(completion)) {
+      completion.onDone(_result)
+    }
+  }
+
+  /**
+   * Pushes a listener on the stack.
+   *
+   * @return true if it has been pushed, false if the task has already ended
+   */
+  private def push(listener: Listener): Boolean = {
+    var head = listeners.get
+    while (head ne Closed) {
+      listener.next = head
+      if (listeners.compareAndSet(head, listener)) {
+        return true
+      }
+      head = listeners.get
+    }
+    false
+  }
+
+  /** Closes the stack of listeners and returns them in the order they have been added */
+  private def takeListeners(): Listener = {
+    var node = listeners.getAndSet(Closed)
+    var reversed: Listener = null
+    while (node ne null) {
+      val next = node.next
+      node.next = reversed
+      reversed = node
+      node = next
+    }
+    reversed
+  }
+
   /** Atomically sets the task's status if it's equal to the expected status */
   protected final def casStatus(expect: TaskStatus, update: TaskStatus): Boolean = {
     _status.compareAndSet(expect, update)
@@ -430,8 +501,16 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 
   /** @return an iterator over the tasks that are submitted after this task */
   protected final def nextTasksIterator(): Iterator[AsyncTask[B, _]] = {
-    import scala.collection.JavaConverters._
-    nextTasks.iterator().asScala
+    var tasks: List[AsyncTask[B, _]] = Nil
+    var node = listeners.get
+    while (node ne null) {
+      node match {
+        case s: Successor => tasks ::= s.task.asInstanceOf[AsyncTask[B, _]]
+        case _ => ()
+      }
+      node = node.next
+    }
+    tasks.iterator
   }
 
   protected[this] val root: AsyncTask[_, _]
@@ -454,58 +533,110 @@ abstract class AsyncTask[A, B](private[this] val function: A => Try[B],
 
   /**
 	 * Runs this task now, in the caller thread, with the result of the parent task (or Unit if
-	 * this is a root task).
+	 * this is a root task). The successors that use the same executor are fused: they run after
+	 * this task in the same loop.
 	 *
 	 * @param previousResult the parent's result
 	 */
   private final def run(previousResult: A): Unit = {
+    var task: AsyncTask[Any, Any] = this.asInstanceOf[AsyncTask[Any, Any]]
+    var input: Any = previousResult
+    while (task ne null) {
+      val fused = task.runStage(input).asInstanceOf[AsyncTask[Any, Any]]
+      if (fused ne null) {
+        input = task.resultValue
+      }
+      task = fused
+    }
+  }
+
+  /**
+   * Runs the function of this task and handles its result.
+   *
+   * @return the successor to run next in the same thread, or null
+   */
+  private def runStage(previousResult: A): AsyncTask[B, _] = {
     _status.set(STARTED)
-    val result = function(previousResult)
-    result match {
+    function(previousResult) match {
       case s: Success[B] => handleSuccess(s)
       case f: Failure[B] => handleFailure(previousResult, f)
+      case null => handleSuccess(Success(null.asInstanceOf[B])) // the internal stages return null
     }
   }
 
+  private def resultValue: B = _result.get
+
   /**
 	 * Handles the successfull completion of this task. The task's status is set to COMPLETED and
-	 * the `nextTasks` are submitted for execution.
+	 * the successors are submitted for execution, except the first one that uses the same executor
+	 * as this task, which is returned to be run by the caller.
 	 *
 	 * @param success the Success result
+	 * @return the successor to fuse with this task, or null
 	 */
-  private final def handleSuccess(success: Success[B]): Unit = {
+  private final def handleSuccess(success: Success[B]): AsyncTask[B, _] = {
     _result = success
     _status.set(COMPLETED)
-    val result = _result.get
-    var nextTask: AsyncTask[B, _] = nextTasks.poll()
-    while (nextTask ne null) {
-      nextTask.submit(result)
-      nextTask = nextTasks.poll()
+    val result = success.value
+    var fused: AsyncTask[B, _] = null
+    var node = takeListeners()
+    while (node ne null) {
+      node match {
+        case s: Successor =>
+          val next = s.task.asInstanceOf[AsyncTask[B, _]]
+          if ((fused eq null) && (next.executor eq executor)) {
+            fused = next
+          } else {
+            next.submit(result)
+          }
+        case c: Completion => c.onDone(success)
+        case _ => () // failure handler
+      }
+      node = node.next
     }
+    fused
   }
 
   /**
-	 * Handles the failure of this task. The failureHandlers may rectify the situation by
+	 * Handles the failure of this task. The failure handlers may rectify the situation by
 	 * providing a Success with a new result. In that case `handleSuccess` will be called and the
 	 * task's status will be COMPLETED. Otherwise the task's status is set to FAILED.
 	 *
 	 * @param previousResult the result that has been given to submit this task
 	 * @param failure        the Failure result
+	 * @return the successor to fuse with this task, or null
 	 */
-  private final def handleFailure(previousResult: A, failure: Failure[B]): Unit = {
+  private final def handleFailure(previousResult: A, failure: Failure[B]): AsyncTask[B, _] = {
+    // Collects the handlers in the order they have been added, the stack stays open
+    var handlers: List[FailureHandler] = Nil
+    var node = listeners.get
+    while (node ne null) {
+      node match {
+        case h: FailureHandler => handlers ::= h
+        case _ => ()
+      }
+      node = node.next
+    }
     var newResult: Try[B] = failure
-    var nextHandler: (A, Failure[B]) => Try[B] = failureHandlers.poll()
-    while (nextHandler ne null) {
-      newResult = nextHandler(previousResult, failure)
+    while (handlers.nonEmpty) {
+      newResult = handlers.head.f(previousResult, failure).asInstanceOf[Try[B]]
       if (newResult.isSuccess) {
         // In case of recovered situation, handle the success and stop here
-        handleSuccess(newResult.asInstanceOf[Success[B]])
-        return
+        return handleSuccess(newResult.asInstanceOf[Success[B]])
       }
-      nextHandler = failureHandlers.poll()
+      handlers = handlers.tail
     }
     _result = newResult
     _status.set(FAILED)
+    node = takeListeners()
+    while (node ne null) {
+      node match {
+        case c: Completion => c.onDone(newResult)
+        case _ => () // the successors aren't executed
+      }
+      node = node.next
+    }
+    null
   }
 }
 object AsyncTask {
@@ -646,7 +777,7 @@ object AsyncTask {
   @varargs
   def awaitSome[R, T <: R, A](count: Int,
                               tasks: AsyncTask[A, T]*): AsyncTask[Try[VArr[R]], VArr[R]] = {
-    val task = new AwaitingRootTask[VArr[R], R](tasks: _*)
+    val task = new AwaitingRootTask[VArr[R], R](TaskSystem.executor, tasks: _*)
     val onSuccess = successConvergenceN(task, count)
     val onFailure = failureConvergenceN(task, tasks.length - count)
     // Runs the completion functions after each specified task:
@@ -680,7 +811,7 @@ object AsyncTask {
 	 */
   @varargs
   def awaitAny[R, T <: R, A](tasks: AsyncTask[A, T]*): AsyncTask[Try[R], R] = {
-    val task: AsyncTask[Try[R], R] = new AwaitingRootTask[R, R](tasks: _*)
+    val task: AsyncTask[Try[R], R] = new AwaitingRootTask[R, R](TaskSystem.executor, tasks: _*)
     val onSuccess: R => Unit = successConvergence1(task)
     val onFailure = failureConvergence1(task, tasks.length)
     // Runs the completion functions after each specified task:
@@ -699,7 +830,121 @@ object AsyncTask {
       task.casStatus(CREATED, ROOT_SUBMITTED)
       task.nextTasksIterator().foreach(subTasks.append(_))
     }
-    markRootSubmitted(subTasks)
+    if (subTasks.nonEmpty) {
+      markRootSubmitted(subTasks)
+    }
+  }
+
+  /**
+   * Creates a new task that completes when all the given tasks complete, with their results in
+   * the same order. If one of the tasks fails then the task fails immediately with the same
+   * error, without waiting for the others. The task completes in the thread of the last task,
+   * and uses one atomic counter for all the given tasks.
+   *
+   * @param tasks the tasks to wait for
+   * @tparam R the result type of the tasks
+   * @return a new task that is triggered when the given tasks complete
+   */
+  @varargs
+  def gather[R](tasks: AsyncTask[_, R]*): AsyncTask[Try[IndexedSeq[R]], IndexedSeq[R]] = {
+    val task = new AwaitingRootTask[IndexedSeq[R], R](DummyExecutor, tasks: _*)
+    fanIn(task, new Array[Any](tasks.length), tasks)
+    task
+  }
+
+  /**
+   * Creates a new task that completes when all the given tasks complete. If one of the tasks
+   * fails then the task fails immediately with the same error, without waiting for the others.
+   * Unlike [[gather]], the results of the tasks aren't kept, which makes it suitable for bulk
+   * operations like saving many files.
+   *
+   * @param tasks the tasks to wait for
+   * @return a new task that is triggered when the given tasks complete
+   */
+  @varargs
+  def whenAll(tasks: AsyncTask[_, _]*): AsyncTask[Try[Unit], Unit] = {
+    val task = new AwaitingRootTask[Unit, Any](DummyExecutor, tasks: _*)
+    fanIn(task, null, tasks)
+    task
+  }
+
+  /** Registers a [[FanIn]] on each task, or completes the action if there's no task */
+  private def fanIn(action: AsyncTask[_, _], results: Array[Any],
+                    tasks: Seq[AsyncTask[_, _]]): Unit = {
+    val counter = new FanIn(tasks.length, results, action.asInstanceOf[AsyncTask[Try[Any], Any]])
+    if (tasks.isEmpty) {
+      counter.complete()
+    } else {
+      var i = 0
+      for (task <- tasks) {
+        task.addCompletion(new FanInSlot(counter, i))
+        i += 1
+      }
+    }
+  }
+
+  /**
+   * Counts the tasks that remain to complete before submitting the action. The count is set to
+   * -1 by the first failure, so that the action is submitted only once.
+   */
+  private final class FanIn(count: Int, results: Array[Any], action: AsyncTask[Try[Any], Any])
+      extends AtomicInteger(count) {
+    def onDone(index: Int, result: Try[Any]): Unit = {
+      result match {
+        case Success(value) => {
+          if (results ne null) {
+            results(index) = value // published by the decrement
+          }
+          if (decrementAndGet() == 0) {
+            complete()
+          }
+        }
+        case failure: Failure[Any] => {
+          var remaining = get()
+          while (remaining > 0 && !compareAndSet(remaining, -1)) {
+            remaining = get()
+          }
+          if (remaining > 0) {
+            action.submit(failure)
+          }
+        }
+      }
+    }
+
+    def complete(): Unit = {
+      val value = if (results eq null) () else mutable.WrappedArray.make[Any](results)
+      action.submit(Success(value))
+    }
+  }
+
+  /** The listener of one of the tasks of a [[FanIn]] */
+  private final class FanInSlot(counter: FanIn, index: Int) extends Completion {
+    override def onDone(result: Try[Any]): Unit = counter.onDone(index, result)
+  }
+
+  /** An element of the stack of listeners of a task */
+  private[tasks] abstract class Listener {
+    /** The previous listener */
+    var next: Listener = _
+  }
+
+  /** Marks the stack of listeners of a task that has ended */
+  private[tasks] object Closed extends Listener
+
+  /** A task to submit when the task completes */
+  private[tasks] final class Successor(val task: AsyncTask[_, _]) extends Listener
+
+  /** A function to call when the task fails, which can recover a result */
+  private[tasks] final class FailureHandler(val f: (Any, Failure[Any]) => Try[Any])
+      extends Listener
+
+  /** Something to call when the task ends */
+  private[tasks] abstract class Completion extends Listener {
+    def onDone(result: Try[Any]): Unit
+  }
+
+  private[tasks] final class CompletionFunction(f: Try[Any] => Unit) extends Completion {
+    override def onDone(result: Try[Any]): Unit = f(result)
   }
 
   private[tasks] def successConvergenceN[A](action: AsyncTask[Try[VArr[A]], _ <: Any],
@@ -815,8 +1060,9 @@ private final class ChildTask[A, B](protected[this] val root: AsyncTask[_, _],
 /**
  * A root task that is triggered when some other tasks complete.
  */
-private final class AwaitingRootTask[R, T](private[this] val tasks: AsyncTask[_, _ <: T]*)
-    extends AsyncTask[Try[R], R](identity, TaskSystem.executor) {
+private final class AwaitingRootTask[R, T](e: Executor,
+                                           private[this] val tasks: AsyncTask[_, _ <: T]*)
+    extends AsyncTask[Try[R], R](identity, e) {
 
   protected[this] val root = this
   override def start(): Unit = {
@@ -8,14 +8,22 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 final class CountingThreadFactory implements ThreadFactory {
 	private final String prefix;
+	private final boolean daemon;
 	private final AtomicInteger count = new AtomicInteger();
 
 	CountingThreadFactory(String prefix) {
+		this(prefix, false);
+	}
+
+	CountingThreadFactory(String prefix, boolean daemon) {
 		this.prefix = prefix;
+		this.daemon = daemon;
 	}
 
 	@Override
 	public Thread newThread(Runnable runnable) {
-		return new Thread(prefix + count.getAndIncrement());
+		Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+		thread.setDaemon(daemon);
+		return thread;
 	}
 }
\ No newline at end of file
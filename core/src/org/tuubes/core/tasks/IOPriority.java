@@ -0,0 +1,16 @@
+package org.tuubes.core.tasks;
+
+/**
+ * The priority of a task of the {@link IOSystem}. The tasks of a higher priority are executed
+ * before the tasks of a lower priority, the tasks of the same priority are executed in order.
+ *
+ * @author TheElectronWill
+ */
+public enum IOPriority {
+	/** Something that a player is waiting for, like loading the chunks around him */
+	INTERACTIVE,
+	/** The default priority */
+	NORMAL,
+	/** Something that can wait, like the automatic saves */
+	BACKGROUND
+}
@@ -0,0 +1,445 @@
+package org.tuubes.core.tasks;
+
+import com.electronwill.util.LatencyHistogram;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executes the IO tasks with a fixed number of threads, or with one virtual thread per task.
+ * <p>
+ * <b>Modes:</b> the platform mode uses a fixed number of worker threads. The virtual mode,
+ * available on Java 21 and newer, starts a virtual thread for each task, with a limit on the
+ * number of tasks that run at the same time. A task that blocks on IO doesn't hold an OS thread
+ * in the virtual mode, which allows to wait for thousands of reads at once.
+ * <p>
+ * <b>Priorities:</b> the waiting tasks are taken by priority, see {@link IOPriority}, then in
+ * submission order.
+ * <p>
+ * <b>Keys:</b> a task can be submitted with a key, which represents the resource it uses: a
+ * file, a chunk column, etc. The tasks of the same key are executed one after another, in
+ * submission order. A task that is <i>replaceable</i> is replaced by the next replaceable task
+ * of the same key, as long as it hasn't started. This avoids to save the same data twice.
+ * <p>
+ * <b>Shutdown:</b> the threads are daemon threads, which don't prevent the JVM from exiting. Use
+ * {@link #shutdown()} and {@link #awaitTermination(long, TimeUnit)} to wait for the pending tasks.
+ * <p>
+ * <b>Metrics:</b> the scheduler counts the waiting and executing tasks, and records the time
+ * that the tasks wait before being executed, by priority.
+ *
+ * @author TheElectronWill
+ */
+public final class IOScheduler implements Executor {
+	private static final IOPriority[] PRIORITIES = IOPriority.values();
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Condition idle = lock.newCondition();
+
+	/** Starts a virtual thread per task, null in the platform mode */
+	private final ThreadFactory virtualFactory;
+
+	/** The maximum number of tasks that run at the same time */
+	private final int concurrencyLimit;
+
+	// The following fields are protected by the lock
+	private final ArrayDeque<Job>[] queues;
+	private final HashMap<Object, KeyState> keys = new HashMap<>();
+	private final LatencyHistogram[] waitTimes;
+	private int queued, active;
+	private long executed, replaced;
+	private boolean shutdown;
+
+	/**
+	 * Creates and starts a new IOScheduler in the platform mode.
+	 *
+	 * @param namePrefix  the prefix of the threads' names
+	 * @param threadCount the number of threads
+	 */
+	public IOScheduler(String namePrefix, int threadCount) {
+		this(namePrefix, threadCount, null);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private IOScheduler(String namePrefix, int concurrencyLimit, ThreadFactory virtualFactory) {
+		if (concurrencyLimit <= 0) {
+			throw new IllegalArgumentException("Invalid concurrency limit: " + concurrencyLimit);
+		}
+		this.concurrencyLimit = concurrencyLimit;
+		this.virtualFactory = virtualFactory;
+		queues = new ArrayDeque[PRIORITIES.length];
+		waitTimes = new LatencyHistogram[PRIORITIES.length];
+		for (int i = 0; i < PRIORITIES.length; i++) {
+			queues[i] = new ArrayDeque<>();
+			waitTimes[i] = new LatencyHistogram();
+		}
+		if (virtualFactory == null) {
+			CountingThreadFactory factory = new CountingThreadFactory(namePrefix, true);
+			for (int i = 0; i < concurrencyLimit; i++) {
+				factory.newThread(this::work).start();
+			}
+		}
+	}
+
+	/**
+	 * Creates a new IOScheduler in the virtual mode, if the JVM supports virtual threads.
+	 *
+	 * @param namePrefix       the prefix of the threads' names
+	 * @param concurrencyLimit the maximum number of tasks that run at the same time
+	 * @return the new scheduler, or null if the JVM doesn't support virtual threads
+	 */
+	public static IOScheduler virtual(String namePrefix, int concurrencyLimit) {
+		ThreadFactory factory = virtualThreadFactory(namePrefix);
+		return (factory == null) ? null : new IOScheduler(namePrefix, concurrencyLimit, factory);
+	}
+
+	/**
+	 * Gets a factory of virtual threads with {@code Thread.ofVirtual()}. The method is called by
+	 * reflection, because the server must also run on the JVMs that don't have it.
+	 *
+	 * @return the factory, or null if the virtual threads aren't supported
+	 */
+	private static ThreadFactory virtualThreadFactory(String namePrefix) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, namePrefix, 0L);
+			Method factoryMethod = builderClass.getMethod("factory");
+			ThreadFactory factory = (ThreadFactory)factoryMethod.invoke(builder);
+			factory.newThread(() -> {}); // fails if the virtual threads are a disabled preview
+			return factory;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this scheduler runs each task in a virtual thread
+	 */
+	public boolean isVirtual() {
+		return virtualFactory != null;
+	}
+
+	/**
+	 * Executes a task with the {@link IOPriority#NORMAL} priority and no key.
+	 *
+	 * @param task the task to execute
+	 */
+	@Override
+	public void execute(Runnable task) {
+		submit(null, IOPriority.NORMAL, task, null);
+	}
+
+	/**
+	 * Submits a task.
+	 *
+	 * @param key        the key of the resource used by the task, or null. The tasks of equal keys
+	 *                   are executed one after another, in submission order.
+	 * @param priority   the task's priority
+	 * @param task       the task to execute
+	 * @param onReplaced if not null, the task is replaceable: it's replaced by the next
+	 *                   replaceable task of the same key if it hasn't started yet, in which case
+	 *                   onReplaced is called instead of the task.
+	 */
+	public void submit(Object key, IOPriority priority, Runnable task, Runnable onReplaced) {
+		Runnable replacedCallback = null;
+		Job job = new Job(key, priority, task, onReplaced);
+		lock.lock();
+		try {
+			if (shutdown) {
+				throw new RejectedExecutionException("The IOScheduler has been shut down");
+			}
+			if (key == null) {
+				enqueue(job);
+			} else {
+				KeyState state = keys.get(key);
+				if (state == null) {
+					state = new KeyState(job);
+					keys.put(key, state);
+					enqueue(job);
+				} else {
+					Job last = state.lastWaiting();
+					if (last != null && last.onReplaced != null && onReplaced != null) {
+						// Replaces the waiting task, which keeps its place in the queue
+						replacedCallback = last.onReplaced;
+						last.task = task;
+						last.onReplaced = onReplaced;
+						replaced++;
+					} else {
+						state.waiting.add(job);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (replacedCallback != null) {
+			replacedCallback.run();
+		}
+	}
+
+	/** Adds a job to the queue of its priority. Must be called with the lock held. */
+	private void enqueue(Job job) {
+		job.enqueueTime = System.nanoTime();
+		queues[job.priority.ordinal()].add(job);
+		queued++;
+		if (virtualFactory == null) {
+			available.signal();
+		} else {
+			startVirtual();
+		}
+	}
+
+	/**
+	 * Starts a virtual thread for each waiting job, within the concurrency limit. Must be called
+	 * with the lock held.
+	 */
+	private void startVirtual() {
+		while (queued > 0 && active < concurrencyLimit) {
+			Job job = takeFirst();
+			virtualFactory.newThread(() -> run(job)).start();
+		}
+	}
+
+	/** The loop of the worker threads */
+	private void work() {
+		while (true) {
+			Job job;
+			lock.lock();
+			try {
+				while (queued == 0 && !shutdown) {
+					available.awaitUninterruptibly();
+				}
+				if (queued == 0) {
+					return; // shut down and nothing left to do
+				}
+				job = takeFirst();
+			} finally {
+				lock.unlock();
+			}
+			run(job);
+		}
+	}
+
+	/** Executes a job that has been taken from the queues */
+	private void run(Job job) {
+		try {
+			job.task.run();
+		} catch (Throwable t) {
+			Thread current = Thread.currentThread();
+			current.getUncaughtExceptionHandler().uncaughtException(current, t);
+		} finally {
+			complete(job);
+		}
+	}
+
+	/** Takes the first job of the highest priority. Must be called with the lock held. */
+	private Job takeFirst() {
+		for (int i = 0; i < queues.length; i++) {
+			Job job = queues[i].poll();
+			if (job != null) {
+				queued--;
+				active++;
+				job.started = true;
+				waitTimes[i].record(System.nanoTime() - job.enqueueTime);
+				return job;
+			}
+		}
+		throw new IllegalStateException("No job to take");
+	}
+
+	/** Releases the job's key, and enqueues the next job of the same key */
+	private void complete(Job job) {
+		lock.lock();
+		try {
+			active--;
+			executed++;
+			if (job.key != null) {
+				KeyState state = keys.get(job.key);
+				Job next = state.waiting.poll();
+				if (next == null) {
+					keys.remove(job.key);
+				} else {
+					state.current = next;
+					enqueue(next);
+				}
+			}
+			if (virtualFactory != null) {
+				startVirtual(); // the job has freed a place
+			}
+			if (queued == 0 && active == 0) {
+				idle.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the threads once all the submitted tasks have been executed. The new tasks are
+	 * rejected with a RejectedExecutionException. In the virtual mode, the tasks that are already
+	 * submitted keep running, in virtual threads that don't prevent the JVM from exiting.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until all the submitted tasks have been executed, or until the timeout elapses.
+	 * Typically called after {@link #shutdown()}, so that no task is submitted in the meantime.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit    the unit of the timeout
+	 * @return true if all the tasks have been executed, false if the timeout has elapsed
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (queued > 0 || active > 0) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = idle.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the maximum number of tasks that run at the same time: the number of threads in
+	 * the platform mode, the limit of virtual threads in the virtual mode
+	 */
+	public int concurrencyLimit() {
+		return concurrencyLimit;
+	}
+
+	/**
+	 * @return the number of tasks that are waiting to be executed, including the tasks that wait
+	 * for another task of the same key
+	 */
+	public int queueSize() {
+		lock.lock();
+		try {
+			int size = queued;
+			for (KeyState state : keys.values()) {
+				size += state.waiting.size();
+			}
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority the priority
+	 * @return the number of tasks of this priority that are ready to be executed
+	 */
+	public int queueSize(IOPriority priority) {
+		lock.lock();
+		try {
+			return queues[priority.ordinal()].size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of threads that are executing a task
+	 */
+	public int activeCount() {
+		lock.lock();
+		try {
+			return active;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of tasks that have been executed
+	 */
+	public long executedCount() {
+		lock.lock();
+		try {
+			return executed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of tasks that have been replaced by a more recent task of the same key
+	 */
+	public long replacedCount() {
+		lock.lock();
+		try {
+			return replaced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the time that the tasks of a priority wait before being executed, in nanoseconds. The
+	 * time spent waiting for another task of the same key isn't counted. The histogram must not
+	 * be modified.
+	 *
+	 * @param priority the priority
+	 * @return the histogram of the waiting times
+	 */
+	public LatencyHistogram waitTimes(IOPriority priority) {
+		return waitTimes[priority.ordinal()];
+	}
+
+	/** A submitted task */
+	private static final class Job {
+		final Object key;
+		final IOPriority priority;
+		Runnable task, onReplaced;
+		long enqueueTime;
+		boolean started;
+
+		Job(Object key, IOPriority priority, Runnable task, Runnable onReplaced) {
+			this.key = key;
+			this.priority = priority;
+			this.task = task;
+			this.onReplaced = onReplaced;
+		}
+	}
+
+	/** The jobs of a key: the one in the queues or being executed, and the next ones */
+	private static final class KeyState {
+		Job current;
+		final ArrayDeque<Job> waiting = new ArrayDeque<>(2);
+
+		KeyState(Job current) {
+			this.current = current;
+		}
+
+		/** @return the last job that hasn't started yet, or null */
+		Job lastWaiting() {
+			Job last = waiting.peekLast();
+			if (last == null && !current.started) {
+				last = current;
+			}
+			return last;
+		}
+	}
+}
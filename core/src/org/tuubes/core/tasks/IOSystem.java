@@ -11,20 +11,84 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 /**
  * Provides asynchronous IO facilities.
+ * <p>
+ * The tasks are executed by an {@link IOScheduler}, configured by system properties:
+ * <ul>
+ * <li>"tuubes.io.virtual": true to run each task in a virtual thread, if the JVM supports it.
+ * Otherwise, or if false (the default), the tasks are run by a fixed number of threads.</li>
+ * <li>"tuubes.io.threads": the number of threads, when the virtual threads aren't used.</li>
+ * <li>"tuubes.io.maxVirtual": the maximum number of tasks that run at the same time in virtual
+ * threads.</li>
+ * </ul>
+ * The tasks that use the same file are executed one after another, in submission order.
  *
  * @author TheElectronWill
  */
 public final class IOSystem {
 	private IOSystem() {}
 
-	static final ExecutorService executor = Executors.newCachedThreadPool(
-			new CountingThreadFactory("IOSystem-"));
+	static final IOScheduler executor;
+
+	static {
+		IOScheduler scheduler = null;
+		if (Boolean.getBoolean("tuubes.io.virtual")) {
+			int maxVirtual = Integer.getInteger("tuubes.io.maxVirtual", 4096);
+			scheduler = IOScheduler.virtual("IOSystem-virtual-", maxVirtual);
+		}
+		if (scheduler == null) {
+			int cores = Runtime.getRuntime().availableProcessors();
+			int threads = Integer.getInteger("tuubes.io.threads", Math.max(2, Math.min(8, cores)));
+			scheduler = new IOScheduler("IOSystem-", threads);
+		}
+		executor = scheduler;
+	}
+
+	/**
+	 * @return the scheduler that executes the IO tasks, for its metrics
+	 */
+	public static IOScheduler scheduler() {
+		return executor;
+	}
+
+	/**
+	 * @return the number of tasks that are waiting to be executed
+	 */
+	public static int queueSize() {
+		return executor.queueSize();
+	}
+
+	/**
+	 * @return the approximate number of threads that are executing a task
+	 */
+	public static int activeCount() {
+		return executor.activeCount();
+	}
+
+	/**
+	 * Stops the IO threads once all the submitted tasks have been executed.
+	 */
+	public static void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until all the submitted tasks have been executed, or until the timeout elapses. The IO
+	 * threads don't prevent the JVM from exiting: call this method after {@link #shutdown()} to
+	 * finish the pending writes.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @param unit    the unit of the timeout
+	 * @return true if all the tasks have been executed, false if the timeout has elapsed
+	 * @throws InterruptedException if the current thread is interrupted while waiting
+	 */
+	public static boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
 
 	/**
 	 * Executes an IOTask in the background. The submitted task is executed at some time in the
@@ -38,13 +102,53 @@ public final class IOSystem {
 	 * @param errorHandler the handler to call if an error occurs
 	 */
 	public static void execute(IOTask task, Consumer<IOException> errorHandler) {
-		executor.execute(() -> {
+		execute(null, IOPriority.NORMAL, task, errorHandler);
+	}
+
+	/**
+	 * Executes an IOTask in the background, after the previous tasks of the same key.
+	 *
+	 * @param key          the key of the resource used by the task, or null
+	 * @param priority     the task's priority
+	 * @param task         the task to execute
+	 * @param errorHandler the handler to call if an error occurs
+	 */
+	public static void execute(Object key, IOPriority priority, IOTask task,
+							   Consumer<IOException> errorHandler) {
+		executor.submit(key, priority, wrap(task, errorHandler), null);
+	}
+
+	/**
+	 * Executes an IOTask in the background, after the previous tasks of the same key. If the task
+	 * hasn't started when another replaceable task is submitted with the same key, the new task
+	 * replaces it and onReplaced is called instead. This is useful to write only the latest
+	 * version of some data.
+	 *
+	 * @param key          the key of the resource used by the task
+	 * @param priority     the task's priority
+	 * @param task         the task to execute
+	 * @param errorHandler the handler to call if an error occurs
+	 * @param onReplaced   called if the task is replaced by a more recent one
+	 */
+	public static void executeReplaceable(Object key, IOPriority priority, IOTask task,
+										  Consumer<IOException> errorHandler,
+										  Runnable onReplaced) {
+		executor.submit(key, priority, wrap(task, errorHandler), onReplaced);
+	}
+
+	private static Runnable wrap(IOTask task, Consumer<IOException> errorHandler) {
+		return () -> {
 			try {
 				task.apply();
 			} catch (IOException e) {
 				errorHandler.accept(e);
 			}
-		});
+		};
+	}
+
+	/** @return the key of the tasks that use a file */
+	private static Object fileKey(File file) {
+		return file.getAbsoluteFile();
 	}
 
 	/**
@@ -59,13 +163,13 @@ public final class IOSystem {
 	 */
 	public static void useFile(File file, IOConsumer<FileChannel> task,
 							   Consumer<IOException> errorHandler, OpenOption... openOptions) {
-		executor.execute(() -> {
+		executor.submit(fileKey(file), IOPriority.NORMAL, () -> {
 			try (FileChannel channel = FileChannel.open(file.toPath(), openOptions)) {
 				task.apply(channel);
 			} catch (IOException e) {
 				errorHandler.accept(e);
 			}
-		});
+		}, null);
 	}
 
 	/**
@@ -84,13 +188,13 @@ public final class IOSystem {
 			openOptions = new OpenOption[]{StandardOpenOption.READ};
 		}
 		final OpenOption[] finalOptions = openOptions;
-		executor.execute(() -> {
+		executor.submit(fileKey(file), IOPriority.NORMAL, () -> {
 			try (InputStream stream = Files.newInputStream(file.toPath(), finalOptions)) {
 				task.apply(stream);
 			} catch (IOException e) {
 				errorHandler.accept(e);
 			}
-		});
+		}, null);
 	}
 
 	/**
@@ -110,13 +214,13 @@ public final class IOSystem {
 			openOptions = new OpenOption[]{StandardOpenOption.WRITE};
 		}
 		final OpenOption[] finalOptions = openOptions;
-		executor.execute(() -> {
+		executor.submit(fileKey(file), IOPriority.NORMAL, () -> {
 			try (OutputStream stream = Files.newOutputStream(file.toPath(), finalOptions)) {
 				task.apply(stream);
 			} catch (IOException e) {
 				errorHandler.accept(e);
 			}
-		});
+		}, null);
 	}
 
 	/**
@@ -1,7 +1,6 @@
 package org.tuubes.core.tasks;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -11,12 +10,12 @@ import java.util.concurrent.TimeUnit;
 public final class TaskSystem {
 	private TaskSystem() {}
 
-	static final ScheduledExecutorService executor;
+	static final ScheduledThreadPoolExecutor executor;
 
 	static {
 		ThreadFactory factory = new CountingThreadFactory("TaskSystem-");
 		int threadNumber = Runtime.getRuntime().availableProcessors(); // TODO configure
-		executor = Executors.newScheduledThreadPool(threadNumber, factory);
+		executor = new ScheduledThreadPoolExecutor(threadNumber, factory);
 	}
 
 	public static CancellableTask execute(Runnable task) {
@@ -38,4 +37,18 @@ public final class TaskSystem {
 		return new DelayedFuture(
 				executor.scheduleWithFixedDelay(command, initialDelay, delay, unit));
 	}
+
+	/**
+	 * @return the number of tasks that are waiting to be executed, including the delayed ones
+	 */
+	public static int queueSize() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the approximate number of threads that are executing a task
+	 */
+	public static int activeCount() {
+		return executor.getActiveCount();
+	}
 }
\ No newline at end of file
@@ -14,38 +14,34 @@ class BasicHeightmapChunkGenerator extends ChunkGenerator {
 
   private val stoneBlock = BlockType("stone").get
   private val grassBlock = BlockType("grass").get
-  private val sandBlock = BlockType("sand").get
   private val waterBlock = BlockType("water").get
 
   override def generate(cx: Int, cz: Int): ChunkColumn = {
-    val chunks = Array.fill(16) {new Chunk()}
-    for (x <- 0 to 15) {
-      val blockX = cx * 16 + x
-      val noiseX = blockX * noiseFactor
-      for (z <- 0 to 15) {
-        val blockZ = cx * 16 + z
-        val noiseZ = blockZ * noiseFactor
-        val noiseValue = noise.generate(noiseX, noiseZ) // in range [-1,1]
-        val normalized = (noiseValue + 1.0) / 2.0 // in range [0,1]
-        val height = (normalized * (maxHeight - minHeight) + minHeight).toInt // in range [minHeight, maxHeight]
-        gen(x, z, height, chunks)
-      }
-    }
     val biomes = Array.fill(256) {BiomeType.getOrNull(0)}
-    new ChunkColumn(chunks, biomes)
+    val column = new ChunkColumn(Array.fill(16) {new Chunk()}, biomes)
+    val noiseValues = new Array[Double](256) // in range [-1,1], at index x*16 + z
+    noise.fill2D(noiseValues, cx * 16 * noiseFactor, cz * 16 * noiseFactor, noiseFactor, 16, 16)
+    val heights = new Array[Int](256)
+    var lowest = maxHeight
+    for (i <- 0 until 256) {
+      val normalized = (noiseValues(i) + 1.0) / 2.0 // in range [0,1]
+      val height = (normalized * (maxHeight - minHeight) + minHeight).toInt // in range [minHeight, maxHeight]
+      heights(i) = height
+      lowest = math.min(lowest, height)
+    }
+    column.fillBlocks(0, lowest, stoneBlock) // the ground below the lowest point is uniform
+    for (x <- 0 to 15; z <- 0 to 15) {
+      gen(x, z, lowest, heights(x * 16 + z), column)
+    }
+    column
   }
 
-  private def gen(x: Int, z: Int, height: Int, chunks: Array[Chunk]): Unit = {
-    for (y <- 0 until height) { // ground
-      chunks(y / 16).blocks(x, y % 16, z) = stoneBlock
-    }
+  private def gen(x: Int, z: Int, groundTop: Int, height: Int, column: ChunkColumn): Unit = {
+    column.setBlocks(x, z, groundTop, height, stoneBlock) // ground
     if (height > seaLevel) { // land top
-      chunks(height / 16).blocks(x, height % 16, z) = grassBlock
-    } else { // ocean
-      chunks(height / 16).blocks(x, height % 16, z) = sandBlock
-      for (y <- height to seaLevel) {
-        chunks(y / 16).blocks(x, y % 16, z) = waterBlock
-      }
+      column.setBlocks(x, z, height, height + 1, grassBlock)
+    } else { // ocean: the water starts at the height, on the stone
+      column.setBlocks(x, z, height, seaLevel + 1, waterBlock)
     }
   }
 }
@@ -14,7 +14,8 @@ import scala.collection.mutable
  * == GameObjects ==
  * The game objects may be associated to their chunk (if they have a physical existence in the
  * game world and/or if they need to be sent to the clients). This is useful to send the objects
- * to the game client and to detect object/object and object/block collisions.
+ * to the game client and to detect object/object and object/block collisions. To find the
+ * objects around a position, in any chunk, use the world's [[SpatialIndex]].
  */
 final class Chunk(val blocks: ChunkBlocks = ChunkBlocks.empty,
                   val blockObjects: ChunkBlockObjects = new ChunkBlockObjects(1)) {
@@ -23,5 +24,5 @@ final class Chunk(val blocks: ChunkBlocks = ChunkBlocks.empty,
   private[tuubes] val objects = new mutable.ArrayBuffer[GameObject](2)
 
   val objectItr: Iterable[GameObject] = objects
-  val objectCount: Int = objects.size
+  def objectCount: Int = objects.size
 }
@@ -1,6 +1,6 @@
 package org.tuubes.core.worlds
 
-import com.electronwill.collection.{Bag, SimpleBag}
+import com.electronwill.collection.{ArrayMap, Bag, SimpleBag}
 import com.electronwill.niol.{NiolInput, NiolOutput}
 import com.electronwill.util.CompactStorage
 import org.tuubes.core.blocks.BlockType
@@ -10,6 +10,18 @@ import ChunkBlocks.{InitialBitsPerBlock, MaxPaletteSize}
 final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
                         private val complexLayers: Array[CompactStorage],
                         private var palette: Bag[BlockType]) {
+  /** Maps the internalIds to the palette ids, for the types that are in the palette */
+  private var paletteIds: ArrayMap[Int] = indexPalette()
+
+  /** True if the blocks have been modified since the last palette compaction */
+  private var compactionNeeded = false
+
+  /** The number of modifications, used to know if the blocks have changed since the last save */
+  private var _modCount = 0L
+
+  /** @return the number of modifications of these blocks */
+  def modCount: Long = _modCount
+
   /** Gets a block */
   def apply(x: Int, y: Int, z: Int): BlockType = {
     val oneType = oneTypeLayers(y)
@@ -28,29 +40,137 @@ final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
 
   /** Sets a block */
   def update(x: Int, y: Int, z: Int, value: BlockType): Unit = {
+    compactionNeeded = true
+    _modCount += 1
     val oneType = oneTypeLayers(y)
     if (oneType ne null) {
       if (oneType ne value) {
         // Replace the one-type layer by a complex layer
-        val oldId = blockInsertionId(oneType)
+        toComplexLayer(y, oneType)
         val newId = blockInsertionId(value)
-        val layer = CompactStorage(InitialBitsPerBlock, 256) // new layer of 16x16 = 256 values
-        layer.fill(oldId) // initializes the whole layer with the old blockType
-        complexLayers(y) = layer
-        oneTypeLayers(y) = null
-        set(layer, x, z, newId) // modifies the specified block
+        set(y, x * 16 + z, newId) // modifies the specified block
       }
     } else {
       val id = blockInsertionId(value)
-      val layer = complexLayers(y)
-      set(layer, x, z, id)
+      set(y, x * 16 + z, id)
+    }
+  }
+
+  /**
+   * Fills whole layers with one block type. The layers are kept in their one-type form.
+   *
+   * @param y0    the first layer, inclusive
+   * @param y1    the last layer, exclusive
+   * @param value the block type
+   */
+  def fillLayers(y0: Int, y1: Int, value: BlockType): Unit = {
+    _modCount += 1
+    var y = y0
+    while (y < y1) {
+      if (complexLayers(y) ne null) {
+        complexLayers(y) = null
+        compactionNeeded = true // some palette entries may not be used anymore
+      }
+      oneTypeLayers(y) = value
+      y += 1
     }
   }
 
+  /**
+   * Fills a box with one block type. The layers that are entirely covered by the box become
+   * one-type layers, and the palette is resolved only once.
+   *
+   * @param x0    the minimum x, inclusive
+   * @param y0    the minimum y, inclusive
+   * @param z0    the minimum z, inclusive
+   * @param x1    the maximum x, exclusive
+   * @param y1    the maximum y, exclusive
+   * @param z1    the maximum z, exclusive
+   * @param value the block type
+   */
+  def fillBox(x0: Int, y0: Int, z0: Int, x1: Int, y1: Int, z1: Int, value: BlockType): Unit = {
+    _modCount += 1
+    if (x0 == 0 && z0 == 0 && x1 == 16 && z1 == 16) {
+      fillLayers(y0, y1, value)
+    } else if (x0 < x1 && z0 < z1) {
+      if (prepareLayers(y0, y1, value)) {
+        val id = blockInsertionId(value)
+        var y = y0
+        while (y < y1) {
+          if (oneTypeLayers(y) eq null) {
+            val layer = ensureBits(y, id)
+            var x = x0
+            while (x < x1) {
+              var i = x * 16 + z0
+              val end = x * 16 + z1
+              while (i < end) {
+                layer(i) = id
+                i += 1
+              }
+              x += 1
+            }
+          }
+          y += 1
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets the blocks of a vertical column. The palette is resolved only once.
+   *
+   * @param x     the column's x
+   * @param z     the column's z
+   * @param yFrom the minimum y, inclusive
+   * @param yTo   the maximum y, exclusive
+   * @param value the block type
+   */
+  def setColumn(x: Int, z: Int, yFrom: Int, yTo: Int, value: BlockType): Unit = {
+    _modCount += 1
+    if (prepareLayers(yFrom, yTo, value)) {
+      val id = blockInsertionId(value)
+      val idx = x * 16 + z
+      var y = yFrom
+      while (y < yTo) {
+        if (oneTypeLayers(y) eq null) {
+          set(y, idx, id)
+        }
+        y += 1
+      }
+    }
+  }
+
+  /**
+   * Converts the one-type layers in [y0, y1) that don't contain `value` to complex layers. Layers
+   * that only contain `value` are left untouched since writing `value` in them changes nothing.
+   *
+   * The conversion must happen before the id of `value` is resolved, because converting a layer
+   * may remove the palette and therefore change the id.
+   *
+   * @return true if at least one layer is complex and must be written
+   */
+  private def prepareLayers(y0: Int, y1: Int, value: BlockType): Boolean = {
+    var needsWrite = false
+    var y = y0
+    while (y < y1) {
+      val oneType = oneTypeLayers(y)
+      if (oneType eq null) {
+        needsWrite = true
+      } else if (oneType ne value) {
+        toComplexLayer(y, oneType)
+        needsWrite = true
+      }
+      y += 1
+    }
+    compactionNeeded |= needsWrite
+    needsWrite
+  }
+
   /**
    * Computes the id that must be used to insert this block into the chunk.
-   * This method takes care of adding the block to the palette if needed. Also, it may remove the
-   * palette in favor of the internalIds, if the palette's size exceeds the maximum value.
+   * This method takes care of adding the block to the palette if needed. Also, it may compact the
+   * palette, or remove it in favor of the internalIds if the palette's size exceeds the maximum
+   * value. Therefore the layers must be re-read after calling this method.
    */
   private def blockInsertionId(value: BlockType): Int = {
     // The block id, either its internalId or its id in the palette.
@@ -58,13 +178,17 @@ final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
       // There is no palette => use Tuubes' internalId
       value.internalId
     } else {
-      val idInPalette = palette.indexOf(value)
+      val idInPalette = paletteIds(value.internalId)
       if (idInPalette != -1) {
         idInPalette
       } else {
         // This BlockType isn't in the chunk's palette
+        if (palette.size >= MaxPaletteSize && compactionNeeded) {
+          compact(collapseLayers = false) // try to free some entries
+        }
         if (palette.size < MaxPaletteSize) {
           palette += value // Add the BlockType to the palette
+          paletteIds(value.internalId) = palette.size - 1
           palette.size - 1 // The type is added at the end of the palette
         } else {
           // The palette has reached its maximum size => remove it and use the internalId
@@ -79,6 +203,7 @@ final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
           }
           // Then, remove the palette:
           palette = null
+          paletteIds = null
           // Finally, returns the internalId of the 'value' block
           value.internalId
         }
@@ -86,17 +211,141 @@ final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
     }
   }
 
-  /** Sets a block in the given layer, expanding the layer if needed */
-  private def set(layer: CompactStorage, x: Int, z: Int, blockId: Int): Unit = {
+  /** Replaces a one-type layer by a complex layer that contains the same block type */
+  private def toComplexLayer(y: Int, oneType: BlockType): Unit = {
+    val id = blockInsertionId(oneType)
+    val bits = math.max(InitialBitsPerBlock, 32 - Integer.numberOfLeadingZeros(id))
+    val layer = CompactStorage(bits, 256) // new layer of 16x16 = 256 values
+    layer.fill(id) // initializes the whole layer with the old blockType
+    complexLayers(y) = layer
+    oneTypeLayers(y) = null
+  }
+
+  /** Sets a block in the given complex layer, expanding the layer if needed */
+  private def set(y: Int, idx: Int, blockId: Int): Unit = {
+    ensureBits(y, blockId)(idx) = blockId
+  }
+
+  /**
+   * Gets a complex layer, after expanding it if its number of bits per value is too small to
+   * handle the given block id.
+   */
+  private def ensureBits(y: Int, blockId: Int): CompactStorage = {
+    val layer = complexLayers(y)
     val diff = blockId >> layer.bitsPerValue // Bits that can't be handled by the current layer
     if (diff == 0) {
-      // All right => set the block id and return
-      layer(x * 16 + z) = blockId
+      layer
     } else {
       // The number of bits/value in this layer is too small to handle the id => increase bits/v
       val increase = 32 - Integer.numberOfLeadingZeros(diff) // log2(diff)
       val newLayer = layer.expand(increase)
-      newLayer(x * 16 + z) = blockId
+      complexLayers(y) = newLayer
+      newLayer
+    }
+  }
+
+  /** Builds the map internalId -> paletteId */
+  private def indexPalette(): ArrayMap[Int] = {
+    if (palette eq null) {
+      null
+    } else {
+      val map = new ArrayMap[Int](64, -1)
+      var i = 0
+      while (i < palette.size) {
+        map(palette(i).internalId) = i
+        i += 1
+      }
+      map
+    }
+  }
+
+  /**
+   * Removes the unused entries of the palette, and re-packs the complex layers with the minimum
+   * number of bits per block. If the chunk doesn't use the palette anymore, because it once
+   * contained more than `MaxPaletteSize` types, the palette is restored when possible. Uniform
+   * complex layers are converted to one-type layers.
+   *
+   * This does nothing if the blocks haven't been modified since the last compaction. It is
+   * called before saving the chunk.
+   */
+  def compactPalette(): Unit = {
+    if (compactionNeeded || (palette eq null)) {
+      compact(collapseLayers = true)
+    }
+  }
+
+  /**
+   * Compacts the palette and the layers.
+   *
+   * @param collapseLayers true to convert the uniform complex layers to one-type layers. Must be
+   *                       false when the caller is about to write into a complex layer.
+   */
+  private def compact(collapseLayers: Boolean): Unit = {
+    compactionNeeded = false
+    val values = new Array[Int](256)
+    // Finds the used ids
+    val used = new java.util.BitSet(if (palette ne null) palette.size else 256)
+    var y = 0
+    while (y < 16) {
+      val layer = complexLayers(y)
+      if (layer ne null) {
+        layer.getAll(values)
+        var i = 0
+        while (i < 256) {
+          used.set(values(i))
+          i += 1
+        }
+      }
+      y += 1
+    }
+    // Builds the new palette, or keeps the internal ids if there are too many types
+    val usedCount = used.cardinality()
+    val remap = new Array[Int](math.max(used.length, 1))
+    var maxId = 0
+    if (usedCount <= MaxPaletteSize) {
+      val newPalette = new SimpleBag[BlockType](math.max(usedCount, 4))
+      var id = used.nextSetBit(0)
+      while (id >= 0) {
+        remap(id) = newPalette.size
+        newPalette += (if (palette ne null) palette(id) else BlockType.getOrNull(id))
+        id = used.nextSetBit(id + 1)
+      }
+      palette = newPalette
+      paletteIds = indexPalette()
+      maxId = usedCount - 1
+    } else {
+      var id = used.nextSetBit(0)
+      while (id >= 0) {
+        remap(id) = id
+        id = used.nextSetBit(id + 1)
+      }
+      maxId = used.length - 1
+    }
+    // Re-packs the layers
+    val bits = math.max(1, 32 - Integer.numberOfLeadingZeros(maxId))
+    y = 0
+    while (y < 16) {
+      val layer = complexLayers(y)
+      if (layer ne null) {
+        layer.getAll(values)
+        var uniform = true
+        var i = 0
+        while (i < 256) {
+          values(i) = remap(values(i))
+          uniform &= values(i) == values(0)
+          i += 1
+        }
+        if (uniform && collapseLayers) {
+          val id = values(0)
+          oneTypeLayers(y) = if (palette ne null) palette(id) else BlockType.getOrNull(id)
+          complexLayers(y) = null
+        } else {
+          val newLayer = CompactStorage(bits, 256)
+          newLayer.setAll(values)
+          complexLayers(y) = newLayer
+        }
+      }
+      y += 1
     }
   }
 
@@ -133,7 +382,7 @@ final class ChunkBlocks(private val oneTypeLayers: Array[BlockType],
       } else {
         val complexLayer = complexLayers(i)
         out.putByte(complexLayer.bitsPerValue)
-        out.putBytes(complexLayer.bytes)
+        out.putBytes(complexLayer.toBytes)
       }
     }
   }
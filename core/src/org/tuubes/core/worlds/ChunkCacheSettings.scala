@@ -0,0 +1,19 @@
+package org.tuubes.core.worlds
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Settings of the column cache of a [[LocalChunkService]].
+ *
+ * @param capacity         the number of loaded columns above which the cache is full
+ * @param policy           the eviction policy
+ * @param maxInFlightSaves the maximum number of columns that can be saved at the same time
+ * @param autosavePeriod   the time between two autosaves, in seconds, or 0 to disable autosaves
+ * @param maxEvictionScan  the maximum number of columns to examine for eviction at each update
+ */
+final case class ChunkCacheSettings(
+    capacity: Int = 4096,
+    policy: EvictionPolicy = EvictionPolicy.NoViewerFor(30, TimeUnit.SECONDS),
+    maxInFlightSaves: Int = 16,
+    autosavePeriod: Int = 300,
+    maxEvictionScan: Int = 256)
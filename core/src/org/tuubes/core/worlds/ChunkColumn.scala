@@ -1,6 +1,9 @@
 package org.tuubes.core.worlds
 
+import com.electronwill.niol.io.{ChannelInput, ChannelOutput}
 import com.electronwill.niol.{NiolInput, NiolOutput}
+import com.electronwill.util.ByteArrayChannel
+import org.tuubes.core.blocks.BlockType
 
 /**
  * A column of chunks.
@@ -10,9 +13,84 @@ import com.electronwill.niol.{NiolInput, NiolOutput}
  */
 final class ChunkColumn(val chunks: Array[Chunk] = Array.fill(MaxVerticalChunks) {new Chunk()},
                         val biomes: Array[BiomeType] = new Array(256)) {
+  /** True if the column must be saved even if its chunks haven't changed */
+  @volatile private[this] var dirty = false
+
+  /** The modification counts of the chunks' blocks, when the column was last saved */
+  private[this] val savedModCounts = chunks.map(_.blocks.modCount)
+
+  /**
+   * @return a bit mask of the chunks that have been modified since the column was last saved: the
+   *         bit i is set if the chunk i has been modified.
+   */
+  def dirtySections: Int = {
+    var mask = 0
+    var i = 0
+    while (i < chunks.length) {
+      if (chunks(i).blocks.modCount != savedModCounts(i)) {
+        mask |= 1 << i
+      }
+      i += 1
+    }
+    mask
+  }
+
+  /** @return true if the column has been modified since it was last saved */
+  def isDirty: Boolean = dirty || dirtySections != 0
+
+  /** Marks this column as modified, so that it will be saved even if no chunk has changed. */
+  def markDirty(): Unit = {
+    dirty = true
+  }
+
+  /** Marks this column as saved. Called before its data is written. */
+  private[worlds] def markSaved(): Unit = {
+    dirty = false
+    var i = 0
+    while (i < chunks.length) {
+      savedModCounts(i) = chunks(i).blocks.modCount
+      i += 1
+    }
+  }
+
+  /**
+   * Fills the blocks of the whole column between yFrom (inclusive) and yTo (exclusive).
+   * The chunk layers that are entirely filled keep their one-type form.
+   */
+  def fillBlocks(yFrom: Int, yTo: Int, value: BlockType): Unit = {
+    var y = yFrom
+    while (y < yTo) {
+      val chunkEnd = math.min(yTo, (y & ~15) + 16)
+      chunks(y >> 4).blocks.fillLayers(y & 15, ((chunkEnd - 1) & 15) + 1, value)
+      y = chunkEnd
+    }
+  }
+
+  /** Sets the blocks (x, y, z) with yFrom <= y < yTo, across the chunks of the column. */
+  def setBlocks(x: Int, z: Int, yFrom: Int, yTo: Int, value: BlockType): Unit = {
+    var y = yFrom
+    while (y < yTo) {
+      val chunkEnd = math.min(yTo, (y & ~15) + 16)
+      chunks(y >> 4).blocks.setColumn(x, z, y & 15, ((chunkEnd - 1) & 15) + 1, value)
+      y = chunkEnd
+    }
+  }
+
+  /** Compacts the block palettes of the chunks, see [[ChunkBlocks.compactPalette]]. */
+  def compactPalettes(): Unit = {
+    var i = 0
+    while (i < chunks.length) {
+      chunks(i).blocks.compactPalette()
+      i += 1
+    }
+  }
+
   def getBiome(x: Int, z: Int): BiomeType = biomes(z * 16 + x)
 
-  def setBiome(x: Int, z: Int, b: BiomeType): Unit = biomes(z * 16 + x) = b
+  def setBiome(x: Int, z: Int, b: BiomeType): Unit = {
+    biomes(z * 16 + x) = b
+    dirty = true
+  }
 
   def write(out: NiolOutput): Unit = {
     out.putByte(chunks.length)
@@ -23,6 +101,15 @@ final class ChunkColumn(val chunks: Array[Chunk] = Array.fill(MaxVerticalChunks)
       out.putByte(biome.internalId)
     }
   }
+
+  /** Writes this column to a new byte array, in the format of [[ChunkColumn.read]]. */
+  def toBytes: Array[Byte] = {
+    val channel = new ByteArrayChannel()
+    val out = new ChannelOutput(channel)
+    write(out)
+    out.close() // flushes the data to the channel
+    channel.toByteArray
+  }
 }
 
 /** ChunkColumn companion object with utility methods */
@@ -30,7 +117,7 @@ object ChunkColumn {
   def read(in: NiolInput): ChunkColumn = {
     val nChunks = in.getUnsignedByte()
     val chunks = new Array[Chunk](nChunks)
-    for (i <- 0 to MaxVerticalChunks) {
+    for (i <- 0 until nChunks) {
       val blocks = ChunkBlocks.read(in)
       chunks(i) = new Chunk(blocks)
     }
@@ -42,4 +129,9 @@ object ChunkColumn {
     }
     new ChunkColumn(chunks, biomes)
   }
+
+  /** Reads a column from a byte array, as written by [[ChunkColumn.toBytes]]. */
+  def fromBytes(data: Array[Byte]): ChunkColumn = {
+    read(new ChannelInput(new ByteArrayChannel(data)))
+  }
 }
@@ -0,0 +1,277 @@
+package org.tuubes.core.worlds
+
+import com.electronwill.util.MovingStats
+import org.tuubes.core.TuubesServer.logger
+import org.tuubes.core.tasks.TaskSystem
+
+import scala.collection.mutable
+import scala.util.control.NonFatal
+
+/**
+ * Schedules the generation of chunk columns. The requests are generated by order of priority,
+ * the priority being the distance to the nearest interested viewer. At most `maxConcurrency`
+ * columns are generated at the same time, so that the generation never takes all the threads of
+ * the [[TaskSystem]].
+ *
+ * This class isn't thread-safe: it must only be used by its owner, typically a
+ * [[LocalChunkService]]. The completion of each generation must be notified to the scheduler with
+ * [[complete]].
+ *
+ * @param generator      the chunk generator
+ * @param onGenerated    called from the TaskSystem when a column has been generated, with a null
+ *                       column if the generation failed
+ * @param maxConcurrency the maximum number of columns that can be generated at the same time
+ * @author TheElectronWill
+ */
+final class ChunkGenScheduler(private[this] val generator: ChunkGenerator,
+                              private[this] val onGenerated: (Long, ChunkColumn) => Unit,
+                              val maxConcurrency: Int = ChunkGenScheduler.DefaultConcurrency) {
+  /** The queued requests, ordered by priority in a binary heap */
+  private[this] var heap = new Array[GenRequest](64)
+  private[this] var heapSize = 0
+
+  /** The queued requests by column key */
+  private[this] val queued = new mutable.LongMap[GenRequest]
+
+  /** The number of generations in progress */
+  private[this] var running = 0
+
+  /** True while [[submitAll]] queues several requests, delays the dispatch until the end */
+  private[this] var batching = false
+
+  /** The time at which each running generation has been queued */
+  private[this] val startTimes = new mutable.LongMap[Long]
+
+  private[this] val latencies = new MovingStats(ChunkGenScheduler.NbLatencyStats)
+  @volatile private[this] var maxLatency = 0L
+  @volatile private[this] var generated = 0L
+  @volatile private[this] var cancelled = 0L
+  @volatile private[this] var _queueDepth = 0
+  @volatile private[this] var _running = 0
+  @volatile private[this] var meanLatency = 0.0
+
+  /** @return the number of requests waiting to be generated */
+  def queueDepth: Int = heapSize
+
+  /** @return the statistics of this scheduler */
+  def stats: ChunkGenStats = {
+    ChunkGenStats(_queueDepth, _running, generated, cancelled, meanLatency, maxLatency)
+  }
+
+  /**
+   * Queues the generation of a column. Does nothing if the column is already queued.
+   *
+   * @param cx       column X coordinate
+   * @param cz       column Z coordinate
+   * @param key      the column key
+   * @param priority the request's priority, the smallest values being generated first
+   */
+  def submit(cx: Int, cz: Int, key: Long, priority: Double): Unit = {
+    if (!queued.contains(key)) {
+      val request = new GenRequest(cx, cz, key, System.nanoTime())
+      request.priority = priority
+      queued(key) = request
+      if (heapSize == heap.length) {
+        heap = java.util.Arrays.copyOf(heap, heapSize * 2)
+      }
+      heap(heapSize) = request
+      request.heapIndex = heapSize
+      heapSize += 1
+      siftUp(request.heapIndex)
+      if (!batching) {
+        dispatch()
+      }
+    }
+  }
+
+  /**
+   * Executes a function that submits several requests, and dispatches them once at the end
+   * instead of once per request. The heap is therefore complete before the first generations
+   * are chosen, and the most important columns are generated first.
+   *
+   * @param submissions the function that calls [[submit]]
+   */
+  def submitAll[U](submissions: => U): U = {
+    if (batching) {
+      submissions
+    } else {
+      batching = true
+      try {
+        submissions
+      } finally {
+        batching = false
+        dispatch()
+      }
+    }
+  }
+
+  /**
+   * Cancels a queued request. A generation that has already started can't be cancelled.
+   *
+   * @param key the column key
+   * @return true if the request has been cancelled, false if it isn't queued
+   */
+  def cancel(key: Long): Boolean = {
+    val request = queued.getOrNull(key)
+    if (request eq null) {
+      false
+    } else {
+      queued -= key
+      removeAt(request.heapIndex)
+      cancelled += 1
+      updateGauges()
+      true
+    }
+  }
+
+  /**
+   * Recomputes the priority of all the queued requests.
+   *
+   * @param priority gives the priority of a column (cx, cz), the smallest values first
+   */
+  def reprioritize(priority: (Int, Int) => Double): Unit = {
+    var i = 0
+    while (i < heapSize) {
+      val request = heap(i)
+      request.priority = priority(request.cx, request.cz)
+      i += 1
+    }
+    // Rebuilds the heap in O(n)
+    i = (heapSize >>> 1) - 1
+    while (i >= 0) {
+      siftDown(i)
+      i -= 1
+    }
+  }
+
+  /**
+   * Notifies the scheduler that a generation is complete, and starts the next one if possible.
+   *
+   * @param key the column key
+   */
+  def complete(key: Long): Unit = {
+    running -= 1
+    generated += 1
+    val start = startTimes.remove(key)
+    if (start.isDefined) {
+      val latency = System.nanoTime() - start.get
+      latencies.put(latency)
+      meanLatency = latencies.mean
+      if (latency > maxLatency) {
+        maxLatency = latency
+      }
+    }
+    dispatch()
+  }
+
+  /** Starts the generation of the requests with the highest priority, if possible */
+  private def dispatch(): Unit = {
+    while (running < maxConcurrency && heapSize > 0) {
+      val request = heap(0)
+      removeAt(0)
+      queued -= request.key
+      startTimes(request.key) = request.queuedAt
+      running += 1
+      TaskSystem.execute(() => {
+        val column =
+          try {
+            generator.generate(request.cx, request.cz)
+          } catch {
+            case NonFatal(e) =>
+              logger.error(s"Unable to generate chunk column (${request.cx}, ${request.cz})", e)
+              null
+          }
+        onGenerated(request.key, column)
+      })
+    }
+    updateGauges()
+  }
+
+  private def updateGauges(): Unit = {
+    _queueDepth = heapSize
+    _running = running
+  }
+
+  private def removeAt(idx: Int): Unit = {
+    heapSize -= 1
+    val last = heap(heapSize)
+    heap(heapSize) = null
+    if (idx != heapSize) {
+      heap(idx) = last
+      last.heapIndex = idx
+      siftDown(idx)
+      siftUp(last.heapIndex)
+    }
+  }
+
+  private def siftUp(start: Int): Unit = {
+    var idx = start
+    val request = heap(idx)
+    while (idx > 0) {
+      val parentIdx = (idx - 1) >>> 1
+      val parent = heap(parentIdx)
+      if (parent.priority <= request.priority) {
+        heap(idx) = request
+        request.heapIndex = idx
+        return
+      }
+      heap(idx) = parent
+      parent.heapIndex = idx
+      idx = parentIdx
+    }
+    heap(idx) = request
+    request.heapIndex = idx
+  }
+
+  private def siftDown(start: Int): Unit = {
+    var idx = start
+    val request = heap(idx)
+    val half = heapSize >>> 1
+    while (idx < half) {
+      var childIdx = 2 * idx + 1
+      var child = heap(childIdx)
+      val rightIdx = childIdx + 1
+      if (rightIdx < heapSize && heap(rightIdx).priority < child.priority) {
+        childIdx = rightIdx
+        child = heap(rightIdx)
+      }
+      if (request.priority <= child.priority) {
+        heap(idx) = request
+        request.heapIndex = idx
+        return
+      }
+      heap(idx) = child
+      child.heapIndex = idx
+      idx = childIdx
+    }
+    heap(idx) = request
+    request.heapIndex = idx
+  }
+}
+
+object ChunkGenScheduler {
+  /** The default maximum number of concurrent generations: a quarter of the processors */
+  val DefaultConcurrency: Int = math.max(1, Runtime.getRuntime.availableProcessors() / 4)
+
+  /** The number of latencies kept to compute the mean latency */
+  val NbLatencyStats: Int = 128
+}
+
+/** A queued generation request */
+private final class GenRequest(val cx: Int, val cz: Int, val key: Long, val queuedAt: Long) {
+  var priority = 0.0
+  var heapIndex = -1
+}
+
+/**
+ * Statistics of a [[ChunkGenScheduler]].
+ *
+ * @param queueDepth  the number of queued requests
+ * @param running     the number of generations in progress
+ * @param generated   the total number of generated columns
+ * @param cancelled   the total number of cancelled requests
+ * @param meanLatency the mean time between a request and the end of its generation, in ns
+ * @param maxLatency  the maximum time between a request and the end of its generation, in ns
+ */
+final case class ChunkGenStats(queueDepth: Int, running: Int, generated: Long, cancelled: Long,
+                               meanLatency: Double, maxLatency: Long)
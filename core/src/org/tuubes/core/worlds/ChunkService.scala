@@ -12,14 +12,15 @@ trait ChunkService {
    *
    * @param cx       : column X coordinate
    * @param cz       : column Z coordinate
-   * @param callback : the function to call when the column is available
+   * @param callback : the function to call when the column is available, or with null if the
+   *                 column can't be loaded or generated
    */
   def requestCreate(cx: Int, cz: Int, callback: ChunkColumn => Unit)
                    (implicit currentGroup: ExecutionGroup): Unit
 
   /**
    * Requests a chunk column of `MaxVerticalChunks` chunks.
-   * If the column doesn't exist then you'll get None.
+   * If the column doesn't exist, or can't be loaded, then you'll get None.
    *
    * @param cx       : column X coordinate
    * @param cz       : column Z coordinate
@@ -28,6 +29,18 @@ trait ChunkService {
   def requestExisting(cx: Int, cz: Int, callback: Option[ChunkColumn] => Unit)
                       (implicit currentGroup: ExecutionGroup): Unit
 
+  /**
+   * Cancels a request made with [[requestCreate]]. The callback won't be called, unless the column
+   * has already been provided. When no callback is waiting for a column anymore, its generation
+   * is cancelled if it hasn't started yet.
+   *
+   * @param cx       : column X coordinate
+   * @param cz       : column Z coordinate
+   * @param callback : the callback that was given to `requestCreate`
+   */
+  def cancel(cx: Int, cz: Int, callback: ChunkColumn => Unit)
+            (implicit currentGroup: ExecutionGroup): Unit
+
   /**
    * Tests if a chunk column exists.
    *
@@ -37,4 +50,24 @@ trait ChunkService {
    */
   def testExists(cx: Int, cz: Int, callback: Boolean => Unit)
                 (implicit currentGroup: ExecutionGroup): Unit
+
+  /**
+   * Requests all the columns of an area, creating the missing ones. The whole area costs one
+   * request, instead of one per column. The columns are given to the listener as soon as they're
+   * available, and the columns nearest to the center of the area are loaded first.
+   *
+   * @param area     the area
+   * @param listener receives the columns, see [[AreaListener.collect]] to get them all together
+   */
+  def requestArea(area: ColumnArea, listener: AreaListener)
+                 (implicit currentGroup: ExecutionGroup): Unit
+
+  /**
+   * Tests which columns of an area exist, with one request for the whole area.
+   *
+   * @param area     the area
+   * @param callback : the function to call when the result is available
+   */
+  def testExistsArea(area: ColumnArea, callback: AreaExistence => Unit)
+                    (implicit currentGroup: ExecutionGroup): Unit
 }
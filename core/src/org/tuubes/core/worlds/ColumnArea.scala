@@ -0,0 +1,148 @@
+package org.tuubes.core.worlds
+
+import java.util.Arrays
+
+/**
+ * A rectangular area of chunk columns, from (cx0, cz0) to (cx1, cz1) inclusive.
+ *
+ * @param cx0 the minimum column X coordinate
+ * @param cz0 the minimum column Z coordinate
+ * @param cx1 the maximum column X coordinate
+ * @param cz1 the maximum column Z coordinate
+ * @author TheElectronWill
+ */
+final case class ColumnArea(cx0: Int, cz0: Int, cx1: Int, cz1: Int) {
+  require(cx0 <= cx1 && cz0 <= cz1, s"invalid area: ($cx0, $cz0) to ($cx1, $cz1)")
+  require(width <= ColumnArea.MaxSide && depth <= ColumnArea.MaxSide, "the area is too big")
+
+  /** @return the number of columns along the X axis */
+  def width: Int = cx1 - cx0 + 1
+
+  /** @return the number of columns along the Z axis */
+  def depth: Int = cz1 - cz0 + 1
+
+  /** @return the number of columns in the area */
+  def size: Int = width * depth
+
+  /** @return true if the area contains the column */
+  def contains(cx: Int, cz: Int): Boolean = cx >= cx0 && cx <= cx1 && cz >= cz0 && cz <= cz1
+
+  /** @return the index of a column of the area, between 0 and size (excluded) */
+  def indexOf(cx: Int, cz: Int): Int = (cx - cx0) * depth + (cz - cz0)
+
+  /**
+   * Calls a function on each column, from the nearest to the center of the area to the
+   * farthest.
+   *
+   * @param f the function to call with the coordinates of each column
+   */
+  def foreachNearestFirst(f: (Int, Int) => Unit): Unit = {
+    val centerX = (cx0 + cx1) >> 1
+    val centerZ = (cz0 + cz1) >> 1
+    val sorted = new Array[Long](size)
+    var i = 0
+    var cx = cx0
+    while (cx <= cx1) {
+      var cz = cz0
+      while (cz <= cz1) {
+        val dx = cx - centerX
+        val dz = cz - centerZ
+        // Sorting the longs sorts the columns by distance
+        sorted(i) = (dx * dx + dz * dz).toLong << 42 | (cx - cx0).toLong << 21 | (cz - cz0)
+        i += 1
+        cz += 1
+      }
+      cx += 1
+    }
+    Arrays.sort(sorted)
+    i = 0
+    while (i < sorted.length) {
+      val packed = sorted(i)
+      f(cx0 + ((packed >> 21) & 0x1FFFFF).toInt, cz0 + (packed & 0x1FFFFF).toInt)
+      i += 1
+    }
+  }
+}
+
+object ColumnArea {
+  /** The maximum width and depth of an area */
+  final val MaxSide = 1024
+
+  /**
+   * Creates the area of the columns around a column.
+   *
+   * @param cx     the X coordinate of the center column
+   * @param cz     the Z coordinate of the center column
+   * @param radius the number of columns around the center column, in each direction
+   * @return a square area of (2 * radius + 1)^2 columns
+   */
+  def around(cx: Int, cz: Int, radius: Int): ColumnArea = {
+    ColumnArea(cx - radius, cz - radius, cx + radius, cz + radius)
+  }
+}
+
+/**
+ * Receives the columns of an area requested with [[ChunkService.requestArea]]. The methods are
+ * called by the chunk service.
+ */
+trait AreaListener {
+  /**
+   * Called for each column of the area, as soon as it's available.
+   *
+   * @param cx     the column's X coordinate
+   * @param cz     the column's Z coordinate
+   * @param column the column
+   */
+  def onColumn(cx: Int, cz: Int, column: ChunkColumn): Unit
+
+  /**
+   * Called once, after the last column of the area.
+   *
+   * @param failed the number of columns that couldn't be loaded nor generated
+   */
+  def onComplete(failed: Int): Unit
+}
+
+object AreaListener {
+  /**
+   * Creates a listener that collects the columns and gives them all together.
+   *
+   * @param area     the requested area
+   * @param callback called with the columns, by [[ColumnArea.indexOf]], null for the missing ones
+   * @return a new listener
+   */
+  def collect(area: ColumnArea)(callback: Array[ChunkColumn] => Unit): AreaListener = {
+    new AreaListener {
+      private[this] val columns = new Array[ChunkColumn](area.size)
+
+      override def onColumn(cx: Int, cz: Int, column: ChunkColumn): Unit = {
+        columns(area.indexOf(cx, cz)) = column
+      }
+
+      override def onComplete(failed: Int): Unit = callback(columns)
+    }
+  }
+}
+
+/**
+ * The result of [[ChunkService.testExistsArea]]: the columns of an area that exist.
+ *
+ * @param area the tested area
+ * @param bits one bit per column, by [[ColumnArea.indexOf]]
+ */
+final class AreaExistence private[worlds] (val area: ColumnArea, bits: Array[Long]) {
+  /** @return true if the column exists */
+  def exists(cx: Int, cz: Int): Boolean = {
+    val i = area.indexOf(cx, cz)
+    area.contains(cx, cz) && (bits(i >> 6) & (1L << i)) != 0
+  }
+
+  /** @return the number of existing columns */
+  def count: Int = {
+    var n = 0
+    for (word <- bits) {
+      n += java.lang.Long.bitCount(word)
+    }
+    n
+  }
+}
@@ -0,0 +1,200 @@
+package org.tuubes.core.worlds
+
+import scala.collection.mutable
+
+/**
+ * A capacity-bounded cache of chunk columns, ordered from the least recently used to the most
+ * recently used. The cache doesn't evict the columns by itself: the owner calls [[evict]]
+ * regularly, and the [[EvictionPolicy]] decides which columns to remove.
+ *
+ * This class isn't thread-safe, except for the statistics that can be read from any thread.
+ *
+ * @param capacity the number of columns above which the cache is considered "full"
+ * @param policy   the eviction policy
+ * @author TheElectronWill
+ */
+final class ColumnCache(val capacity: Int, val policy: EvictionPolicy) {
+  private[this] val entries = new mutable.LongMap[CachedColumn](capacity)
+
+  /** The least recently used entry */
+  private[this] var lru: CachedColumn = _
+
+  /** The most recently used entry */
+  private[this] var mru: CachedColumn = _
+
+  @volatile private[this] var _hits = 0L
+  @volatile private[this] var _misses = 0L
+  @volatile private[this] var _evictions = 0L
+  @volatile private[this] var _size = 0
+
+  /** @return the number of cached columns */
+  def size: Int = _size
+
+  /** @return the statistics of this cache */
+  def stats: ColumnCacheStats = ColumnCacheStats(_hits, _misses, _evictions, _size, capacity)
+
+  /**
+   * Gets a column and marks it as recently used. This counts as a hit or a miss.
+   *
+   * @param key the column's key
+   * @return the column, or null if it isn't in the cache
+   */
+  def get(key: Long): ChunkColumn = {
+    val entry = entries.getOrNull(key)
+    if (entry eq null) {
+      _misses += 1
+      null
+    } else {
+      _hits += 1
+      touch(entry)
+      entry.column
+    }
+  }
+
+  /**
+   * Gets a cache entry, without affecting the LRU order nor the statistics.
+   *
+   * @param key the column's key
+   * @return the entry, or null if there is no such entry
+   */
+  def entry(key: Long): CachedColumn = entries.getOrNull(key)
+
+  /**
+   * Puts a column in the cache, as the most recently used column.
+   *
+   * @param key    the column's key
+   * @param column the column
+   */
+  def put(key: Long, column: ChunkColumn): CachedColumn = {
+    val existing = entries.getOrNull(key)
+    if (existing ne null) {
+      existing.column = column
+      touch(existing)
+      existing
+    } else {
+      val entry = new CachedColumn(key, column)
+      entry.lastAccess = System.nanoTime()
+      entries(key) = entry
+      linkLast(entry)
+      _size += 1
+      entry
+    }
+  }
+
+  /**
+   * Removes a column from the cache.
+   *
+   * @param key the column's key
+   * @return the removed entry, or null if there was no such entry
+   */
+  def remove(key: Long): CachedColumn = {
+    val entry = entries.getOrNull(key)
+    if (entry ne null) {
+      entries -= key
+      unlink(entry)
+      _size -= 1
+    }
+    entry
+  }
+
+  /**
+   * Evicts the columns that the policy allows to evict, from the least recently used to the most
+   * recently used. The `onEvict` function is called before each eviction and may refuse it, for
+   * instance if too many saves are in progress. In that case the eviction process stops.
+   *
+   * @param now      the current time, as given by `System.nanoTime()`
+   * @param maxScan  the maximum number of entries to examine
+   * @param onEvict  called with the entry to evict, returns true to remove it from the cache
+   * @return the number of evicted columns
+   */
+  def evict(now: Long, maxScan: Int, onEvict: CachedColumn => Boolean): Int = {
+    var evicted = 0
+    var scanned = 0
+    var entry = lru
+    while ((entry ne null) && scanned < maxScan) {
+      val next = entry.next
+      if (policy.canEvict(entry, now, _size > capacity)) {
+        if (!onEvict(entry)) {
+          return evicted
+        }
+        entries -= entry.key
+        unlink(entry)
+        _size -= 1
+        _evictions += 1
+        evicted += 1
+      } else if (policy.isTimeOrdered && entry.viewers == 0 && _size <= capacity) {
+        return evicted // the next entries are more recent, they can't be evicted either
+      }
+      entry = next
+      scanned += 1
+    }
+    evicted
+  }
+
+  /** Applies a function to each cached entry, from the LRU to the MRU. */
+  def foreach[U](f: CachedColumn => U): Unit = {
+    var entry = lru
+    while (entry ne null) {
+      val next = entry.next
+      f(entry)
+      entry = next
+    }
+  }
+
+  /** Marks an entry as the most recently used */
+  def touch(entry: CachedColumn): Unit = {
+    entry.lastAccess = System.nanoTime()
+    if (entry ne mru) {
+      unlink(entry)
+      linkLast(entry)
+    }
+  }
+
+  private def linkLast(entry: CachedColumn): Unit = {
+    entry.prev = mru
+    entry.next = null
+    if (mru ne null) mru.next = entry else lru = entry
+    mru = entry
+  }
+
+  private def unlink(entry: CachedColumn): Unit = {
+    val prev = entry.prev
+    val next = entry.next
+    if (prev ne null) prev.next = next else lru = next
+    if (next ne null) next.prev = prev else mru = prev
+    entry.prev = null
+    entry.next = null
+  }
+}
+
+/**
+ * An entry of the [[ColumnCache]].
+ *
+ * @param key    the column's key
+ * @param column the column
+ */
+final class CachedColumn private[worlds] (val key: Long, var column: ChunkColumn) {
+  /** The last time the column has been accessed, as given by `System.nanoTime()` */
+  var lastAccess = 0L
+
+  /** The number of viewers that currently need this column */
+  var viewers = 0
+
+  private[worlds] var prev: CachedColumn = _
+  private[worlds] var next: CachedColumn = _
+}
+
+/**
+ * Statistics of a [[ColumnCache]].
+ *
+ * @param hits      the number of requests that have been served from the cache
+ * @param misses    the number of requests that have not been served from the cache
+ * @param evictions the number of columns that have been evicted from the cache
+ * @param size      the number of cached columns
+ * @param capacity  the capacity of the cache
+ */
+final case class ColumnCacheStats(hits: Long, misses: Long, evictions: Long,
+                                  size: Int, capacity: Int) {
+  /** @return the ratio of hits, between 0 and 1 */
+  def hitRatio: Double = if (hits + misses == 0) 0 else hits.toDouble / (hits + misses)
+}
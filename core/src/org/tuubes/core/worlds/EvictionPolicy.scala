@@ -0,0 +1,53 @@
+package org.tuubes.core.worlds
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decides which columns can be evicted from a [[ColumnCache]]. Columns that have viewers are
+ * never evicted.
+ *
+ * @author TheElectronWill
+ */
+trait EvictionPolicy {
+  /**
+   * Checks if a column can be evicted.
+   *
+   * @param entry        the cache entry
+   * @param now          the current time, as given by `System.nanoTime()`
+   * @param overCapacity true if the cache contains more columns than its capacity
+   * @return true if the column can be evicted
+   */
+  def canEvict(entry: CachedColumn, now: Long, overCapacity: Boolean): Boolean
+
+  /**
+   * @return true if, when an entry can't be evicted and the cache isn't full, the more recently
+   *         used entries can't be evicted either.
+   */
+  def isTimeOrdered: Boolean
+}
+
+object EvictionPolicy {
+  /** Evicts the least recently used columns, only when the cache is full. */
+  object LeastRecentlyUsed extends EvictionPolicy {
+    override def canEvict(entry: CachedColumn, now: Long, overCapacity: Boolean): Boolean = {
+      overCapacity && entry.viewers == 0
+    }
+    override def isTimeOrdered: Boolean = true
+  }
+
+  /**
+   * Evicts the columns that have had no viewer and no access for some time, and the least
+   * recently used ones when the cache is full.
+   *
+   * @param timeout the time after which an unused column can be evicted
+   * @param unit    the timeout's unit
+   */
+  final case class NoViewerFor(timeout: Long, unit: TimeUnit) extends EvictionPolicy {
+    private[this] val timeoutNanos = unit.toNanos(timeout)
+
+    override def canEvict(entry: CachedColumn, now: Long, overCapacity: Boolean): Boolean = {
+      entry.viewers == 0 && (overCapacity || now - entry.lastAccess > timeoutNanos)
+    }
+    override def isTimeOrdered: Boolean = true
+  }
+}
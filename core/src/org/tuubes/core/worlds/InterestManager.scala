@@ -0,0 +1,297 @@
+package org.tuubes.core.worlds
+
+import java.util.Arrays
+
+import scala.collection.mutable
+
+/**
+ * Tracks the columns that each viewer can see: the square of (2 * radius + 1)^2 columns around
+ * the viewer's column. The columns are reference-counted across the viewers, so that a column
+ * is requested once, when its first viewer needs it, and released when its last viewer leaves.
+ *
+ * When a viewer moves, only the difference between its old square and its new square is
+ * computed. A move of one column costs O(radius) instead of O(radius^2). The new columns are
+ * requested from the nearest to the farthest.
+ *
+ * This class isn't thread-safe, it's used by the [[LocalChunkService]] actor.
+ *
+ * @param request    requests a column, the callback is called when the column is available
+ * @param cancel     cancels a request
+ * @param setViewers sets the number of viewers of a loaded column, 0 makes it evictable
+ * @author TheElectronWill
+ */
+final class InterestManager(request: (Int, Int, ChunkColumn => Unit) => Unit,
+                            cancel: (Int, Int, ChunkColumn => Unit) => Unit,
+                            setViewers: (Long, Int) => Unit) {
+  import InterestManager._
+
+  private[this] val viewers = new mutable.LongMap[Viewer]
+  private[this] val interests = new mutable.LongMap[Interest]
+
+  /** The columns entered by the current operation, sorted by distance before being requested */
+  private[this] var entering = new Array[Long](64)
+  private[this] var enteringCount = 0
+
+  /** A viewer and its current column */
+  private final class Viewer(val radius: Int, val listener: ColumnViewer) {
+    var cx = 0
+    var cz = 0
+
+    def sees(x: Int, z: Int): Boolean = {
+      math.abs(x - cx) <= radius && math.abs(z - cz) <= radius
+    }
+  }
+
+  /** A column needed by at least one viewer */
+  private final class Interest(val key: Long) {
+    var count = 0
+    var column: ChunkColumn = _
+    /** True if the column has been requested and the request hasn't failed */
+    var requested = false
+    val callback: ChunkColumn => Unit = onReady(this, _)
+  }
+
+  /** @return the number of viewers */
+  def viewerCount: Int = viewers.size
+
+  /** @return the number of columns that are needed by at least one viewer */
+  def columnCount: Int = interests.size
+
+  /**
+   * Adds a viewer, and requests the columns around it. If the viewer already exists, it's
+   * replaced.
+   *
+   * @param viewerId the viewer's id
+   * @param cx       X coordinate of the viewer's column
+   * @param cz       Z coordinate of the viewer's column
+   * @param radius   the view radius, in columns
+   * @param listener the listener that sends and unloads the columns
+   */
+  def add(viewerId: Int, cx: Int, cz: Int, radius: Int, listener: ColumnViewer): Unit = {
+    require(radius >= 0 && radius < MaxRadius, s"invalid view radius: $radius")
+    remove(viewerId)
+    val viewer = new Viewer(radius, listener)
+    viewer.cx = cx
+    viewer.cz = cz
+    viewers(viewerId) = viewer
+    var x = cx - radius
+    while (x <= cx + radius) {
+      var z = cz - radius
+      while (z <= cz + radius) {
+        addEntering(viewer, x, z)
+        z += 1
+      }
+      x += 1
+    }
+    enterAll(viewer)
+  }
+
+  /**
+   * Moves a viewer. Only the columns that enter and leave its view are processed.
+   *
+   * @param viewerId the viewer's id
+   * @param cx       X coordinate of the viewer's new column
+   * @param cz       Z coordinate of the viewer's new column
+   */
+  def move(viewerId: Int, cx: Int, cz: Int): Unit = {
+    val viewer = viewers.getOrNull(viewerId)
+    if ((viewer ne null) && (viewer.cx != cx || viewer.cz != cz)) {
+      val r = viewer.radius
+      val oldX = viewer.cx
+      val oldZ = viewer.cz
+      // Leaves the columns of the old square that aren't in the new one
+      difference(oldX - r, oldX + r, oldZ - r, oldZ + r, cx - r, cx + r, cz - r, cz + r,
+                 (x, z) => leave(viewer, x, z))
+      viewer.cx = cx
+      viewer.cz = cz
+      // Enters the columns of the new square that weren't in the old one
+      difference(cx - r, cx + r, cz - r, cz + r, oldX - r, oldX + r, oldZ - r, oldZ + r,
+                 (x, z) => addEntering(viewer, x, z))
+      enterAll(viewer)
+    }
+  }
+
+  /**
+   * Removes a viewer, and releases the columns it was seeing.
+   *
+   * @param viewerId the viewer's id
+   */
+  def remove(viewerId: Int): Unit = {
+    val viewer = viewers.getOrNull(viewerId)
+    if (viewer ne null) {
+      viewers -= viewerId
+      val r = viewer.radius
+      var x = viewer.cx - r
+      while (x <= viewer.cx + r) {
+        var z = viewer.cz - r
+        while (z <= viewer.cz + r) {
+          leave(viewer, x, z)
+          z += 1
+        }
+        x += 1
+      }
+    }
+  }
+
+  /** Adds a column to the columns entered by the viewer, with its distance to the viewer */
+  private def addEntering(viewer: Viewer, x: Int, z: Int): Unit = {
+    val dx = x - viewer.cx
+    val dz = z - viewer.cz
+    val d2 = dx * dx + dz * dz
+    if (enteringCount == entering.length) {
+      entering = Arrays.copyOf(entering, enteringCount * 2)
+    }
+    // Sorting the longs sorts the columns by distance
+    entering(enteringCount) = d2.toLong << 42 | (dx + MaxRadius).toLong << 21 | (dz + MaxRadius)
+    enteringCount += 1
+  }
+
+  /** Enters the columns added by [[addEntering]], from the nearest to the farthest */
+  private def enterAll(viewer: Viewer): Unit = {
+    Arrays.sort(entering, 0, enteringCount)
+    var i = 0
+    while (i < enteringCount) {
+      val packed = entering(i)
+      val x = viewer.cx + ((packed >> 21) & OffsetMask).toInt - MaxRadius
+      val z = viewer.cz + (packed & OffsetMask).toInt - MaxRadius
+      enter(viewer, x, z)
+      i += 1
+    }
+    enteringCount = 0
+  }
+
+  private def enter(viewer: Viewer, x: Int, z: Int): Unit = {
+    val key = columnKey(x, z)
+    var interest = interests.getOrNull(key)
+    if (interest eq null) {
+      interest = new Interest(key)
+      interests(key) = interest
+    }
+    interest.count += 1
+    if (interest.column ne null) {
+      setViewers(key, interest.count)
+      viewer.listener.onColumnVisible(x, z, interest.column)
+    } else if (!interest.requested) {
+      // First viewer of the column, or the previous request has failed
+      interest.requested = true
+      request(x, z, interest.callback) // may call onReady immediately
+    }
+  }
+
+  private def leave(viewer: Viewer, x: Int, z: Int): Unit = {
+    val key = columnKey(x, z)
+    val interest = interests.getOrNull(key)
+    if (interest ne null) {
+      interest.count -= 1
+      if (interest.column ne null) {
+        viewer.listener.onColumnHidden(x, z)
+        setViewers(key, interest.count)
+      } else if (interest.count == 0 && interest.requested) {
+        cancel(x, z, interest.callback)
+      }
+      if (interest.count == 0) {
+        interests -= key
+      }
+    }
+  }
+
+  /** Called when a requested column is available, or with null if it can't be provided */
+  private def onReady(interest: Interest, column: ChunkColumn): Unit = {
+    if (interest.count > 0 && (interests.getOrNull(interest.key) eq interest)) {
+      val x = (interest.key >> 32).toInt
+      val z = interest.key.toInt
+      if (column eq null) {
+        // Requested again when a viewer enters the column
+        interest.requested = false
+        viewers.foreachValue(viewer => {
+          if (viewer.sees(x, z)) {
+            viewer.listener.onColumnFailed(x, z)
+          }
+        })
+      } else {
+        interest.column = column
+        setViewers(interest.key, interest.count)
+        viewers.foreachValue(viewer => {
+          if (viewer.sees(x, z)) {
+            viewer.listener.onColumnVisible(x, z, column)
+          }
+        })
+      }
+    }
+  }
+}
+
+object InterestManager {
+  /** The maximum view radius, excluded. The squared distances must fit in 21 bits. */
+  final val MaxRadius = 1024
+  private final val OffsetMask = (1L << 21) - 1
+
+  /** Packs 2 ints into 1 long. */
+  private def columnKey(cx: Int, cz: Int): Long = {
+    cx.toLong << 32 | cz & 0xFFFFFFFFl
+  }
+
+  /**
+   * Calls a function on each column of the rectangle A that isn't in the rectangle B. The cost
+   * is proportional to the number of such columns, plus the width of A.
+   */
+  private[worlds] def difference(ax0: Int, ax1: Int, az0: Int, az1: Int,
+                                 bx0: Int, bx1: Int, bz0: Int, bz1: Int,
+                                 f: (Int, Int) => Unit): Unit = {
+    var x = ax0
+    while (x <= ax1) {
+      if (x < bx0 || x > bx1) {
+        var z = az0
+        while (z <= az1) {
+          f(x, z)
+          z += 1
+        }
+      } else {
+        // Only the parts of the line that are before and after B
+        var z = az0
+        while (z <= az1 && z < bz0) {
+          f(x, z)
+          z += 1
+        }
+        z = math.max(az0, bz1 + 1)
+        while (z <= az1) {
+          f(x, z)
+          z += 1
+        }
+      }
+      x += 1
+    }
+  }
+}
+
+/**
+ * Receives the columns that enter and leave the view of a viewer, see
+ * [[LocalChunkService.addViewer]]. The methods are called by the chunk service's actor.
+ */
+trait ColumnViewer {
+  /**
+   * Called when a column becomes visible and is available, for instance to send it to a client.
+   *
+   * @param cx     the column's X coordinate
+   * @param cz     the column's Z coordinate
+   * @param column the column
+   */
+  def onColumnVisible(cx: Int, cz: Int, column: ChunkColumn): Unit
+
+  /**
+   * Called when a column that has been given to [[onColumnVisible]] isn't visible anymore.
+   *
+   * @param cx the column's X coordinate
+   * @param cz the column's Z coordinate
+   */
+  def onColumnHidden(cx: Int, cz: Int): Unit
+
+  /**
+   * Called when a visible column can't be loaded or generated. The column is requested again
+   * when a viewer enters it again.
+   *
+   * @param cx the column's X coordinate
+   * @param cz the column's Z coordinate
+   */
+  def onColumnFailed(cx: Int, cz: Int): Unit = ()
+}
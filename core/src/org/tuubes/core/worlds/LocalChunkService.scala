@@ -1,24 +1,48 @@
 package org.tuubes.core.worlds
 
-import java.nio.file.StandardOpenOption
-
-import better.files.File
 import com.electronwill.collection.{Bag, SimpleBag}
-import com.electronwill.niol.io.ChannelInput
 import org.tuubes.core.TuubesServer
-import org.tuubes.core.engine.{ActorMessage, ExecutionGroup, GroupedActor, LocalActor}
-import org.tuubes.core.tasks.{IOSystem, TaskSystem}
+import org.tuubes.core.engine.{ActorMessage, ExecutionGroup, GroupedActor}
+import org.tuubes.core.tasks.IOSystem.IOTask
+import org.tuubes.core.tasks.{AsyncTask, IOPriority, IOSystem}
 
 import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.util.control.NonFatal
+import scala.util.{Failure, Success, Try}
 
 /**
- * Asynchronously serves chunk columns from local files.
+ * Asynchronously serves chunk columns from local region files, see [[RegionStorage]].
+ *
+ * The loaded columns are kept in a bounded [[ColumnCache]]. The modified columns are saved in
+ * the background: periodically (autosave) and before being evicted from the cache. The columns
+ * whose chunks haven't been modified since the last save are never rewritten. The new columns
+ * are generated by a [[ChunkGenScheduler]], the columns nearest to the viewers first.
+ *
+ * The viewers added with [[addViewer]] receive the columns around them, see [[InterestManager]].
+ * The columns that have viewers are never evicted.
  *
- * @param world the world that this service takes care of
+ * @param world    the world that this service takes care of
+ * @param settings the settings of the column cache
  */
-final class LocalChunkService(private val world: LocalWorld) extends GroupedActor with ChunkService {
+final class LocalChunkService(private val world: LocalWorld,
+                              val settings: ChunkCacheSettings = ChunkCacheSettings())
+    extends GroupedActor
+    with ChunkService {
   /** The currently loaded chunk columns */
-  private val loadedColumns = new mutable.LongMap[ChunkColumn]()
+  private val loadedColumns = new ColumnCache(settings.capacity, settings.policy)
+
+  /** Evicted columns that are being saved. They're still available until the save completes. */
+  private val saving = new mutable.LongMap[ChunkColumn]()
+
+  /** The number of saves in progress */
+  private var savesInFlight = 0
+
+  /** The time of the last autosave, as given by `System.nanoTime()` */
+  private var lastAutosave = System.nanoTime()
+
+  /** True if the autosave couldn't save all the columns because of the saves limit */
+  private var autosavePending = false
 
   /** Chunks that are being loaded asynchronously */
   private val loading = new mutable.LongMap[Bag[ChunkColumn => Unit]]()
@@ -26,94 +50,336 @@ final class LocalChunkService(private val world: LocalWorld) extends GroupedActo
   /** Chunks that are being generated asynchronously */
   private val generating = new mutable.LongMap[Bag[ChunkColumn => Unit]]()
 
-  /** The directory that stores the chunks data */
-  private val chunksDir = world.directory / "chunks"
+  /** Schedules the generation of the new columns */
+  private val genScheduler = new ChunkGenScheduler(world.chunkGenerator, (key, column) => {
+    handleLater(GenerationComplete(key, column))
+  })
+
+  /** The position of each viewer, as a column key */
+  private val viewers = new mutable.LongMap[Long]()
+
+  /** True if the viewers have moved since the last update */
+  private var viewersChanged = false
+
+  /** Tracks the columns seen by the viewers */
+  private val interests = new InterestManager(processReqCreate, processCancel, setColumnViewers)
+
+  /** Stores the chunks data */
+  private val storage = new RegionStorage(world.directory / "regions")
+
+  // Converts the old format (one file per column) if needed
+  RegionConverter.convert(world.directory / "chunks", storage)
 
   /** Packs 2 ints into 1 long. */
   private def key(cx: Int, cz: Int): Long = {
     cx.toLong << 32 | cz & 0xFFFFFFFFl
   }
 
-  /** The chunk column file */
-  private def file(cx: Int, cz: Int): File = {
-    chunksDir / s"$cx,$cz.chunkcol"
-  }
-
   // --- Actor ---
   override protected def filter(msg: ActorMessage): Boolean = {
     super.filter(msg) && msg.isInstanceOf[ChunkServiceMessage]
   }
 
   override def update(dt: Double): Unit = {
-    // TODO clean old chunks? autosave?
+    val now = System.nanoTime()
+    // Autosave
+    val period = settings.autosavePeriod * 1000000000L
+    if (autosavePending || (period > 0 && now - lastAutosave >= period)) {
+      lastAutosave = now
+      autosavePending = false
+      loadedColumns.foreach(entry => {
+        if (entry.column.isDirty) {
+          if (savesInFlight < settings.maxInFlightSaves) {
+            asyncSave(entry.key, entry.column)
+          } else {
+            autosavePending = true // continue at the next update
+          }
+        }
+      })
+    }
+    // Eviction
+    loadedColumns.evict(now, settings.maxEvictionScan, evict)
+    // Generation priorities
+    if (viewersChanged) {
+      viewersChanged = false
+      genScheduler.reprioritize(genPriority)
+    }
   }
 
-  override protected def onMessage(msg: ActorMessage): Unit = {
+  /** @return the statistics of the column cache */
+  def cacheStats: ColumnCacheStats = loadedColumns.stats
+
+  /** @return the statistics of the generation scheduler */
+  def genStats: ChunkGenStats = genScheduler.stats
+
+  /**
+   * Computes the generation priority of a column: the squared distance to the nearest viewer.
+   * Without viewers, all the columns have the same priority.
+   */
+  private def genPriority(cx: Int, cz: Int): Double = {
+    var min = Double.MaxValue
+    viewers.foreachValue(viewerKey => {
+      val dx = ((viewerKey >> 32).toInt - cx).toDouble
+      val dz = (viewerKey.toInt - cz).toDouble
+      val d2 = dx * dx + dz * dz
+      if (d2 < min) {
+        min = d2
+      }
+    })
+    if (viewers.isEmpty) 0 else min
+  }
+
+  override protected[worlds] def onMessage(msg: ActorMessage): Unit = {
     super.onMessage(msg)
     msg match {
       case RequestCreate(cx, cz, callback) => processReqCreate(cx, cz, callback)
       case RequestExisting(cx, cz, callback) => processReqExisting(cx, cz, callback)
       case TestExists(cx, cz, callback) => processTestExists(cx, cz, callback)
-      case LoadComplete(key, column) => {
-        loadedColumns(key) = column
-        loading.remove(key).foreach(_.foreach(_ (column))) // remove the callbacks bag and call them
+      case RequestArea(area, listener) => processReqArea(area, listener)
+      case TestExistsArea(area, callback) => processTestExistsArea(area, callback)
+      case CancelRequest(cx, cz, callback) => processCancel(cx, cz, callback)
+      case AddViewer(viewerId, cx, cz, radius, listener) =>
+        processAddViewer(viewerId, cx, cz, radius, listener)
+      case UpdateViewer(viewerId, cx, cz) => processUpdateViewer(viewerId, cx, cz)
+      case RemoveViewer(viewerId) => processRemoveViewer(viewerId)
+      case SaveAll(done) => processSaveAll(done)
+      case LoadComplete(key, column) => onLoaded(key, column)
+      case LoadBatchComplete(keys, columns) => {
+        var i = 0
+        while (i < keys.length) {
+          onLoaded(keys(i), columns(i))
+          i += 1
+        }
       }
       case GenerationComplete(key, column) => {
-        loadedColumns(key) = column
-        generating.remove(key).foreach(_.foreach(_ (column))) // remove the callbacks bag and call them
+        genScheduler.complete(key)
+        if (column eq null) {
+          // The generation failed, the error has been logged
+          generating.remove(key).foreach(failCallbacks)
+        } else {
+          column.markDirty() // a new column must be saved
+          loadedColumns.put(key, column)
+          generating.remove(key).foreach(_.foreach(_ (column))) // remove the callbacks bag and call them
+        }
+      }
+      case SaveComplete(key, column) => {
+        savesInFlight -= 1
+        if (saving.getOrNull(key) eq column) {
+          saving.remove(key) // the evicted column is now fully saved
+        }
+      }
+      case SaveReplaced(_) => savesInFlight -= 1 // the column is saved by the next save
+      case SaveFailed(key, column) => {
+        savesInFlight -= 1
+        column.markDirty() // try again later
+        if (saving.getOrNull(key) eq column) {
+          // Don't lose the column: put it back in the cache
+          saving.remove(key)
+          loadedColumns.put(key, column)
+        }
       }
     }
   }
 
-  // --- Actual processing ---
-  private def processReqCreate(cx: Int, cz: Int, callback: ChunkColumn => Unit): Unit = {
-    val columnKey = key(cx, cz)
-    val loaded = loadedColumns.get(columnKey)
-    loaded match {
-      case Some(chunk) => {
-        // The chunk is loaded => callback now
-        callback(chunk)
+  /** Called when a column has been read, with a null column if the read failed */
+  private def onLoaded(key: Long, column: ChunkColumn): Unit = {
+    if (column eq null) {
+      loading.remove(key).foreach(failCallbacks) // the error has been logged
+    } else {
+      loadedColumns.put(key, column)
+      loading.remove(key).foreach(_.foreach(_ (column))) // remove the callbacks bag and call them
+    }
+  }
+
+  /** Tells the requests that a column can't be provided */
+  private def failCallbacks(callbacks: Bag[ChunkColumn => Unit]): Unit = {
+    callbacks.foreach {
+      case callback: FailableCallback => callback.fail()
+      case callback => callback(null) // a requestCreate callback, see ChunkService
+    }
+  }
+
+  /**
+   * Gets a loaded column, or null. The evicted columns that are still being saved are brought
+   * back into the cache.
+   */
+  private def loadedColumn(key: Long): ChunkColumn = {
+    val column = loadedColumns.get(key)
+    if (column ne null) {
+      column
+    } else {
+      val evicted = saving.getOrNull(key)
+      if (evicted ne null) {
+        saving.remove(key)
+        loadedColumns.put(key, evicted)
       }
-      case None => {
-        // The chunk isn't loaded
-        val chunkFile = file(cx, cz)
-        if (chunkFile.exists) {
-          // Loads the chunk if it's not already being loaded
-          asyncLoad(chunkFile, callback, columnKey)
-        } else {
-          // Generates the chunk if it's not already being generated
-          asyncGen(cx, cz, callback, columnKey)
+      evicted
+    }
+  }
+
+  /** Called by the cache to evict a column. Returns false if the column can't be evicted now. */
+  private def evict(entry: CachedColumn): Boolean = {
+    val column = entry.column
+    if (column.isDirty) {
+      if (savesInFlight >= settings.maxInFlightSaves) {
+        false // too many saves in progress, wait for them to complete
+      } else {
+        saving(entry.key) = column
+        asyncSave(entry.key, column)
+        true
+      }
+    } else {
+      true
+    }
+  }
+
+  /**
+   * Saves a column in the background. Without `saved` function, the save is replaceable by the
+   * next save of the column. With a `saved` function, the save is never replaced, so that the
+   * function is called once the column is written.
+   */
+  private def asyncSave(key: Long, column: ChunkColumn,
+                        saved: Try[Unit] => Unit = null): Unit = {
+    savesInFlight += 1
+    val cx = (key >> 32).toInt
+    val cz = key.toInt
+    val onError: Throwable => Unit = e => {
+      TuubesServer.logger.error(s"Unable to save chunk column ($cx, $cz)", e)
+      handleLater(SaveFailed(key, column))
+      if (saved ne null) {
+        saved(Failure(e))
+      }
+    }
+    column.compactPalettes()
+    column.markSaved() // before serializing, so that concurrent modifications are not lost
+    // Serializes on the actor: the IO thread writes a snapshot, not the live column
+    val bytes = try {
+      column.toBytes
+    } catch {
+      case NonFatal(e) =>
+        onError(e)
+        return
+    }
+    val write: IOTask = () => {
+      val written = try {
+        storage.write(cx, cz, bytes)
+        true
+      } catch {
+        case NonFatal(e) =>
+          onError(e)
+          false
+      }
+      if (written) {
+        handleLater(SaveComplete(key, column))
+        if (saved ne null) {
+          saved(Success(()))
         }
       }
     }
+    if (saved eq null) {
+      // A save that hasn't started yet is replaced by this one, which writes the latest data
+      IOSystem.executeReplaceable(Long.box(key), IOPriority.BACKGROUND, write, onError(_),
+                                  () => handleLater(SaveReplaced(key)))
+    } else {
+      IOSystem.execute(Long.box(key), IOPriority.NORMAL, write, onError(_))
+    }
+  }
+
+  /** Saves all the modified columns, with one task per column and one fan-in for all */
+  private def processSaveAll(done: Try[Unit] => Unit): Unit = {
+    val saves = new ArrayBuffer[AsyncTask[_, _]]
+    loadedColumns.foreach(entry => {
+      if (entry.column.isDirty) {
+        val key = entry.key
+        val column = entry.column
+        saves += AsyncTask.callback[Unit]((saved: Try[Unit] => Unit) => {
+          asyncSave(key, column, saved)
+        })
+      }
+    })
+    AsyncTask.whenAll(saves: _*).onComplete(done).start()
+  }
+
+  // --- Actual processing ---
+  private def processReqCreate(cx: Int, cz: Int, callback: ChunkColumn => Unit): Unit = {
+    val columnKey = key(cx, cz)
+    val loaded = loadedColumn(columnKey)
+    if (loaded ne null) {
+      // The chunk is loaded => callback now
+      callback(loaded)
+    } else if (storage.exists(cx, cz)) {
+      // Loads the chunk if it's not already being loaded
+      asyncLoad(cx, cz, callback, columnKey)
+    } else {
+      // Generates the chunk if it's not already being generated
+      asyncGen(cx, cz, callback, columnKey)
+    }
   }
 
   private def processReqExisting(cx: Int, cz: Int, callback: Option[ChunkColumn] => Unit): Unit = {
     val columnKey = key(cx, cz)
-    val loaded = loadedColumns.get(columnKey)
-    loaded match {
-      case s: Some[ChunkColumn] => callback(s)
-      case None => {
-        val chunkFile = file(cx, cz)
-        if (chunkFile.exists) {
-          // Loads the chunk if it's not already being loaded
-          asyncLoad(chunkFile, chunk => callback(Some(chunk)), columnKey)
-        } else {
-          callback(None)
+    val loaded = loadedColumn(columnKey)
+    if (loaded ne null) {
+      callback(Some(loaded))
+    } else if (storage.exists(cx, cz)) {
+      // Loads the chunk if it's not already being loaded
+      asyncLoad(cx, cz, new ExistingColumnCallback(callback), columnKey)
+    } else {
+      callback(None)
+    }
+  }
+
+  private def processTestExists(cx: Int, cz: Int, callback: Boolean => Unit): Unit = {
+    val loaded = loadedColumn(key(cx, cz))
+    callback((loaded ne null) || storage.exists(cx, cz))
+  }
+
+  private def processCancel(cx: Int, cz: Int, callback: ChunkColumn => Unit): Unit = {
+    val columnKey = key(cx, cz)
+    loading.get(columnKey).foreach(_ -= callback)
+    generating.get(columnKey) match {
+      case Some(bag) => {
+        bag -= callback
+        if (bag.isEmpty && genScheduler.cancel(columnKey)) {
+          generating.remove(columnKey) // nobody cares about this column anymore
         }
       }
+      case None => ()
     }
   }
 
-  private def processTestExists(cx: Int, cz: Int, callback: Boolean => Unit): Unit = {
-    val loaded = loadedColumns.get(key(cx, cz))
-    loaded match {
-      case Some(_) => callback(true)
-      case None => callback(file(cx, cz).exists)
+  private def processAddViewer(viewerId: Int, cx: Int, cz: Int, radius: Int,
+                               listener: ColumnViewer): Unit = {
+    viewers(viewerId) = key(cx, cz)
+    viewersChanged = true
+    interests.add(viewerId, cx, cz, radius, listener)
+  }
+
+  private def processUpdateViewer(viewerId: Int, cx: Int, cz: Int): Unit = {
+    val columnKey = key(cx, cz)
+    if (viewers.getOrElse(viewerId, ~columnKey) != columnKey) {
+      viewers(viewerId) = columnKey
+      viewersChanged = true
+      interests.move(viewerId, cx, cz)
+    }
+  }
+
+  private def processRemoveViewer(viewerId: Int): Unit = {
+    if (viewers.remove(viewerId).isDefined) {
+      viewersChanged = true
+      interests.remove(viewerId)
+    }
+  }
+
+  /** Sets the number of viewers of a loaded column. Without viewer, it can be evicted. */
+  private def setColumnViewers(key: Long, count: Int): Unit = {
+    val entry = loadedColumns.entry(key)
+    if (entry ne null) {
+      entry.viewers = count
     }
   }
 
-  private def asyncLoad(file: File, callback: ChunkColumn => Unit, key: Long): Unit = {
+  private def asyncLoad(cx: Int, cz: Int, callback: ChunkColumn => Unit, key: Long): Unit = {
     loading.get(key) match {
       case Some(bag) => bag += callback // registers the callback
       case None => {
@@ -123,15 +389,92 @@ final class LocalChunkService(private val world: LocalWorld) extends GroupedActo
         // Marks the chunk column as "loading"
         loading(key) = newBag
         // Loads the chunk column
-        IOSystem.execute(() => {
-          for (channel <- file.fileChannel(Seq(StandardOpenOption.READ))) {
-            val input = new ChannelInput(channel)
-            val column = ChunkColumn.read(input)
-            handleLater(LoadComplete(key, column))
+        // After the pending save of the column, if any
+        val task = LocalChunkService.loadTask(storage.read, cx, cz, column => {
+          handleLater(LoadComplete(key, column))
+        })
+        IOSystem.execute(Long.box(key), IOPriority.INTERACTIVE, task, _ => ()) // never throws
+      }
+    }
+  }
+
+  private def processReqArea(area: ColumnArea, listener: AreaListener): Unit = {
+    val progress = new AreaProgress(listener, area.size)
+    val toLoad = new Array[Long](area.size)
+    var loadCount = 0
+    genScheduler.submitAll {
+      area.foreachNearestFirst((cx, cz) => {
+        val columnKey = key(cx, cz)
+        val loaded = loadedColumn(columnKey)
+        if (loaded ne null) {
+          progress.deliver(cx, cz, loaded)
+        } else {
+          val callback = new AreaColumnCallback(progress, cx, cz)
+          val loadingBag = loading.getOrNull(columnKey)
+          if (loadingBag ne null) {
+            loadingBag += callback
+          } else if (storage.exists(cx, cz)) {
+            val newBag = new SimpleBag[ChunkColumn => Unit](1)
+            newBag += callback
+            loading(columnKey) = newBag
+            toLoad(loadCount) = columnKey
+            loadCount += 1
+          } else {
+            asyncGen(cx, cz, callback, columnKey)
           }
-        }, TuubesServer.logger.error(s"Unable to read chunk from $file", _))
+        }
+      })
+    }
+    // Reads the columns in batches: one IO task and one message per batch
+    var from = 0
+    while (from < loadCount) {
+      val to = math.min(from + LocalChunkService.LoadBatchSize, loadCount)
+      asyncLoadBatch(java.util.Arrays.copyOfRange(toLoad, from, to))
+      from = to
+    }
+  }
+
+  /** Reads several columns in one IO task, the keys must have been added to `loading` */
+  private def asyncLoadBatch(keys: Array[Long]): Unit = {
+    IOSystem.execute(null, IOPriority.INTERACTIVE, () => {
+      val columns = new Array[ChunkColumn](keys.length)
+      var i = 0
+      while (i < keys.length) {
+        val cx = (keys(i) >> 32).toInt
+        val cz = keys(i).toInt
+        try {
+          columns(i) = ChunkColumn.fromBytes(storage.read(cx, cz))
+        } catch {
+          case NonFatal(e) =>
+            TuubesServer.logger.error(s"Unable to read chunk column ($cx, $cz)", e)
+        }
+        i += 1
+      }
+      handleLater(LoadBatchComplete(keys, columns))
+    }, e => {
+      TuubesServer.logger.error("Unable to read a batch of chunk columns", e)
+      handleLater(LoadBatchComplete(keys, new Array[ChunkColumn](keys.length)))
+    })
+  }
+
+  private def processTestExistsArea(area: ColumnArea, callback: AreaExistence => Unit): Unit = {
+    val bits = new Array[Long]((area.size + 63) >> 6)
+    var cx = area.cx0
+    while (cx <= area.cx1) {
+      var cz = area.cz0
+      while (cz <= area.cz1) {
+        val columnKey = key(cx, cz)
+        val exists = (loadedColumns.entry(columnKey) ne null) || saving.contains(columnKey) ||
+                     storage.exists(cx, cz)
+        if (exists) {
+          val i = area.indexOf(cx, cz)
+          bits(i >> 6) |= 1L << i
+        }
+        cz += 1
       }
+      cx += 1
     }
+    callback(new AreaExistence(area, bits))
   }
 
   private def asyncGen(cx: Int, cz: Int, callback: ChunkColumn => Unit, key: Long): Unit = {
@@ -143,11 +486,8 @@ final class LocalChunkService(private val world: LocalWorld) extends GroupedActo
         newBag += callback
         // Marks the chunk column as "generating"
         generating(key) = newBag
-        // Generates the chunk column
-        TaskSystem.execute(() => {
-          val column = world.chunkGenerator.generate(cz, cz)
-          handleLater(GenerationComplete(key, column))
-        })
+        // Queues the generation of the chunk column
+        genScheduler.submit(cx, cz, key, genPriority(cx, cz))
       }
     }
   }
@@ -155,7 +495,7 @@ final class LocalChunkService(private val world: LocalWorld) extends GroupedActo
   // --- ChunkService methods ---
   override def requestCreate(cx: Int, cz: Int, callback: ChunkColumn => Unit)
                             (implicit currentGroup: ExecutionGroup): Unit = {
-    if (currentGroup eq group) {
+    if (canProcessNow(currentGroup)) {
       processReqCreate(cx, cz, callback) // avoids creating a message in that case
     } else {
       handleLater(RequestCreate(cx, cz, callback))
@@ -164,20 +504,170 @@ final class LocalChunkService(private val world: LocalWorld) extends GroupedActo
 
   override def requestExisting(cx: Int, cz: Int, callback: Option[ChunkColumn] => Unit)
                               (implicit currentGroup: ExecutionGroup): Unit = {
-    if (currentGroup eq group) {
+    if (canProcessNow(currentGroup)) {
       processReqExisting(cx, cz, callback) // avoids creating a message in that case
     } else {
       handleLater(RequestExisting(cx, cz, callback))
     }
   }
 
-
   override def testExists(cx: Int, cz: Int, callback: Boolean => Unit)
                          (implicit currentGroup: ExecutionGroup): Unit = {
-    if (currentGroup eq group) {
+    if (canProcessNow(currentGroup)) {
       processTestExists(cx, cz, callback) // avoids creating a message in that case
     } else {
       handleLater(TestExists(cx, cz, callback))
     }
   }
+
+  override def cancel(cx: Int, cz: Int, callback: ChunkColumn => Unit)
+                     (implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processCancel(cx, cz, callback) // avoids creating a message in that case
+    } else {
+      handleLater(CancelRequest(cx, cz, callback))
+    }
+  }
+
+  override def requestArea(area: ColumnArea, listener: AreaListener)
+                          (implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processReqArea(area, listener)
+    } else {
+      handleLater(RequestArea(area, listener))
+    }
+  }
+
+  override def testExistsArea(area: ColumnArea, callback: AreaExistence => Unit)
+                             (implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processTestExistsArea(area, callback)
+    } else {
+      handleLater(TestExistsArea(area, callback))
+    }
+  }
+
+  /**
+   * Saves all the modified columns now, regardless of the autosave period and of the limit of
+   * saves in progress. The columns that have been evicted and are already being saved aren't
+   * waited for.
+   *
+   * @return a task, unstarted, that completes when all the columns are written, or fails if a
+   *         column can't be saved
+   */
+  def saveAll(): AsyncTask[Try[Unit], Unit] = {
+    AsyncTask.callback[Unit]((done: Try[Unit] => Unit) => handleLater(SaveAll(done)))
+  }
+
+  /**
+   * Adds a viewer that receives the columns around it. The columns nearest to the viewers are
+   * loaded and generated first. If the viewer already exists, it's replaced.
+   *
+   * @param viewerId the viewer's id
+   * @param cx       X coordinate of the viewer's column
+   * @param cz       Z coordinate of the viewer's column
+   * @param radius   the view radius, in columns
+   * @param listener receives the columns that enter and leave the viewer's view
+   */
+  def addViewer(viewerId: Int, cx: Int, cz: Int, radius: Int, listener: ColumnViewer)
+               (implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processAddViewer(viewerId, cx, cz, radius, listener)
+    } else {
+      handleLater(AddViewer(viewerId, cx, cz, radius, listener))
+    }
+  }
+
+  /**
+   * Updates the position of a viewer. The columns nearest to the viewers are generated first.
+   * If the viewer has been added with [[addViewer]], it receives the columns that enter its view.
+   *
+   * @param viewerId the viewer's id
+   * @param cx       X coordinate of the viewer's column
+   * @param cz       Z coordinate of the viewer's column
+   */
+  def updateViewer(viewerId: Int, cx: Int, cz: Int)(implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processUpdateViewer(viewerId, cx, cz)
+    } else {
+      handleLater(UpdateViewer(viewerId, cx, cz))
+    }
+  }
+
+  /**
+   * Removes a viewer.
+   *
+   * @param viewerId the viewer's id
+   */
+  def removeViewer(viewerId: Int)(implicit currentGroup: ExecutionGroup): Unit = {
+    if (canProcessNow(currentGroup)) {
+      processRemoveViewer(viewerId)
+    } else {
+      handleLater(RemoveViewer(viewerId))
+    }
+  }
+}
+
+object LocalChunkService {
+  /** The maximum number of columns read by one IO task, for the area requests */
+  val LoadBatchSize: Int = 32
+
+  /**
+   * Creates a task that reads a column and gives it to `loaded`, or gives null if the column
+   * can't be read. The task never throws, so that the column is never left "loading".
+   */
+  private[worlds] def loadTask(read: (Int, Int) => Array[Byte], cx: Int, cz: Int,
+                               loaded: ChunkColumn => Unit): IOTask = () => {
+    val column = try {
+      ChunkColumn.fromBytes(read(cx, cz))
+    } catch {
+      case NonFatal(e) =>
+        TuubesServer.logger.error(s"Unable to read chunk column ($cx, $cz)", e)
+        null
+    }
+    loaded(column)
+  }
+}
+
+/** The progress of an area request: counts the columns that remain to be provided. */
+private final class AreaProgress(listener: AreaListener, private[this] var remaining: Int) {
+  private[this] var failed = 0
+
+  def deliver(cx: Int, cz: Int, column: ChunkColumn): Unit = {
+    listener.onColumn(cx, cz, column)
+    done()
+  }
+
+  def fail(): Unit = {
+    failed += 1
+    done()
+  }
+
+  private def done(): Unit = {
+    remaining -= 1
+    if (remaining == 0) {
+      listener.onComplete(failed)
+    }
+  }
+}
+
+/** A column callback that is told when the column can't be provided, instead of getting null */
+private sealed trait FailableCallback extends (ChunkColumn => Unit) {
+  def fail(): Unit
+}
+
+/** The callback of a column of an area request */
+private final class AreaColumnCallback(progress: AreaProgress, cx: Int, cz: Int)
+    extends FailableCallback {
+  override def apply(column: ChunkColumn): Unit = progress.deliver(cx, cz, column)
+
+  override def fail(): Unit = progress.fail()
+}
+
+/** The callback of a requestExisting: gets None if the column can't be loaded */
+private final class ExistingColumnCallback(callback: Option[ChunkColumn] => Unit)
+    extends FailableCallback {
+  override def apply(column: ChunkColumn): Unit = callback(Some(column))
+
+  override def fail(): Unit = callback(None)
 }
@@ -1,9 +1,15 @@
 package org.tuubes.core.worlds
 
+import java.util.concurrent.CopyOnWriteArrayList
+
 import better.files.File
 import com.electronwill.collection.ConcurrentRecyclingIndex
 import org.tuubes.core.TuubesServer
-import org.tuubes.core.engine.GameObject
+import org.tuubes.core.engine.{AttributeChangeSet, ComponentStore, ExecutionGroup, GameObject}
+import org.tuubes.core.engine.{TickListener, TickRuntime}
+import org.tuubes.core.engine.messages.MoveToGroup
+
+import scala.collection.mutable
 
 /**
  * A local world.
@@ -11,20 +17,125 @@ import org.tuubes.core.engine.GameObject
  * @author TheElectronWill
  */
 final class LocalWorld(val name: String) extends World {
-  override def chunkProvider: ChunkService = new LocalChunkService(this)
+  override lazy val chunkProvider: LocalChunkService = new LocalChunkService(this)
   override val chunkGenerator: ChunkGenerator = new BasicHeightmapChunkGenerator()
 
   val directory: File = TuubesServer.DirWorlds / name
 
   private val gameObjects = new ConcurrentRecyclingIndex[GameObject](64)
 
+  /** Assigns the groups of the objects according to their position */
+  val spatialGroups = new SpatialGroups()
+
+  /** Collects the objects whose attributes have changed during each tick */
+  val attributeChanges = new AttributeChangeSet
+
+  /** Stores the components of the objects, indexed by their id */
+  val components = new ComponentStore
+
+  /** Indexes the positions of the objects, updated at the end of each tick, once loaded */
+  val spatialIndex = new SpatialIndex(this)
+
+  /** Rebalances the groups of the objects, see [[SpatialGroups.rebalance]] */
+  private val groupBalancer = new TickListener {
+    override def onTickEnd(tick: Long): Unit = {
+      if (tick % SpatialGroups.RebalancePeriod == 0) {
+        rebalanceGroups()
+      }
+    }
+  }
+
+  /**
+   * Loads this world: starts the updates of its spatial index and groups at the end of each
+   * tick. Must be called once, before the objects are added.
+   */
+  def load(): Unit = {
+    TickRuntime.addTickListener(spatialIndex)
+    TickRuntime.addTickListener(groupBalancer)
+    LocalWorld.loadedWorlds.add(this)
+  }
+
+  /** Unloads this world: stops the updates started by [[load]]. */
+  def unload(): Unit = {
+    LocalWorld.loadedWorlds.remove(this)
+    TickRuntime.removeTickListener(spatialIndex)
+    TickRuntime.removeTickListener(groupBalancer)
+  }
+
+  /** @return true if the object is in this world */
+  def contains(obj: GameObject): Boolean = {
+    obj.id >= 0 && (gameObjects.getOrNull(obj.id) eq obj)
+  }
+
+  /**
+   * Adds an object to this world. If the object has a position, it's added to the group of its
+   * region, or moved to that group if it's already in another group.
+   *
+   * @param obj the object to add
+   */
   private[tuubes] def add(obj: GameObject): Unit = {
     val id = gameObjects += obj
     obj.id = id
     obj.world = this
+    val position = obj.position
+    if (position ne null) {
+      spatialIndex.update(obj)
+      val key = spatialGroups.regionKey(position)
+      obj.regionKey = key
+      val group = spatialGroups.enter(key)
+      if (obj.group eq null) {
+        group.add(obj)
+      } else if (obj.group ne group) {
+        obj.!(MoveToGroup(group))(null)
+      }
+    }
   }
 
+  /**
+   * Removes an object from this world. The object forgets its world, id and region, so that it
+   * no longer updates the world's index, regions and attribute changes. Does nothing if the
+   * object isn't in this world.
+   *
+   * @param obj the object to remove
+   */
   private[tuubes] def remove(obj: GameObject): Unit = {
-    gameObjects.remove(obj.id)
+    if (contains(obj)) {
+      spatialIndex.remove(obj)
+      components.detachAll(obj.id)
+      gameObjects.remove(obj.id)
+      if (obj.regionKey != GameObject.NoRegion) {
+        spatialGroups.leave(obj.regionKey)
+      }
+      obj.regionKey = GameObject.NoRegion
+      obj.world = null
+      obj.id = -1
+    }
   }
+
+  /** Splits and merges the groups of the regions, and moves their objects to their new group */
+  private def rebalanceGroups(): Unit = {
+    val moves = new mutable.LongMap[ExecutionGroup]
+    spatialGroups.rebalance((key, group) => moves(key) = group)
+    if (moves.nonEmpty) {
+      var id = 0
+      val limit = gameObjects.idLimit
+      while (id < limit) {
+        val obj = gameObjects.getOrNull(id)
+        if (obj ne null) {
+          val newGroup = moves.getOrNull(obj.regionKey)
+          if ((newGroup ne null) && (obj.group ne newGroup)) {
+            obj.!(MoveToGroup(newGroup))(null)
+          }
+        }
+        id += 1
+      }
+    }
+  }
+}
+
+object LocalWorld {
+  private val loadedWorlds = new CopyOnWriteArrayList[LocalWorld]
+
+  /** @return the worlds that are loaded, see [[LocalWorld.load]] */
+  def loaded: Array[LocalWorld] = loadedWorlds.toArray(new Array[LocalWorld](0))
 }
@@ -0,0 +1,52 @@
+package org.tuubes.core.worlds
+
+import better.files.File
+import org.tuubes.core.TuubesServer.logger
+
+import scala.util.control.NonFatal
+
+/**
+ * Converts the old chunk storage, with one `cx,cz.chunkcol` file per column, to the region
+ * storage. The data of the columns is copied as is, because the column format hasn't changed.
+ *
+ * @author TheElectronWill
+ */
+object RegionConverter {
+  private val FileExtension = ".chunkcol"
+
+  /**
+   * Moves all the `.chunkcol` files of a directory into the given storage. The directory is
+   * deleted once all the files have been converted.
+   *
+   * @param chunksDir the directory that contains the old `.chunkcol` files
+   * @param storage   the region storage to write to
+   * @return the number of converted columns
+   */
+  def convert(chunksDir: File, storage: RegionStorage): Int = {
+    if (!chunksDir.isDirectory) {
+      return 0
+    }
+    logger.info(s"Converting the chunk columns of $chunksDir to the region format...")
+    var converted = 0
+    var failed = 0
+    for (file <- chunksDir.list if file.name.endsWith(FileExtension)) {
+      try {
+        val coords = file.name.dropRight(FileExtension.length).split(',')
+        val cx = coords(0).toInt
+        val cz = coords(1).toInt
+        storage.write(cx, cz, file.byteArray)
+        file.delete()
+        converted += 1
+      } catch {
+        case NonFatal(e) =>
+          logger.error(s"Unable to convert the chunk column $file", e)
+          failed += 1
+      }
+    }
+    if (failed == 0 && chunksDir.isEmpty) {
+      chunksDir.delete()
+    }
+    logger.info(s"$converted chunk columns converted, $failed failures")
+    converted
+  }
+}
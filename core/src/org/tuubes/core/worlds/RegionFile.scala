@@ -0,0 +1,208 @@
+package org.tuubes.core.worlds
+
+import java.io.{Closeable, IOException}
+import java.nio.channels.FileChannel
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption.{CREATE, READ, WRITE}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import org.tuubes.core.worlds.RegionFile._
+
+/**
+ * A file that stores a square of `RegionSize*RegionSize` chunk columns.
+ *
+ * ==Format==
+ * The file is divided in sectors of `SectorSize` bytes. The first sector is the header: it
+ * contains one 32-bits entry per column, `sectorOffset << 8 | sectorCount`, 0 meaning that the
+ * column doesn't exist. The data of a column is stored in contiguous sectors: an Int that gives
+ * the data length, followed by the data itself.
+ *
+ * ==Performance==
+ * The header is memory-mapped, therefore [[exists]] costs one memory read and no syscall. The
+ * FileChannel is opened once and read with positional reads, which may run in parallel.
+ * The writes are exclusive.
+ *
+ * @param path the file's path
+ * @author TheElectronWill
+ */
+final class RegionFile(val path: Path) extends Closeable {
+  private[this] val channel = FileChannel.open(path, READ, WRITE, CREATE)
+  private[this] val header: MappedByteBuffer = channel.map(MapMode.READ_WRITE, 0, SectorSize)
+  private[this] val usedSectors = new util.BitSet
+  private[this] val lock = new ReentrantReadWriteLock
+
+  // Marks the sectors that are used by the header and by the existing columns
+  usedSectors.set(0)
+  for (i <- 0 until ColumnsPerRegion) {
+    val entry = header.getInt(i * 4)
+    if (entry != 0) {
+      usedSectors.set(entry >>> 8, (entry >>> 8) + (entry & 0xFF))
+    }
+  }
+
+  /** Index of a column in the header */
+  private def index(cx: Int, cz: Int): Int = (cz & RegionMask) * RegionSize + (cx & RegionMask)
+
+  /**
+   * Checks if a column is stored in this region.
+   *
+   * @param cx column X coordinate
+   * @param cz column Z coordinate
+   * @return true if the column exists
+   */
+  def exists(cx: Int, cz: Int): Boolean = {
+    header.getInt(index(cx, cz) * 4) != 0
+  }
+
+  /**
+   * Reads the data of a column.
+   *
+   * @param cx column X coordinate
+   * @param cz column Z coordinate
+   * @return the column's data, or null if the column doesn't exist
+   */
+  def read(cx: Int, cz: Int): Array[Byte] = {
+    val readLock = lock.readLock()
+    readLock.lock()
+    try {
+      val entry = header.getInt(index(cx, cz) * 4)
+      if (entry == 0) {
+        null
+      } else {
+        val position = (entry >>> 8).toLong * SectorSize
+        val lengthBuffer = ByteBuffer.allocate(4)
+        readFully(lengthBuffer, position)
+        val length = lengthBuffer.getInt(0)
+        if (length < 0 || length + 4 > (entry & 0xFF) * SectorSize) {
+          throw new IOException(s"Invalid length $length for column ($cx, $cz) in $path")
+        }
+        val data = new Array[Byte](length)
+        readFully(ByteBuffer.wrap(data), position + 4)
+        data
+      }
+    } finally {
+      readLock.unlock()
+    }
+  }
+
+  /**
+   * Writes the data of a column, replacing any previous data.
+   *
+   * @param cx   column X coordinate
+   * @param cz   column Z coordinate
+   * @param data the column's data
+   */
+  def write(cx: Int, cz: Int, data: Array[Byte], offset: Int, length: Int): Unit = {
+    val sectorCount = (length + 4 + SectorSize - 1) / SectorSize
+    if (sectorCount > MaxSectorsPerColumn) {
+      throw new IOException(s"Column ($cx, $cz) is too big: $length bytes")
+    }
+    val writeLock = lock.writeLock()
+    writeLock.lock()
+    try {
+      val headerIdx = index(cx, cz) * 4
+      val oldEntry = header.getInt(headerIdx)
+      val oldOffset = oldEntry >>> 8
+      val oldCount = oldEntry & 0xFF
+
+      // Writes to new sectors, so that the old data stays valid until the header is updated:
+      // a failed write doesn't destroy the only copy of the column.
+      val sectorOffset = allocate(sectorCount)
+      try {
+        val buffer = ByteBuffer.allocate(4 + length)
+        buffer.putInt(length).put(data, offset, length).flip()
+        writeFully(buffer, sectorOffset.toLong * SectorSize)
+      } catch {
+        case e: Throwable =>
+          usedSectors.clear(sectorOffset, sectorOffset + sectorCount)
+          throw e
+      }
+      header.putInt(headerIdx, sectorOffset << 8 | sectorCount)
+      // The old sectors can now be reused
+      if (oldEntry != 0) {
+        usedSectors.clear(oldOffset, oldOffset + oldCount)
+      }
+    } finally {
+      writeLock.unlock()
+    }
+  }
+
+  /**
+   * Writes the data of a column, replacing any previous data.
+   *
+   * @param cx   column X coordinate
+   * @param cz   column Z coordinate
+   * @param data the column's data
+   */
+  def write(cx: Int, cz: Int, data: Array[Byte]): Unit = write(cx, cz, data, 0, data.length)
+
+  /** Finds `count` free contiguous sectors and marks them as used. */
+  private def allocate(count: Int): Int = {
+    var start = usedSectors.nextClearBit(1)
+    var end = usedSectors.nextSetBit(start)
+    while (end != -1 && end - start < count) {
+      start = usedSectors.nextClearBit(end)
+      end = usedSectors.nextSetBit(start)
+    }
+    usedSectors.set(start, start + count)
+    start
+  }
+
+  private def readFully(buffer: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (buffer.hasRemaining) {
+      val n = channel.read(buffer, pos)
+      if (n < 0) {
+        throw new IOException(s"Unexpected end of file $path")
+      }
+      pos += n
+    }
+  }
+
+  private def writeFully(buffer: ByteBuffer, position: Long): Unit = {
+    var pos = position
+    while (buffer.hasRemaining) {
+      pos += channel.write(buffer, pos)
+    }
+  }
+
+  /** Forces the header to be written to the disk. */
+  def flush(): Unit = {
+    header.force()
+  }
+
+  override def close(): Unit = {
+    val writeLock = lock.writeLock()
+    writeLock.lock()
+    try {
+      header.force()
+      channel.close()
+    } finally {
+      writeLock.unlock()
+    }
+  }
+}
+
+/** Companion object for RegionFile */
+object RegionFile {
+  /** The number of bits to shift a column coordinate by to get its region coordinate */
+  final val RegionShift = 5
+
+  /** The number of columns on each side of a region */
+  final val RegionSize = 1 << RegionShift
+
+  /** Mask to get the position of a column inside its region */
+  final val RegionMask = RegionSize - 1
+
+  /** The total number of columns in a region */
+  final val ColumnsPerRegion = RegionSize * RegionSize
+
+  /** The size of a sector, in bytes. The header takes exactly one sector. */
+  final val SectorSize = ColumnsPerRegion * 4
+
+  /** The maximum number of sectors of one column, limited by the header's format */
+  final val MaxSectorsPerColumn = 255
+}
@@ -0,0 +1,103 @@
+package org.tuubes.core.worlds
+
+import java.io.Closeable
+import java.util.concurrent.ConcurrentHashMap
+
+import better.files.File
+import org.tuubes.core.worlds.RegionFile.RegionShift
+
+/**
+ * Stores the chunk columns of a world in [[RegionFile]]s. Each region file is opened once and
+ * kept open until [[close]] is called.
+ *
+ * This class is thread-safe.
+ *
+ * @param directory the directory that contains the region files
+ * @author TheElectronWill
+ */
+final class RegionStorage(val directory: File) extends Closeable {
+  /** The regions that have been accessed so far. None means that the region file doesn't exist. */
+  private[this] val regions = new ConcurrentHashMap[Long, Option[RegionFile]]
+
+  /** Packs the coordinates of the region that contains the column (cx, cz) */
+  private def regionKey(cx: Int, cz: Int): Long = {
+    (cx >> RegionShift).toLong << 32 | (cz >> RegionShift) & 0xFFFFFFFFL
+  }
+
+  private def regionFile(cx: Int, cz: Int): File = {
+    directory / s"${cx >> RegionShift},${cz >> RegionShift}.region"
+  }
+
+  /** Gets a region, without creating it */
+  private def existingRegion(cx: Int, cz: Int): Option[RegionFile] = {
+    val key = regionKey(cx, cz)
+    val region = regions.get(key)
+    if (region ne null) {
+      region
+    } else {
+      regions.computeIfAbsent(key, _ => {
+        val f = regionFile(cx, cz)
+        if (f.exists) Some(new RegionFile(f.path)) else None
+      })
+    }
+  }
+
+  /** Gets a region, and creates it if needed */
+  private def region(cx: Int, cz: Int): RegionFile = {
+    val existing = existingRegion(cx, cz)
+    if (existing.isDefined) {
+      existing.get
+    } else {
+      regions.compute(regionKey(cx, cz), (_, current) => {
+        if ((current ne null) && current.isDefined) {
+          current
+        } else {
+          directory.createDirectories()
+          Some(new RegionFile(regionFile(cx, cz).path))
+        }
+      }).get
+    }
+  }
+
+  /**
+   * Checks if a column exists. Only the first access to a region may hit the disk.
+   *
+   * @param cx column X coordinate
+   * @param cz column Z coordinate
+   * @return true if it exists
+   */
+  def exists(cx: Int, cz: Int): Boolean = {
+    existingRegion(cx, cz).exists(_.exists(cx, cz))
+  }
+
+  /**
+   * Reads the data of a column.
+   *
+   * @param cx column X coordinate
+   * @param cz column Z coordinate
+   * @return the data, or null if the column doesn't exist
+   */
+  def read(cx: Int, cz: Int): Array[Byte] = {
+    existingRegion(cx, cz) match {
+      case Some(r) => r.read(cx, cz)
+      case None => null
+    }
+  }
+
+  /**
+   * Writes the data of a column.
+   *
+   * @param cx   column X coordinate
+   * @param cz   column Z coordinate
+   * @param data the column's data
+   */
+  def write(cx: Int, cz: Int, data: Array[Byte]): Unit = {
+    region(cx, cz).write(cx, cz, data)
+  }
+
+  /** Closes all the region files */
+  override def close(): Unit = {
+    regions.forEach((_, r) => r.foreach(_.close()))
+    regions.clear()
+  }
+}
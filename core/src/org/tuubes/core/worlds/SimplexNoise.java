@@ -1,5 +1,6 @@
 package org.tuubes.core.worlds;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -10,6 +11,12 @@ import java.util.Random;
  * Better rank ordering method for 4D by Stefan Gustavson in 2012.
  * Slightly modified by TheElectronWill for the Photon Project in 2016, then used for TuubesCore.
  * </p>
+ * <p>
+ * The bulk methods {@link #fill2D}, {@link #fill3D}, {@link #fbm2D} and {@link #fbm3D} sample a
+ * whole regular grid into a caller-provided array. They give the same values as the scalar
+ * methods but avoid the per-point overhead: the gradients are looked up in flat arrays indexed by
+ * the permutation, and the contributions of the corners are computed without branches.
+ * </p>
  */
 public final class SimplexNoise {
   // Skewing and unskewing factors for 2, 3, and 4 dimensions
@@ -61,6 +68,11 @@ public final class SimplexNoise {
   private final short perm[] = new short[512];
   private final short permMod12[] = new short[512];
 
+  // Gradient components indexed like permMod12, to avoid dereferencing Grad3 objects in bulk loops
+  private final double permGradX[] = new double[512];
+  private final double permGradY[] = new double[512];
+  private final double permGradZ[] = new double[512];
+
   /**
    * Creates a new noise based on the given seed. The seed is used to populate the permutation table with
    * pseudorandom numbers.
@@ -75,6 +87,12 @@ public final class SimplexNoise {
       permMod12[i] = randShortMod12;
       permMod12[i + 256] = randShortMod12;
     }
+    for (int i = 0; i < 512; i++) {
+      Grad3 g = GRAD_3[permMod12[i]];
+      permGradX[i] = g.x;
+      permGradY[i] = g.y;
+      permGradZ[i] = g.z;
+    }
   }
 
   /**
@@ -403,6 +421,232 @@ public final class SimplexNoise {
     return 27.0 * (n0 + n1 + n2 + n3 + n4);
   }
 
+  /**
+   * Fills an array with 2D simplex noise sampled on a regular grid. The value at the grid point
+   * (i, j) is {@code generate(x + i*step, y + j*step)} and is stored at {@code out[i*sizeY + j]}.
+   *
+   * @param out   the array to fill, of length at least {@code sizeX*sizeY}
+   * @param x     the X coordinate of the first point
+   * @param y     the Y coordinate of the first point
+   * @param step  the distance between two points of the grid
+   * @param sizeX the number of points along X
+   * @param sizeY the number of points along Y
+   */
+  public void fill2D(double[] out, double x, double y, double step, int sizeX, int sizeY) {
+    checkSize(out, sizeX * sizeY);
+    Arrays.fill(out, 0, sizeX * sizeY, 0.0);
+    accumulate2D(out, x, y, step, sizeX, sizeY, 1.0);
+  }
+
+  /**
+   * Fills an array with 3D simplex noise sampled on a regular grid. The value at the grid point
+   * (i, j, k) is {@code generate(x + i*step, y + j*step, z + k*step)} and is stored at
+   * {@code out[(i*sizeY + j)*sizeZ + k]}.
+   *
+   * @param out   the array to fill, of length at least {@code sizeX*sizeY*sizeZ}
+   * @param x     the X coordinate of the first point
+   * @param y     the Y coordinate of the first point
+   * @param z     the Z coordinate of the first point
+   * @param step  the distance between two points of the grid
+   * @param sizeX the number of points along X
+   * @param sizeY the number of points along Y
+   * @param sizeZ the number of points along Z
+   */
+  public void fill3D(double[] out, double x, double y, double z, double step, int sizeX, int sizeY,
+                     int sizeZ) {
+    checkSize(out, sizeX * sizeY * sizeZ);
+    Arrays.fill(out, 0, sizeX * sizeY * sizeZ, 0.0);
+    accumulate3D(out, x, y, z, step, sizeX, sizeY, sizeZ, 1.0);
+  }
+
+  /**
+   * Fills an array with fractal (fBm) 2D noise, that is the sum of several octaves of simplex noise.
+   * Each octave has a frequency multiplied by {@code lacunarity} and an amplitude multiplied by
+   * {@code persistence}. The result is normalized to stay in [-1,1]. The layout of the array is the
+   * same as for {@link #fill2D}.
+   *
+   * @param out         the array to fill, of length at least {@code sizeX*sizeY}
+   * @param x           the X coordinate of the first point
+   * @param y           the Y coordinate of the first point
+   * @param step        the distance between two points of the grid, for the first octave
+   * @param sizeX       the number of points along X
+   * @param sizeY       the number of points along Y
+   * @param octaves     the number of octaves, at least 1
+   * @param lacunarity  the frequency multiplier between two octaves, typically 2
+   * @param persistence the amplitude multiplier between two octaves, typically 0.5
+   */
+  public void fbm2D(double[] out, double x, double y, double step, int sizeX, int sizeY,
+                    int octaves, double lacunarity, double persistence) {
+    checkSize(out, sizeX * sizeY);
+    Arrays.fill(out, 0, sizeX * sizeY, 0.0);
+    final double norm = 1.0 / totalAmplitude(octaves, persistence);
+    double frequency = 1.0, amplitude = norm;
+    for (int o = 0; o < octaves; o++) {
+      accumulate2D(out, x * frequency, y * frequency, step * frequency, sizeX, sizeY, amplitude);
+      frequency *= lacunarity;
+      amplitude *= persistence;
+    }
+  }
+
+  /**
+   * Fills an array with fractal (fBm) 3D noise, that is the sum of several octaves of simplex noise.
+   * See {@link #fbm2D}. The layout of the array is the same as for {@link #fill3D}.
+   *
+   * @param out         the array to fill, of length at least {@code sizeX*sizeY*sizeZ}
+   * @param x           the X coordinate of the first point
+   * @param y           the Y coordinate of the first point
+   * @param z           the Z coordinate of the first point
+   * @param step        the distance between two points of the grid, for the first octave
+   * @param sizeX       the number of points along X
+   * @param sizeY       the number of points along Y
+   * @param sizeZ       the number of points along Z
+   * @param octaves     the number of octaves, at least 1
+   * @param lacunarity  the frequency multiplier between two octaves, typically 2
+   * @param persistence the amplitude multiplier between two octaves, typically 0.5
+   */
+  public void fbm3D(double[] out, double x, double y, double z, double step, int sizeX, int sizeY,
+                    int sizeZ, int octaves, double lacunarity, double persistence) {
+    checkSize(out, sizeX * sizeY * sizeZ);
+    Arrays.fill(out, 0, sizeX * sizeY * sizeZ, 0.0);
+    final double norm = 1.0 / totalAmplitude(octaves, persistence);
+    double frequency = 1.0, amplitude = norm;
+    for (int o = 0; o < octaves; o++) {
+      accumulate3D(out, x * frequency, y * frequency, z * frequency, step * frequency, sizeX, sizeY,
+                   sizeZ, amplitude);
+      frequency *= lacunarity;
+      amplitude *= persistence;
+    }
+  }
+
+  private static double totalAmplitude(int octaves, double persistence) {
+    if (octaves < 1) {
+      throw new IllegalArgumentException("Invalid number of octaves: " + octaves);
+    }
+    double total = 0.0, amplitude = 1.0;
+    for (int o = 0; o < octaves; o++) {
+      total += amplitude;
+      amplitude *= persistence;
+    }
+    return total;
+  }
+
+  private static void checkSize(double[] out, int size) {
+    if (out.length < size) {
+      throw new IllegalArgumentException(
+        "The array is too small: length " + out.length + " < " + size);
+    }
+  }
+
+  /**
+   * Adds {@code amplitude * noise} to each point of a 2D grid. Same algorithm as
+   * {@link #generate(double, double)}, without branches.
+   */
+  private void accumulate2D(double[] out, double xStart, double yStart, double step, int sizeX,
+                            int sizeY, double amplitude) {
+    final short[] perm = this.perm;
+    final double[] gx = permGradX, gy = permGradY;
+    final double scale = 70.0 * amplitude;
+    int idx = 0;
+    for (int a = 0; a < sizeX; a++) {
+      final double xin = xStart + a * step;
+      for (int b = 0; b < sizeY; b++) {
+        final double yin = yStart + b * step;
+        final double s = (xin + yin) * F2;
+        final int i = fastfloor(xin + s), j = fastfloor(yin + s);
+        final double t = (i + j) * G2;
+        final double x0 = xin - i + t;
+        final double y0 = yin - j + t;
+        final int i1 = x0 > y0 ? 1 : 0;
+        final int j1 = 1 - i1;
+        final double x1 = x0 - i1 + G2;
+        final double y1 = y0 - j1 + G2;
+        final double x2 = x0 - 1.0 + 2.0 * G2;
+        final double y2 = y0 - 1.0 + 2.0 * G2;
+        final int ii = i & 255, jj = j & 255;
+        final int g0 = ii + perm[jj];
+        final int g1 = ii + i1 + perm[jj + j1];
+        final int g2 = ii + 1 + perm[jj + 1];
+        // max(c, 0) replaces the "if (contrib >= 0)" of the scalar version
+        double c0 = Math.max(0.5 - x0 * x0 - y0 * y0, 0.0);
+        double c1 = Math.max(0.5 - x1 * x1 - y1 * y1, 0.0);
+        double c2 = Math.max(0.5 - x2 * x2 - y2 * y2, 0.0);
+        c0 *= c0;
+        c1 *= c1;
+        c2 *= c2;
+        final double n = c0 * c0 * (gx[g0] * x0 + gy[g0] * y0)
+                       + c1 * c1 * (gx[g1] * x1 + gy[g1] * y1)
+                       + c2 * c2 * (gx[g2] * x2 + gy[g2] * y2);
+        out[idx++] += scale * n;
+      }
+    }
+  }
+
+  /**
+   * Adds {@code amplitude * noise} to each point of a 3D grid. Same algorithm as
+   * {@link #generate(double, double, double)}, without branches.
+   */
+  private void accumulate3D(double[] out, double xStart, double yStart, double zStart, double step,
+                            int sizeX, int sizeY, int sizeZ, double amplitude) {
+    final short[] perm = this.perm;
+    final double[] gx = permGradX, gy = permGradY, gz = permGradZ;
+    final double scale = 32.0 * amplitude;
+    int idx = 0;
+    for (int a = 0; a < sizeX; a++) {
+      final double xin = xStart + a * step;
+      for (int b = 0; b < sizeY; b++) {
+        final double yin = yStart + b * step;
+        for (int c = 0; c < sizeZ; c++) {
+          final double zin = zStart + c * step;
+          final double s = (xin + yin + zin) * F3;
+          final int i = fastfloor(xin + s);
+          final int j = fastfloor(yin + s);
+          final int k = fastfloor(zin + s);
+          final double t = (i + j + k) * G3;
+          final double x0 = xin - (i - t);
+          final double y0 = yin - (j - t);
+          final double z0 = zin - (k - t);
+          // Rank ordering of (x0, y0, z0), equivalent to the if-else tree of the scalar version
+          final int xy = x0 >= y0 ? 1 : 0;
+          final int yz = y0 >= z0 ? 1 : 0;
+          final int xz = x0 >= z0 ? 1 : 0;
+          final int i1 = xy & xz;
+          final int j1 = yz & (1 - xy);
+          final int k1 = (1 - xz) & (1 - yz);
+          final int i2 = xy | xz;
+          final int j2 = (1 - xy) | yz;
+          final int k2 = (1 - xz) | (1 - yz);
+          final double x1 = x0 - i1 + G3;
+          final double y1 = y0 - j1 + G3;
+          final double z1 = z0 - k1 + G3;
+          final double x2 = x0 - i2 + 2.0 * G3;
+          final double y2 = y0 - j2 + 2.0 * G3;
+          final double z2 = z0 - k2 + 2.0 * G3;
+          final double x3 = x0 - 1.0 + 3.0 * G3;
+          final double y3 = y0 - 1.0 + 3.0 * G3;
+          final double z3 = z0 - 1.0 + 3.0 * G3;
+          final int ii = i & 255, jj = j & 255, kk = k & 255;
+          final int g0 = ii + perm[jj + perm[kk]];
+          final int g1 = ii + i1 + perm[jj + j1 + perm[kk + k1]];
+          final int g2 = ii + i2 + perm[jj + j2 + perm[kk + k2]];
+          final int g3 = ii + 1 + perm[jj + 1 + perm[kk + 1]];
+          double c0 = Math.max(0.6 - x0 * x0 - y0 * y0 - z0 * z0, 0.0);
+          double c1 = Math.max(0.6 - x1 * x1 - y1 * y1 - z1 * z1, 0.0);
+          double c2 = Math.max(0.6 - x2 * x2 - y2 * y2 - z2 * z2, 0.0);
+          double c3 = Math.max(0.6 - x3 * x3 - y3 * y3 - z3 * z3, 0.0);
+          c0 *= c0;
+          c1 *= c1;
+          c2 *= c2;
+          c3 *= c3;
+          final double n = c0 * c0 * (gx[g0] * x0 + gy[g0] * y0 + gz[g0] * z0)
+                         + c1 * c1 * (gx[g1] * x1 + gy[g1] * y1 + gz[g1] * z1)
+                         + c2 * c2 * (gx[g2] * x2 + gy[g2] * y2 + gz[g2] * z2)
+                         + c3 * c3 * (gx[g3] * x3 + gy[g3] * y3 + gz[g3] * z3);
+          out[idx++] += scale * n;
+        }
+      }
+    }
+  }
+
   // Inner class to speed up gradient computations (In Java, array access is a lot slower than member access)
   private static class Grad3 {
     final double x, y, z;
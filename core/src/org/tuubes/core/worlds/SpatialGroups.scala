@@ -0,0 +1,297 @@
+package org.tuubes.core.worlds
+
+import com.electronwill.util.Vec3d
+import org.tuubes.core.engine.{ExecutionGroup, TickRuntime}
+
+import scala.collection.mutable
+
+/**
+ * Assigns the [[ExecutionGroup]]s of the objects of a world according to their position, so
+ * that nearby objects share a group and communicate without going through their mailboxes.
+ *
+ * The world is divided in square regions of 2^regionShift by 2^regionShift chunk columns. All
+ * the objects of a region are in the same group. A new region joins the group of a neighbour
+ * region when possible, so that the groups cover contiguous areas. When the neighbour groups
+ * are full, a new group is created, or the lightest group is used if no group can be created.
+ * The regions without object are forgotten.
+ *
+ * ==Group size==
+ * A group that has more than [[TickRuntime.BatchSize]] actors is split in parallel batches, and
+ * its actors can't communicate directly anymore, see
+ * [[org.tuubes.core.engine.GroupedActor.canProcessNow]]. Therefore a group accepts new regions
+ * only while it has less than `maxGroupSize` objects, and [[rebalance]] splits the groups that
+ * have grown bigger, along the borders of their regions. The small neighbour groups are merged,
+ * and the empty groups are stopped. A single region that has more objects than `maxGroupSize`
+ * can't be split: its group is split in batches by the [[TickRuntime]].
+ *
+ * This class is thread-safe.
+ *
+ * @param regionShift  the size of the regions, as a power of two, in chunk columns
+ * @param maxGroupSize the number of objects above which a group is split
+ * @author TheElectronWill
+ */
+final class SpatialGroups(val regionShift: Int = SpatialGroups.DefaultRegionShift,
+                          val maxGroupSize: Int = SpatialGroups.MaxGroupSize) {
+  /** The regions that contain at least one object */
+  private[this] val regions = new mutable.LongMap[Region]
+
+  /** The groups that execute the regions */
+  private[this] val groups = new mutable.HashMap[ExecutionGroup, GroupRegions]
+
+  /** A region and its objects count */
+  private final class Region(val key: Long, var group: ExecutionGroup) {
+    var objectCount = 0
+  }
+
+  /**
+   * The regions of a group.
+   *
+   * @param owned true if the group has been created by this class, which stops it when it has
+   *              no region anymore
+   */
+  private final class GroupRegions(val group: ExecutionGroup, val owned: Boolean) {
+    val regions = new mutable.LongMap[Region]
+    var objectCount = 0
+  }
+
+  /**
+   * Computes the key of the region that contains a position.
+   *
+   * @param position the position, in blocks
+   * @return the region key
+   */
+  def regionKey(position: Vec3d): Long = {
+    val cx = math.floor(position.x).toInt >> 4
+    val cz = math.floor(position.z).toInt >> 4
+    key(cx >> regionShift, cz >> regionShift)
+  }
+
+  /** @return the number of regions that contain at least one object */
+  def regionCount: Int = this.synchronized(regions.size)
+
+  /** @return the number of groups that execute at least one region */
+  def groupCount: Int = this.synchronized(groups.size)
+
+  /**
+   * Gets the group of a region.
+   *
+   * @param regionKey the region key, see [[regionKey(Vec3d)]]
+   * @return the group of the region, or null if the region has no object
+   */
+  def groupOf(regionKey: Long): ExecutionGroup = {
+    this.synchronized {
+      val region = regions.getOrNull(regionKey)
+      if (region eq null) null else region.group
+    }
+  }
+
+  /**
+   * Registers an object in a region, and returns the group of that region.
+   *
+   * @param regionKey the region key, see [[regionKey(Vec3d)]]
+   * @return the group that executes the region's objects
+   */
+  def enter(regionKey: Long): ExecutionGroup = {
+    this.synchronized {
+      var region = regions.getOrNull(regionKey)
+      if (region eq null) {
+        val groupRegions = chooseGroup(regionKey)
+        region = new Region(regionKey, groupRegions.group)
+        regions(regionKey) = region
+        groupRegions.regions(regionKey) = region
+      }
+      region.objectCount += 1
+      groups(region.group).objectCount += 1
+      region.group
+    }
+  }
+
+  /**
+   * Unregisters an object from a region.
+   *
+   * @param regionKey the region key, see [[regionKey(Vec3d)]]
+   */
+  def leave(regionKey: Long): Unit = {
+    this.synchronized {
+      val region = regions.getOrNull(regionKey)
+      if (region ne null) {
+        val groupRegions = groups(region.group)
+        region.objectCount -= 1
+        groupRegions.objectCount -= 1
+        if (region.objectCount <= 0) {
+          regions -= regionKey
+          groupRegions.regions -= regionKey
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the groups that are too big and merges the small ones, along the borders of their
+   * regions, and stops the groups that have no region anymore. Called between two ticks.
+   *
+   * @param moved called for each region whose group has changed, with the region key and the
+   *              new group. The objects of these regions must be moved to their new group.
+   */
+  def rebalance(moved: (Long, ExecutionGroup) => Unit): Unit = {
+    this.synchronized {
+      val all = groups.values.toArray
+      // Splits the big groups in two halves
+      for (g <- all if g.objectCount > maxGroupSize && g.regions.size > 1) {
+        split(g, moved)
+      }
+      // Merges the small groups into a neighbour group, so that the merged group stays far
+      // from the split threshold
+      for (g <- all if g.owned && g.regions.nonEmpty && g.objectCount <= maxGroupSize / 4) {
+        val target = smallNeighbour(g, maxGroupSize / 2 - g.objectCount)
+        if (target ne null) {
+          for (region <- g.regions.values.toArray) {
+            move(region, g, target, moved)
+          }
+        }
+      }
+      // Stops the groups that are empty
+      for (g <- groups.values.toArray if g.regions.isEmpty) {
+        if (!g.owned) {
+          groups -= g.group // not created here, only forgotten
+        } else if (g.group.isEmpty) {
+          groups -= g.group
+          g.group.stop()
+        }
+      }
+    }
+  }
+
+  /** Moves the regions of one half of a group, along its longest side, to a new group */
+  private def split(g: GroupRegions, moved: (Long, ExecutionGroup) => Unit): Unit = {
+    val all = g.regions.values.toArray
+    val xs = all.map(r => (r.key >> 32).toInt)
+    val zs = all.map(_.key.toInt)
+    val sorted =
+      if (xs.max - xs.min >= zs.max - zs.min) {
+        all.sortBy(r => ((r.key >> 32).toInt, r.key.toInt))
+      } else {
+        all.sortBy(r => (r.key.toInt, (r.key >> 32).toInt))
+      }
+    // The first half, by objects count, stays in the group
+    var kept = 0
+    var i = 0
+    while (i < sorted.length - 1 && kept + sorted(i).objectCount <= g.objectCount / 2) {
+      kept += sorted(i).objectCount
+      i += 1
+    }
+    i = math.max(i, 1) // keeps at least one region
+    val newGroup = createGroup()
+    if (newGroup ne null) {
+      while (i < sorted.length) {
+        move(sorted(i), g, newGroup, moved)
+        i += 1
+      }
+    }
+  }
+
+  /** Finds a neighbour group that has at most `maxObjects` objects, or null */
+  private def smallNeighbour(g: GroupRegions, maxObjects: Int): GroupRegions = {
+    var found: GroupRegions = null
+    val it = g.regions.valuesIterator
+    while ((found eq null) && it.hasNext) {
+      val region = it.next()
+      val rx = (region.key >> 32).toInt
+      val rz = region.key.toInt
+      var dx = -1
+      while ((found eq null) && dx <= 1) {
+        var dz = -1
+        while ((found eq null) && dz <= 1) {
+          val neighbour = regions.getOrNull(key(rx + dx, rz + dz))
+          if ((neighbour ne null) && (neighbour.group ne g.group)) {
+            val other = groups(neighbour.group)
+            if (other.objectCount <= maxObjects) {
+              found = other
+            }
+          }
+          dz += 1
+        }
+        dx += 1
+      }
+    }
+    found
+  }
+
+  private def move(region: Region, from: GroupRegions, to: GroupRegions,
+                   moved: (Long, ExecutionGroup) => Unit): Unit = {
+    from.regions -= region.key
+    from.objectCount -= region.objectCount
+    to.regions(region.key) = region
+    to.objectCount += region.objectCount
+    region.group = to.group
+    moved(region.key, to.group)
+  }
+
+  /** Chooses the group of a new region */
+  private def chooseGroup(regionKey: Long): GroupRegions = {
+    val rx = (regionKey >> 32).toInt
+    val rz = regionKey.toInt
+    // Joins the lightest neighbour group that isn't full
+    var best: GroupRegions = null
+    var dx = -1
+    while (dx <= 1) {
+      var dz = -1
+      while (dz <= 1) {
+        val neighbour = regions.getOrNull(key(rx + dx, rz + dz))
+        if (neighbour ne null) {
+          val g = groups(neighbour.group)
+          val lighter = (best eq null) || g.objectCount < best.objectCount
+          if (g.objectCount < maxGroupSize && lighter) {
+            best = g
+          }
+        }
+        dz += 1
+      }
+      dx += 1
+    }
+    if (best ne null) {
+      best
+    } else {
+      // Starts a new group for this area, if possible
+      val created = createGroup()
+      if (created ne null) {
+        created
+      } else {
+        val lightest = ExecutionGroup.lightest()
+        groups.getOrElseUpdate(lightest, new GroupRegions(lightest, owned = false))
+      }
+    }
+  }
+
+  /** Creates and starts a new group, or returns null if no group can be created */
+  private def createGroup(): GroupRegions = {
+    ExecutionGroup.create() match {
+      case Some(group) => {
+        group.start()
+        val g = new GroupRegions(group, owned = true)
+        groups(group) = g
+        g
+      }
+      case None => null
+    }
+  }
+
+  /** Packs 2 ints into 1 long. */
+  private def key(rx: Int, rz: Int): Long = {
+    rx.toLong << 32 | rz & 0xFFFFFFFFl
+  }
+}
+
+object SpatialGroups {
+  /** The default size of a region: 8x8 chunk columns */
+  val DefaultRegionShift: Int = 3
+
+  /**
+   * The default number of objects above which a group doesn't accept new regions and is split:
+   * the size above which the [[TickRuntime]] splits a group in batches.
+   */
+  val MaxGroupSize: Int = TickRuntime.BatchSize
+
+  /** The number of ticks between two calls to [[SpatialGroups.rebalance]] by the world */
+  val RebalancePeriod: Int = 20
+}
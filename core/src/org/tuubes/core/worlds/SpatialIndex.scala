@@ -0,0 +1,377 @@
+package org.tuubes.core.worlds
+
+import java.util.Arrays
+import java.util.concurrent.locks.ReentrantReadWriteLock
+
+import com.electronwill.collection.ChunkedMpscQueue
+import org.tuubes.core.engine.{GameObject, TickListener}
+
+import scala.collection.mutable
+
+/**
+ * Indexes the positions of the objects of a world, to find the objects around a position
+ * without scanning all of them. The world is divided in cells of 16*16*16 blocks, like the
+ * chunks, and each cell keeps the objects it contains with a copy of their positions.
+ *
+ * ==Updates==
+ * The objects report their moves with [[update]] during their update. The moves are applied at
+ * the end of the tick, so that the queries made during a tick see a consistent snapshot: the
+ * positions at the end of the previous tick.
+ *
+ * ==Queries==
+ * The queries call a [[SpatialVisitor]] for each object found. They don't allocate anything,
+ * and can be made by several threads at the same time.
+ *
+ * @param world the world that contains the objects
+ * @author TheElectronWill
+ */
+final class SpatialIndex(world: LocalWorld) extends TickListener {
+  import SpatialIndex._
+
+  /** The non-empty cells, by packed cell coordinates */
+  private[this] val cells = new mutable.LongMap[Cell]
+
+  /** The objects whose position has changed since the last tick */
+  private[this] val pending = new ChunkedMpscQueue[GameObject](chunkSize = 256)
+
+  private[this] val lock = new ReentrantReadWriteLock
+  @volatile private[this] var objectCount = 0
+
+  /** @return the number of indexed objects */
+  def size: Int = objectCount
+
+  /**
+   * Notifies the index that an object has been added or has moved. The change is applied at
+   * the end of the tick.
+   *
+   * @param obj the object
+   */
+  private[core] def update(obj: GameObject): Unit = {
+    if (!obj.spatialQueued) {
+      obj.spatialQueued = true
+      pending.offer(obj)
+    }
+  }
+
+  /**
+   * Notifies the index that an object is being removed from the world. Must be called before
+   * the object is removed. The change is applied at the end of the tick.
+   *
+   * @param obj the object
+   */
+  private[core] def remove(obj: GameObject): Unit = {
+    pending.offer(obj) // may be queued twice, applying a change is idempotent
+  }
+
+  /** Applies the changes of the tick */
+  override def onTickEnd(tick: Long): Unit = {
+    if (!pending.isEmpty) {
+      lock.writeLock().lock()
+      try {
+        pending.drain(applyChange)
+      } finally {
+        lock.writeLock().unlock()
+      }
+    }
+  }
+
+  /** Moves an object to the cell of its current position */
+  private def applyChange(obj: GameObject): Unit = {
+    obj.spatialQueued = false
+    var current = obj.spatialCell
+    if ((current ne null) && (current.owner ne this)) {
+      // The object comes from another world that hasn't applied its changes yet
+      current.owner.detach(obj)
+      current = null
+    }
+    val position = if (world.contains(obj)) obj.position else null
+    if (position eq null) {
+      if (current ne null) {
+        removeFrom(current, obj)
+      }
+    } else {
+      val key = cellKey(position.x, position.y, position.z)
+      if ((current ne null) && current.key == key) {
+        current.setPosition(obj.spatialSlot, position.x, position.y, position.z)
+      } else {
+        if (current ne null) {
+          removeFrom(current, obj)
+        }
+        var cell = cells.getOrNull(key)
+        if (cell eq null) {
+          cell = new Cell(this, key)
+          cells(key) = cell
+        }
+        cell.add(obj, position.x, position.y, position.z)
+        objectCount += 1
+      }
+    }
+  }
+
+  /** Removes an object that is now in another world */
+  private def detach(obj: GameObject): Unit = {
+    lock.writeLock().lock()
+    try {
+      removeFrom(obj.spatialCell, obj)
+    } finally {
+      lock.writeLock().unlock()
+    }
+  }
+
+  private def removeFrom(cell: Cell, obj: GameObject): Unit = {
+    cell.remove(obj.spatialSlot)
+    obj.spatialCell = null
+    objectCount -= 1
+    if (cell.count == 0) {
+      cells -= cell.key
+    }
+  }
+
+  /**
+   * Visits the objects whose distance to a point is less than or equal to a radius.
+   *
+   * @param x       the point's x
+   * @param y       the point's y
+   * @param z       the point's z
+   * @param radius  the radius, in blocks
+   * @param visitor the visitor to call on each object
+   * @return the number of objects visited
+   */
+  def forEachInRadius(x: Double, y: Double, z: Double, radius: Double,
+                      visitor: SpatialVisitor): Int = {
+    val r2 = radius * radius
+    var visited = 0
+    lock.readLock().lock()
+    try {
+      val minX = cellCoord(x - radius)
+      val maxX = cellCoord(x + radius)
+      val minY = cellCoord(y - radius)
+      val maxY = cellCoord(y + radius)
+      val minZ = cellCoord(z - radius)
+      val maxZ = cellCoord(z + radius)
+      var cx = minX
+      while (cx <= maxX) {
+        var cy = minY
+        while (cy <= maxY) {
+          var cz = minZ
+          while (cz <= maxZ) {
+            val cell = cells.getOrNull(packKey(cx, cy, cz))
+            if (cell ne null) {
+              var i = 0
+              while (i < cell.count) {
+                val dx = cell.xs(i) - x
+                val dy = cell.ys(i) - y
+                val dz = cell.zs(i) - z
+                if (dx * dx + dy * dy + dz * dz <= r2) {
+                  visitor.visit(cell.objects(i), cell.xs(i), cell.ys(i), cell.zs(i))
+                  visited += 1
+                }
+                i += 1
+              }
+            }
+            cz += 1
+          }
+          cy += 1
+        }
+        cx += 1
+      }
+    } finally {
+      lock.readLock().unlock()
+    }
+    visited
+  }
+
+  /**
+   * Visits the objects that are in an axis-aligned box.
+   *
+   * @param minX    the minimum x, inclusive
+   * @param minY    the minimum y, inclusive
+   * @param minZ    the minimum z, inclusive
+   * @param maxX    the maximum x, inclusive
+   * @param maxY    the maximum y, inclusive
+   * @param maxZ    the maximum z, inclusive
+   * @param visitor the visitor to call on each object
+   * @return the number of objects visited
+   */
+  def forEachInBox(minX: Double, minY: Double, minZ: Double,
+                   maxX: Double, maxY: Double, maxZ: Double,
+                   visitor: SpatialVisitor): Int = {
+    var visited = 0
+    lock.readLock().lock()
+    try {
+      val maxCx = cellCoord(maxX)
+      val maxCy = cellCoord(maxY)
+      val maxCz = cellCoord(maxZ)
+      var cx = cellCoord(minX)
+      while (cx <= maxCx) {
+        var cy = cellCoord(minY)
+        while (cy <= maxCy) {
+          var cz = cellCoord(minZ)
+          while (cz <= maxCz) {
+            val cell = cells.getOrNull(packKey(cx, cy, cz))
+            if (cell ne null) {
+              var i = 0
+              while (i < cell.count) {
+                val ox = cell.xs(i)
+                val oy = cell.ys(i)
+                val oz = cell.zs(i)
+                val inside = ox >= minX && ox <= maxX && oy >= minY && oy <= maxY
+                if (inside && oz >= minZ && oz <= maxZ) {
+                  visitor.visit(cell.objects(i), ox, oy, oz)
+                  visited += 1
+                }
+                i += 1
+              }
+            }
+            cz += 1
+          }
+          cy += 1
+        }
+        cx += 1
+      }
+    } finally {
+      lock.readLock().unlock()
+    }
+    visited
+  }
+
+  /**
+   * Finds the nearest object of a point. The cells are searched from the nearest to the
+   * farthest, and the search stops as soon as the remaining cells can't contain a nearer object.
+   *
+   * @param x         the point's x
+   * @param y         the point's y
+   * @param z         the point's z
+   * @param maxRadius the maximum distance of the object, in blocks
+   * @param filter    the objects to consider, or null to consider all the objects
+   * @return the nearest object, or null if there is no object within maxRadius
+   */
+  def nearest(x: Double, y: Double, z: Double, maxRadius: Double,
+              filter: SpatialFilter = null): GameObject = {
+    var best: GameObject = null
+    var bestDist2 = maxRadius * maxRadius
+    lock.readLock().lock()
+    try {
+      val ccx = cellCoord(x)
+      val ccy = cellCoord(y)
+      val ccz = cellCoord(z)
+      val maxRing = (maxRadius / CellSize).toInt + 1
+      var ring = 0
+      // The objects of the ring r are at least (r - 1) * CellSize blocks away
+      while (ring <= maxRing && ((best eq null) || (ring - 1) * CellSize < math.sqrt(bestDist2))) {
+        var cx = ccx - ring
+        while (cx <= ccx + ring) {
+          var cy = ccy - ring
+          while (cy <= ccy + ring) {
+            val onShell = math.abs(cx - ccx) == ring || math.abs(cy - ccy) == ring
+            // Inside the shell, only the two z faces are part of the ring
+            val stepZ = if (onShell || ring == 0) 1 else 2 * ring
+            var cz = ccz - ring
+            while (cz <= ccz + ring) {
+              val cell = cells.getOrNull(packKey(cx, cy, cz))
+              if (cell ne null) {
+                var i = 0
+                while (i < cell.count) {
+                  val dx = cell.xs(i) - x
+                  val dy = cell.ys(i) - y
+                  val dz = cell.zs(i) - z
+                  val d2 = dx * dx + dy * dy + dz * dz
+                  if (d2 <= bestDist2 && ((filter eq null) || filter.accept(cell.objects(i)))) {
+                    best = cell.objects(i)
+                    bestDist2 = d2
+                  }
+                  i += 1
+                }
+              }
+              cz += stepZ
+            }
+            cy += 1
+          }
+          cx += 1
+        }
+        ring += 1
+      }
+    } finally {
+      lock.readLock().unlock()
+    }
+    best
+  }
+}
+
+object SpatialIndex {
+  /** The size of a cell, in blocks */
+  final val CellSize = 16
+
+  /** Gets the cell coordinate of a block coordinate */
+  private def cellCoord(v: Double): Int = math.floor(v).toInt >> 4
+
+  /** Computes the key of the cell that contains a position */
+  private def cellKey(x: Double, y: Double, z: Double): Long = {
+    packKey(cellCoord(x), cellCoord(y), cellCoord(z))
+  }
+
+  /** Packs the cell coordinates into 1 long: 26 bits for x and z, 12 bits for y */
+  private def packKey(cx: Int, cy: Int, cz: Int): Long = {
+    (cx & 0x3FFFFFFL) << 38 | (cz & 0x3FFFFFFL) << 12 | (cy & 0xFFFL)
+  }
+
+  /** A cell and its objects, with a copy of their positions for fast filtering */
+  private[core] final class Cell(val owner: SpatialIndex, val key: Long) {
+    var objects = new Array[GameObject](4)
+    var xs = new Array[Double](4)
+    var ys = new Array[Double](4)
+    var zs = new Array[Double](4)
+    var count = 0
+
+    def add(obj: GameObject, x: Double, y: Double, z: Double): Unit = {
+      if (count == objects.length) {
+        val capacity = count * 2
+        objects = Arrays.copyOf(objects, capacity)
+        xs = Arrays.copyOf(xs, capacity)
+        ys = Arrays.copyOf(ys, capacity)
+        zs = Arrays.copyOf(zs, capacity)
+      }
+      objects(count) = obj
+      obj.spatialCell = this
+      obj.spatialSlot = count
+      setPosition(count, x, y, z)
+      count += 1
+    }
+
+    /** Removes the object at the given slot, and moves the last object to that slot */
+    def remove(slot: Int): Unit = {
+      count -= 1
+      if (slot != count) {
+        val last = objects(count)
+        objects(slot) = last
+        last.spatialSlot = slot
+        setPosition(slot, xs(count), ys(count), zs(count))
+      }
+      objects(count) = null
+    }
+
+    def setPosition(slot: Int, x: Double, y: Double, z: Double): Unit = {
+      xs(slot) = x
+      ys(slot) = y
+      zs(slot) = z
+    }
+  }
+}
+
+/** Called by the queries of a [[SpatialIndex]] for each object found. */
+trait SpatialVisitor {
+  /**
+   * Visits an object.
+   *
+   * @param obj the object
+   * @param x   the object's x, as indexed
+   * @param y   the object's y, as indexed
+   * @param z   the object's z, as indexed
+   */
+  def visit(obj: GameObject, x: Double, y: Double, z: Double): Unit
+}
+
+/** Selects the objects considered by [[SpatialIndex.nearest]]. */
+trait SpatialFilter {
+  def accept(obj: GameObject): Boolean
+}
@@ -2,6 +2,8 @@ package org.tuubes.core.worlds
 
 import org.tuubes.core.engine.ActorMessage
 
+import scala.util.Try
+
 sealed trait ChunkServiceMessage extends ActorMessage
 
 final case class RequestCreate(cx: Int, cz: Int, callback: ChunkColumn => Unit)
@@ -13,8 +15,39 @@ final case class RequestExisting(cx: Int, cz: Int, callback: Option[ChunkColumn]
 final case class TestExists(cx: Int, cz: Int, callback: Boolean => Unit)
   extends ChunkServiceMessage
 
+final case class RequestArea(area: ColumnArea, listener: AreaListener)
+  extends ChunkServiceMessage
+
+final case class TestExistsArea(area: ColumnArea, callback: AreaExistence => Unit)
+  extends ChunkServiceMessage
+
+final case class CancelRequest(cx: Int, cz: Int, callback: ChunkColumn => Unit)
+  extends ChunkServiceMessage
+
+final case class AddViewer(viewerId: Int, cx: Int, cz: Int, radius: Int, listener: ColumnViewer)
+  extends ChunkServiceMessage
+
+final case class UpdateViewer(viewerId: Int, cx: Int, cz: Int)
+  extends ChunkServiceMessage
+
+final case class RemoveViewer(viewerId: Int)
+  extends ChunkServiceMessage
+
 final case class LoadComplete(key: Long, column: ChunkColumn)
   extends ChunkServiceMessage
 
+final case class LoadBatchComplete(keys: Array[Long], columns: Array[ChunkColumn])
+  extends ChunkServiceMessage
+
 final case class GenerationComplete(key: Long, column: ChunkColumn)
   extends ChunkServiceMessage
+
+final case class SaveComplete(key: Long, column: ChunkColumn)
+  extends ChunkServiceMessage
+
+final case class SaveFailed(key: Long, column: ChunkColumn)
+  extends ChunkServiceMessage
+
+final case class SaveReplaced(key: Long) extends ChunkServiceMessage
+
+final case class SaveAll(done: Try[Unit] => Unit) extends ChunkServiceMessage
@@ -0,0 +1,64 @@
+package org.tuubes.core.engine
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestAttributeChangeSet {
+	@Test
+	def testConsumers(): Unit = {
+		val changeSet = new AttributeChangeSet
+		val a = new GameObject
+		val b = new GameObject
+		val first = new RecordingConsumer
+		val second = new RecordingConsumer
+
+		// Without consumer, the objects aren't collected
+		changeSet.add(a)
+		changeSet.addConsumer(first)
+		try {
+			changeSet.onTickEnd(1)
+			assertEquals(Seq("end 1"), first.events)
+
+			// Each consumer sees each object, then the end of the tick
+			changeSet.addConsumer(second)
+			changeSet.add(a)
+			changeSet.add(b)
+			changeSet.onTickEnd(2)
+			val expected = Seq("end 1", s"$a 2", s"$b 2", "end 2")
+			assertEquals(expected, first.events)
+			assertEquals(expected.tail, second.events)
+
+			// The objects are drained
+			changeSet.onTickEnd(3)
+			assertEquals(expected :+ "end 3", first.events)
+		} finally {
+			changeSet.removeConsumer(first)
+			changeSet.removeConsumer(second)
+		}
+
+		// The collection stops with the last consumer
+		changeSet.add(a)
+		changeSet.addConsumer(first)
+		try {
+			val n = first.events.size
+			changeSet.onTickEnd(4)
+			assertEquals(Seq("end 4"), first.events.drop(n))
+		} finally {
+			changeSet.removeConsumer(first)
+		}
+	}
+}
+
+/** Records the calls to the consumer's methods */
+private final class RecordingConsumer extends AttributeChangeConsumer {
+	val events = ArrayBuffer[String]()
+
+	override def onChanged(obj: GameObject, tick: Long): Unit = events += s"$obj $tick"
+
+	override def onChangesEnd(tick: Long): Unit = events += s"end $tick"
+}
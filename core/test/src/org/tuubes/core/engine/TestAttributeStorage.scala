@@ -0,0 +1,159 @@
+package org.tuubes.core.engine
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestAttributeStorage {
+	private val a = AttributeKey.create[String]()
+	private val b = AttributeKey.create[String]()
+	private val c = AttributeKey.create[String]()
+
+	@Test
+	def testLayouts(): Unit = {
+		val layout = AttributeLayout.of(a, b)
+		assertSame(layout, AttributeLayout.of(a, b)) // the transitions are cached
+		assertSame(layout, layout.withKey(a))
+		assertSame(layout.withKey(c), layout.withKey(c))
+		assertNotSame(layout, AttributeLayout.of(b, a))
+		assertEquals(2, layout.size)
+		assertEquals(0, layout.slotOf(a))
+		assertEquals(1, layout.slotOf(b))
+		assertEquals(-1, layout.slotOf(c))
+		assertEquals(-1, AttributeLayout.Empty.slotOf(a))
+	}
+
+	@Test
+	def testGrowingLayout(): Unit = {
+		val storage = new AttributeStorage(AttributeLayout.of(a))
+		assertEquals(None, storage(a))
+		storage.put(a, "a")
+		storage.put(b, "b") // not in the layout
+		assertTrue(storage += (c, "c"))
+		assertFalse(storage += (c, "other"))
+		assertEquals(Some("a"), storage(a))
+		assertEquals("b", storage.getOrNull(b))
+		assertEquals("c", storage.getOrNull(c))
+		assertEquals(3, storage.size)
+
+		assertTrue(storage -= b)
+		assertFalse(storage -= b)
+		assertNull(storage.getOrNull(b))
+		assertFalse(storage.update(b, "b"))
+		assertEquals(Set("a", "c"), storage.map(_.get).toSet)
+		storage.put(b, "b2") // comes back in its slot
+		assertEquals("b2", storage.getOrNull(b))
+	}
+
+	@Test
+	def testDirtyList(): Unit = {
+		val storage = new AttributeStorage(AttributeLayout.of(a, b, c))
+		storage.put(a, "a")
+		storage.put(b, "b")
+		storage.put(c, "c")
+		assertEquals(3, storage.endCycle())
+		assertEquals(Set(a.id, b.id, c.id), changedIds(storage).toSet)
+		assertEquals(0, storage.endCycle())
+		assertEquals(Seq(), changedIds(storage))
+
+		// Only the modified attributes are visited, once even if modified several times
+		storage.update(b, "b1")
+		storage.update(b, "b2")
+		assertTrue(storage.hasChanged(b))
+		assertFalse(storage.hasChanged(a))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(b.id), changedIds(storage))
+		assertFalse(storage.hasChanged(b))
+
+		// A removed attribute is skipped
+		storage.update(a, "a1")
+		storage.update(c, "c1")
+		storage -= a
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(c.id), changedIds(storage))
+	}
+
+	@Test
+	def testMemorizedSetBack(): Unit = {
+		val storage = new AttributeStorage
+		storage.put(a, "a")
+		storage.listen(a, new ValueListener[String] {
+			override def onChange(oldValue: String, newValue: String): Unit = ()
+		})
+		storage.endCycle()
+		storage.put(a, "b")
+		storage.put(a, "a")
+		assertFalse(storage.hasChanged(a))
+		assertEquals(0, storage.endCycle())
+		assertEquals(Seq(), changedIds(storage))
+	}
+
+	@Test
+	def testChangesByListeners(): Unit = {
+		val storage = new AttributeStorage
+		storage.put(a, "a")
+		storage.put(b, "b")
+		storage.endCycle()
+		storage.listen(a, new SimpleValueListener[String] {
+			override def onChange(newValue: String): Unit = storage.put(b, newValue + "!")
+		})
+
+		// The change made by the listener is part of the next cycle
+		storage.put(a, "a1")
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(a.id), changedIds(storage))
+		assertTrue(storage.hasChanged(b))
+		assertEquals("a1!", storage.getOrNull(b))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(b.id), changedIds(storage))
+		assertEquals(0, storage.endCycle())
+
+		// Including a change of an attribute that has already been visited in the cycle
+		storage.put(b, "b1")
+		storage.put(a, "a2")
+		assertEquals(2, storage.endCycle())
+		assertTrue(storage.hasChanged(b))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(b.id), changedIds(storage))
+		assertEquals("a2!", storage.getOrNull(b))
+	}
+
+	@Test
+	def testListenMemorizes(): Unit = {
+		val storage = new AttributeStorage
+		storage.put(a, "a")
+		storage.endCycle()
+		val changes = ArrayBuffer[(String, String)]()
+		val key = storage.listen(a, new ValueListener[String] {
+			override def onChange(oldValue: String, newValue: String): Unit = {
+				changes += ((oldValue, newValue))
+			}
+		})
+		assertTrue(key.isDefined)
+		assertTrue(storage.iterator.next().isInstanceOf[MemorizedAttribute[_]])
+
+		// The listener must be kept by the MemorizedAttribute that replaces the SimpleAttribute
+		storage.put(a, "b")
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq(("a", "b")), changes)
+
+		storage.unlisten(a, key.get)
+		storage.put(a, "c")
+		assertEquals(1, storage.endCycle())
+		assertEquals(1, changes.size)
+		assertEquals(None, storage.listen(b, new ValueListener[String] {
+			override def onChange(oldValue: String, newValue: String): Unit = ()
+		}))
+	}
+
+	/** @return the ids of the attributes that have changed during the last cycle */
+	private def changedIds(storage: AttributeStorage): Seq[Int] = {
+		val ids = ArrayBuffer[Int]()
+		storage.foreachChange(attribute => ids += attribute.typ.id)
+		ids
+	}
+}
@@ -0,0 +1,157 @@
+package org.tuubes.core.engine
+
+import com.electronwill.util.Vec3d
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.engine.StandardComponents.{AiState, Position, Velocity}
+import org.tuubes.core.worlds.LocalWorld
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestComponentStore {
+	private final val FarId = ComponentStore.PageSize * 2 - 48 // in the second page
+
+	@Test
+	def testAttach(): Unit = {
+		val store = new ComponentStore
+		assertFalse(store.has(5, Position))
+		store.attach(5, Position)
+		store.attach(FarId, Position)
+		store.attach(FarId, Velocity)
+		assertTrue(store.has(5, Position))
+		assertFalse(store.has(5, Velocity))
+		assertTrue(store.has(FarId, Velocity))
+		assertFalse(store.has(6, Position))
+		assertFalse(store.has(ComponentStore.PageSize * 100, Position)) // page not allocated
+
+		store.setDouble(5, Position, 1, 64.5)
+		store.setDouble(FarId, Position, 1, -1.0)
+		assertEquals(64.5, store.getDouble(5, Position, 1))
+		assertEquals(-1.0, store.getDouble(FarId, Position, 1))
+
+		// The fields are zeroed when the component is attached again
+		store.detach(5, Position)
+		assertFalse(store.has(5, Position))
+		store.attach(5, Position)
+		assertEquals(0.0, store.getDouble(5, Position, 1))
+
+		store.detachAll(FarId)
+		assertFalse(store.has(FarId, Position))
+		assertFalse(store.has(FarId, Velocity))
+		assertTrue(store.has(5, Position))
+	}
+
+	@Test
+	def testIntComponent(): Unit = {
+		val store = new ComponentStore
+		store.attach(FarId, AiState)
+		store.setInt(FarId, AiState, 0, 42)
+		assertEquals(42, store.getInt(FarId, AiState, 0))
+		store.attach(FarId, AiState)
+		assertEquals(0, store.getInt(FarId, AiState, 0))
+	}
+
+	@Test
+	def testMovementSystem(): Unit = {
+		val store = new ComponentStore
+		val moving = 1
+		val stopped = 2
+		val noVelocity = 3
+		for (id <- Seq(moving, stopped, FarId)) {
+			store.attach(id, Position)
+			store.attach(id, Velocity)
+		}
+		store.attach(noVelocity, Position)
+		store.attach(noVelocity + 1, Velocity) // velocity without position
+		setVec(store, moving, Velocity, 1.0, 2.0, -4.0)
+		setVec(store, noVelocity + 1, Velocity, 1.0, 1.0, 1.0)
+		setVec(store, FarId, Velocity, 0.0, 0.0, 8.0)
+		setVec(store, FarId, Position, 10.0, 20.0, 30.0)
+
+		val system = new MovementSystem
+		store.addSystem(system)
+		try {
+			store.runSystems() // the first run has no elapsed time
+			Seq(moving, stopped, noVelocity, FarId).foreach(store.takeChanges)
+			Thread.sleep(2)
+			store.runSystems()
+
+			// The displacement is proportional to the velocity
+			val dx = store.getDouble(moving, Position, 0)
+			assertTrue(dx > 0, s"dx = $dx")
+			assertEquals(2 * dx, store.getDouble(moving, Position, 1), 1e-12)
+			assertEquals(-4 * dx, store.getDouble(moving, Position, 2), 1e-12)
+			assertEquals(Vec3d(10.0, 20.0, 30.0 + 8 * dx), getVec(store, FarId, Position))
+
+			// The objects that don't move are untouched
+			assertEquals(Vec3d(0.0, 0.0, 0.0), getVec(store, stopped, Position))
+			assertEquals(Vec3d(0.0, 0.0, 0.0), getVec(store, noVelocity, Position))
+
+			// Only the moved objects report a change of their position, once
+			assertEquals(Position.mask, store.takeChanges(moving))
+			assertEquals(Position.mask, store.takeChanges(FarId))
+			assertEquals(0L, store.takeChanges(moving))
+			assertEquals(0L, store.takeChanges(stopped))
+			assertEquals(0L, store.takeChanges(noVelocity))
+			assertEquals(0L, store.takeChanges(noVelocity + 1))
+		} finally {
+			store.removeSystem(system)
+		}
+	}
+
+	@Test
+	def testBoundAttributes(): Unit = {
+		val world = new LocalWorld(s"test-components-${System.nanoTime()}")
+		val positionKey = AttributeKey.create[Vec3d]()
+		val velocityKey = AttributeKey.create[Vec3d]()
+		val obj = new GameObject
+		world.add(obj)
+		val id = obj.id
+		obj.bindComponent(positionKey, ComponentBinding.vec3d(Position))
+		obj.bindComponent(velocityKey, ComponentBinding.vec3d(Velocity))
+		assertTrue(world.components.has(id, Position))
+		assertTrue(world.components.has(id, Velocity))
+		setVec(world.components, id, Velocity, 0.0, 1.0, 0.0)
+
+		val system = new MovementSystem
+		world.components.addSystem(system)
+		try {
+			obj.update(0) // the new attributes
+			assertEquals(Set(positionKey.id, velocityKey.id), changedIds(obj).toSet)
+
+			world.components.runSystems()
+			Thread.sleep(2)
+			world.components.runSystems()
+			// The object sees the change made by the system at its next update
+			obj.update(0)
+			assertEquals(Seq(positionKey.id), changedIds(obj))
+			assertTrue(world.components.getDouble(id, Position, 1) > 0)
+			obj.update(0)
+			assertEquals(Seq(), changedIds(obj))
+		} finally {
+			world.components.removeSystem(system)
+			world.remove(obj)
+		}
+		assertFalse(world.components.has(id, Position))
+	}
+
+	private def setVec(store: ComponentStore, id: Int, c: DoubleComponent,
+			x: Double, y: Double, z: Double): Unit = {
+		store.setDouble(id, c, 0, x)
+		store.setDouble(id, c, 1, y)
+		store.setDouble(id, c, 2, z)
+	}
+
+	private def getVec(store: ComponentStore, id: Int, c: DoubleComponent): Vec3d = {
+		Vec3d(store.getDouble(id, c, 0), store.getDouble(id, c, 1), store.getDouble(id, c, 2))
+	}
+
+	private def changedIds(obj: GameObject): Seq[Int] = {
+		val ids = ArrayBuffer[Int]()
+		obj.foreachChangedAttribute(attribute => ids += attribute.typ.id)
+		ids
+	}
+}
@@ -0,0 +1,29 @@
+package org.tuubes.core.engine
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.engine.messages.MoveToGroup
+
+/**
+ * @author TheElectronWill
+ */
+class TestGroupedActor {
+	@Test
+	def testUnhandledMessages(): Unit = {
+		val group = new ExecutionGroup(-1)
+		val obj = new GameObject
+		obj.group = group
+
+		// Processed immediately: the messages unknown to the actor's classes are ignored
+		obj.!(Text("unknown"))(group)
+		val other = new ExecutionGroup(-1)
+		obj.!(MoveToGroup(other))(group)
+		assertSame(other, obj.moveGroup)
+
+		// Processed from the mailbox
+		obj.state = ActorState.Running
+		obj.!(Text("later"))(null)
+		obj.processMessages()
+		assertEquals(ActorState.Running, obj.state)
+	}
+}
@@ -0,0 +1,105 @@
+package org.tuubes.core.engine
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestMailbox {
+	@Test
+	def testDrop(): Unit = {
+		val mailbox = Mailbox.bounded(2, OverflowPolicy.Drop)
+		assertTrue(mailbox.offer(Text("a")))
+		assertTrue(mailbox.offer(Text("b")))
+		assertFalse(mailbox.offer(Text("c")))
+		assertFalse(mailbox.offer(Update(1, 0)))
+		assertEquals(2, mailbox.size)
+		assertEquals(2, mailbox.rejectedCount)
+		assertEquals(Seq(Text("a"), Text("b")), drain(mailbox))
+		assertTrue(mailbox.offer(Text("d")))
+	}
+
+	@Test
+	def testCoalesce(): Unit = {
+		val mailbox = Mailbox.bounded(2, OverflowPolicy.Coalesce)
+		mailbox.offer(Update(1, 0))
+		mailbox.offer(Update(2, 0))
+		// Full: the last message of each key is kept, the other messages are rejected
+		assertTrue(mailbox.offer(Update(1, 1)))
+		assertTrue(mailbox.offer(Update(1, 2)))
+		assertTrue(mailbox.offer(Update(3, 1)))
+		assertFalse(mailbox.offer(Text("rejected")))
+		assertEquals(1, mailbox.rejectedCount)
+		assertEquals(4, mailbox.size)
+		val messages = drain(mailbox)
+		assertEquals(Seq(Update(1, 0), Update(2, 0)), messages.take(2)) // queued first
+		assertEquals(Set(Update(1, 2), Update(3, 1)), messages.drop(2).toSet)
+		assertEquals(0, mailbox.size)
+	}
+
+	@Test
+	def testCoalesceOrder(): Unit = {
+		val mailbox = Mailbox.bounded(1, OverflowPolicy.Coalesce)
+		mailbox.offer(Update(2, 0))
+		mailbox.offer(Update(1, 1)) // overflowed
+		// The queue isn't full anymore once drained, but the key 1 still has an overflowed
+		// message: the new value replaces it, or is processed after it, but never before it
+		val messages = ArrayBuffer[ActorMessage]()
+		mailbox.drain(msg => {
+			if (msg == Update(2, 0)) {
+				mailbox.offer(Update(1, 2))
+			}
+			messages += msg
+		})
+		messages ++= drain(mailbox)
+		val values = messages.collect { case Update(1, value) => value }
+		assertEquals(values.sorted, values)
+		assertEquals(2, values.last)
+	}
+
+	@Test
+	def testSignal(): Unit = {
+		val actor = new TestActor(Mailbox.bounded(1, OverflowPolicy.Signal))
+		actor ! Text("a")
+		val e = assertThrows(classOf[MailboxFullException], () => actor ! Text("b"))
+		assertEquals(Text("b"), e.msg)
+		assertSame(actor, e.actor)
+	}
+
+	@Test
+	def testTrySend(): Unit = {
+		for (policy <- OverflowPolicy.values()) {
+			val actor = new TestActor(Mailbox.bounded(1, policy))
+			assertTrue(actor.trySend(Text("a")))
+			assertFalse(actor.trySend(Text("b")), s"$policy") // never throws
+			actor.stop()
+			assertFalse(actor.trySend(Text("c")), s"$policy") // filtered
+		}
+	}
+
+	private def drain(mailbox: Mailbox): Seq[ActorMessage] = {
+		val messages = ArrayBuffer[ActorMessage]()
+		val n = mailbox.drain(messages += _)
+		assertEquals(messages.size, n)
+		messages
+	}
+
+	private implicit val noGroup: ExecutionGroup = null
+}
+
+private final case class Text(text: String) extends ActorMessage
+
+private final case class Update(key: Int, value: Int) extends CoalescableMessage {
+	override def coalesceKey: Any = key
+}
+
+private final class TestActor(mailbox: Mailbox) extends LocalActor {
+	override protected def createMailbox(): Mailbox = mailbox
+
+	def stop(): Unit = terminate()
+
+	override def update(dt: Double): Unit = ()
+}
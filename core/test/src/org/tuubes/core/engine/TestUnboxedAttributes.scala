@@ -0,0 +1,122 @@
+package org.tuubes.core.engine
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestUnboxedAttributes {
+	@Test
+	def testKinds(): Unit = {
+		assertEquals(AttributeKey.IntKind, AttributeKey.kindOf(AttributeKey.createInt()))
+		assertEquals(AttributeKey.LongKind, AttributeKey.kindOf(AttributeKey.createLong()))
+		assertEquals(AttributeKey.DoubleKind, AttributeKey.kindOf(AttributeKey.createDouble()))
+		assertEquals(AttributeKey.BooleanKind, AttributeKey.kindOf(AttributeKey.createBoolean()))
+		assertEquals(AttributeKey.GenericKind, AttributeKey.kindOf(AttributeKey.create[Int]()))
+		assertEquals(AttributeKey.GenericKind, AttributeKey.kindOf(new AttributeKey[Int](100000)))
+	}
+
+	@Test
+	def testInt(): Unit = {
+		val key = AttributeKey.createInt()
+		val storage = new AttributeStorage
+		storage.putInt(key, 1)
+		assertTrue(storage.iterator.next().isInstanceOf[IntAttribute])
+		assertEquals(1, storage.getInt(key))
+		assertEquals(1, storage.getOrNull(key)) // generic access
+		assertEquals(1, storage.endCycle())
+
+		val changes = listen(storage, key)
+		storage.putInt(key, 2)
+		storage.put(key, 3)
+		assertEquals(3, storage.getInt(key))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq((1, 3)), changes)
+
+		// Set back to its old value: no change
+		storage.putInt(key, 4)
+		storage.putInt(key, 3)
+		assertFalse(storage.hasChanged(key))
+		assertEquals(0, storage.endCycle())
+		assertEquals(1, changes.size)
+	}
+
+	@Test
+	def testLong(): Unit = {
+		val key = AttributeKey.createLong()
+		val storage = new AttributeStorage
+		storage.putLong(key, 1L << 40)
+		assertTrue(storage.iterator.next().isInstanceOf[LongAttribute])
+		assertEquals(1L << 40, storage.getLong(key))
+		storage.endCycle()
+
+		val changes = listen(storage, key)
+		storage.putLong(key, -1L)
+		assertEquals(Some(-1L), storage(key))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq((1L << 40, -1L)), changes)
+		storage.putLong(key, -1L)
+		assertEquals(0, storage.endCycle())
+	}
+
+	@Test
+	def testDouble(): Unit = {
+		val key = AttributeKey.createDouble()
+		val storage = new AttributeStorage
+		storage.putDouble(key, 0.5)
+		assertTrue(storage.iterator.next().isInstanceOf[DoubleAttribute])
+		assertEquals(0.5, storage.getDouble(key))
+		storage.endCycle()
+
+		val changes = listen(storage, key)
+		storage.update(key, 1.5)
+		assertEquals(1.5, storage.getDouble(key))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq((0.5, 1.5)), changes)
+		storage.putDouble(key, 1.5)
+		assertEquals(0, storage.endCycle())
+	}
+
+	@Test
+	def testBoolean(): Unit = {
+		val key = AttributeKey.createBoolean()
+		val storage = new AttributeStorage
+		storage.putBoolean(key, false)
+		assertTrue(storage.iterator.next().isInstanceOf[BooleanAttribute])
+		assertFalse(storage.getBoolean(key))
+		storage.endCycle()
+
+		val changes = listen(storage, key)
+		storage.putBoolean(key, true)
+		assertTrue(storage.getBoolean(key))
+		assertEquals(1, storage.endCycle())
+		assertEquals(Seq((false, true)), changes)
+		storage.putBoolean(key, true)
+		assertEquals(0, storage.endCycle())
+	}
+
+	@Test
+	def testGenericKey(): Unit = {
+		val key = AttributeKey.create[Int]()
+		val storage = new AttributeStorage
+		assertThrows(classOf[NoSuchElementException], () => storage.getInt(key))
+		storage.putInt(key, 7)
+		assertTrue(storage.iterator.next().isInstanceOf[SimpleAttribute[_]])
+		assertEquals(7, storage.getInt(key))
+		storage.put(key, 8)
+		assertEquals(8, storage.getInt(key))
+		assertEquals(Some(8), storage(key))
+	}
+
+	/** Listens to the changes of an attribute */
+	private def listen[A](storage: AttributeStorage, key: AttributeKey[A]): Seq[(A, A)] = {
+		val changes = ArrayBuffer[(A, A)]()
+		storage.listen(key, new ValueListener[A] {
+			override def onChange(oldValue: A, newValue: A): Unit = changes += ((oldValue, newValue))
+		})
+		changes
+	}
+}
@@ -0,0 +1,92 @@
+package org.tuubes.core.network
+
+import com.electronwill.niol.io.ChannelInput
+import com.electronwill.niol.network.tcp.ClientAttach
+import com.electronwill.niol.{NiolInput, NiolOutput}
+import com.electronwill.util.ByteArrayChannel
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.blocks.BlockType
+import org.tuubes.core.engine.GameObject
+import org.tuubes.core.entities.EntityType
+import org.tuubes.core.items.ItemType
+
+/**
+ * @author TheElectronWill
+ */
+class TestPacketBuffer {
+	@Test
+	def testHeaderRoundTrip(): Unit = {
+		val protocol = new FramedProtocol
+		val packet = new TestPacket(42, 1000)
+		val buffer = PacketBuffer.encode(packet, protocol)
+		val bytes = new Array[Byte](buffer.length)
+		buffer.slice().get(bytes)
+		buffer.release()
+
+		val in = new ChannelInput(new ByteArrayChannel(bytes))
+		assertEquals(42, protocol.readId(in))
+		assertEquals(4 * 1000, protocol.lastLength)
+		for (i <- 0 until 1000) {
+			assertEquals(i, in.getInt())
+		}
+		assertEquals(2 + 1 + 4 * 1000, bytes.length) // varint length, varint id, data
+	}
+
+	@Test
+	def testSlicesAreIndependent(): Unit = {
+		val buffer = PacketBuffer.encode(new TestPacket(1, 3), new FramedProtocol)
+		val a = buffer.slice()
+		val b = buffer.slice()
+		a.get(new Array[Byte](a.remaining()))
+		assertFalse(a.hasRemaining)
+		assertEquals(buffer.length, b.remaining())
+		buffer.release()
+	}
+
+	@Test
+	def testRetainAfterRelease(): Unit = {
+		val buffer = PacketBuffer.encode(new TestPacket(1, 1), new FramedProtocol)
+		buffer.retain()
+		buffer.release()
+		buffer.release() // the buffer goes back to the pool
+		assertThrows(classOf[IllegalStateException], () => buffer.retain())
+		// The failed retain hasn't changed the count, so the buffer isn't recycled twice
+		assertThrows(classOf[IllegalStateException], () => buffer.release())
+	}
+}
+
+/** A packet that contains some ints */
+private final class TestPacket(val id: Int, count: Int) extends Packet {
+	override def writeTo(out: NiolOutput): Unit = {
+		for (i <- 0 until count) {
+			out.putInt(i)
+		}
+	}
+}
+
+/** A protocol whose packets are preceded by their length and id, as varints */
+private final class FramedProtocol extends Protocol[ClientAttach] {
+	var lastLength = -1
+
+	def readId(in: NiolInput): Int = readPacketId(in)
+
+	override protected def readPacketId(in: NiolInput): Int = {
+		lastLength = in.getVarint()
+		in.getVarint()
+	}
+
+	override def maxHeaderSize: Int = 10
+
+	override def writePacketHeader(id: Int, dataLength: Int, out: NiolOutput): Unit = {
+		out.putVarint(dataLength)
+		out.putVarint(id)
+	}
+
+	override def spawn(obj: GameObject): Unit = ()
+	override def despawn(obj: GameObject): Unit = ()
+	override def sendQueue(client: ClientAttach): SendQueue = null
+	override def blockHandler(t: BlockType[_]): BlockHandler = null
+	override def itemHandler(t: ItemType[_]): ItemHandler = null
+	override def entityHandler(t: EntityType[_]): EntityHandler = null
+}
@@ -0,0 +1,139 @@
+package org.tuubes.core.network
+
+import java.nio.ByteBuffer
+import java.nio.channels.GatheringByteChannel
+
+import com.electronwill.niol.io.ChannelInput
+import com.electronwill.util.{ByteArrayChannel, Vec3d}
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.engine.GameObject
+import org.tuubes.core.worlds.{LocalWorld, SpatialVisitor}
+
+import scala.collection.mutable
+
+/**
+ * @author TheElectronWill
+ */
+class TestStateSync {
+	private final val PacketId = 7
+	private final val AbsolutePosition = 1
+	private final val Removed = 8
+
+	@Test
+	def testViewerLosesPosition(): Unit = {
+		val a = newObject(0)
+		val b = newObject(1)
+		val visibleObjects = mutable.ArrayBuffer(a, b)
+		val visible = (_: Vec3d, _: Double, visitor: SpatialVisitor) => {
+			visibleObjects.foreach(obj => visitor.visit(obj, obj.id * 2.0, 64.0, 0.0))
+		}
+		val protocol = new FramedProtocol
+		val channel = new RecordingChannel
+		val viewer = new TestViewer(new SendQueue(channel, protocol))
+		val sync = new StateSync(new LocalWorld("test-sync"), PacketId, visible)
+		sync.addViewer(viewer)
+
+		// The viewer receives the absolute state of the objects
+		sync.onChangesEnd(1)
+		assertEquals(Seq(0 -> AbsolutePosition, 1 -> AbsolutePosition), readEntries(channel, protocol))
+
+		// Without position, the viewer sees nothing: the objects are removed
+		viewer.position = null
+		sync.onChangesEnd(2)
+		assertEquals(Seq(0 -> Removed, 1 -> Removed), readEntries(channel, protocol))
+		sync.onChangesEnd(3)
+		assertEquals(Seq.empty, readEntries(channel, protocol)) // nothing more to remove
+
+		// With a position again, the visible objects are sent again, with their absolute state
+		visibleObjects -= b
+		viewer.position = Vec3d(0, 64, 0)
+		sync.onChangesEnd(4)
+		assertEquals(Seq(0 -> AbsolutePosition), readEntries(channel, protocol))
+		sync.removeViewer(viewer)
+	}
+
+	@Test
+	def testReusedId(): Unit = {
+		val a = newObject(0)
+		val visibleObjects = mutable.ArrayBuffer(a)
+		val visible = (_: Vec3d, _: Double, visitor: SpatialVisitor) => {
+			visibleObjects.foreach(obj => visitor.visit(obj, 1.0, 64.0, 0.0))
+		}
+		val protocol = new FramedProtocol
+		val channel = new RecordingChannel
+		val viewer = new TestViewer(new SendQueue(channel, protocol))
+		val sync = new StateSync(new LocalWorld("test-sync"), PacketId, visible)
+		sync.addViewer(viewer)
+		sync.onChangesEnd(1)
+		assertEquals(Seq(0 -> AbsolutePosition), readEntries(channel, protocol))
+		sync.onChangesEnd(2)
+		assertEquals(Seq.empty, readEntries(channel, protocol)) // no change
+
+		// The id of the removed object is given to a new object, at the same place: the viewer
+		// removes the old object and receives the new one
+		a.id = -1
+		visibleObjects(0) = newObject(0)
+		sync.onChangesEnd(3)
+		assertEquals(Seq(0 -> Removed, 0 -> AbsolutePosition), readEntries(channel, protocol))
+		sync.onChangesEnd(4)
+		assertEquals(Seq.empty, readEntries(channel, protocol))
+		sync.removeViewer(viewer)
+	}
+
+	private def newObject(id: Int): GameObject = {
+		val obj = new GameObject()
+		obj.id = id
+		obj
+	}
+
+	/** Reads the packet written to the channel, if any: the ids and flags of its entries */
+	private def readEntries(channel: RecordingChannel, protocol: FramedProtocol): Seq[(Int, Int)] = {
+		val bytes = channel.take()
+		if (bytes.isEmpty) {
+			Seq.empty
+		} else {
+			val in = new ChannelInput(new ByteArrayChannel(bytes))
+			assertEquals(PacketId, protocol.readId(in))
+			val count = in.getVarint()
+			val entries = for (_ <- 0 until count) yield {
+				val id = in.getVarint()
+				val flags = in.getUnsignedByte()
+				if ((flags & AbsolutePosition) != 0) {
+					in.getInt()
+					in.getInt()
+					in.getInt()
+				}
+				id -> flags
+			}
+			entries
+		}
+	}
+}
+
+private final class TestViewer(val sendQueue: SendQueue) extends SyncViewer {
+	var position = Vec3d(0, 64, 0)
+
+	override def viewPosition: Vec3d = position
+	override def viewDistance: Double = 32
+}
+
+/** A channel that keeps the written bytes until they're taken */
+private final class RecordingChannel extends GatheringByteChannel {
+	private[this] var data = new ByteArrayChannel()
+
+	/** @return the bytes written since the last call */
+	def take(): Array[Byte] = {
+		val bytes = data.toByteArray
+		data = new ByteArrayChannel()
+		bytes
+	}
+
+	override def write(src: ByteBuffer): Int = data.write(src)
+	override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+		data.write(srcs, offset, length)
+	}
+	override def write(srcs: Array[ByteBuffer]): Long = data.write(srcs)
+	override def isOpen: Boolean = true
+	override def close(): Unit = ()
+}
@@ -0,0 +1,158 @@
+package org.tuubes.core.worlds
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.util.Random
+
+/**
+ * @author TheElectronWill
+ */
+class TestInterestManager {
+	/** The requests that haven't been answered nor cancelled, in order */
+	private val requests = new mutable.LinkedHashMap[(Int, Int), ChunkColumn => Unit]
+	private val requestOrder = new ArrayBuffer[(Int, Int)]
+	private val cancelled = new ArrayBuffer[(Int, Int)]
+	private val viewerCounts = new mutable.HashMap[(Int, Int), Int]
+
+	private val manager = new InterestManager(
+		(x, z, callback) => {
+			assertFalse(requests.contains((x, z)), s"($x, $z) requested twice")
+			requests((x, z)) = callback
+			requestOrder += ((x, z))
+		},
+		(x, z, callback) => {
+			assertTrue(requests.remove((x, z)).exists(_ eq callback), s"($x, $z) wasn't requested")
+			cancelled += ((x, z))
+		},
+		(key, count) => viewerCounts(((key >> 32).toInt, key.toInt)) = count
+	)
+
+	@Test
+	def testDifference(): Unit = {
+		val random = new Random(42)
+		def range(): (Int, Int) = {
+			val a = random.nextInt(20) - 10
+			val b = random.nextInt(20) - 10
+			(math.min(a, b), math.max(a, b))
+		}
+		for (_ <- 0 until 1000) {
+			val (ax0, ax1) = range()
+			val (az0, az1) = range()
+			val (bx0, bx1) = range()
+			val (bz0, bz1) = range()
+			val found = new ArrayBuffer[(Int, Int)]
+			InterestManager.difference(ax0, ax1, az0, az1, bx0, bx1, bz0, bz1,
+			                           (x, z) => found += ((x, z)))
+			val expected = for {
+				x <- ax0 to ax1
+				z <- az0 to az1
+				if x < bx0 || x > bx1 || z < bz0 || z > bz1
+			} yield (x, z)
+			assertEquals(expected.toSet, found.toSet)
+			assertEquals(found.size, found.toSet.size, "a column has been visited twice")
+		}
+	}
+
+	@Test
+	def testNearestFirst(): Unit = {
+		manager.add(1, 10, -10, 3, new RecordingViewer)
+		assertEquals(49, requestOrder.size)
+		assertEquals((10, -10), requestOrder.head)
+		val distances = requestOrder.map { case (x, z) => (x - 10) * (x - 10) + (z + 10) * (z + 10) }
+		assertEquals(distances.sorted, distances)
+	}
+
+	@Test
+	def testRefCounting(): Unit = {
+		val a = new RecordingViewer
+		val b = new RecordingViewer
+		manager.add(1, 0, 0, 1, a)
+		manager.add(2, 2, 0, 1, b) // shares the columns x = 1 with a
+		assertEquals(15, requests.size)
+		assertEquals(15, manager.columnCount)
+		provideAll()
+		assertEquals(9, a.visible.size)
+		assertEquals(9, b.visible.size)
+		assertEquals(2, viewerCounts((1, 0)))
+		assertEquals(1, viewerCounts((0, 0)))
+
+		manager.remove(1)
+		assertTrue(a.visible.isEmpty)
+		assertEquals(9, b.visible.size)
+		assertEquals(9, manager.columnCount)
+		assertEquals(1, viewerCounts((1, 0)))
+		assertEquals(0, viewerCounts((0, 0)))
+
+		// The columns that b still sees aren't requested again when a comes back
+		requestOrder.clear()
+		manager.add(1, 0, 0, 1, a)
+		assertEquals(6, requestOrder.size)
+		assertTrue(requestOrder.forall(_._1 <= 0))
+		assertEquals(3, a.visible.size) // the columns x = 1 are already available
+	}
+
+	@Test
+	def testCancelOnLeave(): Unit = {
+		val viewer = new RecordingViewer
+		manager.add(1, 0, 0, 1, viewer)
+		requestOrder.clear()
+		manager.move(1, 1, 1) // diagonal move
+		assertEquals(Set((-1, -1), (-1, 0), (-1, 1), (0, -1), (1, -1)), cancelled.toSet)
+		assertEquals(Set((2, 0), (2, 1), (2, 2), (0, 2), (1, 2)), requestOrder.toSet)
+		assertEquals(9, requests.size)
+		assertTrue(viewer.visible.isEmpty)
+
+		// The available columns are hidden instead of being cancelled
+		provideAll()
+		cancelled.clear()
+		manager.move(1, 2, 1)
+		assertTrue(cancelled.isEmpty)
+		assertEquals(Set((0, 0), (0, 1), (0, 2)), viewer.hidden.toSet)
+		assertEquals(3, requests.size)
+	}
+
+	@Test
+	def testFailedColumn(): Unit = {
+		val a = new RecordingViewer
+		val b = new RecordingViewer
+		manager.add(1, 0, 0, 0, a)
+		val callback = requests.remove((0, 0)).get
+		callback(null) // the column can't be provided
+		assertEquals(Seq((0, 0)), a.failed)
+		assertTrue(a.visible.isEmpty)
+
+		// Another viewer enters the column: it's requested again
+		manager.add(2, 0, 0, 0, b)
+		assertTrue(requests.contains((0, 0)))
+		provideAll()
+		assertEquals(Set((0, 0)), a.visible)
+		assertEquals(Set((0, 0)), b.visible)
+	}
+
+	/** Gives a column to all the pending requests */
+	private def provideAll(): Unit = {
+		val pending = requests.values.toList
+		requests.clear()
+		pending.foreach(_ (new ChunkColumn(Array.empty[Chunk])))
+	}
+}
+
+private final class RecordingViewer extends ColumnViewer {
+	val visible = new mutable.HashSet[(Int, Int)]
+	val hidden = new ArrayBuffer[(Int, Int)]
+	val failed = new ArrayBuffer[(Int, Int)]
+
+	override def onColumnVisible(cx: Int, cz: Int, column: ChunkColumn): Unit = {
+		assertTrue(visible.add((cx, cz)), s"($cx, $cz) is already visible")
+	}
+
+	override def onColumnHidden(cx: Int, cz: Int): Unit = {
+		assertTrue(visible.remove((cx, cz)), s"($cx, $cz) isn't visible")
+		hidden += ((cx, cz))
+	}
+
+	override def onColumnFailed(cx: Int, cz: Int): Unit = failed += ((cx, cz))
+}
@@ -0,0 +1,100 @@
+package org.tuubes.core.worlds
+
+import java.io.IOException
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * @author TheElectronWill
+ */
+class TestLocalChunkService {
+	@Test
+	def testLoadRuntimeException(): Unit = {
+		val read: (Int, Int) => Array[Byte] = (_, _) => throw new IllegalStateException("test")
+		assertLoadedNull(read)
+	}
+
+	@Test
+	def testLoadIOException(): Unit = {
+		val read: (Int, Int) => Array[Byte] = (_, _) => throw new IOException("test")
+		assertLoadedNull(read)
+	}
+
+	@Test
+	def testFailedLoad(): Unit = {
+		withService((1, 2)) { service =>
+			val created = new ArrayBuffer[ChunkColumn]
+			val existing = new ArrayBuffer[Option[ChunkColumn]]
+			service.onMessage(RequestCreate(1, 2, created += _))
+			service.onMessage(RequestExisting(1, 2, existing += _))
+			assertTrue(created.isEmpty && existing.isEmpty, "the column is being loaded")
+
+			service.onMessage(LoadComplete(key(1, 2), null))
+			assertEquals(ArrayBuffer(null), created)
+			assertEquals(ArrayBuffer(None), existing)
+		}
+	}
+
+	@Test
+	def testFailedGeneration(): Unit = {
+		withService(null) { service =>
+			val created = new ArrayBuffer[ChunkColumn]
+			service.onMessage(RequestCreate(3, -4, created += _))
+			assertTrue(created.isEmpty, "the column is being generated")
+
+			service.onMessage(GenerationComplete(key(3, -4), null))
+			assertEquals(ArrayBuffer(null), created)
+		}
+	}
+
+	@Test
+	def testFailedAreaColumn(): Unit = {
+		withService((0, 0)) { service =>
+			var completed = -1
+			val listener = new AreaListener {
+				override def onColumn(cx: Int, cz: Int, column: ChunkColumn): Unit = ()
+				override def onComplete(failed: Int): Unit = completed = failed
+			}
+			val area = ColumnArea(0, 0, 0, 0)
+			service.onMessage(RequestArea(area, listener))
+			service.onMessage(LoadComplete(key(0, 0), null))
+			assertEquals(1, completed)
+		}
+	}
+
+	private def key(cx: Int, cz: Int): Long = cx.toLong << 32 | cz & 0xFFFFFFFFL
+
+	/**
+	 * Creates a LocalChunkService in a new world. The column at `stored`, if not null, exists in
+	 * the world's storage, so that it's loaded instead of being generated.
+	 */
+	private def withService(stored: (Int, Int))(f: LocalChunkService => Unit): Unit = {
+		val world = new LocalWorld(s"test-chunks-${System.nanoTime()}")
+		try {
+			if (stored ne null) {
+				val storage = new RegionStorage(world.directory / "regions")
+				storage.write(stored._1, stored._2, Array[Byte](0))
+				storage.close()
+			}
+			f(new LocalChunkService(world))
+		} finally {
+			world.directory.delete(swallowIOExceptions = true)
+		}
+	}
+
+	/** Checks that a failed load never throws and gives null to the callback, exactly once */
+	private def assertLoadedNull(read: (Int, Int) => Array[Byte]): Unit = {
+		var calls = 0
+		var result: ChunkColumn = null
+		val task = LocalChunkService.loadTask(read, 1, 2, column => {
+			calls += 1
+			result = column
+		})
+		task.apply()
+		assertEquals(1, calls)
+		assertNull(result)
+	}
+}
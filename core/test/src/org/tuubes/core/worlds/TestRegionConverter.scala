@@ -0,0 +1,54 @@
+package org.tuubes.core.worlds
+
+import better.files.File
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+/**
+ * @author TheElectronWill
+ */
+class TestRegionConverter {
+	@Test
+	def testConvert(): Unit = {
+		withDirectories { (chunksDir, storage) =>
+			(chunksDir / "1,2.chunkcol").writeByteArray(Array[Byte](1, 2, 3))
+			(chunksDir / "-40,7.chunkcol").writeByteArray(Array[Byte](4, 5))
+			assertEquals(2, RegionConverter.convert(chunksDir, storage))
+			assertArrayEquals(Array[Byte](1, 2, 3), storage.read(1, 2))
+			assertArrayEquals(Array[Byte](4, 5), storage.read(-40, 7))
+			assertFalse(chunksDir.exists, "the converted directory must be deleted")
+		}
+	}
+
+	@Test
+	def testInvalidFile(): Unit = {
+		withDirectories { (chunksDir, storage) =>
+			(chunksDir / "1,2.chunkcol").writeByteArray(Array[Byte](1))
+			(chunksDir / "a,b.chunkcol").writeByteArray(Array[Byte](2))
+			assertEquals(1, RegionConverter.convert(chunksDir, storage))
+			assertArrayEquals(Array[Byte](1), storage.read(1, 2))
+			// The file that can't be converted is kept, with its directory
+			assertTrue((chunksDir / "a,b.chunkcol").exists)
+			assertFalse((chunksDir / "1,2.chunkcol").exists)
+		}
+	}
+
+	@Test
+	def testNoDirectory(): Unit = {
+		withDirectories { (chunksDir, storage) =>
+			chunksDir.delete()
+			assertEquals(0, RegionConverter.convert(chunksDir, storage))
+		}
+	}
+
+	private def withDirectories(f: (File, RegionStorage) => Unit): Unit = {
+		val dir = File.newTemporaryDirectory("test-converter")
+		val storage = new RegionStorage(dir / "regions")
+		try {
+			f((dir / "chunks").createDirectories(), storage)
+		} finally {
+			storage.close()
+			dir.delete(swallowIOExceptions = true)
+		}
+	}
+}
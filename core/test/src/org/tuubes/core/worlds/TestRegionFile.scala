@@ -0,0 +1,98 @@
+package org.tuubes.core.worlds
+
+import java.io.IOException
+import java.nio.file.Files
+
+import better.files.File
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.worlds.RegionFile.SectorSize
+
+import scala.util.Random
+
+/**
+ * @author TheElectronWill
+ */
+class TestRegionFile {
+	private val random = new Random(42)
+
+	@Test
+	def testRoundTrip(): Unit = {
+		withRegion { path =>
+			val region = new RegionFile(path)
+			val columns = Map((0, 0) -> bytes(10), (31, 0) -> bytes(SectorSize), (5, 31) -> bytes(0))
+			for (((cx, cz), data) <- columns) region.write(cx, cz, data)
+			for (((cx, cz), data) <- columns) {
+				assertTrue(region.exists(cx, cz))
+				assertArrayEquals(data, region.read(cx, cz))
+			}
+			assertFalse(region.exists(1, 1))
+			assertNull(region.read(1, 1))
+			region.close()
+		}
+	}
+
+	@Test
+	def testRewrites(): Unit = {
+		withRegion { path =>
+			val region = new RegionFile(path)
+			val neighbour = bytes(100)
+			region.write(1, 0, neighbour)
+			for (length <- Seq(100, 3 * SectorSize, 10, 2 * SectorSize, SectorSize - 4, 0)) {
+				val data = bytes(length)
+				region.write(0, 0, data)
+				assertArrayEquals(data, region.read(0, 0), s"length $length")
+				assertArrayEquals(neighbour, region.read(1, 0))
+			}
+			region.close()
+			// The old sectors are reused: header + neighbour + two copies of the biggest column
+			assertTrue(Files.size(path) <= (1 + 1 + 2 * 4) * SectorSize, s"size ${Files.size(path)}")
+		}
+	}
+
+	@Test
+	def testReopen(): Unit = {
+		withRegion { path =>
+			val first = bytes(2 * SectorSize)
+			val region = new RegionFile(path)
+			region.write(3, 4, first)
+			region.close()
+
+			// The reopened file knows the used sectors and doesn't overwrite them
+			val reopened = new RegionFile(path)
+			assertArrayEquals(first, reopened.read(3, 4))
+			val second = bytes(SectorSize)
+			reopened.write(4, 4, second)
+			assertArrayEquals(first, reopened.read(3, 4))
+			assertArrayEquals(second, reopened.read(4, 4))
+			reopened.close()
+		}
+	}
+
+	@Test
+	def testTooBig(): Unit = {
+		withRegion { path =>
+			val region = new RegionFile(path)
+			val old = bytes(10)
+			region.write(0, 0, old)
+			assertThrows(classOf[IOException], () => region.write(0, 0, bytes(255 * SectorSize)))
+			assertArrayEquals(old, region.read(0, 0))
+			region.close()
+		}
+	}
+
+	private def bytes(length: Int): Array[Byte] = {
+		val array = new Array[Byte](length)
+		random.nextBytes(array)
+		array
+	}
+
+	private def withRegion(f: java.nio.file.Path => Unit): Unit = {
+		val dir = File.newTemporaryDirectory("test-region")
+		try {
+			f((dir / "0,0.region").path)
+		} finally {
+			dir.delete(swallowIOExceptions = true)
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.tuubes.core.worlds
+
+import better.files.File
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.util.Random
+
+/**
+ * @author TheElectronWill
+ */
+class TestRegionStorage {
+	private val random = new Random(42)
+
+	@Test
+	def testRoundTrip(): Unit = {
+		withDirectory { dir =>
+			// Columns in several regions, including negative ones
+			val columns = Seq((0, 0), (31, 31), (32, 0), (-1, -1), (-33, 64)).map(c => c -> bytes())
+			val storage = new RegionStorage(dir)
+			for (((cx, cz), data) <- columns) storage.write(cx, cz, data)
+			for (((cx, cz), data) <- columns) {
+				assertTrue(storage.exists(cx, cz))
+				assertArrayEquals(data, storage.read(cx, cz))
+			}
+			assertEquals(5, dir.list.size) // one file per region
+			storage.close()
+
+			val reopened = new RegionStorage(dir)
+			for (((cx, cz), data) <- columns) {
+				assertArrayEquals(data, reopened.read(cx, cz))
+			}
+			reopened.close()
+		}
+	}
+
+	@Test
+	def testMissingRegion(): Unit = {
+		withDirectory { dir =>
+			val storage = new RegionStorage(dir / "regions")
+			assertFalse(storage.exists(100, 100))
+			assertNull(storage.read(100, 100))
+			assertFalse((dir / "regions").exists, "reading must not create the region files")
+
+			// The region is created by the first write, even if it has been read before
+			val data = bytes()
+			storage.write(100, 100, data)
+			assertTrue(storage.exists(100, 100))
+			assertArrayEquals(data, storage.read(100, 100))
+			storage.close()
+		}
+	}
+
+	private def bytes(): Array[Byte] = {
+		val array = new Array[Byte](random.nextInt(10000))
+		random.nextBytes(array)
+		array
+	}
+
+	private def withDirectory(f: File => Unit): Unit = {
+		val dir = File.newTemporaryDirectory("test-regions")
+		try {
+			f(dir)
+		} finally {
+			dir.delete(swallowIOExceptions = true)
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package org.tuubes.core.worlds
+
+import java.util.Random
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+/**
+ * @author TheElectronWill
+ */
+class TestSimplexNoise {
+	private val noise = new SimplexNoise(new Random(42))
+
+	/** The bulk and scalar versions compute the same formulas in a slightly different order */
+	private final val Delta = 1e-9
+
+	/** The first points of the grids, including negative coordinates */
+	private val origins = Seq(0.0, -13.7, 5.25, -0.01)
+
+	@Test
+	def testFill2D(): Unit = {
+		val (sizeX, sizeY, step) = (17, 11, 0.37)
+		val out = new Array[Double](sizeX * sizeY)
+		for (x <- origins; y <- origins) {
+			noise.fill2D(out, x, y, step, sizeX, sizeY)
+			for (i <- 0 until sizeX; j <- 0 until sizeY) {
+				val expected = noise.generate(x + i * step, y + j * step)
+				assertEquals(expected, out(i * sizeY + j), Delta, s"at ($x, $y) + ($i, $j)")
+			}
+		}
+	}
+
+	@Test
+	def testFill3D(): Unit = {
+		val (sizeX, sizeY, sizeZ, step) = (7, 5, 9, 0.41)
+		val out = new Array[Double](sizeX * sizeY * sizeZ)
+		for (x <- origins; y <- origins; z <- origins) {
+			noise.fill3D(out, x, y, z, step, sizeX, sizeY, sizeZ)
+			for (i <- 0 until sizeX; j <- 0 until sizeY; k <- 0 until sizeZ) {
+				val expected = noise.generate(x + i * step, y + j * step, z + k * step)
+				val actual = out((i * sizeY + j) * sizeZ + k)
+				assertEquals(expected, actual, Delta, s"at ($x, $y, $z) + ($i, $j, $k)")
+			}
+		}
+	}
+
+	@Test
+	def testFbm2D(): Unit = {
+		val (sizeX, sizeY, step) = (13, 8, 0.29)
+		val (octaves, lacunarity, persistence) = (4, 2.0, 0.5)
+		val out = new Array[Double](sizeX * sizeY)
+		for (x <- origins; y <- origins) {
+			noise.fbm2D(out, x, y, step, sizeX, sizeY, octaves, lacunarity, persistence)
+			for (i <- 0 until sizeX; j <- 0 until sizeY) {
+				val expected = fbm(octaves, lacunarity, persistence) { f =>
+					noise.generate((x + i * step) * f, (y + j * step) * f)
+				}
+				assertEquals(expected, out(i * sizeY + j), Delta, s"at ($x, $y) + ($i, $j)")
+			}
+		}
+	}
+
+	@Test
+	def testFbm3D(): Unit = {
+		val (sizeX, sizeY, sizeZ, step) = (5, 6, 7, 0.53)
+		val (octaves, lacunarity, persistence) = (3, 1.9, 0.6)
+		val out = new Array[Double](sizeX * sizeY * sizeZ)
+		for (x <- origins; y <- origins; z <- origins) {
+			noise.fbm3D(out, x, y, z, step, sizeX, sizeY, sizeZ, octaves, lacunarity, persistence)
+			for (i <- 0 until sizeX; j <- 0 until sizeY; k <- 0 until sizeZ) {
+				val expected = fbm(octaves, lacunarity, persistence) { f =>
+					noise.generate((x + i * step) * f, (y + j * step) * f, (z + k * step) * f)
+				}
+				val actual = out((i * sizeY + j) * sizeZ + k)
+				assertEquals(expected, actual, Delta, s"at ($x, $y, $z) + ($i, $j, $k)")
+			}
+		}
+	}
+
+	/** Sums the octaves of a scalar noise, which is given the frequency of each octave */
+	private def fbm(octaves: Int, lacunarity: Double, persistence: Double)
+								 (scalar: Double => Double): Double = {
+		var sum, totalAmplitude = 0.0
+		var frequency, amplitude = 1.0
+		for (_ <- 0 until octaves) {
+			sum += scalar(frequency) * amplitude
+			totalAmplitude += amplitude
+			frequency *= lacunarity
+			amplitude *= persistence
+		}
+		sum / totalAmplitude
+	}
+}
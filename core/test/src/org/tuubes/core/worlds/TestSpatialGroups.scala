@@ -0,0 +1,81 @@
+package org.tuubes.core.worlds
+
+import com.electronwill.util.Vec3d
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import org.tuubes.core.engine.ExecutionGroup
+
+import scala.collection.mutable
+
+/**
+ * @author TheElectronWill
+ */
+class TestSpatialGroups {
+	private val groups = new SpatialGroups(maxGroupSize = 4)
+	private val moves = new mutable.LongMap[ExecutionGroup]
+
+	/** Two adjacent regions, 8 chunk columns (128 blocks) wide */
+	private val west = groups.regionKey(new Vec3d(0, 0, 0))
+	private val east = groups.regionKey(new Vec3d(128, 0, 0))
+
+	@Test
+	def testSplitAndMerge(): Unit = {
+		assumeGroups(2)
+		// The east region joins the group of the west region, which isn't full
+		for (_ <- 1 to 3) groups.enter(west)
+		for (_ <- 1 to 3) groups.enter(east)
+		assertSame(groups.groupOf(west), groups.groupOf(east))
+		assertEquals(1, groups.groupCount)
+
+		// 6 objects > 4: the group is split along the border of the regions
+		groups.rebalance((key, group) => moves(key) = group)
+		assertNotSame(groups.groupOf(west), groups.groupOf(east))
+		assertEquals(2, groups.groupCount)
+		assertEquals(1, moves.size)
+		val (movedKey, movedGroup) = moves.head
+		assertSame(movedGroup, groups.groupOf(movedKey))
+
+		// Small neighbour groups are merged, and the empty group is stopped
+		for (_ <- 1 to 2) groups.leave(west)
+		for (_ <- 1 to 2) groups.leave(east)
+		moves.clear()
+		groups.rebalance((key, group) => moves(key) = group)
+		assertSame(groups.groupOf(west), groups.groupOf(east))
+		assertEquals(1, moves.size)
+		assertEquals(1, groups.groupCount)
+
+		// Without objects, the regions are forgotten and the last group is stopped
+		groups.leave(west)
+		groups.leave(east)
+		groups.rebalance((_, _) => fail("no region to move"))
+		assertEquals(0, groups.regionCount)
+		assertEquals(0, groups.groupCount)
+	}
+
+	@Test
+	def testFullNeighbour(): Unit = {
+		assumeGroups(2)
+		// A full group doesn't accept the new regions
+		for (_ <- 1 to 4) groups.enter(west)
+		groups.enter(east)
+		assertNotSame(groups.groupOf(west), groups.groupOf(east))
+		assertEquals(2, groups.groupCount)
+
+		// One big region can't be split
+		groups.enter(west)
+		groups.rebalance((_, _) => fail("a single region can't be split"))
+
+		for (_ <- 1 to 5) groups.leave(west)
+		groups.leave(east)
+		groups.rebalance((_, _) => ())
+		assertEquals(0, groups.groupCount)
+	}
+
+	/** Skips the test if there aren't enough free groups on this machine */
+	private def assumeGroups(n: Int): Unit = {
+		val created = (1 to n).flatMap(_ => ExecutionGroup.create())
+		created.foreach(_.stop())
+		assumeTrue(created.size == n)
+	}
+}
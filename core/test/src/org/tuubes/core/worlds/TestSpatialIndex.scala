@@ -0,0 +1,108 @@
+package org.tuubes.core.worlds
+
+import com.electronwill.util.Vec3d
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+import org.tuubes.core.engine.{ExecutionGroup, GameObject}
+
+import scala.util.Random
+
+/**
+ * @author TheElectronWill
+ */
+class TestSpatialIndex {
+	private val random = new Random(42)
+
+	@Test
+	def testNearest(): Unit = {
+		withObjects(300) { (world, objects) =>
+			for (_ <- 1 to 500) {
+				val (x, y, z) = (coord(), coord(), coord())
+				val radius = Seq(5.0, 20.0, 50.0, 500.0)(random.nextInt(4))
+				val expected = bruteForceNearest(objects, x, y, z, radius, _ => true)
+				val found = world.spatialIndex.nearest(x, y, z, radius)
+				assertSameDistance(expected, found, x, y, z)
+			}
+		}
+	}
+
+	@Test
+	def testNearestFiltered(): Unit = {
+		withObjects(300) { (world, objects) =>
+			val filter: SpatialFilter = obj => obj.id % 3 == 0
+			for (_ <- 1 to 500) {
+				val (x, y, z) = (coord(), coord(), coord())
+				val radius = Seq(10.0, 40.0, 500.0)(random.nextInt(3))
+				val expected = bruteForceNearest(objects, x, y, z, radius, filter.accept)
+				val found = world.spatialIndex.nearest(x, y, z, radius, filter)
+				assertSameDistance(expected, found, x, y, z)
+				if (found ne null) assertTrue(filter.accept(found))
+			}
+		}
+	}
+
+	@Test
+	def testEmpty(): Unit = {
+		withObjects(0) { (world, _) =>
+			assertNull(world.spatialIndex.nearest(0, 0, 0, 1000))
+		}
+	}
+
+	/** A coordinate around the objects, which are all in the same region of the world */
+	private def coord(): Double = random.nextDouble() * 160 - 20
+
+	private def bruteForceNearest(objects: Seq[PositionedObject], x: Double, y: Double,
+																z: Double, radius: Double,
+																accept: GameObject => Boolean): PositionedObject = {
+		val candidates = objects.filter(o => accept(o) && distance(o, x, y, z) <= radius)
+		if (candidates.isEmpty) null else candidates.minBy(distance(_, x, y, z))
+	}
+
+	/** Several objects can be at the same distance: compares the distances */
+	private def assertSameDistance(expected: PositionedObject, found: GameObject,
+																 x: Double, y: Double, z: Double): Unit = {
+		if (expected eq null) {
+			assertNull(found, s"nothing expected near ($x, $y, $z)")
+		} else {
+			assertNotNull(found, s"$expected expected near ($x, $y, $z)")
+			val d = distance(found.asInstanceOf[PositionedObject], x, y, z)
+			assertEquals(distance(expected, x, y, z), d, 1e-9)
+		}
+	}
+
+	private def distance(o: PositionedObject, x: Double, y: Double, z: Double): Double = {
+		val p = o.position
+		math.sqrt((p.x - x) * (p.x - x) + (p.y - y) * (p.y - y) + (p.z - z) * (p.z - z))
+	}
+
+	/** Adds some objects to a new world, indexes them, and removes them after the test */
+	private def withObjects(n: Int)(f: (LocalWorld, Seq[PositionedObject]) => Unit): Unit = {
+		val world = new LocalWorld(s"test-index-${System.nanoTime()}")
+		val objects = for (_ <- 1 to n) yield {
+			val position = Vec3d(random.nextDouble(), random.nextDouble(), random.nextDouble()) * 120
+			val obj = new PositionedObject(position)
+			world.add(obj)
+			obj
+		}
+		world.spatialIndex.onTickEnd(0)
+		assertEquals(n, world.spatialIndex.size)
+		try {
+			f(world, objects)
+		} finally {
+			objects.foreach(world.remove)
+			world.spatialIndex.onTickEnd(1)
+			assertEquals(0, world.spatialIndex.size)
+			world.spatialGroups.rebalance((_, _) => ()) // stops the group of the region
+		}
+	}
+}
+
+/**
+ * An object with a fixed position. It already has a group, so that the world doesn't add it
+ * to the group of its region.
+ */
+private final class PositionedObject(pos: Vec3d) extends GameObject {
+	group = new ExecutionGroup(-1)
+
+	override private[core] def position: Vec3d = pos
+}
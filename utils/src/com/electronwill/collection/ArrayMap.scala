@@ -11,7 +11,7 @@ final class ArrayMap[@specialized(Int) A: ClassTag](initialCapacity: Int,
     extends mutable.Map[Int, A] {
 
   /** Contains the elements of the ArrayMap. */
-  private[this] var elements = new Array[A](initialCapacity)
+  private[this] var elements = ArrayMap.fillFrom(new Array[A](initialCapacity), 0, nullValue)
 
   /** The number of (non-null) elements. */
   private[this] var elementCount = 0
@@ -31,9 +31,12 @@ final class ArrayMap[@specialized(Int) A: ClassTag](initialCapacity: Int,
   }
 
   override def update(key: Int, value: A): Unit = {
-    elementCount += 1
     if (key >= elements.length) {
-      elements = growAmortize(elements, key + 1)
+      val oldLength = elements.length
+      elements = ArrayMap.fillFrom(growAmortize(elements, key + 1), oldLength, nullValue)
+    }
+    if (nullValue == elements(key)) {
+      elementCount += 1
     }
     elements(key) = value
   }
@@ -129,3 +132,15 @@ final class ArrayMap[@specialized(Int) A: ClassTag](initialCapacity: Int,
     override def size: Int = elementCount
   }
 }
+
+object ArrayMap {
+  /** Sets the elements of an array to the given value, from the given index, and returns it. */
+  private[collection] def fillFrom[@specialized(Int) A](array: Array[A], from: Int, value: A): Array[A] = {
+    var i = from
+    while (i < array.length) {
+      array(i) = value
+      i += 1
+    }
+    array
+  }
+}
@@ -0,0 +1,155 @@
+package com.electronwill.collection
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicReferenceArray}
+
+/**
+ * A multi-producer single-consumer queue made of linked array chunks. Unlike a
+ * `ConcurrentLinkedQueue`, which allocates one node per element, it allocates one chunk every
+ * `chunkSize` elements. The consumer takes the elements in batches with [[drain]].
+ *
+ * Any thread can add elements, but only one thread at a time can take them. An element becomes
+ * visible to the consumer once the producer has completely added it. If a producer is slow, the
+ * consumer stops at its element and gets the next ones at the next drain.
+ *
+ * @param capacity  the maximum number of elements, `Int.MaxValue` for an unbounded queue
+ * @param chunkSize the number of elements in each chunk, must be a power of two
+ * @tparam A the elements' type
+ * @author TheElectronWill
+ */
+final class ChunkedMpscQueue[A >: Null <: AnyRef](val capacity: Int = Int.MaxValue,
+                                                  chunkSize: Int = 64) {
+  require(capacity > 0, "the capacity must be positive")
+  require(Integer.bitCount(chunkSize) == 1, "the chunk size must be a power of two")
+
+  private[this] val chunkMask = chunkSize - 1
+
+  /** A chunk that contains the elements [base, base + chunkSize) */
+  private final class Chunk(val base: Long) {
+    val slots = new AtomicReferenceArray[A](chunkSize)
+    @volatile var next: Chunk = _
+  }
+
+  /** The index of the next element to add */
+  private[this] val producerIndex = new AtomicLong
+
+  /** The chunk that was used by the last producer, a good place to start searching */
+  @volatile private[this] var producerChunk = new Chunk(0)
+
+  /** The chunk of the next element to take. Producers never go before it. */
+  @volatile private[this] var consumerChunk = producerChunk
+
+  /** The index of the next element to take */
+  @volatile private[this] var consumerIndex = 0L
+
+  /** @return the number of elements in the queue, including the ones that aren't visible yet */
+  def size: Int = math.max(0L, producerIndex.get() - consumerIndex).toInt
+
+  /** @return true if the queue is empty */
+  def isEmpty: Boolean = size == 0
+
+  /**
+   * Adds an element at the end of the queue. Can be called by any thread.
+   *
+   * @param elem the element to add, not null
+   * @return true if the element has been added, false if the queue is full
+   */
+  def offer(elem: A): Boolean = {
+    val idx =
+      if (capacity == Int.MaxValue) {
+        producerIndex.getAndIncrement()
+      } else {
+        var p = 0L
+        do {
+          p = producerIndex.get()
+          if (p - consumerIndex >= capacity) {
+            return false
+          }
+        } while (!producerIndex.compareAndSet(p, p + 1))
+        p
+      }
+    val chunk = findChunk(idx)
+    chunk.slots.lazySet((idx & chunkMask).toInt, elem) // publishes the element
+    true
+  }
+
+  /** Finds the chunk of an index, creating the missing chunks */
+  private def findChunk(idx: Long): Chunk = {
+    val base = idx & ~chunkMask.toLong
+    var chunk = producerChunk
+    if (chunk.base > base) {
+      // The hint is too far: start from the consumer, which can't pass this element
+      chunk = consumerChunk
+    }
+    while (chunk.base < base) {
+      var next = chunk.next
+      if (next eq null) {
+        val created = new Chunk(chunk.base + chunkSize)
+        next = this.synchronized { // rare: once per chunk
+          if (chunk.next eq null) {
+            chunk.next = created
+          }
+          chunk.next
+        }
+      }
+      chunk = next
+    }
+    if (chunk.base > producerChunk.base) {
+      producerChunk = chunk // the hint may go back if several producers race, that's fine
+    }
+    chunk
+  }
+
+  /**
+   * Takes the visible elements and gives them to a function, in the order in which they have
+   * been added. Must be called by the consumer thread only.
+   *
+   * @param f     the function to call on each element
+   * @param limit the maximum number of elements to take
+   * @return the number of elements taken
+   */
+  def drain(f: A => Unit, limit: Int = Int.MaxValue): Int = {
+    var chunk = consumerChunk
+    var idx = consumerIndex
+    var taken = 0
+    var continue = true
+    try {
+      while (continue && taken < limit) {
+        val offset = (idx & chunkMask).toInt
+        if (offset == 0 && chunk.base != idx) {
+          // End of the chunk: go to the next one, if it exists
+          val next = chunk.next
+          if (next eq null) {
+            continue = false
+          } else {
+            chunk = next
+            consumerChunk = next
+          }
+        } else {
+          val elem = chunk.slots.get(offset)
+          if (elem eq null) {
+            continue = false // empty, or the producer hasn't finished adding the element
+          } else {
+            chunk.slots.lazySet(offset, null) // for the GC
+            idx += 1
+            taken += 1
+            f(elem)
+          }
+        }
+      }
+    } finally {
+      consumerIndex = idx // once per batch, it frees the space for the producers
+    }
+    taken
+  }
+
+  /**
+   * Takes the first visible element. Must be called by the consumer thread only.
+   *
+   * @return the first element, or null if there is none
+   */
+  def poll(): A = {
+    var result: A = null
+    drain(elem => result = elem, 1)
+    result
+  }
+}
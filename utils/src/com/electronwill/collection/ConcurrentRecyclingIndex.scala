@@ -140,6 +140,15 @@ final class ConcurrentRecyclingIndex[A >: Null <: AnyRef: ClassTag](initialCapac
     if (id >= 0 && id < elems.length) elems(id) else null
   }
 
+  /**
+   * Returns an upper bound of the ids: all the ids are in [0, idLimit). This allows to iterate
+   * with [[getOrNull]] without allocating an iterator and a tuple per element. The elements
+   * added during such an iteration may not be seen.
+   *
+   * @return the exclusive upper bound of the ids
+   */
+  def idLimit: Int = elements.length //volatile read
+
   override def update(id: Int, element: A): Unit = {
     val elems = elements //volatile read
     elems(id) = element
@@ -55,10 +55,11 @@ final class RecyclingIndex[A >: Null <: AnyRef: ClassTag](initialCapacity: Int,
 
   private def nextId(): Int = {
     if (recycleCount == 0) {
+      // No hole: the ids [0, elementCount-1) are used
       if (elements.length < elementCount) {
         elements = growAmortize(elements, elementCount)
       }
-      elementCount
+      elementCount - 1
     } else {
       recycleCount -= 1
       idsToRecycle(recycleCount)
@@ -108,6 +109,14 @@ final class RecyclingIndex[A >: Null <: AnyRef: ClassTag](initialCapacity: Int,
     if (id >= 0 && id < elements.length) elements(id) else null
   }
 
+  /**
+   * Returns an upper bound of the ids: all the ids are in [0, idLimit). This allows to iterate
+   * with [[getOrNull]] without allocating an iterator and a tuple per element.
+   *
+   * @return the exclusive upper bound of the ids
+   */
+  def idLimit: Int = elements.length
+
   override def update(id: Int, element: A): Unit = {
     elements(id) = element
   }
@@ -143,7 +152,7 @@ final class RecyclingIndex[A >: Null <: AnyRef: ClassTag](initialCapacity: Int,
       if (nextElement eq null) {
         findNext()
       }
-      nextElement eq null
+      nextElement ne null
     }
     override def next(): (Int, A) = {
       if (nextElement eq null) {
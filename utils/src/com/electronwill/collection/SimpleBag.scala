@@ -14,10 +14,9 @@ final class SimpleBag[A >: Null <: AnyRef: ClassTag](initialCapacity: Int = 16)
   override def size: Int = s
   override def apply(i: Int): A = array(i)
   override def remove(i: Int): Unit = {
-    val last = array(s)
-    array(i) = last
-    array(s) = null
     s -= 1
+    array(i) = array(s)
+    array(s) = null
   }
   override def -=(elem: A): SimpleBag.this.type = {
     var i = 0
@@ -31,7 +30,7 @@ final class SimpleBag[A >: Null <: AnyRef: ClassTag](initialCapacity: Int = 16)
   }
   override def +=(elem: A): this.type = {
     if (array.length == s) {
-      array = grow(array, s + (s >> 1))
+      array = grow(array, s + (s >> 1) + 1)
     }
     array(s) = elem
     s += 1
@@ -43,6 +42,7 @@ final class SimpleBag[A >: Null <: AnyRef: ClassTag](initialCapacity: Int = 16)
       array = grow(array, math.max(newS, s + (s >> 1)))
     }
     System.arraycopy(arr, offset, array, s, length)
+    s = newS
     this
   }
 
@@ -0,0 +1,96 @@
+package com.electronwill.util
+
+import java.nio.ByteBuffer
+import java.nio.channels.{ClosedChannelException, GatheringByteChannel, ScatteringByteChannel}
+
+/**
+ * An in-memory channel backed by a byte array. It can be used to read some existing bytes, or
+ * to write bytes to an array that grows automatically.
+ *
+ * @param array    the initial array
+ * @param readable the number of bytes that can be read from the array
+ * @author TheElectronWill
+ */
+final class ByteArrayChannel(private[this] var array: Array[Byte], readable: Int)
+    extends ScatteringByteChannel
+    with GatheringByteChannel {
+
+  /** Creates a channel that reads the given bytes */
+  def this(data: Array[Byte]) = this(data, data.length)
+
+  /** Creates an empty channel, to write to */
+  def this(initialCapacity: Int = 4096) = this(new Array[Byte](initialCapacity), 0)
+
+  private[this] var readPos = 0
+  private[this] var writePos = readable
+  private[this] var open = true
+
+  /** @return the number of bytes that have been written to this channel */
+  def size: Int = writePos
+
+  /** @return a copy of the written bytes */
+  def toByteArray: Array[Byte] = java.util.Arrays.copyOf(array, writePos)
+
+  override def read(dst: ByteBuffer): Int = {
+    ensureOpen()
+    val available = writePos - readPos
+    if (available == 0) {
+      -1
+    } else {
+      val n = math.min(available, dst.remaining())
+      dst.put(array, readPos, n)
+      readPos += n
+      n
+    }
+  }
+
+  override def read(dsts: Array[ByteBuffer], offset: Int, length: Int): Long = {
+    var total = 0L
+    var i = offset
+    while (i < offset + length) {
+      val n = read(dsts(i))
+      if (n < 0) {
+        return if (total == 0) -1 else total
+      }
+      total += n
+      i += 1
+    }
+    total
+  }
+
+  override def read(dsts: Array[ByteBuffer]): Long = read(dsts, 0, dsts.length)
+
+  override def write(src: ByteBuffer): Int = {
+    ensureOpen()
+    val n = src.remaining()
+    val needed = writePos + n
+    if (needed > array.length) {
+      array = java.util.Arrays.copyOf(array, math.max(needed, array.length + (array.length >> 1)))
+    }
+    src.get(array, writePos, n)
+    writePos = needed
+    n
+  }
+
+  override def write(srcs: Array[ByteBuffer], offset: Int, length: Int): Long = {
+    var total = 0L
+    var i = offset
+    while (i < offset + length) {
+      total += write(srcs(i))
+      i += 1
+    }
+    total
+  }
+
+  override def write(srcs: Array[ByteBuffer]): Long = write(srcs, 0, srcs.length)
+
+  override def isOpen: Boolean = open
+
+  override def close(): Unit = {
+    open = false
+  }
+
+  private def ensureOpen(): Unit = {
+    if (!open) throw new ClosedChannelException
+  }
+}
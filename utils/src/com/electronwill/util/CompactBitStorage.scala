@@ -2,16 +2,13 @@ package com.electronwill.util
 
 /**
  * A `CompactStorage` is a fixed-length container that stores its value in a contiguous way,
- * across the bytes boundaries. There are ''no bit'' between two adjacent values.
- *
- * While a general implementation is provided, better performance is obtained with exactly
- * 4, 8 or 16 bits per value.
+ * across the words boundaries. There are ''no bit'' between two adjacent values.
  *
  * @author TheElectronWill
  */
 object CompactStorage {
   /**
-   * Creates a new `CompactStorage`. The most optimized optimisation is chosen automatically.
+   * Creates a new `CompactStorage` that contains only zeros.
    *
    * @param bitsPerValue how many bits in one value, at most 32
    * @param size the total number of values
@@ -19,35 +16,22 @@ object CompactStorage {
    */
   def apply(bitsPerValue: Int, size: Int): CompactStorage = {
     require(bitsPerValue > 0 && bitsPerValue < 32, "it is required that 0 < bitsPerValue < 32")
-    val arraySize = byteSize(bitsPerValue, size)
-    val byteArray = new Array[Byte](arraySize)
-    bitsPerValue match {
-      case 4  => new CompactStorage4(size, byteArray)
-      case 8  => new CompactStorage8(size, byteArray)
-      case 16 => new CompactStorage16(size, byteArray)
-      case _  => new CompactStorageN(bitsPerValue, size, byteArray)
-    }
+    new CompactStorage(bitsPerValue, size, new Array[Long](wordSize(bitsPerValue, size)))
   }
 
   /**
-   * Creates a new `CompactStorage` backed by the given byte array. Every modification of the
-   * storage is reflected to the array and vice-versa. Depending on `bitsPerValue`, one element of
-   * the storage may not correspond to one byte of the array.
-   *
-   * The most optimized optimisation is chosen automatically.
+   * Creates a new `CompactStorage` that contains the values encoded in the given byte array, as
+   * written by [[CompactStorage.toBytes]]. The array is copied, it isn't used by the storage.
    *
    * @param bitsPerValue how many bits in one value, at most 32
-   * @param byteArray the array to use
-   * @return an instance of CompactStorage backed by the given array
+   * @param byteArray the encoded values
+   * @return an instance of CompactStorage that contains the decoded values
    */
   def apply(bitsPerValue: Int, byteArray: Array[Byte]): CompactStorage = {
     val size = byteArray.length * 8 / bitsPerValue
-    bitsPerValue match {
-      case 4  => new CompactStorage4(size, byteArray)
-      case 8  => new CompactStorage8(size, byteArray)
-      case 16 => new CompactStorage16(size, byteArray)
-      case _  => new CompactStorageN(bitsPerValue, size, byteArray)
-    }
+    val storage = apply(bitsPerValue, size)
+    storage.readBytes(byteArray)
+    storage
   }
 
   /**
@@ -58,46 +42,152 @@ object CompactStorage {
    * @return the minimal number of bytes needed to store the values
    */
   def byteSize(bitsPerValue: Int, numberOfValues: Int): Int = {
-    Math.ceil(bitsPerValue * numberOfValues / 8).toInt
+    ((bitsPerValue.toLong * numberOfValues + 7) >> 3).toInt
+  }
+
+  /** Calculates the number of 64-bits words needed to store n values of b bits. */
+  private def wordSize(bitsPerValue: Int, numberOfValues: Int): Int = {
+    ((bitsPerValue.toLong * numberOfValues + 63) >> 6).toInt
   }
 }
+
 /**
  * A `CompactStorage` is a fixed-length container that stores its value in a contiguous way,
- * across the bytes boundaries. There are ''no bit'' between two adjacent values.
+ * across the words boundaries. There are ''no bit'' between two adjacent values.
  *
- * While a general implementation is provided, better performance is obtained with exactly
- * 4, 8 or 16 bits per value. Use [[CompactStorage$.apply]] to use the most optimised implementation
- * for your case.
+ * The values are packed in an array of longs, from the least significant bits to the most
+ * significant ones. A value may span two words. Any number of bits per value is handled with
+ * shifts and masks, and the bulk methods ([[getAll]], [[setAll]], [[expand]]) process the words
+ * sequentially instead of recomputing the position of each value.
  *
+ * The byte format, see [[toBytes]], depends on the number of bits per value:
+ *  - 4 bits: two values per byte, the first one in the high nibble
+ *  - 8 bits: one value per byte
+ *  - 16 bits: two bytes per value, big-endian
+ *  - other: the values are packed from the least significant bit of the first byte
+ *
+ * @param bitsPerValue how many bits in each value
+ * @param size number of values
+ * @param words the array that stores the values
  * @author TheElectronWill
  */
-sealed abstract class CompactStorage(final val size: Int, final val bytes: Array[Byte]) {
-  final def byteSize: Int = bytes.length
-  def bitsPerValue: Int
+final class CompactStorage private[util] (val bitsPerValue: Int, val size: Int,
+                                          private[this] val words: Array[Long]) {
+  private[this] val mask: Long = (1L << bitsPerValue) - 1
+
+  /** @return the number of bytes of the byte format */
+  def byteSize: Int = CompactStorage.byteSize(bitsPerValue, size)
 
   /**
    * Gets a value from the storage.
    * @return the value at index idx; 0 is the first value, 1 is the second value, and so on
    */
-  def apply(idx: Int): Int
+  def apply(idx: Int): Int = {
+    val bitIdx = idx.toLong * bitsPerValue
+    val wordIdx = (bitIdx >>> 6).toInt
+    val offset = (bitIdx & 63).toInt
+    val low = words(wordIdx) >>> offset
+    if (offset + bitsPerValue <= 64) {
+      (low & mask).toInt
+    } else {
+      ((low | words(wordIdx + 1) << (64 - offset)) & mask).toInt
+    }
+  }
 
   /**
    * Sets the value at the given index.
    * @param idx the index
    * @param value the new value to set
    */
-  def update(idx: Int, value: Int): Unit
+  def update(idx: Int, value: Int): Unit = {
+    val v = value & mask
+    val bitIdx = idx.toLong * bitsPerValue
+    val wordIdx = (bitIdx >>> 6).toInt
+    val offset = (bitIdx & 63).toInt
+    words(wordIdx) = words(wordIdx) & ~(mask << offset) | v << offset
+    if (offset + bitsPerValue > 64) {
+      val shift = 64 - offset // the number of bits in the first word
+      words(wordIdx + 1) = words(wordIdx + 1) & ~(mask >>> shift) | v >>> shift
+    }
+  }
+
+  /**
+   * Copies all the values to an array.
+   * @param out the destination, of length at least `size`
+   */
+  def getAll(out: Array[Int]): Unit = {
+    val bits = bitsPerValue
+    var wordIdx = 0
+    var offset = 0
+    var i = 0
+    while (i < size) {
+      var v = words(wordIdx) >>> offset
+      val end = offset + bits
+      if (end >= 64) {
+        wordIdx += 1
+        offset = end - 64
+        if (offset > 0) {
+          v |= words(wordIdx) << (bits - offset)
+        }
+      } else {
+        offset = end
+      }
+      out(i) = (v & mask).toInt
+      i += 1
+    }
+  }
+
+  /**
+   * Replaces all the values by the ones of an array.
+   * @param values the new values, of length at least `size`
+   */
+  def setAll(values: Array[Int]): Unit = {
+    val bits = bitsPerValue
+    var acc = 0L
+    var wordIdx = 0
+    var offset = 0
+    var i = 0
+    while (i < size) {
+      val v = values(i) & mask
+      acc |= v << offset
+      val end = offset + bits
+      if (end >= 64) {
+        words(wordIdx) = acc
+        wordIdx += 1
+        offset = end - 64
+        acc = if (offset > 0) v >>> (bits - offset) else 0L
+      } else {
+        offset = end
+      }
+      i += 1
+    }
+    if (offset > 0) {
+      words(wordIdx) = acc
+    }
+  }
 
   /**
    * Replaces all values by the given one.
    * @param value the new value
    */
-  final def fill(value: Int): Unit = {
+  def fill(value: Int): Unit = {
+    val v = value & mask
+    if (64 % bitsPerValue == 0) {
+      // Each word contains the same pattern
+      var pattern = 0L
+      var offset = 0
+      while (offset < 64) {
+        pattern |= v << offset
+        offset += bitsPerValue
+      }
+      java.util.Arrays.fill(words, pattern)
+    } else {
       var i = 0
       while (i < size) {
         this(i) = value
         i += 1
       }
+    }
   }
 
   /**
@@ -105,7 +195,7 @@ sealed abstract class CompactStorage(final val size: Int, final val bytes: Array
    * @param value the value to replace
    * @param replacement the replacement to use
    */
-  final def replace(value: Int, replacement: Int): Unit = {
+  def replace(value: Int, replacement: Int): Unit = {
     var i = 0
     while (i < size) {
       val v = this(i)
@@ -121,118 +211,87 @@ sealed abstract class CompactStorage(final val size: Int, final val bytes: Array
    * @param increasePerValue the additional number of bits per value, should be > 0
    * @return a new `CompactStorage` that contains the same values as this one but has more bits per value
    */
-  final def expand(increasePerValue: Int): CompactStorage = {
+  def expand(increasePerValue: Int): CompactStorage = {
     val newStorage = CompactStorage(bitsPerValue + increasePerValue, size)
-    var i = 0
-    while (i < size) {
-      newStorage(i) = this(i)
-      i += 1
-    }
+    val values = new Array[Int](size)
+    getAll(values)
+    newStorage.setAll(values)
     newStorage
   }
-}
 
-/**
- * General implementation of [[com.electronwill.util.CompactStorage]] that works for any number of
- * bits per value.
- *
- * @param bitsPerValue how many bits in each value
- * @param s number of values
- * @param b byte array that stores the values
- */
-final class CompactStorageN private[util] (val bitsPerValue: Int, s: Int, b: Array[Byte])
-    extends CompactStorage(s, b) {
-  override def apply(idx: Int): Int = {
-    var value = 0
-    var i = 0
-    while (i < bitsPerValue) {
-      val bitIdx = idx * bitsPerValue + i
-      val byteIdx = bitIdx >> 3 // (>> 3) divides by 8
-      val bitInByte = bitIdx & 7 // (x & 7) is the same as (x % 8)
-      if ((bytes(byteIdx) & (1 << bitInByte)) != 0) { // if bit is 1 then update the result
-        value |= (1 << i)
-      }
-      i += 1
-    }
-    value
-  }
-  override def update(idx: Int, value: Int): Unit = {
-    var i = 0
-    while (i < bitsPerValue) {
-      val bitIdx = idx * bitsPerValue + i
-      val byteIdx = bitIdx >> 3
-      val bitInByte = bitIdx & 7
-      val mask = 1 << i
-      if ((value & mask) != 0) {
-        bytes(byteIdx) = (bytes(byteIdx) | (1 << bitInByte)).toByte // set bit to 1
-      } else {
-        bytes(byteIdx) = (bytes(byteIdx) & ~mask).toByte // set bit to 0
-      }
-      i += 1
+  /**
+   * Encodes the values in the byte format, which is described in the class documentation.
+   * @return a new array that contains the encoded values
+   */
+  def toBytes: Array[Byte] = {
+    val bytes = new Array[Byte](byteSize)
+    bitsPerValue match {
+      case 4 =>
+        var i = 0
+        while (i < size) {
+          val high = this(i) << 4
+          val low = if (i + 1 < size) this(i + 1) else 0
+          bytes(i >> 1) = (high | low).toByte
+          i += 2
+        }
+      case 8 =>
+        var i = 0
+        while (i < size) {
+          bytes(i) = this(i).toByte
+          i += 1
+        }
+      case 16 =>
+        var i = 0
+        while (i < size) {
+          val v = this(i)
+          bytes(i << 1) = (v >> 8).toByte
+          bytes((i << 1) + 1) = v.toByte
+          i += 1
+        }
+      case _ =>
+        // The bits are already in the right order: write each word in little-endian
+        var i = 0
+        while (i < bytes.length) {
+          bytes(i) = (words(i >> 3) >>> ((i & 7) << 3)).toByte
+          i += 1
+        }
     }
+    bytes
   }
-}
 
-/**
- * An implementation of [[com.electronwill.util.CompactStorage]] optimized for 4-bits values.
- * @param s number of values
- * @param b byte array that stores the values
- */
-final class CompactStorage4 private[util] (s: Int, b: Array[Byte]) extends CompactStorage(s, b) {
-  override def bitsPerValue: Int = 4
-  override def apply(idx: Int): Int = {
-    val byteIdx = idx >> 1 // (>> 1) divides by 2
-    if ((byteIdx & 1) == 0) { // (x & 1) is the same as (x % 2)
-      bytes(byteIdx) >> 4
-    } else {
-      bytes(byteIdx) & 0xf
-    }
-  }
-  override def update(idx: Int, value: Int): Unit = {
-    val byteIdx = idx >> 1
-    if ((byteIdx & 1) == 0) {
-      bytes(byteIdx) = (((value & 0xf) << 4) | bytes(byteIdx) & 0xf).toByte
-    } else {
-      bytes(byteIdx) = ((value & 0xf) | (bytes(byteIdx) & 0xf0)).toByte
+  /** Decodes values that have been encoded by [[toBytes]]. */
+  private[util] def readBytes(bytes: Array[Byte]): Unit = {
+    bitsPerValue match {
+      case 4 =>
+        var i = 0
+        while (i < size) {
+          val b = bytes(i >> 1)
+          this(i) = (b >> 4) & 0xf
+          if (i + 1 < size) {
+            this(i + 1) = b & 0xf
+          }
+          i += 2
+        }
+      case 8 =>
+        var i = 0
+        while (i < size) {
+          this(i) = bytes(i) & 0xff
+          i += 1
+        }
+      case 16 =>
+        var i = 0
+        while (i < size) {
+          this(i) = (bytes(i << 1) & 0xff) << 8 | bytes((i << 1) + 1) & 0xff
+          i += 1
+        }
+      case _ =>
+        java.util.Arrays.fill(words, 0L)
+        val length = math.min(bytes.length, words.length << 3)
+        var i = 0
+        while (i < length) {
+          words(i >> 3) |= (bytes(i) & 0xffL) << ((i & 7) << 3)
+          i += 1
+        }
     }
   }
 }
-
-/**
- * An implementation of [[com.electronwill.util.CompactStorage]] optimized for 8-bits values (i.e.
- * one value = one byte in the byte array).
- *
- * @param s number of values
- * @param b byte array that stores the values
- */
-final class CompactStorage8 private[util] (s: Int, b: Array[Byte]) extends CompactStorage(s, b) {
-  override def bitsPerValue: Int = 8
-  override def apply(idx: Int): Int = {
-    bytes(idx)
-  }
-  override def update(idx: Int, value: Int): Unit = {
-    bytes(idx) = value.toByte
-  }
-}
-
-/**
- * An implementation of [[com.electronwill.util.CompactStorage]] optimized for 16-bits values (i.e.
- * one value = two bytes in the byte array).
- *
- * @param s number of values
- * @param b byte array that stores the values
- */
-final class CompactStorage16 private[util] (s: Int, b: Array[Byte]) extends CompactStorage(s, b) {
-  override def bitsPerValue: Int = 16
-  override def apply(idx: Int): Int = {
-    val firstIdx = idx << 1 // (<< 1) multiplies by 2
-    val secondIdx = firstIdx + 1
-    bytes(firstIdx) << 8 | bytes(secondIdx)
-  }
-  override def update(idx: Int, value: Int): Unit = {
-    val firstIdx = idx << 1
-    val secondIdx = firstIdx + 1
-    bytes(firstIdx) = (value >> 8).toByte
-    bytes(secondIdx) = (value & 0xff).toByte
-  }
-}
@@ -0,0 +1,123 @@
+package com.electronwill.util
+
+/**
+ * A histogram of positive values, typically durations in nanoseconds, with a bounded relative
+ * error. The values are counted in log-linear buckets: each power of two is divided in
+ * 2^SubBucketBits buckets, so that the precision is about 6% at any scale. Recording a value is
+ * allocation-free and runs in constant time.
+ *
+ * A histogram must be written by one thread at a time. It can be read by other threads, in
+ * which case the read values may be slightly out of date.
+ *
+ * @author TheElectronWill
+ */
+final class LatencyHistogram {
+  import LatencyHistogram._
+
+  private[this] val counts = new Array[Long](BucketCount)
+  @volatile private[this] var _count = 0L
+  private[this] var sum = 0L
+  private[this] var _min = Long.MaxValue
+  private[this] var _max = 0L
+
+  /**
+   * Records a value. The negative values are recorded as zeros.
+   *
+   * @param value the value to record
+   */
+  def record(value: Long): Unit = {
+    val v = math.max(value, 0L)
+    counts(bucketIndex(v)) += 1
+    sum += v
+    if (v < _min) _min = v
+    if (v > _max) _max = v
+    _count += 1 // last, so that the other values are visible when the count is
+  }
+
+  /** @return the number of recorded values */
+  def count: Long = _count
+
+  /** @return the smallest recorded value, or 0 if there is none */
+  def min: Long = if (_count == 0) 0 else _min
+
+  /** @return the greatest recorded value, or 0 if there is none */
+  def max: Long = _max
+
+  /** @return the mean of the recorded values, or 0 if there is none */
+  def mean: Double = {
+    val n = _count
+    if (n == 0) 0.0 else sum.toDouble / n
+  }
+
+  /**
+   * Computes a percentile. The result is the upper bound of the bucket that contains the
+   * percentile, but never more than [[max]].
+   *
+   * @param p the percentile, between 0 and 100
+   * @return the value below which p% of the recorded values are, or 0 if there is no value
+   */
+  def percentile(p: Double): Long = {
+    val n = _count
+    if (n == 0) {
+      0
+    } else {
+      val rank = math.max(1L, math.ceil(p / 100.0 * n).toLong)
+      var seen = 0L
+      var i = 0
+      while (i < BucketCount) {
+        seen += counts(i)
+        if (seen >= rank) {
+          return math.min(bucketUpperBound(i), _max)
+        }
+        i += 1
+      }
+      _max
+    }
+  }
+
+  /** Removes all the recorded values. Must be called by the thread that writes the histogram. */
+  def reset(): Unit = {
+    java.util.Arrays.fill(counts, 0L)
+    sum = 0
+    _min = Long.MaxValue
+    _max = 0
+    _count = 0
+  }
+
+  override def toString: String = {
+    s"LatencyHistogram(count=$count, p50=${percentile(50)}, p99=${percentile(99)}, max=$max)"
+  }
+}
+
+object LatencyHistogram {
+  /** The number of bits used to divide each power of two */
+  private final val SubBucketBits = 4
+  private final val SubBucketCount = 1 << SubBucketBits
+  private final val SubBucketMask = SubBucketCount - 1
+
+  /** The number of buckets needed to cover all the positive longs */
+  private final val BucketCount = (64 - SubBucketBits) * SubBucketCount
+
+  /** Gives the index of the bucket that contains the value v >= 0 */
+  private def bucketIndex(v: Long): Int = {
+    if (v < SubBucketCount) {
+      v.toInt // the small values are exact
+    } else {
+      val exp = 63 - java.lang.Long.numberOfLeadingZeros(v) // >= SubBucketBits
+      val sub = (v >>> (exp - SubBucketBits)).toInt & SubBucketMask
+      (exp - SubBucketBits + 1) * SubBucketCount + sub
+    }
+  }
+
+  /** Gives the greatest value that belongs to a bucket */
+  private def bucketUpperBound(idx: Int): Long = {
+    if (idx < SubBucketCount) {
+      idx
+    } else {
+      val shift = idx / SubBucketCount - 1
+      val sub = idx & SubBucketMask
+      val lower = (SubBucketCount + sub).toLong << shift
+      lower + (1L << shift) - 1
+    }
+  }
+}
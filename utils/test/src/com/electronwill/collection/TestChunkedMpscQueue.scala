@@ -0,0 +1,65 @@
+package com.electronwill.collection
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+/**
+ * @author TheElectronWill
+ */
+class TestChunkedMpscQueue {
+	@Test
+	def testOrder(): Unit = {
+		val queue = new ChunkedMpscQueue[Integer](chunkSize = 4)
+		for (i <- 0 until 10) {
+			assertTrue(queue.offer(i))
+		}
+		assertEquals(10, queue.size)
+		assertEquals(0, queue.poll())
+		val taken = new SimpleBag[Integer]
+		assertEquals(5, queue.drain(taken += _, 5))
+		assertEquals(4, queue.size)
+		queue.drain(taken += _)
+		assertTrue(queue.isEmpty)
+		assertNull(queue.poll())
+		for (i <- 0 until 9) {
+			assertEquals(i + 1, taken(i))
+		}
+	}
+
+	@Test
+	def testCapacity(): Unit = {
+		val queue = new ChunkedMpscQueue[String](capacity = 3, chunkSize = 2)
+		assertTrue(queue.offer("a"))
+		assertTrue(queue.offer("b"))
+		assertTrue(queue.offer("c"))
+		assertFalse(queue.offer("d"))
+		assertEquals("a", queue.poll())
+		assertTrue(queue.offer("d"))
+		assertEquals(3, queue.size)
+	}
+
+	@Test
+	def testProducers(): Unit = {
+		val producers = 4
+		val count = 100000
+		val queue = new ChunkedMpscQueue[Integer](chunkSize = 16)
+		val threads = for (p <- 0 until producers) yield new Thread(() => {
+			for (i <- 0 until count) {
+				queue.offer(p * count + i)
+			}
+		})
+		threads.foreach(_.start())
+		val last = Array.fill(producers)(-1)
+		var received = 0
+		while (received < producers * count) {
+			received += queue.drain(v => {
+				val p = v / count
+				val i = v % count
+				assertEquals(last(p) + 1, i, "messages of a producer must keep their order")
+				last(p) = i
+			})
+		}
+		threads.foreach(_.join())
+		assertTrue(queue.isEmpty)
+	}
+}
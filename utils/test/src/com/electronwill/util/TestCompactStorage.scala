@@ -0,0 +1,90 @@
+package com.electronwill.util
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+import scala.util.Random
+
+/**
+ * @author TheElectronWill
+ */
+class TestCompactStorage {
+	private val size = 256
+
+	@Test
+	def testGetSet(): Unit = {
+		for (bits <- 1 until 32) {
+			val storage = CompactStorage(bits, size)
+			val values = randomValues(bits)
+			for (i <- 0 until size) {
+				storage(i) = values(i)
+			}
+			for (i <- 0 until size) {
+				assertEquals(values(i), storage(i), s"bits: $bits, index: $i")
+			}
+		}
+	}
+
+	@Test
+	def testBulk(): Unit = {
+		for (bits <- 1 until 32) {
+			val storage = CompactStorage(bits, size)
+			val values = randomValues(bits)
+			storage.setAll(values)
+			val read = new Array[Int](size)
+			storage.getAll(read)
+			assertArrayEquals(values, read, s"bits: $bits")
+			for (i <- 0 until size) {
+				assertEquals(values(i), storage(i), s"bits: $bits, index: $i")
+			}
+		}
+	}
+
+	@Test
+	def testExpandAndFill(): Unit = {
+		for (bits <- 1 until 28) {
+			val storage = CompactStorage(bits, size)
+			val values = randomValues(bits)
+			storage.setAll(values)
+			val expanded = storage.expand(4)
+			assertEquals(bits + 4, expanded.bitsPerValue)
+			for (i <- 0 until size) {
+				assertEquals(values(i), expanded(i), s"bits: $bits, index: $i")
+			}
+			val last = (1 << bits) - 1
+			storage.fill(last)
+			for (i <- 0 until size) {
+				assertEquals(last, storage(i), s"bits: $bits, index: $i")
+			}
+		}
+	}
+
+	@Test
+	def testBytes(): Unit = {
+		for (bits <- 1 until 32) {
+			val storage = CompactStorage(bits, size)
+			val values = randomValues(bits)
+			storage.setAll(values)
+			val bytes = storage.toBytes
+			assertEquals(CompactStorage.byteSize(bits, size), bytes.length)
+			val decoded = CompactStorage(bits, bytes)
+			assertEquals(size, decoded.size)
+			for (i <- 0 until size) {
+				assertEquals(values(i), decoded(i), s"bits: $bits, index: $i")
+			}
+		}
+		// Checks the byte format of the optimized sizes
+		val storage4 = CompactStorage(4, 2)
+		storage4(0) = 0xa
+		storage4(1) = 0x5
+		assertArrayEquals(Array[Byte](0xa5.toByte), storage4.toBytes)
+		val storage16 = CompactStorage(16, 1)
+		storage16(0) = 0xabcd
+		assertArrayEquals(Array[Byte](0xab.toByte, 0xcd.toByte), storage16.toBytes)
+	}
+
+	private def randomValues(bits: Int): Array[Int] = {
+		val random = new Random(bits)
+		Array.fill(size)((random.nextLong() & ((1L << bits) - 1)).toInt)
+	}
+}
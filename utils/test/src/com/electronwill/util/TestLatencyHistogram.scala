@@ -0,0 +1,52 @@
+package com.electronwill.util
+
+import org.junit.jupiter.api.Assertions._
+import org.junit.jupiter.api.Test
+
+/**
+ * @author TheElectronWill
+ */
+class TestLatencyHistogram {
+	@Test
+	def testSmallValues(): Unit = {
+		val histogram = new LatencyHistogram
+		for (v <- 1 to 10) {
+			histogram.record(v)
+		}
+		assertEquals(10, histogram.count)
+		assertEquals(1, histogram.min)
+		assertEquals(10, histogram.max)
+		assertEquals(5.5, histogram.mean)
+		assertEquals(5, histogram.percentile(50))
+		assertEquals(10, histogram.percentile(99))
+	}
+
+	@Test
+	def testPrecision(): Unit = {
+		val histogram = new LatencyHistogram
+		for (v <- 1 to 100000) {
+			histogram.record(v * 1000L)
+		}
+		for (p <- Seq(10.0, 50.0, 90.0, 99.0, 99.9)) {
+			val expected = p * 1000 * 1000
+			val actual = histogram.percentile(p)
+			assertTrue(actual >= expected, s"p$p: $actual < $expected")
+			assertTrue(actual <= expected * 1.07, s"p$p: $actual too far from $expected")
+		}
+		assertEquals(100000000L, histogram.percentile(100))
+		histogram.record(Long.MaxValue)
+		assertEquals(Long.MaxValue, histogram.max)
+	}
+
+	@Test
+	def testReset(): Unit = {
+		val histogram = new LatencyHistogram
+		histogram.record(123)
+		histogram.reset()
+		assertEquals(0, histogram.count)
+		assertEquals(0, histogram.max)
+		assertEquals(0, histogram.percentile(50))
+		histogram.record(7)
+		assertEquals(7, histogram.min)
+	}
+}